@@ -25,7 +25,9 @@ import net.sourceforge.opencamera.PreferenceKeys;
 import net.sourceforge.opencamera.preview.ApplicationInterface;
 import net.sourceforge.opencamera.preview.VideoProfile;
 import net.sourceforge.opencamera.SaveLocationHistory;
+import net.sourceforge.opencamera.StartupInitializer;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSim;
 import net.sourceforge.opencamera.preview.Preview;
 import net.sourceforge.opencamera.ui.DrawPreview;
 import net.sourceforge.opencamera.ui.FolderChooserDialog;
@@ -448,6 +450,38 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertTrue(mPreview.test_ticker_called);
     }
 
+    /** Tests that the deferred startup tasks are run once the camera is running, and that the
+     *  startup trace is recorded.
+     */
+    public void testStartupTrace() throws InterruptedException {
+        Log.d(TAG, "testStartupTrace");
+
+        setToDefault();
+        restart();
+
+        StartupInitializer startupInitializer = mActivity.getStartupInitializer();
+        assertTrue(startupInitializer.hasCompleted("preview"));
+        assertTrue(startupInitializer.hasCompleted("camera2_support"));
+        assertTrue(startupInitializer.getStartTimeMs("preview") >= startupInitializer.getEndTimeMs("camera2_support"));
+
+        long time_s = System.currentTimeMillis();
+        while( !startupInitializer.hasCompleted("icons") ) {
+            assertTrue( System.currentTimeMillis() - time_s < 5000 );
+            Thread.sleep(10);
+        }
+        assertTrue(startupInitializer.hasStartedDeferred());
+        Log.d(TAG, "startup trace: " + startupInitializer.getTrace());
+        long shutter_ready_time = startupInitializer.getMarkTimeMs("shutter_ready");
+        long first_frame_time = startupInitializer.getMarkTimeMs("first_frame");
+        Log.d(TAG, "shutter_ready_time: " + shutter_ready_time);
+        Log.d(TAG, "first_frame_time: " + first_frame_time);
+        assertTrue(shutter_ready_time >= startupInitializer.getEndTimeMs("intents"));
+        assertTrue(first_frame_time >= 0);
+        // deferred tasks shouldn't have started until the first frame
+        assertTrue(startupInitializer.getStartTimeMs("icons") >= first_frame_time);
+        assertNotNull(mActivity.getPreloadedBitmap(net.sourceforge.opencamera.R.drawable.flash_off));
+    }
+
     /** Tests that we clean up the background task for opening camera properly.
      */
     public void testImmediatelyQuit() throws InterruptedException {
@@ -11514,6 +11548,108 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertTrue(mActivity.getPreview().getCameraController().getBurstTotal() < CameraController.N_IMAGES_NR_DARK_LOW_LIGHT);
     }
 
+    /** Takes n_photos photos in the supplied photo mode with the simulated camera, as fast as the
+     *  application allows, and reports the throughput, image saver queue occupancy and peak memory.
+     */
+    private void subTestSoakSimCamera(String photo_mode, int n_photos) throws InterruptedException {
+        Log.d(TAG, "subTestSoakSimCamera: " + photo_mode);
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.PhotoModePreferenceKey, photo_mode);
+        editor.apply();
+        updateForSettings();
+
+        CameraControllerSim camera_controller = (CameraControllerSim)mPreview.getCameraController();
+        ImageSaver imageSaver = mActivity.getApplicationInterface().getImageSaver();
+        Runtime runtime = Runtime.getRuntime();
+        int n_images_s = camera_controller.getNImages();
+        int n_failures_s = camera_controller.getNCaptureFailures();
+        long queue_blocked_time_s = camera_controller.getQueueBlockedTimeMs();
+        long n_samples = 0;
+        long queue_total = 0;
+        int max_queue = 0;
+        long peak_memory = 0;
+
+        View takePhotoButton = mActivity.findViewById(net.sourceforge.opencamera.R.id.take_photo);
+        long time_s = System.currentTimeMillis();
+        for(int i=0;i<n_photos;i++) {
+            clickView(takePhotoButton);
+            long photo_time_s = System.currentTimeMillis();
+            // sample whilst waiting until we can take the next photo, as for waitForTakePhoto()
+            while( mPreview.isTakingPhoto() || !mActivity.getApplicationInterface().canTakeNewPhoto() || (i == n_photos-1 && imageSaver.getNImagesToSave() > 0) ) {
+                assertTrue(System.currentTimeMillis() - photo_time_s < 60000);
+                int queue = imageSaver.getNImagesToSave();
+                queue_total += queue;
+                max_queue = Math.max(max_queue, queue);
+                n_samples++;
+                peak_memory = Math.max(peak_memory, runtime.totalMemory() - runtime.freeMemory());
+                Thread.sleep(10);
+            }
+        }
+        long time_taken = System.currentTimeMillis() - time_s;
+
+        int n_images = camera_controller.getNImages() - n_images_s;
+        Log.d(TAG, "soak test " + photo_mode + ": " + n_photos + " photos (" + n_images + " images) in " + time_taken + "ms");
+        Log.d(TAG, "    throughput: " + String.format(Locale.US, "%.2f", (1000.0*n_photos)/time_taken) + " photos/s, " + String.format(Locale.US, "%.2f", (1000.0*n_images)/time_taken) + " images/s");
+        Log.d(TAG, "    image saver queue: mean " + String.format(Locale.US, "%.2f", n_samples > 0 ? queue_total/(double)n_samples : 0.0) + " max " + max_queue);
+        Log.d(TAG, "    camera blocked on queue: " + (camera_controller.getQueueBlockedTimeMs() - queue_blocked_time_s) + "ms");
+        Log.d(TAG, "    peak memory: " + peak_memory/(1024*1024) + "MB of max " + runtime.maxMemory()/(1024*1024) + "MB");
+        Log.d(TAG, "    image buffer pool: " + camera_controller.getImageBufferPool().getStatsString());
+
+        assertSame(camera_controller, mPreview.getCameraController());
+        assertEquals(n_failures_s, camera_controller.getNCaptureFailures());
+        assertEquals(0, imageSaver.getNImagesToSave());
+        // all images should have been released once saved
+        assertEquals(0, camera_controller.getImageBufferPool().getNInUse());
+        assertTrue(n_images >= n_photos);
+    }
+
+    /** Soak test for the capture pipeline, using a simulated camera (CameraControllerSim), so can be
+     *  run on an emulator without camera hardware. Takes soak_n_photos_c photos in each of the
+     *  standard, NR, HDR and focus bracketing photo modes, and reports the throughput, image saver
+     *  queue occupancy and peak memory for each, to catch throughput regressions.
+     *  Note that this saves all the photos, so needs sufficient storage on the device.
+     */
+    public void testSoakSimCamera() throws InterruptedException {
+        Log.d(TAG, "testSoakSimCamera");
+
+        setToDefault();
+
+        final int soak_n_photos_c = 500;
+        CameraControllerSim.Config config = new CameraControllerSim.Config();
+        config.width = 2000; // smaller than a typical camera, to limit the storage needed
+        config.height = 1500;
+        config.capture_latency_ms = 50;
+        config.frame_interval_ms = 33;
+        mPreview.test_sim_camera_config = config;
+        mPreview.reopenCamera();
+        waitUntilCameraOpened();
+        assertTrue(mPreview.getCameraController() instanceof CameraControllerSim);
+
+        try {
+            subTestSoakSimCamera("preference_photo_mode_std", soak_n_photos_c);
+            if( mActivity.supportsNoiseReduction() ) {
+                subTestSoakSimCamera("preference_photo_mode_noise_reduction", soak_n_photos_c);
+            }
+            if( mActivity.supportsHDR() ) {
+                subTestSoakSimCamera("preference_photo_mode_hdr", soak_n_photos_c);
+            }
+            if( mActivity.supportsFocusBracketing() ) {
+                subTestSoakSimCamera("preference_photo_mode_focus_bracketing", soak_n_photos_c);
+            }
+        }
+        finally {
+            mPreview.test_sim_camera_config = null;
+            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+            SharedPreferences.Editor editor = settings.edit();
+            editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std");
+            editor.apply();
+            mPreview.reopenCamera();
+            waitUntilCameraOpened();
+        }
+    }
+
     /** Tests fast burst with 20 images.
      */
     public void testTakePhotoFastBurst() throws InterruptedException {
@@ -0,0 +1,16 @@
+package net.sourceforge.opencamera.test;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class SoakTests {
+    /** Soak tests of the capture pipeline with a simulated camera, to catch throughput
+     *  regressions - can be run on an emulator without camera hardware. See the logs for the
+     *  throughput, image saver queue occupancy and peak memory.
+     */
+    public static Test suite() {
+        TestSuite suite = new TestSuite(MainTests.class.getName());
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testSoakSimCamera"));
+        return suite;
+    }
+}
@@ -11,13 +11,18 @@ import androidx.annotation.RequiresPermission;
  */
 class AudioListener {
     private static final String TAG = "AudioListener";
+    static final int sample_rate = 8000;
     private volatile boolean is_running = true; // should be volatile, as used to communicate between threads
     private int buffer_size = -1;
     private AudioRecord ar; // modification to ar should always be synchronized (on AudioListener.this), as the ar can be released in the AudioListener's own thread
     private Thread thread;
 
     public interface AudioListenerCallback {
-        void onAudio(int level);
+        /** Called on the AudioListener's thread with each buffer of samples read. The buffer is
+         *  reused, so should not be kept after returning.
+         * @param n_samples The number of samples in buffer.
+         */
+        void onAudio(short [] buffer, int n_samples);
     }
 
     /** Create a new AudioListener. The caller should call the start() method to start listening.
@@ -26,7 +31,6 @@ class AudioListener {
     AudioListener(final AudioListenerCallback cb) {
         if( MyDebug.LOG )
             Log.d(TAG, "new AudioListener");
-        final int sample_rate = 8000;
         int channel_config = AudioFormat.CHANNEL_IN_MONO;
         int audio_format = AudioFormat.ENCODING_PCM_16BIT;
         try {
@@ -90,20 +94,7 @@ class AudioListener {
                     try {
                         int n_read = ar.read(buffer, 0, buffer_size);
                         if( n_read > 0 ) {
-                            int average_noise = 0;
-                            int max_noise = 0;
-                            for(int i=0;i<n_read;i++){
-                                int value = Math.abs(buffer[i]);
-                                average_noise += value;
-                                max_noise = Math.max(max_noise, value);
-                            }
-                            average_noise /= n_read;
-                            /*if( MyDebug.LOG ) {
-                                Log.d(TAG, "n_read: " + n_read);
-                                Log.d(TAG, "average noise: " + average_noise);
-                                Log.d(TAG, "max noise: " + max_noise);
-                            }*/
-                            cb.onAudio(average_noise);
+                            cb.onAudio(buffer, n_read);
                         }
                         else {
                             if( MyDebug.LOG ) {
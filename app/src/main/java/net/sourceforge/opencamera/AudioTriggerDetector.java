@@ -0,0 +1,277 @@
+package net.sourceforge.opencamera;
+
+/** Detects loud sounds (such as claps, or speech) in 16-bit PCM audio, for the audio "noise"
+ *  trigger option.
+ *  The audio is analysed in fixed size windows: for each window we compute the RMS level, and
+ *  a peak envelope is tracked per sample. A sound starts when the RMS rises sufficiently above an
+ *  adaptive noise floor, and ends when it falls back below a lower threshold (hysteresis, so that
+ *  a sound hovering around the threshold doesn't trigger repeatedly). The noise floor follows
+ *  quieter levels quickly and louder levels slowly, and is only updated when no sound is in
+ *  progress.
+ *  Optionally (see setBand()), the fraction of each window's energy within a frequency band is
+ *  computed with the Goertzel algorithm, and sounds with too little energy in the band are
+ *  rejected - e.g., wind noise is mostly below 300Hz, whilst claps and speech have most of their
+ *  energy above that.
+ *  Sounds are classified as claps or voice by their duration.
+ *  All buffers are allocated in the constructor, so process() doesn't allocate. Times are
+ *  measured from the number of samples processed, so results don't depend on the wall clock.
+ *  Only setMinRise() may be called from a different thread to the one calling process() (min_rise
+ *  is volatile); all other state, including the band settings, is unsynchronised and must only be
+ *  accessed from the thread calling process().
+ */
+public class AudioTriggerDetector {
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_CLAP = 1; // a short sound
+    public static final int EVENT_VOICE = 2; // a longer sound
+
+    private static final float floor_fall_c = 0.3f; // rate at which the noise floor follows quieter levels, per window
+    private static final float floor_rise_c = 0.02f; // rate at which the noise floor follows louder levels, per window
+    private static final float min_floor_c = 1.0f; // minimum noise floor, to avoid triggering on any sound after digital silence
+    private static final float on_ratio_c = 2.0f; // a sound starts when the RMS is this many times the noise floor (6dB)...
+    private static final float hysteresis_c = 0.5f; // ...and ends when the RMS falls below this fraction of the way from the noise floor to the start threshold
+    private static final int clap_max_ms_c = 200; // longest sound classified as a clap
+    private static final int event_max_ms_c = 3000; // sounds longer than this are treated as a new noise floor
+    private static final float envelope_release_ms_c = 100.0f; // time constant for the peak envelope to decay
+
+    private final int sample_rate;
+    private final int window_size;
+    private final float [] window; // samples of the current window
+    private int window_pos; // number of samples in window
+    private final int clap_max_windows;
+    private final int event_max_windows;
+    private final float envelope_decay; // per sample
+
+    // band energy detector
+    private final float [] band_coeffs; // Goertzel coefficients, 2*cos(2*pi*k/window_size) for each bin k in the band
+    private int n_band_bins; // 0 if band detection is disabled
+    private float min_band_ratio;
+
+    private volatile float min_rise = 0.0f; // may be set from a different thread to the one calling process()
+
+    // state
+    private boolean has_floor;
+    private float noise_floor;
+    private float rms;
+    private float peak_envelope;
+    private float band_ratio;
+    private boolean loud;
+    private int loud_windows; // number of windows that the current sound has lasted
+    private double event_band_energy; // energy within the band over the current sound
+    private double event_energy; // total energy over the current sound
+    private float event_peak; // maximum peak envelope over the current sound
+
+    /**
+     * @param sample_rate The sample rate of the audio, in Hz.
+     * @param window_size The number of samples per analysis window.
+     */
+    public AudioTriggerDetector(int sample_rate, int window_size) {
+        if( sample_rate <= 0 || window_size <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid sample rate " + sample_rate + " or window size " + window_size);
+        }
+        this.sample_rate = sample_rate;
+        this.window_size = window_size;
+        this.window = new float[window_size];
+        float window_ms = (1000.0f*window_size)/sample_rate;
+        this.clap_max_windows = Math.max(1, (int)(clap_max_ms_c/window_ms));
+        this.event_max_windows = Math.max(clap_max_windows+1, (int)(event_max_ms_c/window_ms));
+        this.envelope_decay = (float)Math.exp(-1000.0/(envelope_release_ms_c*sample_rate));
+        this.band_coeffs = new float[window_size/2];
+    }
+
+    /** Sets the minimum increase of the RMS level above the noise floor for a sound to start, in
+     *  16-bit sample units. This avoids triggering on quiet sounds when the noise floor is very low.
+     */
+    public void setMinRise(float min_rise) {
+        this.min_rise = min_rise;
+    }
+
+    /** Enables rejecting sounds with less than min_band_ratio (from 0 to 1) of their energy
+     *  between low_hz and high_hz.
+     */
+    public void setBand(float low_hz, float high_hz, float min_band_ratio) {
+        int min_bin = Math.max(1, (int)Math.ceil(low_hz*window_size/sample_rate));
+        int max_bin = Math.min((window_size-1)/2, (int)Math.floor(high_hz*window_size/sample_rate));
+        n_band_bins = 0;
+        for(int k=min_bin;k<=max_bin;k++) {
+            band_coeffs[n_band_bins++] = (float)(2.0*Math.cos(2.0*Math.PI*k/window_size));
+        }
+        this.min_band_ratio = min_band_ratio;
+    }
+
+    /** Disables the band energy detector.
+     */
+    public void clearBand() {
+        n_band_bins = 0;
+    }
+
+    /** Forgets the noise floor and any sound in progress.
+     */
+    public void reset() {
+        window_pos = 0;
+        has_floor = false;
+        noise_floor = 0.0f;
+        rms = 0.0f;
+        peak_envelope = 0.0f;
+        band_ratio = 0.0f;
+        loud = false;
+        loud_windows = 0;
+        event_peak = 0.0f;
+    }
+
+    /** Analyses the supplied samples. Samples are buffered until a full window is available, so
+     *  this may be called with any number of samples.
+     * @return The event for the last sound that ended during these samples, or EVENT_NONE.
+     */
+    public int process(short [] buffer, int offset, int length) {
+        int event = EVENT_NONE;
+        for(int i=offset;i<offset+length;i++) {
+            float value = buffer[i];
+            window[window_pos++] = value;
+            peak_envelope = Math.max(Math.abs(value), peak_envelope*envelope_decay);
+            if( window_pos == window_size ) {
+                window_pos = 0;
+                int window_event = processWindow();
+                if( window_event != EVENT_NONE ) {
+                    event = window_event;
+                }
+            }
+        }
+        return event;
+    }
+
+    private int processWindow() {
+        double energy = 0.0;
+        for(int i=0;i<window_size;i++) {
+            energy += window[i]*window[i];
+        }
+        rms = (float)Math.sqrt(energy/window_size);
+        double band_energy = energy;
+        if( n_band_bins > 0 ) {
+            band_energy = computeBandEnergy(energy);
+            band_ratio = energy > 0.0 ? (float)(band_energy/energy) : 0.0f;
+        }
+        else {
+            band_ratio = 1.0f;
+        }
+
+        if( !has_floor ) {
+            has_floor = true;
+            noise_floor = Math.max(rms, min_floor_c);
+            return EVENT_NONE;
+        }
+
+        float on_threshold = Math.max(noise_floor*on_ratio_c, noise_floor+min_rise);
+        float off_threshold = noise_floor + (on_threshold-noise_floor)*hysteresis_c;
+        int event = EVENT_NONE;
+        if( !loud ) {
+            if( rms > on_threshold ) {
+                loud = true;
+                loud_windows = 1;
+                event_energy = energy;
+                event_band_energy = band_energy;
+                event_peak = peak_envelope;
+            }
+            else {
+                updateNoiseFloor();
+            }
+        }
+        else if( rms < off_threshold ) {
+            loud = false;
+            event = classifyEvent();
+            updateNoiseFloor();
+        }
+        else {
+            loud_windows++;
+            event_energy += energy;
+            event_band_energy += band_energy;
+            event_peak = Math.max(event_peak, peak_envelope);
+            if( loud_windows > event_max_windows ) {
+                // a sustained sound, so treat as the new background level
+                loud = false;
+                noise_floor = Math.max(rms, min_floor_c);
+            }
+        }
+        return event;
+    }
+
+    /** Returns the energy of the current window within the band, computed from the power at each
+     *  bin in the band with the Goertzel algorithm.
+     * @param energy The total energy of the window.
+     */
+    private double computeBandEnergy(double energy) {
+        if( energy <= 0.0 ) {
+            return 0.0;
+        }
+        double band_power = 0.0;
+        for(int b=0;b<n_band_bins;b++) {
+            float coeff = band_coeffs[b];
+            float s1 = 0.0f, s2 = 0.0f;
+            for(int i=0;i<window_size;i++) {
+                float s0 = window[i] + coeff*s1 - s2;
+                s2 = s1;
+                s1 = s0;
+            }
+            band_power += s1*s1 + s2*s2 - coeff*s1*s2;
+        }
+        // by Parseval's theorem, the sum over all bins of the power is window_size times the energy;
+        // each bin in the band is counted twice, for the positive and negative frequencies
+        return Math.min(energy, 2.0*band_power/window_size);
+    }
+
+    private void updateNoiseFloor() {
+        float rate = rms < noise_floor ? floor_fall_c : floor_rise_c;
+        noise_floor += (rms - noise_floor)*rate;
+        noise_floor = Math.max(noise_floor, min_floor_c);
+    }
+
+    private int classifyEvent() {
+        float event_band_ratio = event_energy > 0.0 ? (float)(event_band_energy/event_energy) : 0.0f;
+        if( n_band_bins > 0 && event_band_ratio < min_band_ratio ) {
+            return EVENT_NONE;
+        }
+        return loud_windows <= clap_max_windows ? EVENT_CLAP : EVENT_VOICE;
+    }
+
+    /** Returns the RMS level of the most recent window.
+     */
+    public float getRms() {
+        return rms;
+    }
+
+    /** Returns the peak envelope, i.e., the peak absolute sample value decaying exponentially.
+     */
+    public float getPeakEnvelope() {
+        return peak_envelope;
+    }
+
+    /** Returns the duration of the most recent (or current) sound in milliseconds, measured in whole
+     *  windows.
+     */
+    public int getEventDurationMs() {
+        return (int)((1000L*loud_windows*window_size)/sample_rate);
+    }
+
+    /** Returns the maximum peak envelope during the most recent sound.
+     */
+    public float getEventPeak() {
+        return event_peak;
+    }
+
+    public float getNoiseFloor() {
+        return noise_floor;
+    }
+
+    /** Returns the fraction of the energy of the most recent window within the band set by
+     *  setBand(), or 1 if band detection is disabled.
+     */
+    public float getBandRatio() {
+        return band_ratio;
+    }
+
+    /** Whether a sound is currently in progress.
+     */
+    public boolean isLoud() {
+        return loud;
+    }
+}
@@ -0,0 +1,347 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/** A pool of full resolution Bitmaps and int pixel buffers, shared by ImageSaver, HDRProcessor and
+ *  PanoramaProcessor, so that repeated HDR, NR and panorama photos reuse memory rather than
+ *  allocating new bitmaps and leaving the old ones to the garbage collector.
+ *  Buffers are grouped into size classes: bitmaps by their width, height and config; int buffers
+ *  by their length rounded up (see getSizeClass()), so a buffer may be longer than requested.
+ *  Buffers obtained from the pool, or passed to retain(), are reference counted; when the count
+ *  drops to zero in release(), the buffer is returned to the pool. The total size of the free
+ *  buffers is capped: if returning a buffer would exceed the cap, the least recently returned
+ *  buffers are evicted (and bitmaps recycled).
+ *  Only mutable bitmaps that haven't been recycled are pooled, as other bitmaps can't be drawn
+ *  to or decoded into (with BitmapFactory.Options.inBitmap).
+ *  This class is thread safe.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static class Entry {
+        final Object buffer; // a Bitmap or int []
+        final String size_class;
+        final long n_bytes;
+        int ref_count;
+
+        Entry(Object buffer, String size_class, long n_bytes) {
+            this.buffer = buffer;
+            this.size_class = size_class;
+            this.n_bytes = n_bytes;
+        }
+    }
+
+    private final long max_free_bytes;
+    // buffers in use, keyed by identity (Bitmap and arrays don't override equals(), but we don't
+    // want to rely on that)
+    private final Map<Object, Entry> in_use = new IdentityHashMap<>();
+    // free buffers for each size class, most recently returned last
+    private final Map<String, List<Entry>> free_by_size_class = new HashMap<>();
+    // all free buffers, least recently returned first
+    private final LinkedHashSet<Entry> free_lru = new LinkedHashSet<>();
+    private long free_bytes;
+
+    // statistics
+    private long n_hits;
+    private long n_misses;
+    private long n_evictions;
+    private long peak_free_bytes;
+
+    /**
+     * @param max_free_bytes The maximum total size of the buffers held by the pool that aren't in
+     *                       use.
+     */
+    public BitmapPool(long max_free_bytes) {
+        this.max_free_bytes = max_free_bytes;
+    }
+
+    /** Returns the length of int buffers allocated for the requested length: lengths are rounded
+     *  up to a multiple of an eighth of the highest power of two not exceeding them, so buffers
+     *  for similar sizes can be shared with at most 12.5% wasted.
+     */
+    public static int getSizeClass(int length) {
+        int high = Integer.highestOneBit(length);
+        if( high == length ) {
+            return length;
+        }
+        int step = Math.max(1, high/8);
+        return ((length + step - 1)/step)*step;
+    }
+
+    private static String getBitmapSizeClass(int width, int height, Bitmap.Config config) {
+        return "bitmap " + width + "x" + height + " " + config;
+    }
+
+    private static String getIntSizeClass(int size_class) {
+        return "int " + size_class;
+    }
+
+    /** Removes and returns the most recently returned free buffer of the size class, or null if
+     *  there isn't one.
+     */
+    private Entry takeFree(String size_class) {
+        List<Entry> free = free_by_size_class.get(size_class);
+        if( free == null || free.isEmpty() ) {
+            n_misses++;
+            return null;
+        }
+        Entry entry = free.remove(free.size()-1);
+        free_lru.remove(entry);
+        free_bytes -= entry.n_bytes;
+        n_hits++;
+        entry.ref_count = 1;
+        in_use.put(entry.buffer, entry);
+        return entry;
+    }
+
+    /** Returns a free bitmap of the requested size from the pool, or null if there isn't one. The
+     *  contents of the bitmap are undefined. This is intended for BitmapFactory.Options.inBitmap;
+     *  if the decode fails, the bitmap should still be passed to release().
+     */
+    public synchronized Bitmap getFreeBitmap(int width, int height, Bitmap.Config config) {
+        Entry entry = takeFree(getBitmapSizeClass(width, height, config));
+        return entry == null ? null : (Bitmap)entry.buffer;
+    }
+
+    /** Returns a mutable bitmap of the requested size, cleared to transparent (as for
+     *  Bitmap.createBitmap()), reusing a bitmap from the pool if possible. The bitmap has a
+     *  reference count of 1.
+     */
+    public Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getFreeBitmap(width, height, config);
+        if( bitmap != null ) {
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        bitmap = Bitmap.createBitmap(width, height, config);
+        synchronized( this ) {
+            Entry entry = new Entry(bitmap, getBitmapSizeClass(width, height, config), getNBytes(bitmap));
+            entry.ref_count = 1;
+            in_use.put(bitmap, entry);
+        }
+        return bitmap;
+    }
+
+    /** Returns an int buffer of at least the requested length (see getSizeClass()), reusing a
+     *  buffer from the pool if possible. The contents are undefined. The buffer has a reference
+     *  count of 1.
+     */
+    public synchronized int [] obtainIntBuffer(int length) {
+        int size_class = getSizeClass(length);
+        Entry entry = takeFree(getIntSizeClass(size_class));
+        if( entry != null ) {
+            return (int [])entry.buffer;
+        }
+        int [] buffer = new int[size_class];
+        entry = new Entry(buffer, getIntSizeClass(size_class), 4L*size_class);
+        entry.ref_count = 1;
+        in_use.put(buffer, entry);
+        return buffer;
+    }
+
+    private static long getNBytes(Bitmap bitmap) {
+        return (long)bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /** Increments the reference count of a buffer. Buffers that weren't obtained from the pool are
+     *  adopted by it, with a reference count of 1 before this call.
+     */
+    public synchronized void retain(Object buffer) {
+        Entry entry = in_use.get(buffer);
+        if( entry == null ) {
+            entry = createEntry(buffer);
+            entry.ref_count = 1;
+            in_use.put(buffer, entry);
+        }
+        entry.ref_count++;
+    }
+
+    private static Entry createEntry(Object buffer) {
+        if( buffer instanceof Bitmap ) {
+            Bitmap bitmap = (Bitmap)buffer;
+            return new Entry(bitmap, getBitmapSizeClass(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), getNBytes(bitmap));
+        }
+        else if( buffer instanceof int [] ) {
+            int [] array = (int [])buffer;
+            return new Entry(array, getIntSizeClass(array.length), 4L*array.length);
+        }
+        // throw RuntimeException, as this is a programming error
+        throw new RuntimeException("unsupported buffer type: " + buffer);
+    }
+
+    /** Whether a buffer can be pooled. Only mutable bitmaps can be reused (e.g., with
+     *  BitmapFactory.Options.inBitmap); int buffers must have a length that is a size class, so
+     *  that they're found by obtainIntBuffer().
+     */
+    private static boolean isPoolable(Object buffer) {
+        if( buffer instanceof Bitmap ) {
+            Bitmap bitmap = (Bitmap)buffer;
+            return !bitmap.isRecycled() && bitmap.isMutable() && bitmap.getConfig() != null;
+        }
+        int [] array = (int [])buffer;
+        return array.length > 0 && getSizeClass(array.length) == array.length;
+    }
+
+    private static void discard(Object buffer) {
+        if( buffer instanceof Bitmap ) {
+            Bitmap bitmap = (Bitmap)buffer;
+            if( !bitmap.isRecycled() ) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /** Decrements the reference count of a buffer; when it reaches zero, the buffer is returned to
+     *  the pool, so the caller must not use it again. Buffers that weren't obtained from the pool
+     *  (e.g., bitmaps decoded from a JPEG) are treated as having a reference count of 1, so may be
+     *  passed here instead of calling Bitmap.recycle(). Buffers that can't be reused are recycled.
+     * @param buffer A Bitmap or int [], or null (in which case this does nothing).
+     */
+    public void release(Object buffer) {
+        if( buffer == null ) {
+            return;
+        }
+        Entry entry;
+        synchronized( this ) {
+            entry = in_use.get(buffer);
+            if( entry != null ) {
+                if( --entry.ref_count > 0 ) {
+                    return;
+                }
+                in_use.remove(buffer);
+            }
+        }
+        if( !(buffer instanceof Bitmap) && !(buffer instanceof int []) ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("unsupported buffer type: " + buffer);
+        }
+        if( !isPoolable(buffer) ) {
+            discard(buffer);
+            return;
+        }
+        if( entry == null || entry.buffer instanceof Bitmap ) {
+            // recompute in case the bitmap was reconfigured
+            entry = createEntry(buffer);
+        }
+        if( entry.n_bytes > max_free_bytes ) {
+            discard(buffer);
+            return;
+        }
+
+        List<Object> evicted = new ArrayList<>();
+        synchronized( this ) {
+            // evict least recently returned buffers to make space
+            Iterator<Entry> iter = free_lru.iterator();
+            while( free_bytes + entry.n_bytes > max_free_bytes && iter.hasNext() ) {
+                Entry eldest = iter.next();
+                iter.remove();
+                free_by_size_class.get(eldest.size_class).remove(eldest);
+                free_bytes -= eldest.n_bytes;
+                n_evictions++;
+                evicted.add(eldest.buffer);
+            }
+            entry.ref_count = 0;
+            List<Entry> free = free_by_size_class.get(entry.size_class);
+            if( free == null ) {
+                free = new ArrayList<>();
+                free_by_size_class.put(entry.size_class, free);
+            }
+            free.add(entry);
+            free_lru.add(entry);
+            free_bytes += entry.n_bytes;
+            peak_free_bytes = Math.max(peak_free_bytes, free_bytes);
+        }
+        // recycle outside of the lock
+        for(Object buffer_to_discard : evicted) {
+            discard(buffer_to_discard);
+        }
+    }
+
+    /** Evicts all free buffers. Buffers in use are unaffected.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /** Evicts the least recently returned free buffers until the total size of the free buffers
+     *  is at most max_bytes. Buffers in use are unaffected.
+     */
+    public void trimToSize(long max_bytes) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "trimToSize " + max_bytes + ": " + getStatsString());
+        List<Object> evicted = new ArrayList<>();
+        synchronized( this ) {
+            Iterator<Entry> iter = free_lru.iterator();
+            while( free_bytes > max_bytes && iter.hasNext() ) {
+                Entry eldest = iter.next();
+                iter.remove();
+                free_by_size_class.get(eldest.size_class).remove(eldest);
+                free_bytes -= eldest.n_bytes;
+                n_evictions++;
+                evicted.add(eldest.buffer);
+            }
+        }
+        // recycle outside of the lock
+        for(Object buffer : evicted) {
+            discard(buffer);
+        }
+    }
+
+    /** Returns the number of times a buffer was requested and a free one was available.
+     */
+    public synchronized long getNHits() {
+        return n_hits;
+    }
+
+    /** Returns the number of times a buffer was requested and none was available.
+     */
+    public synchronized long getNMisses() {
+        return n_misses;
+    }
+
+    /** Returns the number of free buffers that have been evicted to keep within the size cap, or
+     *  by clear() or trimToSize().
+     */
+    public synchronized long getNEvictions() {
+        return n_evictions;
+    }
+
+    /** Returns the total size in bytes of the free buffers held by the pool.
+     */
+    public synchronized long getFreeBytes() {
+        return free_bytes;
+    }
+
+    /** Returns the highest value that getFreeBytes() has reached.
+     */
+    public synchronized long getPeakFreeBytes() {
+        return peak_free_bytes;
+    }
+
+    public synchronized int getNFree() {
+        return free_lru.size();
+    }
+
+    /** Returns the number of buffers obtained from or retained by the pool that haven't been
+     *  released.
+     */
+    public synchronized int getNInUse() {
+        return in_use.size();
+    }
+
+    /** Returns a summary of the statistics, for logging.
+     */
+    public synchronized String getStatsString() {
+        return "hits: " + n_hits + " misses: " + n_misses + " evictions: " + n_evictions +
+                " free: " + free_lru.size() + " (" + free_bytes + " bytes, peak " + peak_free_bytes + ") in use: " + in_use.size();
+    }
+}
@@ -0,0 +1,179 @@
+package net.sourceforge.opencamera;
+
+import java.util.Arrays;
+
+/** Records timestamps for the stages of taking a photo, for the most recent shots, so that we can
+ *  measure where the time goes between requesting a photo and the image being saved.
+ *  Timestamps are stored in a fixed size ring buffer, and recording a stage doesn't allocate, so
+ *  this is cheap enough to always leave enabled.
+ *  The stages up to and including STAGE_QUEUED are recorded against the most recently started
+ *  shot: Preview doesn't start a new photo until the previous one has been taken, and only the
+ *  first event of each stage is recorded for a shot (so for a burst, or for RAW and JPEG, the times
+ *  are for the first image). Recording STAGE_QUEUED returns an id for the shot, which the
+ *  ImageSaver request keeps so that the later stages are recorded against the right shot even when
+ *  several requests are queued.
+ */
+public class CaptureLatencyTracker {
+    /** The photo is requested (Preview.takePhoto(), so after any timer delay), this starts a shot. */
+    public static final int STAGE_REQUESTED = 0;
+    /** The camera starts exposing the (first) image. */
+    public static final int STAGE_CAPTURE_STARTED = 1;
+    /** The (first) image is received from the camera. */
+    public static final int STAGE_IMAGE_AVAILABLE = 2;
+    /** Preview is ready to take another photo. */
+    public static final int STAGE_READY = 3;
+    /** The request is added to the ImageSaver queue. */
+    public static final int STAGE_QUEUED = 4;
+    /** ImageSaver starts processing the request. */
+    public static final int STAGE_SAVE_STARTED = 5;
+    /** ImageSaver has finished saving the request. */
+    public static final int STAGE_SAVED = 6;
+    private static final int n_stages_c = 7;
+
+    public enum Metric {
+        SHUTTER_LAG(STAGE_REQUESTED, STAGE_CAPTURE_STARTED), // time until the camera starts capturing
+        SHOT_TO_SHOT(STAGE_REQUESTED, STAGE_READY), // time until another photo can be taken
+        QUEUE_WAIT(STAGE_QUEUED, STAGE_SAVE_STARTED), // time waiting in the ImageSaver queue
+        SAVE_LATENCY(STAGE_QUEUED, STAGE_SAVED); // time from being queued until saved
+
+        private final int start_stage;
+        private final int end_stage;
+
+        Metric(int start_stage, int end_stage) {
+            this.start_stage = start_stage;
+            this.end_stage = end_stage;
+        }
+    }
+
+    public static final int max_shots_c = 64; // number of shots to remember
+
+    private static final CaptureLatencyTracker instance = new CaptureLatencyTracker();
+
+    /** Timestamps in nanoseconds for shot id i are stored from index (i % max_shots_c)*n_stages_c,
+     *  with 0 meaning the stage wasn't recorded.
+     */
+    private final long [] timestamps = new long[max_shots_c*n_stages_c];
+    private long n_shots; // number of shots started, the most recent has id n_shots-1
+    private final long [] scratch = new long[max_shots_c]; // used to compute percentiles
+
+    /** Returns the tracker shared by the application.
+     */
+    public static CaptureLatencyTracker getInstance() {
+        return instance;
+    }
+
+    public CaptureLatencyTracker() {
+    }
+
+    /** Starts a new shot, and records STAGE_REQUESTED for it.
+     * @return The id of the new shot.
+     */
+    public long startShot() {
+        return startShot(System.nanoTime());
+    }
+
+    /** As startShot(), but with the supplied time instead of the current time.
+     */
+    public synchronized long startShot(long time_ns) {
+        long shot_id = n_shots++;
+        int offset = getOffset(shot_id);
+        Arrays.fill(timestamps, offset, offset+n_stages_c, 0);
+        timestamps[offset+STAGE_REQUESTED] = nonZero(time_ns);
+        return shot_id;
+    }
+
+    /** Records a stage for the most recently started shot, unless already recorded.
+     * @return The id of the shot, or -1 if no shot was started.
+     */
+    public long recordStage(int stage) {
+        return recordStage(stage, System.nanoTime());
+    }
+
+    /** As recordStage(int), but with the supplied time instead of the current time.
+     */
+    public synchronized long recordStage(int stage, long time_ns) {
+        if( n_shots == 0 ) {
+            return -1;
+        }
+        long shot_id = n_shots-1;
+        int index = getOffset(shot_id)+stage;
+        if( timestamps[index] == 0 ) {
+            timestamps[index] = nonZero(time_ns);
+        }
+        return shot_id;
+    }
+
+    /** Records a stage for the shot with the supplied id (as returned by startShot() or
+     *  recordStage()), unless already recorded. Does nothing if shot_id is -1, or if the shot is no
+     *  longer stored.
+     */
+    public void recordShotStage(long shot_id, int stage) {
+        recordShotStage(shot_id, stage, System.nanoTime());
+    }
+
+    /** As recordShotStage(long, int), but with the supplied time instead of the current time.
+     */
+    public synchronized void recordShotStage(long shot_id, int stage, long time_ns) {
+        if( shot_id < 0 || shot_id >= n_shots || shot_id < n_shots - max_shots_c ) {
+            return;
+        }
+        int index = getOffset(shot_id)+stage;
+        if( timestamps[index] == 0 ) {
+            timestamps[index] = nonZero(time_ns);
+        }
+    }
+
+    /** Forgets all shots.
+     */
+    public synchronized void clear() {
+        Arrays.fill(timestamps, 0);
+        n_shots = 0;
+    }
+
+    /** Returns the number of stored shots that have both stages of the metric recorded.
+     */
+    public synchronized int getNSamples(Metric metric) {
+        return collectSamples(metric);
+    }
+
+    /** Returns the given percentile (from 0 to 100) of the metric over the stored shots, in
+     *  milliseconds, using the nearest rank method; or -1 if no shots have the metric recorded.
+     */
+    public synchronized float getPercentileMs(Metric metric, float percentile) {
+        int n_samples = collectSamples(metric);
+        if( n_samples == 0 ) {
+            return -1.0f;
+        }
+        Arrays.sort(scratch, 0, n_samples);
+        int rank = (int)Math.ceil(percentile/100.0f * n_samples);
+        rank = Math.max(1, Math.min(rank, n_samples));
+        return scratch[rank-1]/1.0e6f;
+    }
+
+    /** Stores the durations of the metric into scratch, and returns the number of them.
+     */
+    private int collectSamples(Metric metric) {
+        int n_samples = 0;
+        long first_shot = Math.max(0, n_shots - max_shots_c);
+        for(long shot_id=first_shot;shot_id<n_shots;shot_id++) {
+            int offset = getOffset(shot_id);
+            long start = timestamps[offset+metric.start_stage];
+            long end = timestamps[offset+metric.end_stage];
+            if( start != 0 && end != 0 ) {
+                scratch[n_samples++] = Math.max(0, end - start);
+            }
+        }
+        return n_samples;
+    }
+
+    private static int getOffset(long shot_id) {
+        return (int)(shot_id % max_shots_c)*n_stages_c;
+    }
+
+    /** As 0 is used to mean no timestamp, returns 1 for a time of 0 (System.nanoTime() may return
+     *  any value).
+     */
+    private static long nonZero(long time_ns) {
+        return time_ns == 0 ? 1 : time_ns;
+    }
+}
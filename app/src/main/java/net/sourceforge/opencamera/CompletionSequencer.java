@@ -0,0 +1,143 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/** Runs callbacks for a sequence of tasks in the order that the tasks were registered, even if the
+ *  tasks themselves are run in parallel and finish out of order. This is used by ImageSaver, so
+ *  that requests can be saved on separate threads, whilst the results (e.g., the last image list
+ *  and the thumbnail) are still updated in the order that the photos were taken.
+ *  A callback posted for a task is run as soon as all earlier tasks have finished: immediately
+ *  (on the calling thread) if they have already finished, otherwise on the thread that finishes
+ *  the last of them. Callbacks for the same task are run in the order they were posted.
+ *  Callbacks are run without holding the lock on this object, and never more than one at a time;
+ *  if another thread is already running callbacks, newly ready callbacks are left for that thread
+ *  to run.
+ */
+public class CompletionSequencer {
+    private static final String TAG = "CompletionSequencer";
+
+    private long next_sequence; // the sequence number to return from the next call to register()
+    private long head_sequence; // the lowest sequence number that hasn't finished
+    // callbacks waiting for earlier tasks to finish
+    private final Map<Long, List<Runnable>> pending_callbacks = new HashMap<>();
+    // tasks after head_sequence that have finished
+    private final Set<Long> finished = new HashSet<>();
+    // callbacks whose earlier tasks have all finished, in the order they should be run
+    private final Queue<Runnable> ready_callbacks = new ArrayDeque<>();
+    private boolean running_callbacks; // whether a thread is running ready_callbacks
+
+    /** Returns the sequence number for a new task.
+     */
+    public synchronized long register() {
+        return next_sequence++;
+    }
+
+    /** Runs the callback once all tasks registered before the supplied one have finished.
+     *  If a callback throws an exception, the remaining ready callbacks are still run, and the
+     *  first exception is then rethrown to the caller.
+     */
+    public void post(long sequence, Runnable callback) {
+        synchronized( this ) {
+            checkSequence(sequence);
+            if( sequence == head_sequence ) {
+                ready_callbacks.add(callback);
+            }
+            else {
+                List<Runnable> callbacks = pending_callbacks.get(sequence);
+                if( callbacks == null ) {
+                    callbacks = new ArrayList<>();
+                    pending_callbacks.put(sequence, callbacks);
+                }
+                callbacks.add(callback);
+            }
+        }
+        runReadyCallbacks();
+    }
+
+    /** Records that the task has finished, so its callbacks will no longer be delayed for it. Must
+     *  be called exactly once for each sequence number returned by register(), after all of that
+     *  task's callbacks have been posted.
+     *  If a callback throws an exception, the remaining ready callbacks are still run, and the
+     *  first exception is then rethrown to the caller.
+     */
+    public void finish(long sequence) {
+        synchronized( this ) {
+            checkSequence(sequence);
+            if( sequence != head_sequence ) {
+                finished.add(sequence);
+                return;
+            }
+            head_sequence++;
+            // the callbacks of the tasks that were waiting for this one are now ready
+            while( true ) {
+                List<Runnable> callbacks = pending_callbacks.remove(head_sequence);
+                if( callbacks != null ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "run " + callbacks.size() + " delayed callbacks for: " + head_sequence);
+                    ready_callbacks.addAll(callbacks);
+                }
+                if( !finished.remove(head_sequence) ) {
+                    break;
+                }
+                head_sequence++;
+            }
+        }
+        runReadyCallbacks();
+    }
+
+    /** Returns the number of tasks with callbacks waiting for earlier tasks to finish.
+     */
+    public synchronized int getNPending() {
+        return pending_callbacks.size();
+    }
+
+    /** Runs the ready callbacks in order, unless another thread is already doing so.
+     */
+    private void runReadyCallbacks() {
+        RuntimeException exception = null;
+        while( true ) {
+            Runnable callback;
+            synchronized( this ) {
+                if( running_callbacks || ready_callbacks.isEmpty() ) {
+                    break;
+                }
+                running_callbacks = true;
+                callback = ready_callbacks.remove();
+            }
+            try {
+                callback.run();
+            }
+            catch(RuntimeException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "callback threw exception: " + e);
+                if( exception == null ) {
+                    exception = e;
+                }
+            }
+            finally {
+                synchronized( this ) {
+                    running_callbacks = false;
+                }
+            }
+        }
+        if( exception != null ) {
+            throw exception;
+        }
+    }
+
+    private void checkSequence(long sequence) {
+        if( sequence < head_sequence || sequence >= next_sequence || finished.contains(sequence) ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("unexpected sequence number: " + sequence);
+        }
+    }
+}
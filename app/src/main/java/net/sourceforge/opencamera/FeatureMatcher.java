@@ -0,0 +1,275 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Finds candidate matches between the features (corners) of two images, and computes the
+ *  distance between the descriptors of each candidate, for panorama auto-alignment.
+ *  A feature's descriptor is the square of greyscale pixels of radius feature_descriptor_radius
+ *  centred on the feature, and the distance between two descriptors is 1 minus the square of their
+ *  normalised cross correlation, so from 0 to 1 where lower means a better match.
+ *  Candidates are found with a grid index of the features of the second image, rather than
+ *  comparing all pairs of features; distances are computed in parallel on a ForkJoinPool.
+ *  The buffers are kept between calls, so the same instance should be reused for each pair of
+ *  images. An instance must not be used from more than one thread at a time.
+ */
+public class FeatureMatcher {
+    private static final String TAG = "FeatureMatcher";
+
+    private static final int min_matches_per_task_c = 256; // don't split candidates into tasks smaller than this
+
+    private final ForkJoinPool pool;
+    private final int descriptor_size; // number of pixels in each descriptor
+
+    // buffers, reused between calls
+    private int [] patches = new int[0]; // returned by getPatchBuffer()
+    private final byte [][] descriptors = new byte[2][0]; // greyscale descriptors for each image, with descriptor_size bytes per feature
+    private final float [][] descriptor_sums = new float[2][0]; // sum of each descriptor's values
+    private final float [][] descriptor_recips = new float[2][0]; // reciprocal of each descriptor's variance (times descriptor_size^2), or 0 if flat
+    private int [] candidates0 = new int[0];
+    private int [] candidates1 = new int[0];
+    private float [] distances = new float[0];
+    private int n_candidates;
+    private int [] grid_starts = new int[0]; // index into grid_features of the first feature of each cell
+    private int [] grid_next = new int[0];
+    private int [] grid_features = new int[0]; // features of the second image, sorted by cell
+    private int [] found_features = new int[0];
+
+    /** Creates a matcher that runs on the pool shared with JavaHDRProcessor.
+     */
+    public FeatureMatcher(int feature_descriptor_radius) {
+        this(feature_descriptor_radius, JavaHDRProcessor.getSharedPool());
+    }
+
+    public FeatureMatcher(int feature_descriptor_radius, ForkJoinPool pool) {
+        this.pool = pool;
+        int wid = 2*feature_descriptor_radius+1;
+        this.descriptor_size = wid*wid;
+    }
+
+    /** Returns the number of pixels in each descriptor.
+     */
+    public int getDescriptorSize() {
+        return descriptor_size;
+    }
+
+    /** Returns a buffer of at least n_features*getDescriptorSize() pixels, that may be used to
+     *  read the patches to pass to setDescriptors(). The buffer is reused on subsequent calls.
+     */
+    public int [] getPatchBuffer(int n_features) {
+        int size = n_features*descriptor_size;
+        if( patches.length < size ) {
+            patches = new int[size];
+        }
+        return patches;
+    }
+
+    /** Sets the descriptors for the features of an image.
+     * @param image      0 or 1, for the first or second image.
+     * @param patches    The ARGB pixels of the square of radius feature_descriptor_radius around each
+     *                   feature, with getDescriptorSize() pixels per feature stored row by row.
+     * @param n_features The number of features.
+     */
+    public void setDescriptors(int image, int [] patches, int n_features) {
+        int size = n_features*descriptor_size;
+        if( descriptors[image].length < size ) {
+            descriptors[image] = new byte[size];
+        }
+        if( descriptor_sums[image].length < n_features ) {
+            descriptor_sums[image] = new float[n_features];
+            descriptor_recips[image] = new float[n_features];
+        }
+        byte [] descriptor = descriptors[image];
+        for(int i=0;i<n_features;i++) {
+            int sum = 0;
+            int sum2 = 0;
+            for(int j=i*descriptor_size;j<(i+1)*descriptor_size;j++) {
+                int pixel = patches[j];
+                int value = (int)(0.3*((pixel >> 16) & 0xFF) + 0.59*((pixel >> 8) & 0xFF) + 0.11*(pixel & 0xFF));
+                descriptor[j] = (byte)value;
+                sum += value;
+                sum2 += value*value;
+            }
+            // the sums are at most 255*255*descriptor_size, so can be represented exactly as floats for
+            // the descriptor sizes used; the variance is computed in floating point, so that the
+            // rounding is the same as if computed for each match from float sums
+            float fsum = sum;
+            float den = descriptor_size*((float)sum2) - fsum*fsum;
+            descriptor_sums[image][i] = fsum;
+            descriptor_recips[image][i] = den == 0 ? 0.0f : 1/den;
+        }
+    }
+
+    /** Finds the candidate matches: the pairs of features (i, j) for i from the first image and j
+     *  from the second image, where the squared distance between the positions is less than
+     *  max_match_dist2. Candidates are ordered by i, then by j.
+     *  Feature coordinates must be non-negative.
+     * @return The number of candidates.
+     */
+    public int findCandidates(int [] xs0, int [] ys0, int n_features0, int [] xs1, int [] ys1, int n_features1, int max_match_dist2) {
+        n_candidates = 0;
+        if( n_features0 == 0 || n_features1 == 0 || max_match_dist2 <= 0 ) {
+            return 0;
+        }
+        // any match is within cell_size in each direction, so we only need to search the
+        // neighbouring cells
+        int cell_size = (int)Math.ceil(Math.sqrt(max_match_dist2));
+        int max_x = 0, max_y = 0;
+        for(int j=0;j<n_features1;j++) {
+            max_x = Math.max(max_x, xs1[j]);
+            max_y = Math.max(max_y, ys1[j]);
+        }
+        int grid_width = max_x/cell_size + 1;
+        int grid_height = max_y/cell_size + 1;
+        int n_cells = grid_width*grid_height;
+
+        // counting sort of the features of the second image into cells
+        if( grid_starts.length < n_cells+1 ) {
+            grid_starts = new int[n_cells+1];
+            grid_next = new int[n_cells];
+        }
+        Arrays.fill(grid_starts, 0, n_cells+1, 0);
+        for(int j=0;j<n_features1;j++) {
+            grid_starts[(ys1[j]/cell_size)*grid_width + xs1[j]/cell_size + 1]++;
+        }
+        for(int c=0;c<n_cells;c++) {
+            grid_starts[c+1] += grid_starts[c];
+        }
+        if( grid_features.length < n_features1 ) {
+            grid_features = new int[n_features1];
+        }
+        if( found_features.length < n_features1 ) {
+            found_features = new int[n_features1];
+        }
+        System.arraycopy(grid_starts, 0, grid_next, 0, n_cells);
+        for(int j=0;j<n_features1;j++) {
+            int c = (ys1[j]/cell_size)*grid_width + xs1[j]/cell_size;
+            grid_features[grid_next[c]++] = j;
+        }
+
+        for(int i=0;i<n_features0;i++) {
+            int x0 = xs0[i];
+            int y0 = ys0[i];
+            int cx = x0/cell_size;
+            int cy = y0/cell_size;
+            int n_found = 0;
+            for(int gy=Math.max(cy-1, 0);gy<=Math.min(cy+1, grid_height-1);gy++) {
+                for(int gx=Math.max(cx-1, 0);gx<=Math.min(cx+1, grid_width-1);gx++) {
+                    int c = gy*grid_width + gx;
+                    for(int k=grid_starts[c];k<grid_starts[c+1];k++) {
+                        int j = grid_features[k];
+                        int dx = xs1[j] - x0;
+                        int dy = ys1[j] - y0;
+                        if( dx*dx + dy*dy < max_match_dist2 ) {
+                            found_features[n_found++] = j;
+                        }
+                    }
+                }
+            }
+            // sort so that the order doesn't depend on the grid
+            Arrays.sort(found_features, 0, n_found);
+            ensureCandidateCapacity(n_candidates + n_found);
+            for(int k=0;k<n_found;k++) {
+                candidates0[n_candidates] = i;
+                candidates1[n_candidates] = found_features[k];
+                n_candidates++;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "found " + n_candidates + " candidates from " + n_features0 + " x " + n_features1 + " features");
+        return n_candidates;
+    }
+
+    private void ensureCandidateCapacity(int capacity) {
+        if( candidates0.length < capacity ) {
+            int new_capacity = Math.max(capacity, 2*candidates0.length);
+            candidates0 = Arrays.copyOf(candidates0, new_capacity);
+            candidates1 = Arrays.copyOf(candidates1, new_capacity);
+        }
+    }
+
+    public int getNCandidates() {
+        return n_candidates;
+    }
+
+    public int getCandidateIndex0(int candidate) {
+        return candidates0[candidate];
+    }
+
+    public int getCandidateIndex1(int candidate) {
+        return candidates1[candidate];
+    }
+
+    /** Returns the distance computed by computeDistances().
+     */
+    public float getCandidateDistance(int candidate) {
+        return distances[candidate];
+    }
+
+    /** Computes the distances between the descriptors of each candidate found by findCandidates().
+     *  setDescriptors() must have been called for both images.
+     */
+    public void computeDistances() {
+        if( distances.length < n_candidates ) {
+            distances = new float[candidates0.length];
+        }
+        if( n_candidates > 0 ) {
+            pool.invoke(new DistanceTask(this, 0, n_candidates));
+        }
+    }
+
+    /** Computes the distances for the candidates [st_indx, nd_indx).
+     */
+    private void computeDistances(int st_indx, int nd_indx) {
+        final byte [] descriptors0 = descriptors[0];
+        final byte [] descriptors1 = descriptors[1];
+        for(int indx=st_indx;indx<nd_indx;indx++) {
+            int index0 = candidates0[indx];
+            int index1 = candidates1[indx];
+            float f_recip = descriptor_recips[0][index0];
+            float g_recip = descriptor_recips[1][index1];
+            if( f_recip == 0.0f || g_recip == 0.0f ) {
+                // a flat descriptor has no correlation with anything
+                distances[indx] = 1.0f;
+                continue;
+            }
+            int fgsum = 0;
+            int pixel_idx0 = index0*descriptor_size;
+            int pixel_idx1 = index1*descriptor_size;
+            for(int k=0;k<descriptor_size;k++) {
+                fgsum += (descriptors0[pixel_idx0+k] & 0xFF) * (descriptors1[pixel_idx1+k] & 0xFF);
+            }
+            float fsum = descriptor_sums[0][index0];
+            float gsum = descriptor_sums[1][index1];
+            float fg_corr = descriptor_size*((float)fgsum) - fsum*gsum;
+            // negate, as we want it so that lower value means better match, and normalise to 0-1
+            distances[indx] = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+        }
+    }
+
+    private static class DistanceTask extends RecursiveAction {
+        private final FeatureMatcher matcher;
+        private final int st_indx;
+        private final int nd_indx;
+
+        DistanceTask(FeatureMatcher matcher, int st_indx, int nd_indx) {
+            this.matcher = matcher;
+            this.st_indx = st_indx;
+            this.nd_indx = nd_indx;
+        }
+
+        @Override
+        protected void compute() {
+            if( nd_indx - st_indx <= min_matches_per_task_c ) {
+                matcher.computeDistances(st_indx, nd_indx);
+            }
+            else {
+                int mid_indx = (st_indx + nd_indx)/2;
+                invokeAll(new DistanceTask(matcher, st_indx, mid_indx), new DistanceTask(matcher, mid_indx, nd_indx));
+            }
+        }
+    }
+}
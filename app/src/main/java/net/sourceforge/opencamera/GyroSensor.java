@@ -5,6 +5,8 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -22,13 +24,33 @@ public class GyroSensor implements SensorEventListener {
     private boolean is_recording;
     private long timestamp;
 
+    private volatile MotionTrace motionTrace; // if non-null, sensor events are recorded to this
+    private static final int motion_trace_sampling_period_us_c = 5000; // 200Hz, the maximum allowed on Android 12+ without the HIGH_SAMPLING_RATE_SENSORS permission
+    // the motion trace is recorded by a separate listener on its own thread, so that the high rate
+    // events don't have to go through the main looper
+    private HandlerThread motionTraceThread;
+    private final SensorEventListener motionTraceListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            MotionTrace trace = motionTrace;
+            if( trace != null ) {
+                int type = event.sensor.getType();
+                if( type == Sensor.TYPE_GYROSCOPE || type == Sensor.TYPE_ACCELEROMETER ) {
+                    trace.addSample(type == Sensor.TYPE_GYROSCOPE ? MotionTrace.TYPE_GYRO : MotionTrace.TYPE_ACCEL, event.timestamp, event.values[0], event.values[1], event.values[2]);
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
     private static final float NS2S = 1.0f / 1000000000.0f;
-    private final float [] deltaRotationVector = new float[4];
     private boolean has_gyroVector;
     private final float [] gyroVector = new float[3];
-    private final float [] currentRotationMatrix = new float[9];
-    private final float [] currentRotationMatrixGyroOnly = new float[9];
-    private final float [] deltaRotationMatrix = new float[9];
+    private final OrientationIntegrator orientation = new OrientationIntegrator(); // current orientation relative to when startRecording() was called
+    private static final float accel_gain_c = 0.02f; // how quickly to correct the orientation from the accelerometer
     private final float [] tempMatrix = new float[9];
     private final float [] temp2Matrix = new float[9];
 
@@ -93,13 +115,7 @@ public class GyroSensor implements SensorEventListener {
     }
 
     private void setToIdentity() {
-        for(int i=0;i<9;i++) {
-            currentRotationMatrix[i] = 0.0f;
-        }
-        currentRotationMatrix[0] = 1.0f;
-        currentRotationMatrix[4] = 1.0f;
-        currentRotationMatrix[8] = 1.0f;
-        System.arraycopy(currentRotationMatrix, 0, currentRotationMatrixGyroOnly, 0, 9);
+        orientation.reset();
 
         for(int i=0;i<3;i++) {
             initAccelVector[i] = 0.0f;
@@ -133,25 +149,10 @@ public class GyroSensor implements SensorEventListener {
      */
     public static void transformVector(final float [] result, final float [] matrix, final float [] vector) {
         // result[i] = matrix[ij] . vector[j]
-        for(int i=0;i<3;i++) {
-            result[i] = 0.0f;
-            for(int j=0;j<3;j++) {
-                result[i] += getMatrixComponent(matrix, i, j) * vector[j];
-            }
-        }
-    }
-
-    /** Helper method to multiply the transpose of a 3x3 matrix with a 3D vector.
-     *  For 3x3 rotation (orthonormal) matrices, the transpose is the inverse.
-     */
-    private void transformTransposeVector(final float [] result, final float [] matrix, final float [] vector) {
-        // result[i] = matrix[ji] . vector[j]
-        for(int i=0;i<3;i++) {
-            result[i] = 0.0f;
-            for(int j=0;j<3;j++) {
-                result[i] += getMatrixComponent(matrix, j, i) * vector[j];
-            }
-        }
+        float x = vector[0], y = vector[1], z = vector[2];
+        result[0] = matrix[0]*x + matrix[1]*y + matrix[2]*z;
+        result[1] = matrix[3]*x + matrix[4]*y + matrix[5]*z;
+        result[2] = matrix[6]*x + matrix[7]*y + matrix[8]*z;
     }
 
     /* We should enable sensors before startRecording(), so that we can apply smoothing to the
@@ -181,6 +182,38 @@ public class GyroSensor implements SensorEventListener {
         mSensorManager.unregisterListener(this);
     }
 
+    /** Starts recording the raw gyroscope and accelerometer readings to the supplied trace. This is
+     *  independent of enableSensors() and startRecording(). If already recording to a trace, that
+     *  trace is replaced.
+     */
+    void startMotionTrace(MotionTrace motionTrace) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "startMotionTrace");
+        this.motionTrace = motionTrace;
+        if( motionTraceThread == null ) {
+            motionTraceThread = new HandlerThread("MotionTrace");
+            motionTraceThread.start();
+            Handler handler = new Handler(motionTraceThread.getLooper());
+            if( mSensor != null )
+                mSensorManager.registerListener(motionTraceListener, mSensor, motion_trace_sampling_period_us_c, handler);
+            if( mSensorAccel != null )
+                mSensorManager.registerListener(motionTraceListener, mSensorAccel, motion_trace_sampling_period_us_c, handler);
+        }
+    }
+
+    /** Stops recording to the trace set by startMotionTrace().
+     */
+    void stopMotionTrace() {
+        if( this.motionTrace != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stopMotionTrace");
+            this.motionTrace = null;
+            mSensorManager.unregisterListener(motionTraceListener);
+            motionTraceThread.quit();
+            motionTraceThread = null;
+        }
+    }
+
     void startRecording() {
         if( MyDebug.LOG )
             Log.d(TAG, "startRecording");
@@ -258,97 +291,9 @@ public class GyroSensor implements SensorEventListener {
         /*if( true )
             return;*/ // don't use accelerometer for now
 
-        //transformVector(tempVector, currentRotationMatrix, initAccelVector);
-        // tempVector is now the initAccelVector transformed by the gyro matrix
-        //transformTransposeVector(tempVector, currentRotationMatrix, initAccelVector);
-        transformVector(tempVector, currentRotationMatrix, accelVector);
-        // tempVector is now the accelVector transformed by the gyro matrix
-        double cos_angle = (tempVector[0] * initAccelVector[0] + tempVector[1] * initAccelVector[1] + tempVector[2] * initAccelVector[2]);
-        /*if( MyDebug.LOG ) {
-            Log.d(TAG, "adjustGyroForAccel:");
-            Log.d(TAG, "### currentRotationMatrix row 0: " + currentRotationMatrix[0] + " , " + currentRotationMatrix[1] + " , " + currentRotationMatrix[2]);
-            Log.d(TAG, "### currentRotationMatrix row 1: " + currentRotationMatrix[3] + " , " + currentRotationMatrix[4] + " , " + currentRotationMatrix[5]);
-            Log.d(TAG, "### currentRotationMatrix row 2: " + currentRotationMatrix[6] + " , " + currentRotationMatrix[7] + " , " + currentRotationMatrix[8]);
-            Log.d(TAG, "### initAccelVector: " + initAccelVector[0] + " , " + initAccelVector[1] + " , " + initAccelVector[2]);
-            Log.d(TAG, "### accelVector: " + accelVector[0] + " , " + accelVector[1] + " , " + accelVector[2]);
-            Log.d(TAG, "### tempVector: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
-            Log.d(TAG, "### cos_angle: " + cos_angle);
-        }*/
-        if( cos_angle >= 0.99999999995 ) {
-            // gyroscope already matches accelerometer
-            return;
-        }
-
-        double angle = Math.acos(cos_angle);
-        angle *= 0.02f; // filter
-        cos_angle = Math.cos(angle);
-
-        /*
-        // compute matrix to transform tempVector to accelVector
-        // compute (tempVector X accelVector) normalised
-        double a_x = tempVector[1] * accelVector[2] - tempVector[2] * accelVector[1];
-        double a_y = tempVector[2] * accelVector[0] - tempVector[0] * accelVector[2];
-        double a_z = tempVector[0] * accelVector[1] - tempVector[1] * accelVector[0];
-        */
-        // compute matrix to transform tempVector to initAccelVector
-        // compute (tempVector X initAccelVector) normalised
-        double a_x = tempVector[1] * initAccelVector[2] - tempVector[2] * initAccelVector[1];
-        double a_y = tempVector[2] * initAccelVector[0] - tempVector[0] * initAccelVector[2];
-        double a_z = tempVector[0] * initAccelVector[1] - tempVector[1] * initAccelVector[0];
-        double a_mag = Math.sqrt(a_x*a_x + a_y*a_y + a_z*a_z);
-        if( a_mag < 1.0e-5 ) {
-            // parallel or anti-parallel case
-            return;
-        }
-        a_x /= a_mag;
-        a_y /= a_mag;
-        a_z /= a_mag;
-        double sin_angle = Math.sqrt(1.0-cos_angle*cos_angle);
-        // from http://immersivemath.com/forum/question/rotation-matrix-from-one-vector-to-another/
-        setMatrixComponent(tempMatrix, 0, 0, (float)(a_x*a_x*(1.0-cos_angle)+cos_angle));
-        setMatrixComponent(tempMatrix, 0, 1, (float)(a_x*a_y*(1.0-cos_angle)-sin_angle*a_z));
-        setMatrixComponent(tempMatrix, 0, 2, (float)(a_x*a_z*(1.0-cos_angle)+sin_angle*a_y));
-        setMatrixComponent(tempMatrix, 1, 0, (float)(a_x*a_y*(1.0-cos_angle)+sin_angle*a_z));
-        setMatrixComponent(tempMatrix, 1, 1, (float)(a_y*a_y*(1.0-cos_angle)+cos_angle));
-        setMatrixComponent(tempMatrix, 1, 2, (float)(a_y*a_z*(1.0-cos_angle)-sin_angle*a_x));
-        setMatrixComponent(tempMatrix, 2, 0, (float)(a_x*a_z*(1.0-cos_angle)-sin_angle*a_y));
-        setMatrixComponent(tempMatrix, 2, 1, (float)(a_y*a_z*(1.0-cos_angle)+sin_angle*a_x));
-        setMatrixComponent(tempMatrix, 2, 2, (float)(a_z*a_z*(1.0-cos_angle)+cos_angle));
-        /*if( MyDebug.LOG ) {
-            // test:
-            System.arraycopy(tempVector, 0, inVector, 0, 3);
-            transformVector(tempVector, tempMatrix, inVector);
-            Log.d(TAG, "### tempMatrix row 0: " + tempMatrix[0] + " , " + tempMatrix[1] + " , " + tempMatrix[2]);
-            Log.d(TAG, "### tempMatrix row 1: " + tempMatrix[3] + " , " + tempMatrix[4] + " , " + tempMatrix[5]);
-            Log.d(TAG, "### tempMatrix row 2: " + tempMatrix[6] + " , " + tempMatrix[7] + " , " + tempMatrix[8]);
-            Log.d(TAG, "### rotated tempVector: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
-        }*/
-        // replace currentRotationMatrix with tempMatrix.currentRotationMatrix
-        // since [tempMatrix.currentRotationMatrix].[initAccelVector] = tempMatrix.tempVector = accelVector
-        // since [tempMatrix.currentRotationMatrix].[accelVector] = tempMatrix.tempVector = initAccelVector
-        for(int i=0;i<3;i++) {
-            for(int j=0;j<3;j++) {
-                float value = 0.0f;
-                // temp2Matrix[ij] = tempMatrix[ik] * currentRotationMatrix[kj]
-                for(int k=0;k<3;k++) {
-                    value += getMatrixComponent(tempMatrix, i, k) * getMatrixComponent(currentRotationMatrix, k, j);
-                }
-                setMatrixComponent(temp2Matrix, i, j, value);
-            }
-        }
-
-        System.arraycopy(temp2Matrix, 0, currentRotationMatrix, 0, 9);
-
-        /*if( MyDebug.LOG ) {
-            // test:
-            //transformVector(tempVector, temp2Matrix, initAccelVector);
-            //transformTransposeVector(tempVector, currentRotationMatrix, initAccelVector);
-            transformVector(tempVector, temp2Matrix, accelVector);
-            Log.d(TAG, "### new currentRotationMatrix row 0: " + temp2Matrix[0] + " , " + temp2Matrix[1] + " , " + temp2Matrix[2]);
-            Log.d(TAG, "### new currentRotationMatrix row 1: " + temp2Matrix[3] + " , " + temp2Matrix[4] + " , " + temp2Matrix[5]);
-            Log.d(TAG, "### new currentRotationMatrix row 2: " + temp2Matrix[6] + " , " + temp2Matrix[7] + " , " + temp2Matrix[8]);
-            Log.d(TAG, "### new tempVector: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
-        }*/
+        // rotate the orientation by a fraction of the angle needed to make the accelerometer vector
+        // match the initial accelerometer vector
+        orientation.correctAccel(accelVector, initAccelVector, accel_gain_c);
     }
 
     @Override
@@ -389,81 +334,16 @@ public class GyroSensor implements SensorEventListener {
                 has_gyroVector = true;
             }
 
-            // This timestep's delta rotation to be multiplied by the current rotation
-            // after computing it from the gyro sample data.
+            // Integrate the angular speed over the timestep to update the current rotation.
             if( timestamp != 0 ) {
                 final float dT = (event.timestamp - timestamp) * NS2S;
-                // Axis of the rotation sample, not normalized yet.
-                float axisX = gyroVector[0];
-                float axisY = gyroVector[1];
-                float axisZ = gyroVector[2];
-
-                // Calculate the angular speed of the sample
-                double omegaMagnitude = Math.sqrt(axisX*axisX + axisY*axisY + axisZ*axisZ);
-
-                // Normalize the rotation vector if it's big enough to get the axis
-                // (that is, EPSILON should represent your maximum allowable margin of error)
-                if( omegaMagnitude > 1.0e-5 ) {
-                    axisX /= omegaMagnitude;
-                    axisY /= omegaMagnitude;
-                    axisZ /= omegaMagnitude;
-                }
-
-                // Integrate around this axis with the angular speed by the timestep
-                // in order to get a delta rotation from this sample over the timestep
-                // We will convert this axis-angle representation of the delta rotation
-                // into a quaternion before turning it into the rotation matrix.
-                double thetaOverTwo = omegaMagnitude * dT / 2.0f;
-                float sinThetaOverTwo = (float)Math.sin(thetaOverTwo);
-                float cosThetaOverTwo = (float)Math.cos(thetaOverTwo);
-                deltaRotationVector[0] = sinThetaOverTwo * axisX;
-                deltaRotationVector[1] = sinThetaOverTwo * axisY;
-                deltaRotationVector[2] = sinThetaOverTwo * axisZ;
-                deltaRotationVector[3] = cosThetaOverTwo;
+                orientation.integrateGyro(gyroVector[0], gyroVector[1], gyroVector[2], dT);
                 /*if( MyDebug.LOG ) {
                     Log.d(TAG, "### values: " + event.values[0] + " , " + event.values[1] + " , " + event.values[2]);
                     Log.d(TAG, "smoothed values: " + gyroVector[0] + " , " + gyroVector[1] + " , " + gyroVector[2]);
                 }*/
 
-                SensorManager.getRotationMatrixFromVector(deltaRotationMatrix, deltaRotationVector);
-                // User code should concatenate the delta rotation we computed with the current rotation
-                // in order to get the updated rotation.
-                // currentRotationMatrix = currentRotationMatrix * deltaRotationMatrix;
-                for(int i=0;i<3;i++) {
-                    for(int j=0;j<3;j++) {
-                        float value = 0.0f;
-                        // tempMatrix[ij] = currentRotationMatrix[ik] * deltaRotationMatrix[kj]
-                        for(int k=0;k<3;k++) {
-                            value += getMatrixComponent(currentRotationMatrix, i, k) * getMatrixComponent(deltaRotationMatrix, k, j);
-                        }
-                        setMatrixComponent(tempMatrix, i, j, value);
-                    }
-                }
-
-                System.arraycopy(tempMatrix, 0, currentRotationMatrix, 0, 9);
-
-                for(int i=0;i<3;i++) {
-                    for(int j=0;j<3;j++) {
-                        float value = 0.0f;
-                        // tempMatrix[ij] = currentRotationMatrixGyroOnly[ik] * deltaRotationMatrix[kj]
-                        for(int k=0;k<3;k++) {
-                            value += getMatrixComponent(currentRotationMatrixGyroOnly, i, k) * getMatrixComponent(deltaRotationMatrix, k, j);
-                        }
-                        setMatrixComponent(tempMatrix, i, j, value);
-                    }
-                }
-                System.arraycopy(tempMatrix, 0, currentRotationMatrixGyroOnly, 0, 9);
-
-
-                /*if( MyDebug.LOG ) {
-                    setVector(inVector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
-                    transformVector(tempVector, currentRotationMatrix, inVector);
-                    //transformTransposeVector(tempVector, currentRotationMatrix, inVector);
-                    Log.d(TAG, "### gyro vector: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
-                }*/
-
                 adjustGyroForAccel();
-
             }
 
             timestamp = event.timestamp;
@@ -493,19 +373,20 @@ public class GyroSensor implements SensorEventListener {
             for(int i=0;i<3;i++) {
                 for(int j=0;j<3;j++) {
                     float value = 0.0f;
-                    // currentRotationMatrix[ij] = originalRotationMatrix[ki] * tempMatrix[kj]
+                    // temp2Matrix[ij] = originalRotationMatrix[ki] * tempMatrix[kj]
                     for(int k=0;k<3;k++) {
                         value += getMatrixComponent(originalRotationMatrix, k, i) * getMatrixComponent(tempMatrix, k, j);
                     }
-                    setMatrixComponent(currentRotationMatrix, i, j, value);
+                    setMatrixComponent(temp2Matrix, i, j, value);
                 }
             }
+            orientation.setRotationMatrix(temp2Matrix);
 
             if( MyDebug.LOG ) {
                 Log.d(TAG, "### values: " + event.values[0] + " , " + event.values[1] + " , " + event.values[2] + " , " + event.values[3]);
-                Log.d(TAG, "    " + currentRotationMatrix[0] + " , " + currentRotationMatrix[1] + " , " + currentRotationMatrix[2]);
-                Log.d(TAG, "    " + currentRotationMatrix[3] + " , " + currentRotationMatrix[4] + " , " + currentRotationMatrix[5]);
-                Log.d(TAG, "    " + currentRotationMatrix[6] + " , " + currentRotationMatrix[7] + " , " + currentRotationMatrix[8]);
+                Log.d(TAG, "    " + temp2Matrix[0] + " , " + temp2Matrix[1] + " , " + temp2Matrix[2]);
+                Log.d(TAG, "    " + temp2Matrix[3] + " , " + temp2Matrix[4] + " , " + temp2Matrix[5]);
+                Log.d(TAG, "    " + temp2Matrix[6] + " , " + temp2Matrix[7] + " , " + temp2Matrix[8]);
             }
         }
 
@@ -516,7 +397,7 @@ public class GyroSensor implements SensorEventListener {
                 float [] targetVector = targetVectors.get(indx);
                 // first check if we are still "upright"
                 setVector(inVector, 0.0f, 1.0f, 0.0f); // vector pointing in "up" direction
-                transformVector(tempVector, currentRotationMatrix, inVector);
+                orientation.rotateVector(tempVector, inVector);
                 /*if( MyDebug.LOG ) {
                     Log.d(TAG, "### transformed vector up: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
                 }*/
@@ -564,7 +445,7 @@ public class GyroSensor implements SensorEventListener {
                     float angle_up = (float)Math.asin(sin_angle_up);
 
                     setVector(inVector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
-                    transformVector(tempVector, currentRotationMatrix, inVector);
+                    orientation.rotateVector(tempVector, inVector);
 
                     if( Math.abs(angle_up) > this.uprightAngleTol ) {
                         float dot = cx*tempVector[0] + cy*tempVector[1] + cz*tempVector[2];
@@ -625,24 +506,24 @@ public class GyroSensor implements SensorEventListener {
      */
     /*void getRelativeVector(float [] result) {
         setVector(inVector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
-        transformVector(result, currentRotationMatrix, inVector);
+        orientation.rotateVector(result, inVector);
     }*/
 
     /*void getRelativeInverseVector(float [] result) {
         setVector(inVector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
-        transformTransposeVector(result, currentRotationMatrix, inVector);
+        orientation.inverseRotateVector(result, inVector);
     }*/
 
     public void getRelativeInverseVector(float [] out, float [] in) {
-        transformTransposeVector(out, currentRotationMatrix, in);
+        orientation.inverseRotateVector(out, in);
     }
 
     public void getRelativeInverseVectorGyroOnly(float [] out, float [] in) {
-        transformTransposeVector(out, currentRotationMatrixGyroOnly, in);
+        orientation.inverseRotateVectorGyroOnly(out, in);
     }
 
     public void getRotationMatrix(float [] out) {
-        System.arraycopy(currentRotationMatrix, 0, out, 0, 9);
+        orientation.getRotationMatrix(out);
     }
 
     // for testing
@@ -34,6 +34,7 @@ public class HDRProcessor {
 
     private final Context context;
     private final boolean is_test;
+    private final BitmapPool bitmapPool;
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using HDR
 
     // we lazily create and cache scripts that would otherwise have to be repeatedly created in a single
@@ -72,9 +73,14 @@ public class HDRProcessor {
         DROALGORITHM_GAINGAMMA
     }
 
-    public HDRProcessor(Context context, boolean is_test) {
+    /**
+     * @param bitmapPool If non-null, input bitmaps that are released (see processHDR()) are returned
+     *                   to this pool rather than being recycled.
+     */
+    public HDRProcessor(Context context, boolean is_test, BitmapPool bitmapPool) {
         this.context = context;
         this.is_test = is_test;
+        this.bitmapPool = bitmapPool;
     }
 
     private void freeScripts() {
@@ -116,7 +122,7 @@ public class HDRProcessor {
      *  levels, to estimate what the pixel should be at the "base" exposure.
      *  We estimate as y = parameter_A * x + parameter_B.
      */
-    private static class ResponseFunction {
+    static class ResponseFunction {
         float parameter_A;
         float parameter_B;
 
@@ -408,14 +414,11 @@ public class HDRProcessor {
             Log.d(TAG, "createFunctionFromBitmaps");
         List<Double> x_samples = new ArrayList<>();
         List<Double> y_samples = new ArrayList<>();
-        List<Double> weights = new ArrayList<>();
 
         final int n_samples_c = 100;
         final int n_w_samples = (int)Math.sqrt(n_samples_c);
         final int n_h_samples = n_samples_c/n_w_samples;
 
-        double avg_in = 0.0;
-        double avg_out = 0.0;
         for(int y=0;y<n_h_samples;y++) {
             double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
             int y_coord = (int)(alpha * in_bitmap.getHeight());
@@ -431,22 +434,35 @@ public class HDRProcessor {
                 int out_col = out_bitmap.getPixel(x_coord, y_coord);
                 double in_value = averageRGB(in_col);
                 double out_value = averageRGB(out_col);
-                avg_in += in_value;
-                avg_out += out_value;
                 x_samples.add(in_value);
                 y_samples.add(out_value);
             }
         }
+        return createFunctionFromSamples(context, id, x_samples, y_samples);
+    }
+
+    /** Creates a ResponseFunction from samples of the average RGB values from an input image (x_samples)
+     *  and the corresponding pixels of the image whose exposure we want to match (y_samples). The
+     *  samples may be modified (if empty, a dummy sample is added).
+     *  This is static and doesn't need Bitmaps, so that it can also be used by JavaHDRProcessor.
+     * @param context Only used for debugging, may be null.
+     */
+    static ResponseFunction createFunctionFromSamples(Context context, int id, List<Double> x_samples, List<Double> y_samples) {
+        List<Double> weights = new ArrayList<>();
         if( x_samples.size() == 0 ) {
             Log.e(TAG, "no samples for response function!");
             // shouldn't happen, but could do with a very large offset - just make up a dummy sample
             double in_value = 255.0;
             double out_value = 255.0;
-            avg_in += in_value;
-            avg_out += out_value;
             x_samples.add(in_value);
             y_samples.add(out_value);
         }
+        double avg_in = 0.0;
+        double avg_out = 0.0;
+        for(int i=0;i<x_samples.size();i++) {
+            avg_in += x_samples.get(i);
+            avg_out += y_samples.get(i);
+        }
         avg_in /= x_samples.size();
         avg_out /= x_samples.size();
         boolean is_dark_exposure = avg_in < avg_out;
@@ -506,7 +522,7 @@ public class HDRProcessor {
 
     /** Calculates average of RGB values for the supplied color.
      */
-    private double averageRGB(int color) {
+    static double averageRGB(int color) {
         int r = (color & 0xFF0000) >> 16;
         int g = (color & 0xFF00) >> 8;
         int b = (color & 0xFF);
@@ -514,142 +530,62 @@ public class HDRProcessor {
         //return 0.27*r + 0.67*g + 0.06*b;
     }
 
-    /** Core implementation of HDR algorithm.
-     *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
-     *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
-     *  Using the support libraries (set via project.properties renderscript.support.mode) would bloat the APK
-     *  by around 1799KB! We don't care about pre-Android 4.4 (HDR requires CameraController2 which requires
-     *  Android 5.0 anyway; even if we later added support for CameraController1, we can simply say HDR requires
-     *  Android 5.0).
+    /** For an even number of images, remaps the response functions so that we aim for a brightness
+     *  between the middle two images, rather than the brighter of the pair (base_bitmap).
      */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void processHDRCore(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "processHDRCore");
-
-        long time_s = System.currentTimeMillis();
-
-        int n_bitmaps = bitmaps.size();
-        int width = bitmaps.get(0).getWidth();
-        int height = bitmaps.get(0).getHeight();
-        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
-        offsets_x = new int[n_bitmaps];
-        offsets_y = new int[n_bitmaps];
-        /*int [][] buffers = new int[n_bitmaps][];
-        for(int i=0;i<n_bitmaps;i++) {
-            buffers[i] = new int[bm.getWidth()];
-        }*/
-        //float [] hdr = new float[3];
-        //int [] rgb = new int[3];
-
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
-        // create allocations
-        Allocation [] allocations = new Allocation[n_bitmaps];
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
-        //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
-        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
-        // for even number of images, round up to brighter image
-
-        // perform auto-alignment
-        // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
-        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
-        int median_brightness = brightnessDetails.median_brightness;
+    static void remapResponseFunctions(ResponseFunction [] response_functions, int base_bitmap) {
+        int n_bitmaps = response_functions.length;
+        float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
+        float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
         if( MyDebug.LOG ) {
-            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
-            Log.d(TAG, "median_brightness: " + median_brightness);
+            Log.d(TAG, "remap for even number of images");
+            Log.d(TAG, "    a: " + a);
+            Log.d(TAG, "    b: " + b);
         }
-
-        //final boolean use_hdr_n = true; // test always using hdr_n
-        final boolean use_hdr_n = n_bitmaps != 3;
-
-        // compute response_functions
-        for(int i=0;i<n_bitmaps;i++) {
-            ResponseFunction function = null;
-            if( i != base_bitmap ) {
-                function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
-            }
-            else if( use_hdr_n ) {
-                // for hdr_n, need to still create the identity response function
-                function = ResponseFunction.createIdentity();
-            }
-            response_functions[i] = function;
+        if( a < 1.0e-5f ) {
+            // avoid risk of division by 0
+            a = 1.0e-5f;
+            if( MyDebug.LOG )
+                Log.e(TAG, "    clamp a to: " + a);
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
-
-        if( n_bitmaps % 2 == 0 ) {
-            // need to remap so that we aim for a brightness between the middle two images
-            float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
-            float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "remap for even number of images");
-                Log.d(TAG, "    a: " + a);
-                Log.d(TAG, "    b: " + b);
-            }
-            if( a < 1.0e-5f ) {
-                // avoid risk of division by 0
-                a = 1.0e-5f;
+        for(int i=0;i<n_bitmaps;i++) {
+            float this_A = response_functions[i].parameter_A;
+            float this_B = response_functions[i].parameter_B;
+            response_functions[i].parameter_A = this_A / a;
+            response_functions[i].parameter_B = this_B - this_A * b / a;
+            if( response_functions[i].parameter_B < 1.0e-5f ) {
                 if( MyDebug.LOG )
-                    Log.e(TAG, "    clamp a to: " + a);
+                    Log.e(TAG, "remapped parameter B too small or negative: " + response_functions[i].parameter_B);
+                response_functions[i].parameter_B = 1.0e-5f;
             }
-            for(int i=0;i<n_bitmaps;i++) {
-                float this_A = response_functions[i].parameter_A;
-                float this_B = response_functions[i].parameter_B;
-                response_functions[i].parameter_A = this_A / a;
-                response_functions[i].parameter_B = this_B - this_A * b / a;
-                if( response_functions[i].parameter_B < 1.0e-5f ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "remapped parameter B too small or negative: " + response_functions[i].parameter_B);
-                    response_functions[i].parameter_B = 1.0e-5f;
-                }
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "remapped: " + i);
-                    Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
-                    Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
-                }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "remapped: " + i);
+                Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
+                Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
             }
         }
+    }
 
-        /*
-        // calculate average luminance by sampling
-        final int n_samples_c = 100;
-        final int n_w_samples = (int)Math.sqrt(n_samples_c);
-        final int n_h_samples = n_samples_c/n_w_samples;
+    /** Parameters for the tonemapping stage of the HDR algorithm, as computed by computeTonemapParameters().
+     */
+    static class TonemapParameters {
+        final float tonemap_scale;
+        final float linear_scale; // for TONEMAPALGORITHM_EXPONENTIAL and TONEMAPALGORITHM_REINHARD
+        final float W; // for TONEMAPALGORITHM_FU2
 
-        double sum_log_luminance = 0.0;
-        int count = 0;
-        for(int y=0;y<n_h_samples;y++) {
-            double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-            int y_coord = (int)(alpha * bm.getHeight());
-            for(int i=0;i<n_bitmaps;i++) {
-                bitmaps.get(i).getPixels(buffers[i], 0, bm.getWidth(), 0, y_coord, bm.getWidth(), 1);
-            }
-            for(int x=0;x<n_w_samples;x++) {
-                double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-                int x_coord = (int)(beta * bm.getWidth());
-                if( MyDebug.LOG )
-                    Log.d(TAG, "sample luminance from " + x_coord + " , " + y_coord);
-                calculateHDR(hdr, n_bitmaps, buffers, x_coord, response_functions);
-                double luminance = calculateLuminance(hdr[0], hdr[1], hdr[2]) + 1.0; // add 1 so we don't take log of 0..;
-                sum_log_luminance += Math.log(luminance);
-                count++;
-            }
+        TonemapParameters(float tonemap_scale, float linear_scale, float W) {
+            this.tonemap_scale = tonemap_scale;
+            this.linear_scale = linear_scale;
+            this.W = W;
         }
-        float avg_luminance = (float)(Math.exp( sum_log_luminance / count ));
-        if( MyDebug.LOG )
-            Log.d(TAG, "avg_luminance: " + avg_luminance);
-        if( MyDebug.LOG )
-            Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
-            */
-
-        // write new hdr image
+    }
 
+    /** Computes the tonemapping parameters for the supplied response functions.
+     * @param response_functions The response functions for each image, sorted from darkest to brightest.
+     *                           All entries must be non-null except possibly for the base image.
+     * @param median_brightness  The median brightness of the base image.
+     */
+    static TonemapParameters computeTonemapParameters(ResponseFunction [] response_functions, int median_brightness, TonemappingAlgorithm tonemapping_algorithm) {
         float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
         //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
         if( MyDebug.LOG )
@@ -774,6 +710,122 @@ public class HDRProcessor {
             }
         }
 
+        return new TonemapParameters(tonemap_scale_c, linear_scale, W);
+    }
+
+    /** Core implementation of HDR algorithm.
+     *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
+     *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
+     *  Using the support libraries (set via project.properties renderscript.support.mode) would bloat the APK
+     *  by around 1799KB! We don't care about pre-Android 4.4 (HDR requires CameraController2 which requires
+     *  Android 5.0 anyway; even if we later added support for CameraController1, we can simply say HDR requires
+     *  Android 5.0).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processHDRCore(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCore");
+
+        long time_s = System.currentTimeMillis();
+
+        int n_bitmaps = bitmaps.size();
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
+        offsets_x = new int[n_bitmaps];
+        offsets_y = new int[n_bitmaps];
+        /*int [][] buffers = new int[n_bitmaps][];
+        for(int i=0;i<n_bitmaps;i++) {
+            buffers[i] = new int[bm.getWidth()];
+        }*/
+        //float [] hdr = new float[3];
+        //int [] rgb = new int[3];
+
+        initRenderscript();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+        // create allocations
+        Allocation [] allocations = new Allocation[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+        //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
+        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
+        // for even number of images, round up to brighter image
+
+        // perform auto-alignment
+        // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
+        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
+        int median_brightness = brightnessDetails.median_brightness;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "median_brightness: " + median_brightness);
+        }
+
+        //final boolean use_hdr_n = true; // test always using hdr_n
+        final boolean use_hdr_n = n_bitmaps != 3;
+
+        // compute response_functions
+        for(int i=0;i<n_bitmaps;i++) {
+            ResponseFunction function = null;
+            if( i != base_bitmap ) {
+                function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
+            }
+            else if( use_hdr_n ) {
+                // for hdr_n, need to still create the identity response function
+                function = ResponseFunction.createIdentity();
+            }
+            response_functions[i] = function;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
+
+        if( n_bitmaps % 2 == 0 ) {
+            // need to remap so that we aim for a brightness between the middle two images
+            remapResponseFunctions(response_functions, base_bitmap);
+        }
+
+        /*
+        // calculate average luminance by sampling
+        final int n_samples_c = 100;
+        final int n_w_samples = (int)Math.sqrt(n_samples_c);
+        final int n_h_samples = n_samples_c/n_w_samples;
+
+        double sum_log_luminance = 0.0;
+        int count = 0;
+        for(int y=0;y<n_h_samples;y++) {
+            double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
+            int y_coord = (int)(alpha * bm.getHeight());
+            for(int i=0;i<n_bitmaps;i++) {
+                bitmaps.get(i).getPixels(buffers[i], 0, bm.getWidth(), 0, y_coord, bm.getWidth(), 1);
+            }
+            for(int x=0;x<n_w_samples;x++) {
+                double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
+                int x_coord = (int)(beta * bm.getWidth());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "sample luminance from " + x_coord + " , " + y_coord);
+                calculateHDR(hdr, n_bitmaps, buffers, x_coord, response_functions);
+                double luminance = calculateLuminance(hdr[0], hdr[1], hdr[2]) + 1.0; // add 1 so we don't take log of 0..;
+                sum_log_luminance += Math.log(luminance);
+                count++;
+            }
+        }
+        float avg_luminance = (float)(Math.exp( sum_log_luminance / count ));
+        if( MyDebug.LOG )
+            Log.d(TAG, "avg_luminance: " + avg_luminance);
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
+            */
+
+        // write new hdr image
+
+        TonemapParameters tonemap_parameters = computeTonemapParameters(response_functions, median_brightness, tonemapping_algorithm);
+        float tonemap_scale_c = tonemap_parameters.tonemap_scale;
+        float linear_scale = tonemap_parameters.linear_scale;
+        float W = tonemap_parameters.W;
+
         // create RenderScript
         /*if( processHDRScript == null ) {
             processHDRScript = new ScriptC_process_hdr(rs);
@@ -920,7 +972,7 @@ public class HDRProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
 
-        if( release_bitmaps ) {
+        if( release_bitmaps && bitmapPool == null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "release bitmaps");
             // bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
@@ -945,18 +997,28 @@ public class HDRProcessor {
         if( free_output_allocation )
             output_allocation.destroy();
 
+        for(int i=0;i<n_bitmaps;i++) {
+            allocations[i].destroy();
+            allocations[i] = null;
+        }
+
         if( release_bitmaps ) {
+            if( bitmapPool != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "release bitmaps to pool");
+                // only safe to reuse the bitmaps now that the allocations that share their memory are destroyed
+                for(int i=0;i<bitmaps.size();i++) {
+                    if( i != base_bitmap ) {
+                        bitmapPool.release(bitmaps.get(i));
+                    }
+                }
+            }
             // make it so that we store the output bitmap as first in the list
             bitmaps.set(0, output_bitmap);
             for(int i=1;i<bitmaps.size();i++) {
                 bitmaps.set(i, null);
             }
         }
-
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i].destroy();
-            allocations[i] = null;
-        }
         freeScripts();
         if( MyDebug.LOG )
             Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
@@ -1137,6 +1199,15 @@ public class HDRProcessor {
         return cached_avg_sample_size;
     }
 
+    /** Returns the factor by which images (already scaled by getAvgSampleSize()) should be further
+     *  scaled down for the purpose of auto-alignment in the noise reduction algorithm.
+     */
+    public int getAvgScaleAlignSize(int iso, long exposure_time, float zoom_factor) {
+        return (zoom_factor > 3.9f) ?
+                1 :
+                Math.max(4 / this.getAvgSampleSize(iso, exposure_time), 1);
+    }
+
     public static class AvgData {
         public Allocation allocation_out;
         Bitmap bitmap_avg_align;
@@ -1367,9 +1438,7 @@ public class HDRProcessor {
             //final int scale_align_size = 2;
             //final int scale_align_size = 4;
             //final int scale_align_size = Math.max(4 / this.cached_avg_sample_size, 1);
-            final int scale_align_size = (zoom_factor > 3.9f) ?
-                    1 :
-                    Math.max(4 / this.getAvgSampleSize(iso, exposure_time), 1);
+            final int scale_align_size = getAvgScaleAlignSize(iso, exposure_time, zoom_factor);
             if( MyDebug.LOG )
                 Log.d(TAG, "scale_align_size: " + scale_align_size);
             boolean crop_to_centre = true;
@@ -1471,39 +1540,8 @@ public class HDRProcessor {
 
         // write new avg image
 
-        // higher wiener_C (and higher wiener_cutoff_factor) means more averaging (but more risk of ghosting)
-        // if changing this, pay close attention to tests testAvg6, testAvg8, testAvg17, testAvg23
-        float limited_iso = Math.min(iso, 400);
-        float wiener_cutoff_factor = 1.0f;
-        if( iso >= 700 ) {
-            // helps reduce speckles in testAvg17, testAvg23, testAvg33, testAvg36, testAvg38
-            // using this level for testAvg31 (ISO 609) would increase ghosting
-            //limited_iso = 500;
-            limited_iso = 800;
-            if( iso >= 1100 ) {
-                // helps further reduce speckles in testAvg17, testAvg38
-                // but don't do for iso >= 700 as makes "vicks" text in testAvg23 slightly more blurred
-                wiener_cutoff_factor = 8.0f;
-            }
-        }
-        limited_iso = Math.max(limited_iso, 100);
-        float wiener_C = 10.0f * limited_iso;
-        //float wiener_C = 1000.0f;
-        //float wiener_C = 4000.0f;
-
-        // Tapering the wiener scale means that we do more averaging for earlier images in the stack, the
-        // logic being we'll have more chance of ghosting or misalignment with later images.
-        // This helps: testAvg31, testAvg33.
-        // Also slightly helps testAvg17, testAvg23 (slightly less white speckle on tv), testAvg28
-        // (one less white speckle on face).
-        // Note that too much tapering risks increasing ghosting in testAvg26, testAvg39.
-        float tapered_wiener_scale = 1.0f - (float)Math.pow(0.5, avg_factor);
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "avg_factor: " + avg_factor);
-            Log.d(TAG, "tapered_wiener_scale: " + tapered_wiener_scale);
-        }
-        wiener_C /= tapered_wiener_scale;
-
+        float wiener_C = computeAvgWienerC(iso, avg_factor);
+        float wiener_cutoff_factor = computeAvgWienerCutoffFactor(iso);
         float wiener_C_cutoff = wiener_cutoff_factor * wiener_C;
         if( MyDebug.LOG ) {
             Log.d(TAG, "wiener_C: " + wiener_C);
@@ -1634,6 +1672,99 @@ public class HDRProcessor {
         return new AvgData(allocation_out, bitmap_avg_align, allocation_avg_align, bitmap_avg, allocation_orig);
     }
 
+    /** Returns the wiener_C parameter for merging a new image in the noise reduction algorithm. Higher
+     *  values mean more averaging (but more risk of ghosting).
+     * @param iso        The ISO used for the photos.
+     * @param avg_factor The averaging factor for the new image.
+     */
+    static float computeAvgWienerC(int iso, float avg_factor) {
+        // higher wiener_C (and higher wiener_cutoff_factor) means more averaging (but more risk of ghosting)
+        // if changing this, pay close attention to tests testAvg6, testAvg8, testAvg17, testAvg23
+        float limited_iso = Math.min(iso, 400);
+        if( iso >= 700 ) {
+            // helps reduce speckles in testAvg17, testAvg23, testAvg33, testAvg36, testAvg38
+            // using this level for testAvg31 (ISO 609) would increase ghosting
+            //limited_iso = 500;
+            limited_iso = 800;
+        }
+        limited_iso = Math.max(limited_iso, 100);
+        float wiener_C = 10.0f * limited_iso;
+        //float wiener_C = 1000.0f;
+        //float wiener_C = 4000.0f;
+
+        // Tapering the wiener scale means that we do more averaging for earlier images in the stack, the
+        // logic being we'll have more chance of ghosting or misalignment with later images.
+        // This helps: testAvg31, testAvg33.
+        // Also slightly helps testAvg17, testAvg23 (slightly less white speckle on tv), testAvg28
+        // (one less white speckle on face).
+        // Note that too much tapering risks increasing ghosting in testAvg26, testAvg39.
+        float tapered_wiener_scale = 1.0f - (float)Math.pow(0.5, avg_factor);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "avg_factor: " + avg_factor);
+            Log.d(TAG, "tapered_wiener_scale: " + tapered_wiener_scale);
+        }
+        wiener_C /= tapered_wiener_scale;
+        return wiener_C;
+    }
+
+    /** Returns the factor to multiply the value returned by computeAvgWienerC() by, to give the
+     *  error above which a pixel from a new image makes no contribution.
+     */
+    static float computeAvgWienerCutoffFactor(int iso) {
+        float wiener_cutoff_factor = 1.0f;
+        if( iso >= 1100 ) {
+            // helps further reduce speckles in testAvg17, testAvg38
+            // but don't do for iso >= 700 as makes "vicks" text in testAvg23 slightly more blurred
+            wiener_cutoff_factor = 8.0f;
+        }
+        return wiener_cutoff_factor;
+    }
+
+    /** Computes the offset of a new image relative to the reference image for the noise reduction
+     *  algorithm, using the same alignment as processAvg() and updateAvg(). This is for callers that
+     *  merge the images themselves, such as with StreamingAvgProcessor.
+     * @param offsets_x        Array of length 2, the x offset for the new image is returned in
+     *                         offsets_x[1] (offsets_x[0] will be 0).
+     * @param offsets_y        Array of length 2, the y offset for the new image is returned in
+     *                         offsets_y[1] (offsets_y[0] will be 0).
+     * @param bitmap_ref_align The centre crop (half the width and height) of the reference image,
+     *                         scaled down by scale_align_size.
+     * @param bitmap_new_align The corresponding crop of the new image.
+     * @param scale_align_size The value returned by getAvgScaleAlignSize(). The returned offsets are
+     *                         scaled up by this factor.
+     * @param width            The width of the (full, unscaled) images.
+     * @param height           The height of the (full, unscaled) images.
+     * @param iso              The ISO used to take the photos.
+     * @param exposure_time    The exposure time used to take the photos.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public void alignAvgBitmaps(int [] offsets_x, int [] offsets_y, Bitmap bitmap_ref_align, Bitmap bitmap_new_align, int scale_align_size, int width, int height, int iso, long exposure_time) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "alignAvgBitmaps");
+        long time_s = System.currentTimeMillis();
+        initRenderscript();
+        List<Bitmap> align_bitmaps = new ArrayList<>();
+        align_bitmaps.add(bitmap_ref_align);
+        align_bitmaps.add(bitmap_new_align);
+        Allocation [] allocations = new Allocation[2];
+        allocations[0] = Allocation.createFromBitmap(rs, bitmap_ref_align);
+        allocations[1] = Allocation.createFromBitmap(rs, bitmap_new_align);
+
+        // see processAvgCore() - misalignment more likely in "dark" images
+        boolean wider = sceneIsLowLight(iso, exposure_time);
+        autoAlignment(offsets_x, offsets_y, allocations, bitmap_new_align.getWidth(), bitmap_new_align.getHeight(), align_bitmaps, 0, true, null, false, false, 1, false, wider ? 2 : 1, width/scale_align_size, height/scale_align_size, time_s);
+        for(int i=0;i<offsets_x.length;i++) {
+            offsets_x[i] *= scale_align_size;
+            offsets_y[i] *= scale_align_size;
+        }
+
+        for(Allocation allocation : allocations) {
+            allocation.destroy();
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for alignAvgBitmaps: " + (System.currentTimeMillis() - time_s));
+    }
+
     /** Combines multiple images by averaging them.
      * @param bitmaps Input bitmaps. The resultant bitmap will be stored as the first bitmap on exit,
      *                the other input bitmaps will be recycled.
@@ -3147,6 +3278,56 @@ public class HDRProcessor {
         return avgBrightenRS(avg_data.allocation_out, width, height, iso, exposure_time);
     }
 
+    /** As avgBrighten(AvgData, int, int, int, long), but for an image averaged with
+     *  StreamingAvgProcessor. The strips of streaming_avg are released as they are copied.
+     *  Note that this still needs a full resolution floating point allocation, as the brighten
+     *  kernel samples a neighbourhood of each pixel and the histogram is of the whole image, see
+     *  computeStreamingAvgBrightenMemoryCost().
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap avgBrighten(StreamingAvgProcessor streaming_avg, int iso, long exposure_time) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "avgBrighten (streaming)");
+        initRenderscript();
+        int width = streaming_avg.getWidth();
+        int height = streaming_avg.getHeight();
+        Allocation input = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
+        // F32_3 elements are padded to 4 floats
+        float [] buffer = new float[4*width*streaming_avg.getStripHeight()];
+        for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+            streaming_avg.copyStripToFloat4(strip, buffer);
+            input.copy2DRangeFrom(0, streaming_avg.getStripY(strip), width, streaming_avg.getStripRows(strip), buffer);
+            streaming_avg.releaseStrip(strip);
+        }
+        //noinspection UnusedAssignment
+        buffer = null;
+        Bitmap bitmap = avgBrightenRS(input, width, height, iso, exposure_time);
+        input.destroy();
+        return bitmap;
+    }
+
+    /** Returns an estimate of the number of bytes of (non-Java heap) memory needed by
+     *  avgBrighten(StreamingAvgProcessor, int, long) for an image of the supplied size: the
+     *  floating point input allocation (16 bytes per pixel, as F32_3 elements are padded to 4
+     *  floats), and the output bitmap (counted twice, as its allocation may not share its memory).
+     */
+    public static long computeStreamingAvgBrightenMemoryCost(int width, int height) {
+        return (long)width * (long)height * (16 + 2*4);
+    }
+
+    /**
+     * Computes a value for how sharp the image is perceived to be. The higher the value, the
+     * sharper the image.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public float computeSharpness(Bitmap bitmap) {
+        initRenderscript();
+        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+        float sharpness = computeSharpness(allocation, bitmap.getWidth(), System.currentTimeMillis());
+        allocation.destroy();
+        return sharpness;
+    }
+
     /**
      * Computes a value for how sharp the image is perceived to be. The higher the value, the
      * sharper the image.
@@ -1,11 +1,14 @@
 package net.sourceforge.opencamera;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -21,22 +24,28 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Rect;
 //import android.location.Address; // don't use until we have info for data privacy!
 //import android.location.Geocoder; // don't use until we have info for data privacy!
 import android.location.Location;
@@ -66,29 +75,54 @@ public class ImageSaver extends Thread {
     static final String nr_suffix = "_NR";
     static final String pano_suffix = "_PANO";
 
-    private final Paint p = new Paint();
+    private static final int sharpness_size_c = 512; // minimum size of the larger dimension of images when computing the sharpness for BEST requests
+    private static final int yuv_strip_height_c = 64; // number of rows converted at a time when converting YUV images to bitmaps
 
     private final MainActivity main_activity;
+    private final BitmapPool bitmapPool; // shared with hdrProcessor and panoramaProcessor
+    private final long pool_idle_bytes; // how much bitmapPool may keep whilst the queue is empty
     private final HDRProcessor hdrProcessor;
     private final PanoramaProcessor panoramaProcessor;
 
     /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
      * but only decrement the count when we've finished saving the image.
-     * In general, n_images_to_save represents the number of images still to process, including ones currently being processed.
+     * In general, n_images_to_save represents the number of requests still to process, including ones currently being processed.
      * Therefore we should always have n_images_to_save >= queue.size().
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
-     * n_real_images_to_save excludes "Dummy" or "on_destroy" requests, and should also be synchronized, and modified
+     * n_real_images_to_save excludes "on_destroy" requests, and should also be synchronized, and modified
      * at the same time as n_images_to_save.
+     * n_bytes_to_save is the sum of the costs (see computeRequestCost()) of the requests still to process, and should
+     * also be synchronized, and modified at the same time as n_images_to_save.
      */
     private int n_images_to_save = 0;
     private int n_real_images_to_save = 0;
-    private final int queue_capacity;
+    private long n_bytes_to_save = 0;
+    private final long queue_budget; // in bytes
+    /* Requests are added to the queue, and the ImageSaver thread dispatches them to one of the
+     * stages below. Admission is controlled by addRequest() (based on n_bytes_to_save, queue_budget
+     * and the memory currently available), rather than by the capacity of the queues.
+     */
     private final BlockingQueue<Request> queue;
-    private final static int queue_cost_jpeg_c = 1; // also covers WEBP
-    private final static int queue_cost_dng_c = 6;
-    //private final static int queue_cost_dng_c = 1;
+    private final SaverStage raw_stage; // for writing RAW/DNG images
+    private final SaverStage jpeg_stage; // for JPEG images that don't need merging (including expo bracketing and X_NIGHT)
+    private final SaverStage process_stage; // for HDR, NR and panorama - these share hdrProcessor and panoramaProcessor, so must be on a single thread
+    // so that the stages publish their results in the order the requests were dispatched, see publish()
+    private final CompletionSequencer completion_sequencer = new CompletionSequencer();
+    private int n_saving_images = 0; // number of outstanding savingImage(true) calls (possibly from more than one stage), should be synchronized to this
+    private final ActivityManager activityManager;
+
+    // Constants for estimating the memory used by requests, see computeRequestCost() and computeProcessingCost().
+    private final static float jpeg_bytes_per_pixel_c = 0.5f; // estimated size of JPEG data (also covers WEBP), for when we don't have the actual data yet
+    private final static int raw_bytes_per_pixel_c = 2; // RAW_SENSOR is 16 bits per pixel
+    private final static int bitmap_bytes_per_pixel_c = 4; // ARGB_8888
+    private final static int min_queue_budget_c = 32*1024*1024; // enough for a 12MP RAW+JPEG
+    private final static int default_picture_width_c = 4000; // used if we don't know the picture size
+    private final static int default_picture_height_c = 3000;
+    // maximum number of requests dispatched to a stage but not yet started; this is a backstop for
+    // requests whose estimated cost is much smaller than the memory they hold
+    private final static int stage_queue_capacity_c = 16;
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -101,12 +135,13 @@ public class ImageSaver extends Thread {
     public static volatile boolean test_small_queue_size; // needs to be static, as it needs to be set before activity is created to take effect
     public volatile boolean test_slow_saving;
     public volatile boolean test_queue_blocked;
+    public volatile boolean test_streaming_avg; // if true, always use StreamingAvgProcessor for noise reduction
+    public volatile boolean test_sequential_post_processing; // if true, apply the geometric post-processing steps one at a time rather than fused, for comparing the results
 
     static class Request {
         enum Type {
             JPEG, // also covers WEBP
             RAW,
-            DUMMY,
             ON_DESTROY // indicate that application is being destroyed, so should exit thread
         }
         final Type type;
@@ -115,7 +150,8 @@ public class ImageSaver extends Thread {
             HDR, // also covers DRO, if only 1 image in the request
             AVERAGE,
             PANORAMA,
-            X_NIGHT
+            X_NIGHT,
+            BEST // save only the sharpest of the images
         }
         final ProcessType process_type; // for type==JPEG
         final boolean force_suffix; // affects filename suffixes for saving jpeg_images: if true, filenames will always be appended with a suffix like _0, even if there's only 1 image in jpeg_images
@@ -132,7 +168,7 @@ public class ImageSaver extends Thread {
          * image, this uses fake HDR or "DRO").
          * If process_type==NORMAL, then multiple images are saved sequentially.
          */
-        final List<byte []> jpeg_images;
+        final List<ImageBuffer> jpeg_images;
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -153,6 +189,8 @@ public class ImageSaver extends Thread {
         boolean panorama_dir_left_to_right; // used for panorama
         float camera_view_angle_x; // used for panorama
         float camera_view_angle_y; // used for panorama
+        int keep_best_n; // used for BEST, the number of images to save
+        List<Future<Float>> sharpness_scores; // used for BEST, the sharpness of each jpeg_images entry, computed in the background
         final boolean is_front_facing;
         boolean mirror;
         final Date current_date;
@@ -187,13 +225,18 @@ public class ImageSaver extends Thread {
         final String custom_tag_artist;
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
+        long cost; // set by addRequest(), see computeRequestCost()
+        long held_bytes; // set by addRequest(), the bytes of cost that are already on the heap
+        long processing_cost; // set by addRequest(), see computeProcessingCost()
+        long trace_shot_id = -1; // set by addRequest(), the shot id for CaptureLatencyTracker
+        long sequence = -1; // set by run(), the sequence number for completion_sequencer
 
         Request(Type type,
                 ProcessType process_type,
                 boolean force_suffix,
                 int suffix_offset,
                 SaveBase save_base,
-                List<byte []> jpeg_images,
+                List<ImageBuffer> jpeg_images,
                 RawImage raw_image,
                 boolean image_capture_intent, Uri image_capture_intent_uri,
                 boolean using_camera2, boolean using_camera_extensions,
@@ -304,104 +347,298 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "ImageSaver");
         this.main_activity = main_activity;
 
-        ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
+        this.queue_budget = computeQueueBudget(activityManager.getLargeMemoryClass());
+        // queue isn't bounded by its own capacity - see addRequest()
+        this.queue = new LinkedBlockingQueue<>();
+        this.raw_stage = new SaverStage("ImageSaverRaw");
+        this.jpeg_stage = new SaverStage("ImageSaverJpeg");
+        this.process_stage = new SaverStage("ImageSaverProcess");
+
+        // allow a quarter of the large heap for bitmaps and buffers kept for reuse by post-processing
+        this.bitmapPool = new BitmapPool(activityManager.getLargeMemoryClass()*1024L*1024L/4);
+        // but only keep a sixteenth once there's nothing left to save, see requestFinished()
+        this.pool_idle_bytes = activityManager.getLargeMemoryClass()*1024L*1024L/16;
+        this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test, bitmapPool);
+        this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor, bitmapPool);
+    }
+
+    /** A worker that saves the requests dispatched to it, in the order they were dispatched. Each
+     *  stage has its own thread, so that (for example) writing a large DNG doesn't hold up JPEGs
+     *  queued behind it, and a slow HDR merge doesn't hold up either.
+     */
+    private class SaverStage extends Thread {
+        private final BlockingQueue<Request> stage_queue = new LinkedBlockingQueue<>(stage_queue_capacity_c);
+
+        SaverStage(String name) {
+            super(name);
+        }
+
+        /** Adds a request to this stage. Admission is controlled by addRequest(), but the stage
+         *  queue is also bounded, so if it's full this blocks the ImageSaver thread (and hence the
+         *  other stages' dispatching) until the stage catches up.
+         */
+        void dispatch(Request request) throws InterruptedException {
+            stage_queue.put(request);
+        }
+
+        int getStageQueueSize() {
+            return stage_queue.size();
+        }
+
+        @Override
+        public void run() {
+            if( MyDebug.LOG )
+                Log.d(TAG, "starting stage thread: " + getName());
+            while( true ) {
+                try {
+                    Request request = stage_queue.take(); // if empty, take() blocks until non-empty
+                    if( request.type == Request.Type.ON_DESTROY ) {
+                        // n.b., the ImageSaver thread is responsible for the on_destroy request's accounting
+                        break;
+                    }
+                    processRequest(request);
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while trying to read from stage queue: " + getName());
+                }
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "stopping stage thread: " + getName());
+        }
+    }
 
-        this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
-        this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
+    /** Returns which stage should process the supplied request.
+     */
+    private SaverStage getStageForRequest(Request request) {
+        if( request.type == Request.Type.RAW ) {
+            return raw_stage;
+        }
+        switch( request.process_type ) {
+            case HDR:
+            case AVERAGE:
+            case PANORAMA:
+                return process_stage;
+            default:
+                return jpeg_stage;
+        }
+    }
 
-        p.setAntiAlias(true);
+    /** Wrapper for MainActivity.savingImage(), as we may be saving on more than one stage at once.
+     */
+    private void savingImage(boolean started) {
+        boolean changed;
+        synchronized( this ) {
+            if( started ) {
+                n_saving_images++;
+                changed = n_saving_images == 1;
+            }
+            else {
+                n_saving_images--;
+                changed = n_saving_images == 0;
+            }
+        }
+        if( changed ) {
+            main_activity.savingImage(started);
+        }
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the number of JPEG images at the current photo resolution that can be held by the
+     *  queue before the UI would block. In practice, the number of images that can be taken at once
+     *  is 1 more than this, as we never block when the queue is empty.
      */
     public int getQueueSize() {
-        return this.queue_capacity;
+        int [] picture_size = new int[2];
+        getPictureSize(picture_size);
+        long cost = computeRequestCost(false, 1, picture_size[0], picture_size[1]);
+        int queue_size = (int)(queue_budget/cost);
+        if( MyDebug.LOG )
+            Log.d(TAG, "queue_size = " + queue_size);
+        return queue_size;
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Compute a sensible memory budget (in bytes) for the queue, based on the device's memory
+     *  (large heap, in MB).
      */
-    public static int computeQueueSize(int large_heap_memory) {
+    public static long computeQueueBudget(int large_heap_memory) {
         if( MyDebug.LOG )
             Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
         if( MyDebug.LOG )
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         if( test_small_queue_size ) {
             large_heap_memory = 0;
         }
 
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
-        }
-        else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
-        }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        // Allow a third of the large heap for holding JPEG/RAW data, leaving the rest for
+        // post-processing and HDR operations. For large heap 512MB, this is enough to take a burst
+        // of 20 12MP JPEGs, or a burst of 5 photos (e.g., in expo mode) with 12MP RAW+JPEG, without
+        // blocking.
+        long queue_budget = ((long)large_heap_memory*1024*1024)/3;
+        // but always allow at least a single RAW+JPEG photo
+        queue_budget = Math.max(queue_budget, min_queue_budget_c);
         if( MyDebug.LOG )
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+            Log.d(TAG, "queue_budget = " + queue_budget);
+        return queue_budget;
     }
 
-    /** Computes the cost for a particular request.
+    /** Computes the cost for a particular request, as an estimate of the number of bytes needed to
+     *  hold it in the queue.
      *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
      *  of the two requests: one RAW, one JPEG).
      * @param is_raw Whether RAW/DNG or JPEG.
      * @param n_images This is the number of JPEG or RAW images that are in the request.
+     * @param width The width of the images.
+     * @param height The height of the images.
      */
-    public static int computeRequestCost(boolean is_raw, int n_images) {
+    public static long computeRequestCost(boolean is_raw, int n_images, int width, int height) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "computeRequestCost");
             Log.d(TAG, "is_raw: " + is_raw);
             Log.d(TAG, "n_images: " + n_images);
+            Log.d(TAG, "width: " + width);
+            Log.d(TAG, "height: " + height);
         }
-        int cost;
+        long n_pixels = (long)width * (long)height;
+        long cost;
         if( is_raw )
-            cost = n_images * queue_cost_dng_c;
-        else {
-            cost = n_images * queue_cost_jpeg_c;
-            //cost = (n_images > 1 ? 2 : 1) * queue_cost_jpeg_c;
-        }
+            cost = n_images * n_pixels * raw_bytes_per_pixel_c;
+        else
+            cost = n_images * (long)(n_pixels * jpeg_bytes_per_pixel_c);
         return cost;
     }
 
-    /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
+    /** Returns the number of full resolution bitmaps (or equivalent) that need to be held at
+     *  once in order to process a request.
+     * @param needs_bitmap For NORMAL and X_NIGHT, whether the images need to be decoded to a bitmap
+     *                     for post-processing (e.g., auto-level, photo stamp or converting format).
+     */
+    static int computeWorkingBitmaps(Request.ProcessType process_type, int n_images, boolean needs_bitmap) {
+        switch( process_type ) {
+            case HDR:
+                // the input bitmaps, plus the output
+                return n_images + 1;
+            case AVERAGE:
+                // HDRProcessor.AvgData holds a float4 per pixel (equivalent to 4 bitmaps), and
+                // we decode up to 4 bitmaps at a time, plus the output
+                return 9;
+            case PANORAMA:
+                return computePanoramaWorkingBitmaps(n_images);
+            default:
+                // images are saved one at a time, and post-processing may require a copy
+                return needs_bitmap ? 2 : 0;
+        }
+    }
+
+    /** Returns the number of full resolution bitmaps (or equivalent) that need to be held at
+     *  once to process a panorama of n_images images. The input images are decoded on demand
+     *  (see PanoramaProcessor.BitmapProvider), so this only grows with the size of the output.
+     */
+    public static int computePanoramaWorkingBitmaps(int n_images) {
+        // the current and prefetched input bitmaps, and the rotated and projected copies of the
+        // current bitmap
+        final int n_input_bitmaps = 4;
+        // blending is over a region about a third of the width of an image; for each pixel of that
+        // region, JavaPyramidBlender keeps about 38 bytes of float buffers between blends, and we
+        // also hold the lhs, rhs and blended bitmaps and two int buffers (20 bytes), so about 5
+        // bitmaps in total
+        final int n_blend_bitmaps = 5;
+        // the output panorama is n_images slices wide, plus a margin of about one image
+        int n_output_bitmaps = (int)Math.ceil(n_images/MyApplicationInterface.getPanoramaPicsPerScreen()) + 1;
+        return n_input_bitmaps + n_blend_bitmaps + n_output_bitmaps;
+    }
+
+    /** Computes an estimate of the number of bytes needed to process a request, on top of its
+     *  cost in the queue.
+     * @param n_working_bitmaps The value returned by computeWorkingBitmaps().
+     */
+    public static long computeProcessingCost(int n_working_bitmaps, int width, int height) {
+        return n_working_bitmaps * (long)width * (long)height * bitmap_bytes_per_pixel_c;
+    }
+
+    /** Whether adding a request would block the queue.
+     * @param bytes_to_save The total cost of the requests still to be saved.
+     * @param request_cost The result of computeRequestCost() for the new request(s).
+     * @param held_bytes The number of bytes of request_cost that are already on the heap (e.g.,
+     *                   the JPEG data of a request that has been taken), so won't reduce
+     *                   heap_headroom further.
+     * @param processing_cost The result of computeProcessingCost() for the new request (or 0 if
+     *                        unknown).
+     * @param queue_budget The value returned by computeQueueBudget().
+     * @param heap_headroom The number of bytes of heap currently available.
+     * @param system_headroom The number of bytes of system memory currently available.
+     */
+    public static boolean queueWouldBlock(long bytes_to_save, long request_cost, long held_bytes, long processing_cost, long queue_budget, long heap_headroom, long system_headroom) {
+        if( bytes_to_save == 0 ) {
+            // In theory, we should never have a request large enough to block the queue even when no images are being
+            // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
+            // to disallow ever taking photos!
+            return false;
+        }
+        if( bytes_to_save + request_cost > queue_budget ) {
+            return true;
+        }
+        // also check against the memory we actually have available, e.g., in case other parts of
+        // the application are using more memory than expected
+        if( request_cost - held_bytes > heap_headroom ) {
+            return true;
+        }
+        return processing_cost > system_headroom;
+    }
+
+    /** Returns the number of bytes currently available on the Java heap.
+     */
+    private static long getHeapHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used;
+    }
+
+    /** Returns the number of bytes of system memory currently available before the system would
+     *  consider itself to be low on memory. Since Android 8, bitmap pixel data is stored on the
+     *  native heap, so this is what limits processing.
+     */
+    private long getSystemHeadroom() {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return Math.max(memoryInfo.availMem - memoryInfo.threshold, 0);
+    }
+
+    /** Returns the current picture size, or an estimate if not known.
+     * @param result Array of length 2 which will be filled with the width and height.
+     */
+    private void getPictureSize(int [] result) {
+        result[0] = default_picture_width_c;
+        result[1] = default_picture_height_c;
+        // camera_controller may be null if called from a saver thread while the camera is closing
+        CameraController camera_controller = main_activity.getPreview().getCameraController();
+        if( camera_controller != null ) {
+            CameraController.Size size = camera_controller.getPictureSize();
+            if( size != null ) {
+                result[0] = size.width;
+                result[1] = size.height;
+            }
+        }
+    }
+
+    /** Computes the cost (in bytes) of a new photo, at the current picture size.
      * @param n_raw The number of JPEGs that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    int computePhotoCost(int n_raw, int n_jpegs) {
+    long computePhotoCost(int n_raw, int n_jpegs) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "computePhotoCost");
             Log.d(TAG, "n_raw: " + n_raw);
             Log.d(TAG, "n_jpegs: " + n_jpegs);
         }
-        int cost = 0;
+        int [] picture_size = new int[2];
+        getPictureSize(picture_size);
+        long cost = 0;
         if( n_raw > 0 )
-            cost += computeRequestCost(true, n_raw);
+            cost += computeRequestCost(true, n_raw, picture_size[0], picture_size[1]);
         if( n_jpegs > 0 )
-            cost += computeRequestCost(false, n_jpegs);
+            cost += computeRequestCost(false, n_jpegs, picture_size[0], picture_size[1]);
         if( MyDebug.LOG )
             Log.d(TAG, "cost: " + cost);
         return cost;
@@ -412,60 +649,94 @@ public class ImageSaver extends Thread {
      * @param n_jpegs The number of JPEGs that will be taken.
      */
     boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = this.computePhotoCost(n_raw, n_jpegs);
         return this.queueWouldBlock(photo_cost);
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
+     *  Note that as we don't know how the photo will be processed, this only considers the cost
+     *  of holding it in the queue - the memory needed for processing is checked when the request
+     *  is added.
      * @param photo_cost The result returned by computePhotoCost().
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    synchronized boolean queueWouldBlock(long photo_cost) {
+        return requestWouldBlock(photo_cost, 0, 0, true);
+    }
+
+    /** As queueWouldBlock(long), but also checks the memory needed for processing. This has no
+     *  side effects, see admitRequest(). Should be synchronized to this.
+     * @param held_bytes See queueWouldBlock(long, long, long, long, long, long, long).
+     * @param use_pool Whether to count the free buffers of bitmapPool as available, as these can
+     *                 be released if needed.
+     */
+    private boolean requestWouldBlock(long cost, long held_bytes, long processing_cost, boolean use_pool) {
+        long heap_headroom = getHeapHeadroom();
+        long system_headroom = processing_cost > 0 ? getSystemHeadroom() : 0;
         if( MyDebug.LOG ) {
-            Log.d(TAG, "queueWouldBlock");
-            Log.d(TAG, "photo_cost: " + photo_cost);
-            Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
-        }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if( n_images_to_save == 0 ) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
-            // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
-            // to disallow ever taking photos!
+            Log.d(TAG, "requestWouldBlock");
+            Log.d(TAG, "cost: " + cost);
+            Log.d(TAG, "held_bytes: " + held_bytes);
+            Log.d(TAG, "processing_cost: " + processing_cost);
+            Log.d(TAG, "n_bytes_to_save: " + n_bytes_to_save);
+            Log.d(TAG, "queue_budget: " + queue_budget);
+            Log.d(TAG, "heap_headroom: " + heap_headroom);
+            Log.d(TAG, "system_headroom: " + system_headroom);
+        }
+        boolean would_block = queueWouldBlock(n_bytes_to_save, cost, held_bytes, processing_cost, queue_budget, heap_headroom, system_headroom);
+        if( would_block && use_pool ) {
+            // the free buffers kept by bitmapPool count as used memory, but we can give them up
+            long pool_bytes = bitmapPool.getFreeBytes();
             if( MyDebug.LOG )
-                Log.d(TAG, "queue is empty");
-            return false;
+                Log.d(TAG, "pool_bytes: " + pool_bytes);
+            if( pool_bytes > 0 ) {
+                would_block = queueWouldBlock(n_bytes_to_save, cost, held_bytes, processing_cost, queue_budget, heap_headroom + pool_bytes, system_headroom + pool_bytes);
+            }
         }
-        else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "queue would block?: " + would_block);
+        return would_block;
+    }
+
+    /** Called when a request is admitted to the queue (i.e., requestWouldBlock() with use_pool
+     *  returned false). If the request only fits by giving up the free buffers of bitmapPool, they
+     *  are released now. Should be synchronized to this.
+     */
+    private void admitRequest(Request request) {
+        if( bitmapPool.getFreeBytes() > 0 && requestWouldBlock(request.cost, request.held_bytes, request.processing_cost, false) ) {
             if( MyDebug.LOG )
-                Log.d(TAG, "queue would block");
-            return true;
+                Log.d(TAG, "clear bitmap pool to make room for request");
+            bitmapPool.clear();
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "queue would not block");
-        return false;
     }
 
     /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
      */
     int getMaxDNG() {
-        int max_dng = (queue_capacity+1)/queue_cost_dng_c;
+        int [] picture_size = new int[2];
+        getPictureSize(picture_size);
+        long cost = computeRequestCost(true, 1, picture_size[0], picture_size[1]);
+        int max_dng = (int)(queue_budget/cost);
         max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
         if( MyDebug.LOG )
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
     }
 
-    /** Returns the number of images to save, weighted by their cost (e.g., so a single RAW image
-     *  will be counted as multiple images).
+    /** Returns the number of requests to save (note that a request may contain more than one
+     *  image, e.g., for HDR).
      */
     public synchronized int getNImagesToSave() {
         return n_images_to_save;
     }
 
-    /** Returns the number of images to save (e.g., so a single RAW image will only be counted as
-     *  one image, unlike getNImagesToSave()).
+    /** Returns the total cost (see computeRequestCost()) of the images still to save.
+     */
+    public synchronized long getNBytesToSave() {
+        return n_bytes_to_save;
+    }
 
+    /** Returns the number of requests to save, excluding internal requests (e.g., for when the
+     *  application is being destroyed).
      */
     public synchronized int getNRealImagesToSave() {
         return n_real_images_to_save;
@@ -520,7 +791,7 @@ public class ImageSaver extends Thread {
                     1);
             if( MyDebug.LOG )
                 Log.d(TAG, "add on_destroy request");
-            addRequest(request, 1);
+            addRequest(request);
         }
         if( panoramaProcessor != null ) {
             panoramaProcessor.onDestroy();
@@ -528,87 +799,56 @@ public class ImageSaver extends Thread {
         if( hdrProcessor != null ) {
             hdrProcessor.onDestroy();
         }
+        bitmapPool.clear();
+    }
+
+    /** Should be called from the activity's onTrimMemory(), to give up the free buffers kept for
+     *  reuse by post-processing when the system is low on memory.
+     */
+    void onTrimMemory(int level) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onTrimMemory: " + level);
+        if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ) {
+            bitmapPool.clear();
+        }
+        else if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE ) {
+            bitmapPool.trimToSize(pool_idle_bytes);
+        }
     }
 
     @Override
     public void run() {
         if( MyDebug.LOG )
             Log.d(TAG, "starting ImageSaver thread...");
+        raw_stage.start();
+        jpeg_stage.start();
+        process_stage.start();
         while( true ) {
             try {
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
                 Request request = queue.take(); // if empty, take() blocks until non-empty
-                // Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
-                // even though we still have a last image to be saved.
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-                boolean success;
-                boolean on_destroy = false;
-                switch (request.type) {
-                    case RAW:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is raw");
-                        success = saveImageNowRaw(request);
-                        break;
-                    case JPEG:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
-                        break;
-                    case ON_DESTROY:
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "request is on_destroy");
-                        success = true;
-                        on_destroy = true;
-                        break;
-                    default:
-                        if (MyDebug.LOG)
-                            Log.e(TAG, "request is unknown type!");
-                        success = false;
-                        break;
-                }
-                if( test_slow_saving ) {
-                    // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
-                    //noinspection BusyWait
-                    Thread.sleep(2000);
-                }
-                if( MyDebug.LOG ) {
-                    if( success )
-                        Log.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Log.e(TAG, "ImageSaver thread failed to save image");
-                }
-                synchronized( this ) {
-                    n_images_to_save--;
-                    if( request.type != Request.Type.DUMMY && request.type != Request.Type.ON_DESTROY )
-                        n_real_images_to_save--;
+                request.sequence = completion_sequencer.register();
+                if( request.type == Request.Type.ON_DESTROY ) {
                     if( MyDebug.LOG )
-                        Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-                    if( MyDebug.LOG && n_images_to_save < 0 ) {
-                        Log.e(TAG, "images to save has become negative");
-                        throw new RuntimeException();
+                        Log.d(TAG, "request is on_destroy");
+                    // let each stage finish what it's already been given
+                    SaverStage [] stages = new SaverStage[]{raw_stage, jpeg_stage, process_stage};
+                    for(SaverStage stage : stages) {
+                        stage.dispatch(request);
                     }
-                    else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
-                        Log.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
+                    for(SaverStage stage : stages) {
+                        stage.join();
                     }
-                    notifyAll();
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
-                }
-                if( on_destroy ) {
+                    requestFinished(request);
                     break;
                 }
+                SaverStage stage = getStageForRequest(request);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "dispatch to stage: " + stage.getName() + " , stage queue size: " + stage.getStageQueueSize());
+                stage.dispatch(request);
             }
             catch(InterruptedException e) {
                 e.printStackTrace();
@@ -620,6 +860,100 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "stopping ImageSaver thread...");
     }
 
+    /** Saves a request that has been dispatched to a stage. Called on the stage's thread.
+     */
+    private void processRequest(Request request) throws InterruptedException {
+        boolean success;
+        CaptureLatencyTracker.getInstance().recordShotStage(request.trace_shot_id, CaptureLatencyTracker.STAGE_SAVE_STARTED);
+        switch (request.type) {
+            case RAW:
+                if (MyDebug.LOG)
+                    Log.d(TAG, "request is raw");
+                success = saveImageNowRaw(request);
+                break;
+            case JPEG:
+                if (MyDebug.LOG)
+                    Log.d(TAG, "request is jpeg");
+                success = saveImageNowAndRelease(request);
+                break;
+            default:
+                if (MyDebug.LOG)
+                    Log.e(TAG, "request is unknown type!");
+                success = false;
+                break;
+        }
+        if( test_slow_saving ) {
+            // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
+            //noinspection BusyWait
+            Thread.sleep(2000);
+        }
+        if( MyDebug.LOG ) {
+            if( success )
+                Log.d(TAG, "ImageSaver stage successfully saved image");
+            else
+                Log.e(TAG, "ImageSaver stage failed to save image");
+        }
+        CaptureLatencyTracker.getInstance().recordShotStage(request.trace_shot_id, CaptureLatencyTracker.STAGE_SAVED);
+        requestFinished(request);
+    }
+
+    /** Runs the callback once all the requests dispatched before this one have been saved. This
+     *  should be used for anything that publishes the result of a request (e.g., the last image
+     *  list, the thumbnail, and media scanner broadcasts), as requests on different stages may
+     *  finish out of order, but the results should be published in the order the photos were
+     *  taken.
+     */
+    private void publish(Request request, Runnable callback) {
+        completion_sequencer.post(request.sequence, callback);
+    }
+
+    /** Updates the counts of images to save, once a request has been fully processed.
+     *  Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
+     *  even though we still have a last image to be saved.
+     */
+    private void requestFinished(Request request) {
+        try {
+            // must be done before decrementing n_images_to_save, so that any results of this and later
+            // requests are published before waitUntilDone() returns
+            completion_sequencer.finish(request.sequence);
+        }
+        finally {
+            // still update the counts if a publish callback threw, otherwise waitUntilDone() would
+            // never return
+            boolean queue_empty;
+            synchronized( this ) {
+                n_images_to_save--;
+                if( request.type != Request.Type.ON_DESTROY )
+                    n_real_images_to_save--;
+                n_bytes_to_save -= request.cost;
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "ImageSaver processed request, images to save is now: " + n_images_to_save);
+                    Log.d(TAG, "bytes to save is now: " + n_bytes_to_save);
+                }
+                if( MyDebug.LOG && n_images_to_save < 0 ) {
+                    Log.e(TAG, "images to save has become negative");
+                    throw new RuntimeException();
+                }
+                else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
+                    Log.e(TAG, "real images to save has become negative");
+                    throw new RuntimeException();
+                }
+                notifyAll();
+                queue_empty = n_images_to_save == 0;
+
+                main_activity.runOnUiThread(new Runnable() {
+                    public void run() {
+                        main_activity.imageQueueChanged();
+                    }
+                });
+            }
+            if( queue_empty ) {
+                // no need to keep as many buffers around until the user takes another photo
+                bitmapPool.trimToSize(pool_idle_bytes);
+            }
+        }
+    }
+
     /** Saves a photo.
      *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
      *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
@@ -631,7 +965,7 @@ public class ImageSaver extends Thread {
                           boolean force_suffix,
                           int suffix_offset,
                           boolean save_expo,
-                          List<byte []> images,
+                          List<ImageBuffer> images,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2, boolean using_camera_extensions,
                           Request.ImageFormat image_format, int image_quality,
@@ -736,7 +1070,7 @@ public class ImageSaver extends Thread {
     private Request pending_image_average_request = null;
 
     /** Used for a batch of images that will be combined into a single request. This applies to
-     *  processType AVERAGE and PANORAMA.
+     *  processType AVERAGE, PANORAMA and BEST.
      */
     void startImageBatch(boolean do_in_background,
                            Request.ProcessType processType,
@@ -765,6 +1099,10 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "startImageBatch");
             Log.d(TAG, "do_in_background? " + do_in_background);
         }
+        if( pending_image_average_request != null ) {
+            // previous batch wasn't finished
+            ImageBuffer.releaseAll(pending_image_average_request.jpeg_images);
+        }
         pending_image_average_request = new Request(Request.Type.JPEG,
                 processType,
                 false,
@@ -792,9 +1130,12 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( processType == Request.ProcessType.BEST ) {
+            pending_image_average_request.sharpness_scores = new ArrayList<>();
+        }
     }
 
-    void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
+    void addImageBatch(ImageBuffer image, float [] gyro_rotation_matrix) {
         if( MyDebug.LOG )
             Log.d(TAG, "addImageBatch");
         if( pending_image_average_request == null ) {
@@ -807,6 +1148,11 @@ public class ImageSaver extends Thread {
             System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
             pending_image_average_request.gyro_rotation_matrix.add(copy);
         }
+        if( pending_image_average_request.sharpness_scores != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            // start scoring now, so this overlaps with capturing the rest of the burst, and with
+            // saving any other requests
+            pending_image_average_request.sharpness_scores.add(submitSharpness(image));
+        }
         if( MyDebug.LOG )
             Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
     }
@@ -826,13 +1172,12 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
-            addRequest(pending_image_average_request, cost);
+            addRequest(pending_image_average_request);
         }
         else {
             // wait for queue to be empty
             waitUntilDone();
-            saveImageNow(pending_image_average_request);
+            saveImageNowAndRelease(pending_image_average_request);
         }
         pending_image_average_request = null;
     }
@@ -840,7 +1185,10 @@ public class ImageSaver extends Thread {
     void flushImageBatch() {
         if( MyDebug.LOG )
             Log.d(TAG, "flushImageBatch");
-        // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
+        // aside from resetting the state, this returns the JPEG data to the camera controller's pool
+        if( pending_image_average_request != null ) {
+            ImageBuffer.releaseAll(pending_image_average_request.jpeg_images);
+        }
         pending_image_average_request = null;
     }
 
@@ -852,7 +1200,7 @@ public class ImageSaver extends Thread {
                               boolean force_suffix,
                               int suffix_offset,
                               boolean save_expo,
-                              List<byte []> jpeg_images,
+                              List<ImageBuffer> jpeg_images,
                               RawImage raw_image,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2, boolean using_camera_extensions,
@@ -915,19 +1263,22 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
-            addRequest(request, cost);
+            addRequest(request);
             success = true; // always return true when done in background
         }
         else {
             // wait for queue to be empty
+            CaptureLatencyTracker tracker = CaptureLatencyTracker.getInstance();
+            long trace_shot_id = tracker.recordStage(CaptureLatencyTracker.STAGE_QUEUED);
             waitUntilDone();
+            tracker.recordShotStage(trace_shot_id, CaptureLatencyTracker.STAGE_SAVE_STARTED);
             if( is_raw ) {
                 success = saveImageNowRaw(request);
             }
             else {
-                success = saveImageNow(request);
+                success = saveImageNowAndRelease(request);
             }
+            tracker.recordShotStage(trace_shot_id, CaptureLatencyTracker.STAGE_SAVED);
         }
 
         if( MyDebug.LOG )
@@ -935,32 +1286,51 @@ public class ImageSaver extends Thread {
         return success;
     }
 
-    /** Adds a request to the background queue, blocking if the queue is already full
+    /** Adds a request to the background queue, blocking if the queue is already full, i.e., if
+     *  queueWouldBlock() returns true.
      */
-    private void addRequest(Request request, int cost) {
+    private void addRequest(Request request) {
         if( MyDebug.LOG )
-            Log.d(TAG, "addRequest, cost: " + cost);
+            Log.d(TAG, "addRequest");
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && main_activity.isDestroyed() ) {
             // If the application is being destroyed as a new photo is being taken, it's not safe to continue, e.g., we'll
             // crash if needing to use RenderScript.
             // MainDestroy.onDestroy() does call waitUntilDone(), but this is extra protection in case an image comes in after that.
             Log.e(TAG, "application is destroyed, image lost!");
+            if( request.type == Request.Type.JPEG ) {
+                ImageBuffer.releaseAll(request.jpeg_images);
+            }
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
+        if( request.type != Request.Type.ON_DESTROY ) {
+            // record before we might block, so that time blocked counts as waiting in the queue
+            request.trace_shot_id = CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_QUEUED);
+        }
+        computeCosts(request);
         boolean done = false;
         while( !done ) {
             try {
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
                 synchronized( this ) {
-                    // see above for why we don't synchronize the queue.put call
-                    // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
+                    // n.b., wait() releases the lock, so the stages can still synchronize on "this" in order to
+                    // notifyAll() us when an image has been saved
+                    if( requestWouldBlock(request.cost, request.held_bytes, request.processing_cost, true) ) {
+                        Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + n_bytes_to_save);
+                        test_queue_blocked = true;
+                        //throw new RuntimeException(); // test
+                        do {
+                            wait();
+                        }
+                        while( requestWouldBlock(request.cost, request.held_bytes, request.processing_cost, true) );
+                    }
+                    admitRequest(request);
+                    // we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
                     // also see FindBugs warning due to inconsistent synchronisation
                     n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-                    if( request.type != Request.Type.DUMMY && request.type != Request.Type.ON_DESTROY )
+                    if( request.type != Request.Type.ON_DESTROY )
                         n_real_images_to_save++;
+                    n_bytes_to_save += request.cost;
 
                     main_activity.runOnUiThread(new Runnable() {
                         public void run() {
@@ -968,17 +1338,13 @@ public class ImageSaver extends Thread {
                         }
                     });
                 }
-                if( queue.size() + 1 > queue_capacity ) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
-                }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
+                queue.add(request); // never blocks, as the queue is unbounded
                 if( MyDebug.LOG ) {
                     synchronized( this ) { // keep FindBugs happy
                         Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
                         Log.d(TAG, "images still to save is now: " + n_images_to_save);
                         Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
+                        Log.d(TAG, "bytes still to save is now: " + n_bytes_to_save);
                     }
                 }
                 done = true;
@@ -989,44 +1355,45 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
             }
         }
-        if( cost > 0 ) {
-            // add "dummy" requests to simulate the cost
-            for(int i=0;i<cost-1;i++) {
-                addDummyRequest();
-            }
-        }
     }
 
-    private void addDummyRequest() {
-        Request dummy_request = new Request(Request.Type.DUMMY,
-                Request.ProcessType.NORMAL,
-                false,
-                0,
-                Request.SaveBase.SAVEBASE_NONE,
-                null,
-                null,
-                false, null,
-                false, false,
-                Request.ImageFormat.STD, 0,
-                false, 0.0, null,
-                false,
-                false,
-                null,
-                HDRProcessor.default_tonemapping_algorithm_c,
-                null,
-                0,
-                0,
-                1.0f,
-                null, null, 0, 0, null, null, null, null,
-                //null,
-                null,
-                false, Request.RemoveDeviceExif.OFF, false, null, false, 0.0,
-                0.0, false,
-                null, null,
-                1);
-        if( MyDebug.LOG )
-            Log.d(TAG, "add dummy request");
-        addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
+    /** Sets the cost and processing_cost of the request, from the actual image data.
+     */
+    private void computeCosts(Request request) {
+        request.cost = 0;
+        request.held_bytes = 0;
+        request.processing_cost = 0;
+        if( request.type == Request.Type.RAW ) {
+            request.cost = computeRequestCost(true, 1, request.raw_image.getWidth(), request.raw_image.getHeight());
+        }
+        else if( request.type == Request.Type.JPEG && request.jpeg_images.size() > 0 ) {
+            for(ImageBuffer image : request.jpeg_images) {
+                request.cost += image.getLength();
+            }
+            // the data has already been received, so is already on the heap
+            request.held_bytes = request.cost;
+            // this may be called on the UI thread, so avoid decoding the JPEG header: use the size
+            // stored with YUV images, otherwise the picture size reported by the camera
+            int [] image_size = new int[2];
+            ImageBuffer first_image = request.jpeg_images.get(0);
+            if( first_image.isYuv() ) {
+                image_size[0] = first_image.getWidth();
+                image_size[1] = first_image.getHeight();
+            }
+            else {
+                getPictureSize(image_size);
+            }
+            boolean needs_bitmap = request.do_auto_stabilise || request.mirror ||
+                    request.image_format != Request.ImageFormat.STD ||
+                    request.remove_device_exif != Request.RemoveDeviceExif.OFF ||
+                    request.preference_stamp.equals("preference_stamp_yes") || request.preference_textstamp.length() > 0;
+            int n_working_bitmaps = computeWorkingBitmaps(request.process_type, request.jpeg_images.size(), needs_bitmap);
+            request.processing_cost = computeProcessingCost(n_working_bitmaps, image_size[0], image_size[1]);
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "request cost: " + request.cost);
+            Log.d(TAG, "request processing_cost: " + request.processing_cost);
+        }
     }
 
     /** Wait until the queue is empty and all pending images have been saved.
@@ -1076,7 +1443,7 @@ public class ImageSaver extends Thread {
      *                for the image post-processing (auto-stabilise etc), in general we need the
      *                bitmap to be mutable (for photostamp to work).
      */
-    private Bitmap loadBitmap(byte [] jpeg_image, boolean mutable, int inSampleSize) {
+    private Bitmap loadBitmap(ImageBuffer jpeg_image, boolean mutable, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmap");
             Log.d(TAG, "mutable?: " + mutable);
@@ -1090,51 +1457,119 @@ public class ImageSaver extends Thread {
             // setting is ignored in Android 5 onwards
             options.inPurgeable = true;
         }
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        Bitmap bitmap = decodeReusingBitmap(bitmapPool, jpeg_image, options, inSampleSize);
         if( bitmap == null ) {
             Log.e(TAG, "failed to decode bitmap");
         }
         return bitmap;
     }
 
+    /** Decodes a jpeg, decoding into a free bitmap from the pool (with options.inBitmap) if one of
+     *  the right size is available. The returned bitmap should be passed to pool.release() rather
+     *  than being recycled.
+     *  YUV images are converted directly into a bitmap from the pool, see decodeYuv().
+     */
+    private static Bitmap decodeReusingBitmap(BitmapPool pool, ImageBuffer jpeg_image, BitmapFactory.Options options, int inSampleSize) {
+        if( jpeg_image.isYuv() ) {
+            return decodeYuv(pool, jpeg_image, inSampleSize);
+        }
+        // we only reuse for full size decodes, as inBitmap requires an exact size match before
+        // Android 4.4; inPurgeable (set before Android 5) also can't be used with inBitmap
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && inSampleSize == 1 ) {
+            BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+            bounds_options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg_image.getArray(), 0, jpeg_image.getLength(), bounds_options);
+            if( bounds_options.outWidth > 0 && bounds_options.outHeight > 0 ) {
+                options.inBitmap = pool.getFreeBitmap(bounds_options.outWidth, bounds_options.outHeight, Bitmap.Config.ARGB_8888);
+            }
+            if( options.inBitmap != null ) {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = BitmapFactory.decodeByteArray(jpeg_image.getArray(), 0, jpeg_image.getLength(), options);
+                }
+                catch(IllegalArgumentException e) {
+                    Log.e(TAG, "failed to decode into pooled bitmap");
+                    e.printStackTrace();
+                }
+                if( bitmap != null ) {
+                    return bitmap;
+                }
+                // fall back to decoding into a new bitmap
+                pool.release(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(jpeg_image.getArray(), 0, jpeg_image.getLength(), options);
+    }
+
+    /** Converts a YUV image to a mutable bitmap obtained from the pool. The conversion is done a
+     *  strip at a time, so only a small int buffer is needed. As for decoding JPEGs, the bitmap
+     *  isn't rotated for the image's orientation.
+     * @param sample_size The image is downscaled by this factor.
+     */
+    private static Bitmap decodeYuv(BitmapPool pool, ImageBuffer yuv_image, int sample_size) {
+        final int width = yuv_image.getWidth()/sample_size;
+        final int height = yuv_image.getHeight()/sample_size;
+        if( width <= 0 || height <= 0 ) {
+            return null;
+        }
+        Bitmap bitmap = pool.obtainBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final int strip_height = Math.min(height, yuv_strip_height_c);
+        int [] pixels = pool.obtainIntBuffer(width*strip_height);
+        try {
+            for(int y=0;y<height;y+=strip_height) {
+                int n_rows = Math.min(strip_height, height-y);
+                YuvConverter.nv21ToArgb(yuv_image.getArray(), yuv_image.getWidth(), yuv_image.getHeight(), y, y+n_rows, sample_size, pixels);
+                bitmap.setPixels(pixels, 0, width, 0, y, width, n_rows);
+            }
+        }
+        finally {
+            pool.release(pixels);
+        }
+        return bitmap;
+    }
+
     /** Helper class for loadBitmaps().
      */
     private static class LoadBitmapThread extends Thread {
         Bitmap bitmap;
+        final BitmapPool pool;
         final BitmapFactory.Options options;
-        final byte [] jpeg;
-        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
+        final ImageBuffer jpeg;
+        final int inSampleSize;
+        LoadBitmapThread(BitmapPool pool, BitmapFactory.Options options, ImageBuffer jpeg, int inSampleSize) {
             super("LoadBitmapThread");
+            this.pool = pool;
             this.options = options;
             this.jpeg = jpeg;
+            this.inSampleSize = inSampleSize;
         }
 
         public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            this.bitmap = decodeReusingBitmap(pool, jpeg, options, inSampleSize);
         }
     }
 
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
      */
-    private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
+    private List<Bitmap> loadBitmaps(List<ImageBuffer> jpeg_images, int mutable_id, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmaps");
             Log.d(TAG, "mutable_id: " + mutable_id);
         }
-        BitmapFactory.Options mutable_options = new BitmapFactory.Options();
-        mutable_options.inMutable = true; // bitmap that needs to be writable
-        setBitmapOptionsSampleSize(mutable_options, inSampleSize);
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inMutable = false; // later bitmaps don't need to be writable
-        setBitmapOptionsSampleSize(options, inSampleSize);
-        if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-            // setting is ignored in Android 5 onwards
-            mutable_options.inPurgeable = true;
-            options.inPurgeable = true;
-        }
         LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
         for(int i=0;i<jpeg_images.size();i++) {
-            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
+            // each thread needs its own options, as options.inBitmap may be set for the thread's bitmap
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            // only the bitmap with index mutable_id needs to be writable
+            // (note that bitmaps decoded into a pooled bitmap are always mutable)
+            options.inMutable = i==mutable_id;
+            setBitmapOptionsSampleSize(options, inSampleSize);
+            if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+                // setting is ignored in Android 5 onwards
+                options.inPurgeable = true;
+            }
+            threads[i] = new LoadBitmapThread(bitmapPool, options, jpeg_images.get(i), inSampleSize);
         }
         // start threads
         if( MyDebug.LOG )
@@ -1179,7 +1614,7 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "cleanup from failure");
             for(int i=0;i<jpeg_images.size();i++) {
                 if( threads[i].bitmap != null ) {
-                    threads[i].bitmap.recycle();
+                    bitmapPool.release(threads[i].bitmap);
                     threads[i].bitmap = null;
                 }
             }
@@ -1191,6 +1626,225 @@ public class ImageSaver extends Thread {
         return bitmaps;
     }
 
+    /** Whether to average the images of a noise reduction request with StreamingAvgProcessor,
+     *  rather than HDRProcessor.processAvg(). The streaming version is slower, so we only use it
+     *  if there isn't enough memory to process the images in full, but there is enough for
+     *  StreamingAvgProcessor, and for the final brighten (which still works on the full image).
+     */
+    private boolean useStreamingAvg(Request request, int inSampleSize) {
+        if( request.jpeg_images.get(0).isYuv() ) {
+            // processStreamingAvg() decodes regions of JPEGs; YUV images are already uncompressed,
+            // and cost less memory than the bitmaps they're converted to
+            return false;
+        }
+        if( test_streaming_avg ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "test_streaming_avg");
+            return true;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        ImageBuffer jpeg = request.jpeg_images.get(0);
+        BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), options);
+        if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+            return false;
+        }
+        int width = options.outWidth/inSampleSize;
+        int height = options.outHeight/inSampleSize;
+        long cost = computeProcessingCost(computeWorkingBitmaps(Request.ProcessType.AVERAGE, request.jpeg_images.size(), true), width, height);
+        long streaming_cost = StreamingAvgProcessor.computeMemoryCost(width, height);
+        long brighten_cost = HDRProcessor.computeStreamingAvgBrightenMemoryCost(width, height);
+        long system_headroom = getSystemHeadroom();
+        long heap_headroom = getHeapHeadroom();
+        long pool_bytes = bitmapPool.getFreeBytes();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "useStreamingAvg");
+            Log.d(TAG, "cost: " + cost);
+            Log.d(TAG, "streaming_cost: " + streaming_cost);
+            Log.d(TAG, "brighten_cost: " + brighten_cost);
+            Log.d(TAG, "system_headroom: " + system_headroom);
+            Log.d(TAG, "heap_headroom: " + heap_headroom);
+            Log.d(TAG, "pool_bytes: " + pool_bytes);
+        }
+        if( cost > system_headroom && cost <= system_headroom + pool_bytes ) {
+            // there's only enough memory if we give up the free buffers kept by bitmapPool
+            if( MyDebug.LOG )
+                Log.d(TAG, "clear bitmap pool to make room for processing");
+            bitmapPool.clear();
+            return false;
+        }
+        // the averaged image is on the Java heap, but the allocations and bitmap for brightening
+        // are not
+        return cost > system_headroom && streaming_cost < heap_headroom && brighten_cost <= system_headroom;
+    }
+
+    /** Decodes the rows [row_start, row_stop) of an image (in the coordinates of the image scaled by
+     *  inSampleSize) to pixels.
+     * @param width The width of the image scaled by inSampleSize.
+     */
+    private static void decodeRows(BitmapRegionDecoder decoder, int inSampleSize, int width, int row_start, int row_stop, int [] pixels) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        Rect rect = new Rect(0, row_start*inSampleSize, decoder.getWidth(), Math.min(row_stop*inSampleSize, decoder.getHeight()));
+        Bitmap bitmap = decoder.decodeRegion(rect, options);
+        if( bitmap == null ) {
+            throw new IOException("failed to decode region");
+        }
+        int n_rows = row_stop - row_start;
+        int bitmap_width = Math.min(bitmap.getWidth(), width);
+        int bitmap_rows = Math.min(bitmap.getHeight(), n_rows);
+        bitmap.getPixels(pixels, 0, width, 0, 0, bitmap_width, bitmap_rows);
+        bitmap.recycle();
+        // in case the decoded region was smaller than expected due to rounding, replicate the edges
+        for(int y=0;y<bitmap_rows;y++) {
+            for(int x=bitmap_width;x<width;x++) {
+                pixels[y*width+x] = pixels[y*width+bitmap_width-1];
+            }
+        }
+        for(int y=bitmap_rows;y<n_rows;y++) {
+            System.arraycopy(pixels, (bitmap_rows-1)*width, pixels, y*width, width);
+        }
+    }
+
+    /** Decodes the centre of an image (half the width and height), scaled down by sample_size, for
+     *  use with HDRProcessor.alignAvgBitmaps().
+     */
+    private static Bitmap decodeAlignBitmap(BitmapRegionDecoder decoder, int sample_size) throws IOException {
+        int align_width = decoder.getWidth()/2;
+        int align_height = decoder.getHeight()/2;
+        int align_x = (decoder.getWidth() - align_width)/2;
+        int align_y = (decoder.getHeight() - align_height)/2;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample_size;
+        Bitmap bitmap = decoder.decodeRegion(new Rect(align_x, align_y, align_x + align_width, align_y + align_height), options);
+        if( bitmap == null ) {
+            throw new IOException("failed to decode alignment region");
+        }
+        return bitmap;
+    }
+
+    /** Averages the images of a noise reduction request with StreamingAvgProcessor, decoding each
+     *  image a strip at a time. The reference image is chosen as the sharper of the first two images.
+     * @return The resultant bitmap, or null if an image couldn't be decoded.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap processStreamingAvg(Request request, int inSampleSize) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processStreamingAvg");
+        long time_s = System.currentTimeMillis();
+        final int n_images = request.jpeg_images.size();
+        final int scale_align_size = hdrProcessor.getAvgScaleAlignSize(request.iso, request.exposure_time, request.zoom_factor);
+        BitmapRegionDecoder decoder = null;
+        Bitmap ref_align = null;
+        Bitmap new_align = null;
+        try {
+            // choose the sharper of the first two images as the reference
+            int ref_index = 0;
+            {
+                BitmapRegionDecoder decoder0 = BitmapRegionDecoder.newInstance(request.jpeg_images.get(0).getArray(), 0, request.jpeg_images.get(0).getLength(), false);
+                ref_align = decodeAlignBitmap(decoder0, inSampleSize*scale_align_size);
+                decoder0.recycle();
+                BitmapRegionDecoder decoder1 = BitmapRegionDecoder.newInstance(request.jpeg_images.get(1).getArray(), 0, request.jpeg_images.get(1).getLength(), false);
+                new_align = decodeAlignBitmap(decoder1, inSampleSize*scale_align_size);
+                decoder1.recycle();
+                float sharpness0 = hdrProcessor.computeSharpness(ref_align);
+                float sharpness1 = hdrProcessor.computeSharpness(new_align);
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "sharpness0: " + sharpness0);
+                    Log.d(TAG, "sharpness1: " + sharpness1);
+                }
+                if( sharpness1 > sharpness0 ) {
+                    ref_index = 1;
+                    Bitmap temp = ref_align;
+                    ref_align = new_align;
+                    new_align = temp;
+                }
+                new_align.recycle();
+                new_align = null;
+                hdrProcessor.sharp_index = ref_index;
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "ref_index: " + ref_index);
+                Log.d(TAG, "### time after choosing reference: " + (System.currentTimeMillis() - time_s));
+            }
+
+            ImageBuffer ref_jpeg = request.jpeg_images.get(ref_index);
+            decoder = BitmapRegionDecoder.newInstance(ref_jpeg.getArray(), 0, ref_jpeg.getLength(), false);
+            final int width = decoder.getWidth()/inSampleSize;
+            final int height = decoder.getHeight()/inSampleSize;
+            StreamingAvgProcessor streaming_avg = new StreamingAvgProcessor(width, height, StreamingAvgProcessor.default_strip_height_c);
+            int [] pixels = new int[width*streaming_avg.getMaxNewRows()];
+            for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+                int y = streaming_avg.getStripY(strip);
+                decodeRows(decoder, inSampleSize, width, y, y + streaming_avg.getStripRows(strip), pixels);
+                streaming_avg.setReferenceStrip(strip, pixels);
+            }
+            decoder.recycle();
+            decoder = null;
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after reference image: " + (System.currentTimeMillis() - time_s));
+
+            int [] offsets_x = new int[2];
+            int [] offsets_y = new int[2];
+            float wiener_cutoff_factor = HDRProcessor.computeAvgWienerCutoffFactor(request.iso);
+            float avg_factor = 1.0f;
+            for(int i=0;i<n_images;i++) {
+                if( i == ref_index )
+                    continue;
+                ImageBuffer jpeg = request.jpeg_images.get(i);
+                decoder = BitmapRegionDecoder.newInstance(jpeg.getArray(), 0, jpeg.getLength(), false);
+                if( decoder.getWidth()/inSampleSize != width || decoder.getHeight()/inSampleSize != height ) {
+                    Log.e(TAG, "images not of same resolution");
+                    return null;
+                }
+                new_align = decodeAlignBitmap(decoder, inSampleSize*scale_align_size);
+                hdrProcessor.alignAvgBitmaps(offsets_x, offsets_y, ref_align, new_align, scale_align_size, width, height, request.iso, request.exposure_time);
+                new_align.recycle();
+                new_align = null;
+
+                float wiener_C = HDRProcessor.computeAvgWienerC(request.iso, avg_factor);
+                float wiener_C_cutoff = wiener_cutoff_factor * wiener_C;
+                for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+                    int row_start = streaming_avg.getNewRowStart(strip, offsets_y[1]);
+                    int row_stop = streaming_avg.getNewRowStop(strip, offsets_y[1]);
+                    if( row_stop <= row_start ) {
+                        // no overlap with the new image
+                        continue;
+                    }
+                    decodeRows(decoder, inSampleSize, width, row_start, row_stop, pixels);
+                    streaming_avg.foldStrip(strip, pixels, offsets_x[1], offsets_y[1], avg_factor, wiener_C, wiener_C_cutoff);
+                }
+                decoder.recycle();
+                decoder = null;
+                avg_factor += 1.0f;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### time after image " + i + ": " + (System.currentTimeMillis() - time_s));
+            }
+            ref_align.recycle();
+            ref_align = null;
+            //noinspection UnusedAssignment
+            pixels = null;
+
+            Bitmap nr_bitmap = hdrProcessor.avgBrighten(streaming_avg, request.iso, request.exposure_time);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time for processStreamingAvg: " + (System.currentTimeMillis() - time_s));
+            return nr_bitmap;
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to decode image for streaming average");
+            e.printStackTrace();
+            return null;
+        }
+        finally {
+            if( decoder != null )
+                decoder.recycle();
+            if( ref_align != null )
+                ref_align.recycle();
+            if( new_align != null )
+                new_align.recycle();
+        }
+    }
+
     /** Chooses the hdr_alpha to use for contrast enhancement in the HDR algorithm, based on the user
      *  preferences and scene details.
      */
@@ -1392,6 +2046,19 @@ public class ImageSaver extends Thread {
         return true;
     }
 
+    /** As saveImageNow(), but then releases the request's images. The ImageSaver takes ownership
+     *  of the images passed to saveImageJpeg() and addImageBatch(), so this should be used rather
+     *  than saveImageNow() once a request is complete.
+     */
+    private boolean saveImageNowAndRelease(final Request request) {
+        try {
+            return saveImageNow(request);
+        }
+        finally {
+            ImageBuffer.releaseAll(request.jpeg_images);
+        }
+    }
+
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
      */
     private boolean saveImageNow(final Request request) {
@@ -1417,13 +2084,13 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "average");
 
             saveBaseImages(request, "_");
-            main_activity.savingImage(true);
+            savingImage(true);
 
             /*List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, 0);
             if (bitmaps == null) {
                 if (MyDebug.LOG)
                     Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
+                savingImage(false);
                 return false;
             }*/
             /*Bitmap nr_bitmap = loadBitmap(request.jpeg_images.get(0), true);
@@ -1449,8 +2116,19 @@ public class ImageSaver extends Thread {
                 Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
                 throw new RuntimeException();
             }*/
-            Bitmap nr_bitmap;
+            Bitmap nr_bitmap = null;
             if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
+                if( useStreamingAvg(request, inSampleSize) ) {
+                    // if this fails, we fall back to processing the images in full
+                    nr_bitmap = processStreamingAvg(request, inSampleSize);
+                }
+            }
+            if( nr_bitmap != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "averaged with StreamingAvgProcessor");
+            }
+            else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 try {
                     long time_s = System.currentTimeMillis();
                     // initialise allocation from first two bitmaps
@@ -1467,7 +2145,7 @@ public class ImageSaver extends Thread {
                     List<Bitmap> bitmaps = null;
                     Bitmap bitmap0, bitmap1;
                     if( use_smp ) {
-                        /*List<byte []> sub_jpeg_list = new ArrayList<>();
+                        /*List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
                         sub_jpeg_list.add(request.jpeg_images.get(0));
                         sub_jpeg_list.add(request.jpeg_images.get(1));
                         bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
@@ -1479,7 +2157,7 @@ public class ImageSaver extends Thread {
                             Log.d(TAG, "n_remaining: " + n_remaining);
                             Log.d(TAG, "n_load: " + n_load);
                         }
-                        List<byte []> sub_jpeg_list = new ArrayList<>();
+                        List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
                         for(int j=0;j<n_load;j++) {
                             sub_jpeg_list.add(request.jpeg_images.get(j));
                         }
@@ -1532,7 +2210,7 @@ public class ImageSaver extends Thread {
                                     Log.d(TAG, "n_remaining: " + n_remaining);
                                     Log.d(TAG, "n_load: " + n_load);
                                 }
-                                List<byte []> sub_jpeg_list = new ArrayList<>();
+                                List<ImageBuffer> sub_jpeg_list = new ArrayList<>();
                                 for(int j=i;j<i+n_load;j++) {
                                     sub_jpeg_list.add(request.jpeg_images.get(j));
                                 }
@@ -1586,14 +2264,14 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "nr_bitmap: " + nr_bitmap + " is mutable? " + nr_bitmap.isMutable());
             System.gc();
-            main_activity.savingImage(false);
+            savingImage(false);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "save NR image");
             success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, nr_suffix, true, true, true, false);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for nr image");
-            nr_bitmap.recycle();
+            // n.b., saveSingleImageNow() releases nr_bitmap to bitmapPool, so we mustn't recycle it here
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.HDR ) {
@@ -1620,7 +2298,7 @@ public class ImageSaver extends Thread {
             // note, even if we failed saving some of the expo images, still try to save the HDR image
             if( MyDebug.LOG )
                 Log.d(TAG, "create HDR image");
-            main_activity.savingImage(true);
+            savingImage(true);
 
             // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
             // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
@@ -1632,7 +2310,7 @@ public class ImageSaver extends Thread {
             if( bitmaps == null ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
+                savingImage(false);
                 return false;
             }
             if( MyDebug.LOG ) {
@@ -1659,7 +2337,7 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "UNEQUAL_SIZES");
                     bitmaps.clear();
                     System.gc();
-                    main_activity.savingImage(false);
+                    savingImage(false);
                     return false;
                 }
                 else {
@@ -1677,7 +2355,7 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
             bitmaps.clear();
             System.gc();
-            main_activity.savingImage(false);
+            savingImage(false);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "save HDR image");
@@ -1691,7 +2369,7 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG ) {
                 Log.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
             }
-            hdr_bitmap.recycle();
+            // n.b., saveSingleImageNow() releases hdr_bitmap to bitmapPool, so we mustn't recycle it here
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.PANORAMA ) {
@@ -1782,7 +2460,7 @@ public class ImageSaver extends Thread {
 
             saveBaseImages(request, "_");
 
-            main_activity.savingImage(true);
+            savingImage(true);
 
             long time_s = System.currentTimeMillis();
 
@@ -1794,31 +2472,40 @@ public class ImageSaver extends Thread {
                 Collections.reverse(request.gyro_rotation_matrix);
             }
 
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
-            if( bitmaps == null ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-            }
+            // rather than decompressing all the images up front, they're decompressed on demand, so that
+            // only a few images need to be in memory at any time
+            // n.b., the processor makes two passes over the images, so each image is decoded (and
+            // rotated) twice - this costs about twice the decode time of holding all the bitmaps, but
+            // holding them would need memory for every input image
+            final List<ImageBuffer> jpeg_images = request.jpeg_images;
+            // all images have the same orientation, so only read the Exif tags once
+            final int exif_rotation = getExifRotation(jpeg_images.get(0));
+            PanoramaProcessor.BitmapProvider bitmap_provider = new PanoramaProcessor.BitmapProvider() {
+                @Override
+                public int getBitmapCount() {
+                    return jpeg_images.size();
+                }
+
+                @Override
+                public Bitmap getBitmap(int index) {
+                    Bitmap bitmap = loadBitmap(jpeg_images.get(index), false, 1);
+                    if( bitmap != null ) {
+                        // rotate the bitmap if necessary for exif tags
+                        bitmap = rotateBitmap(bitmap, exif_rotation);
+                    }
+                    return bitmap;
+                }
 
-            // rotate the bitmaps if necessary for exif tags
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
-                bitmaps.set(i, bitmap);
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
-            }
+                @Override
+                public void releaseBitmap(Bitmap bitmap) {
+                    bitmapPool.release(bitmap);
+                }
+            };
 
             Bitmap panorama;
             try {
                 if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    panorama = panoramaProcessor.panorama(bitmap_provider, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
                 }
                 else {
                     Log.e(TAG, "shouldn't have offered panorama as an option if not on Android 5");
@@ -1828,12 +2515,12 @@ public class ImageSaver extends Thread {
             catch(PanoramaProcessorException e) {
                 Log.e(TAG, "PanoramaProcessorException from panorama: " + e.getCode());
                 e.printStackTrace();
-                if( e.getCode() == PanoramaProcessorException.UNEQUAL_SIZES || e.getCode() == PanoramaProcessorException.FAILED_TO_CROP ) {
+                if( e.getCode() == PanoramaProcessorException.UNEQUAL_SIZES || e.getCode() == PanoramaProcessorException.FAILED_TO_CROP ||
+                        e.getCode() == PanoramaProcessorException.FAILED_TO_LOAD ) {
                     main_activity.getPreview().showToast(null, R.string.failed_to_process_panorama);
                     Log.e(TAG, "panorama failed: " + e.getCode());
-                    bitmaps.clear();
                     System.gc();
-                    main_activity.savingImage(false);
+                    savingImage(false);
                     return false;
                 }
                 else {
@@ -1846,19 +2533,23 @@ public class ImageSaver extends Thread {
             }
             if( MyDebug.LOG )
                 Log.d(TAG, "panorama: " + panorama);
-            bitmaps.clear();
             System.gc();
 
-            main_activity.savingImage(false);
+            savingImage(false);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "save panorama image");
             success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, pano_suffix, true, true, true, true);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for panorama image");
-            panorama.recycle();
+            // n.b., saveSingleImageNow() releases panorama to bitmapPool, so we mustn't recycle it here
             System.gc();
         }
+        else if( request.process_type == Request.ProcessType.BEST ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "best");
+            success = saveSharpestImages(request);
+        }
         else {
             // see note above how we used to use "_EXP" for the suffix for multiple images
             //String suffix = "_EXP";
@@ -1866,9 +2557,129 @@ public class ImageSaver extends Thread {
             success = saveImages(request, suffix, false, true, true);
         }
 
+        if( MyDebug.LOG )
+            Log.d(TAG, "bitmap pool: " + bitmapPool.getStatsString());
+        return success;
+    }
+
+    /** Saves the request.keep_best_n sharpest images in request.jpeg_images, for process_type
+     *  BEST. Images are saved with the same filename suffixes as if all images had been saved, so
+     *  the names show where in the burst each image was taken.
+     * @return Whether all the chosen images were successfully saved.
+     */
+    private boolean saveSharpestImages(Request request) {
+        long time_s = System.currentTimeMillis();
+        int n_images = request.jpeg_images.size();
+        float [] scores = new float[n_images];
+        for(int i=0;i<n_images;i++) {
+            scores[i] = getSharpness(request, i);
+            if( MyDebug.LOG )
+                Log.d(TAG, "sharpness " + i + ": " + scores[i]);
+        }
+        int [] indices = SharpnessScorer.selectSharpest(scores, request.keep_best_n);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "keep " + indices.length + " of " + n_images + " images");
+            Log.d(TAG, "### time after scoring: " + (System.currentTimeMillis() - time_s));
+        }
+        int sharpest = indices[0];
+        for(int index : indices) {
+            if( scores[index] > scores[sharpest] )
+                sharpest = index;
+        }
+
+        boolean success = true;
+        for(int index : indices) {
+            // note, even if one image fails, we still try saving the other images
+            String filename_suffix = "_" + (index + request.suffix_offset);
+            if( !saveSingleImageNow(request, request.jpeg_images.get(index), null, filename_suffix, true, index == sharpest, false, false) ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "saveSingleImageNow failed for image: " + index);
+                success = false;
+            }
+        }
         return success;
     }
 
+    /** Returns the sharpness of request.jpeg_images.get(index), waiting for the score computed in
+     *  the background if available.
+     */
+    private float getSharpness(Request request, int index) {
+        if( request.sharpness_scores != null && index < request.sharpness_scores.size() ) {
+            try {
+                return request.sharpness_scores.get(index).get();
+            }
+            catch(ExecutionException | InterruptedException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to get sharpness in background: " + e.getMessage());
+                e.printStackTrace();
+                if( e instanceof InterruptedException )
+                    Thread.currentThread().interrupt();
+            }
+        }
+        return computeSharpness(request.jpeg_images.get(index));
+    }
+
+    /** Computes the sharpness of a JPEG image in the background, on the pool shared with
+     *  JavaHDRProcessor, so that the images of a burst are scored in parallel.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Future<Float> submitSharpness(final ImageBuffer image) {
+        // retain, as the request may be saved (or flushed) before the score is computed
+        image.retain();
+        return JavaHDRProcessor.getSharedPool().submit(new Callable<Float>() {
+            @Override
+            public Float call() {
+                try {
+                    return computeSharpness(image);
+                }
+                finally {
+                    image.release();
+                }
+            }
+        });
+    }
+
+    /** Computes the sharpness of a JPEG image, see SharpnessScorer. The image is decoded at a
+     *  reduced size with inSampleSize, which for JPEGs is done by the decoder (so is much faster
+     *  than decoding at full size).
+     * @return The sharpness, or -1 if the image couldn't be decoded.
+     */
+    private static float computeSharpness(ImageBuffer image) {
+        if( image.isYuv() ) {
+            int sample_size = 1;
+            while( Math.max(image.getWidth(), image.getHeight())/(2*sample_size) >= sharpness_size_c ) {
+                sample_size *= 2;
+            }
+            int width = image.getWidth()/sample_size;
+            int height = image.getHeight()/sample_size;
+            int [] pixels = new int[width*height];
+            YuvConverter.nv21ToArgb(image.getArray(), image.getWidth(), image.getHeight(), 0, height, sample_size, pixels);
+            return SharpnessScorer.computeSharpness(pixels, width, height);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image.getArray(), 0, image.getLength(), options);
+        int max_dim = Math.max(options.outWidth, options.outHeight);
+        int sample_size = 1;
+        while( max_dim/(2*sample_size) >= sharpness_size_c ) {
+            sample_size *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample_size;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image.getArray(), 0, image.getLength(), options);
+        if( bitmap == null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to decode image for sharpness");
+            return -1.0f;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int [] pixels = new int[width*height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        return SharpnessScorer.computeSharpness(pixels, width, height);
+    }
+
     /** Saves all the JPEG images in request.jpeg_images.
      * @param request The request to save.
      * @param suffix If there is more than one image and first_only is false, the i-th image
@@ -1884,7 +2695,7 @@ public class ImageSaver extends Thread {
         int mid_image = request.jpeg_images.size()/2;
         for(int i=0;i<request.jpeg_images.size();i++) {
             // note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
-            byte [] image = request.jpeg_images.get(i);
+            ImageBuffer image = request.jpeg_images.get(i);
             boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
             String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
             if( request.process_type == Request.ProcessType.X_NIGHT ) {
@@ -1996,6 +2807,120 @@ public class ImageSaver extends Thread {
         return ok;
     }
 
+    /** Returns the level angle for auto-stabilise, in the range -90 to 90 degrees.
+     */
+    private static double normaliseLevelAngle(double level_angle) {
+        while( level_angle < -90 )
+            level_angle += 180;
+        while( level_angle > 90 )
+            level_angle -= 180;
+        return level_angle;
+    }
+
+    /** Returns the scale that auto-stabilise applies, so that the overall image size isn't
+     *  increased.
+     * @param width  The width of the image before rotating.
+     * @param height The height of the image before rotating.
+     * @param w0     The width of the bounding box of the rotated image.
+     * @param h0     The height of the bounding box of the rotated image.
+     */
+    private float getAutoStabiliseScale(int width, int height, double w0, double h0) {
+        float orig_size = width*height;
+        float rotated_size = (float)(w0*h0);
+        float scale = (float)Math.sqrt(orig_size/rotated_size);
+        if( main_activity.test_low_memory ) {
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "TESTING LOW MEMORY");
+                Log.d(TAG, "scale was: " + scale);
+            }
+            // test 20MP on Galaxy Nexus or Nexus 7; 29MP on Nexus 6 and 36MP OnePlus 3T
+            if( width*height >= 7500 )
+                scale *= 1.5f;
+            else
+                scale *= 2.0f;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "scale = sqrt " + orig_size + " / " + rotated_size + " = " + scale);
+        return scale;
+    }
+
+    /** Adds the rotation, scale and crop of autoStabilise() to the transform.
+     */
+    private void addAutoStabiliseTransform(PostProcessTransform transform, double level_angle, boolean is_front_facing) {
+        level_angle = normaliseLevelAngle(level_angle);
+        double level_angle_rad_abs = Math.abs( Math.toRadians(level_angle) );
+        int w1 = transform.getWidth(), h1 = transform.getHeight();
+        double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
+        double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
+        float scale = getAutoStabiliseScale(w1, h1, w0, h0);
+        w0 *= scale;
+        h0 *= scale;
+        w1 *= scale;
+        h1 *= scale;
+        transform.scaleRotate(scale, is_front_facing ? (float)-level_angle : (float)level_angle);
+
+        int [] crop = new int [2];
+        if( autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, transform.getWidth(), transform.getHeight()) ) {
+            int w2 = crop[0];
+            int h2 = crop[1];
+            transform.crop((transform.getWidth()-w2)/2, (transform.getHeight()-h2)/2, w2, h2);
+        }
+    }
+
+    /** Applies the rotation for the Exif orientation (if rotate_for_exif is true), auto-stabilise
+     *  and mirroring as requested, in a single resample, as an alternative to calling
+     *  rotateForExif(), autoStabilise() and mirrorImage() in turn, which resample the image at each
+     *  step.
+     * @param data The jpeg data.
+     * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data. If
+     *               non-null, it is released.
+     * @return The transformed bitmap, which is mutable, or null if the jpeg couldn't be decoded.
+     */
+    private Bitmap fusedTransformBitmap(final Request request, ImageBuffer data, Bitmap bitmap, boolean rotate_for_exif) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "fusedTransformBitmap");
+        if( bitmap == null ) {
+            bitmap = loadBitmap(data, false, 1);
+            if( bitmap == null ) {
+                return null;
+            }
+        }
+        PostProcessTransform transform = new PostProcessTransform(bitmap.getWidth(), bitmap.getHeight());
+        if( rotate_for_exif ) {
+            int exif_orientation = getExifRotation(data);
+            if( exif_orientation != 0 ) {
+                transform.rotate(exif_orientation);
+            }
+        }
+        if( request.do_auto_stabilise ) {
+            addAutoStabiliseTransform(transform, request.level_angle, request.is_front_facing);
+        }
+        if( request.mirror ) {
+            transform.mirror();
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "transform " + bitmap.getWidth() + " x " + bitmap.getHeight() + " to " + transform.getWidth() + " x " + transform.getHeight());
+
+        Bitmap new_bitmap = bitmapPool.obtainBitmap(transform.getWidth(), transform.getHeight(), Bitmap.Config.ARGB_8888);
+        float [] values = new float[9];
+        transform.getValues(values);
+        Matrix matrix = new Matrix();
+        matrix.setValues(values);
+        // same settings as Bitmap.createBitmap() uses when applying a matrix
+        Paint paint = new Paint();
+        paint.setFilterBitmap(true);
+        if( !transform.preservesAxes() ) {
+            paint.setAntiAlias(true);
+        }
+        else {
+            new_bitmap.setHasAlpha(bitmap.hasAlpha());
+        }
+        Canvas canvas = new Canvas(new_bitmap);
+        canvas.drawBitmap(bitmap, matrix, paint);
+        bitmapPool.release(bitmap);
+        return new_bitmap;
+    }
+
     /** Performs the auto-stabilise algorithm on the image.
      * @param data The jpeg data.
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
@@ -2003,16 +2928,13 @@ public class ImageSaver extends Thread {
      * @param is_front_facing Whether the camera is front-facing.
      * @return A bitmap representing the auto-stabilised jpeg.
      */
-    private Bitmap autoStabilise(byte [] data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
+    private Bitmap autoStabilise(ImageBuffer data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "autoStabilise");
             Log.d(TAG, "level_angle: " + level_angle);
             Log.d(TAG, "is_front_facing: " + is_front_facing);
         }
-        while( level_angle < -90 )
-            level_angle += 180;
-        while( level_angle > 90 )
-            level_angle -= 180;
+        level_angle = normaliseLevelAngle(level_angle);
         if( MyDebug.LOG )
             Log.d(TAG, "auto stabilising... angle: " + level_angle);
         if( bitmap == null ) {
@@ -2045,25 +2967,10 @@ public class ImageSaver extends Thread {
             int w1 = width, h1 = height;
             double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
             double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
-            // apply a scale so that the overall image size isn't increased
-            float orig_size = w1*h1;
-            float rotated_size = (float)(w0*h0);
-            float scale = (float)Math.sqrt(orig_size/rotated_size);
-            if( main_activity.test_low_memory ) {
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "TESTING LOW MEMORY");
-                    Log.d(TAG, "scale was: " + scale);
-                }
-                // test 20MP on Galaxy Nexus or Nexus 7; 29MP on Nexus 6 and 36MP OnePlus 3T
-                if( width*height >= 7500 )
-                    scale *= 1.5f;
-                else
-                    scale *= 2.0f;
-            }
+            float scale = getAutoStabiliseScale(w1, h1, w0, h0);
             if( MyDebug.LOG ) {
                 Log.d(TAG, "w0 = " + w0 + " , h0 = " + h0);
                 Log.d(TAG, "w1 = " + w1 + " , h1 = " + h1);
-                Log.d(TAG, "scale = sqrt " + orig_size + " / " + rotated_size + " = " + scale);
             }
             matrix.postScale(scale, scale);
             w0 *= scale;
@@ -2083,7 +2990,7 @@ public class ImageSaver extends Thread {
             Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
             // careful, as new_bitmap is sometimes not a copy!
             if( new_bitmap != bitmap ) {
-                bitmap.recycle();
+                bitmapPool.release(bitmap);
                 bitmap = new_bitmap;
             }
             System.gc();
@@ -2103,7 +3010,7 @@ public class ImageSaver extends Thread {
                 }
                 new_bitmap = Bitmap.createBitmap(bitmap, x0, y0, w2, h2);
                 if( new_bitmap != bitmap ) {
-                    bitmap.recycle();
+                    bitmapPool.release(bitmap);
                     bitmap = new_bitmap;
                 }
                 System.gc();
@@ -2128,7 +3035,7 @@ public class ImageSaver extends Thread {
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
      * @return A bitmap representing the mirrored jpeg.
      */
-    private Bitmap mirrorImage(byte [] data, Bitmap bitmap) {
+    private Bitmap mirrorImage(ImageBuffer data, Bitmap bitmap) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "mirrorImage");
         }
@@ -2150,7 +3057,7 @@ public class ImageSaver extends Thread {
             Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
             // careful, as new_bitmap is sometimes not a copy!
             if( new_bitmap != bitmap ) {
-                bitmap.recycle();
+                bitmapPool.release(bitmap);
                 bitmap = new_bitmap;
             }
             if( MyDebug.LOG )
@@ -2165,7 +3072,7 @@ public class ImageSaver extends Thread {
      * @return A bitmap representing the stamped jpeg. Will be null if the input bitmap is null and
      *         no photo stamp is applied.
      */
-    private Bitmap stampImage(final Request request, byte [] data, Bitmap bitmap) {
+    private Bitmap stampImage(final Request request, ImageBuffer data, Bitmap bitmap) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "stampImage");
         }
@@ -2208,6 +3115,9 @@ public class ImageSaver extends Thread {
                     Log.d(TAG, "bitmap size: " + width*height*4);
                 }
                 Canvas canvas = new Canvas(bitmap);
+                // n.b., local rather than a field, as stampImage() may be called from more than one stage at once
+                final Paint p = new Paint();
+                p.setAntiAlias(true);
                 p.setColor(Color.WHITE);
                 // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
                 // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
@@ -2411,28 +3321,44 @@ public class ImageSaver extends Thread {
 
     /** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
      */
-    private PostProcessBitmapResult postProcessBitmap(final Request request, byte [] data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
+    private PostProcessBitmapResult postProcessBitmap(final Request request, ImageBuffer data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "postProcessBitmap");
         long time_s = System.currentTimeMillis();
 
-        if( !ignore_exif_orientation ) {
-            if( bitmap != null ) {
-                // rotate the bitmap if necessary for exif tags
-                if( MyDebug.LOG )
-                    Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
-                bitmap = rotateForExif(bitmap, data);
+        boolean fused = false;
+        if( !test_sequential_post_processing && (request.do_auto_stabilise || request.mirror) ) {
+            // note that bitmaps we decode are always rotated for exif tags
+            Bitmap fused_bitmap = fusedTransformBitmap(request, data, bitmap, bitmap == null || !ignore_exif_orientation);
+            if( fused_bitmap != null ) {
+                bitmap = fused_bitmap;
+                fused = true;
+            }
+            // else failed to decode, so fall back to the individual steps, which report the failure
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "Save single image performance: time after fused transform: " + (System.currentTimeMillis() - time_s));
             }
         }
 
-        if( request.do_auto_stabilise ) {
-            bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing);
-        }
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
-        }
-        if( request.mirror ) {
-            bitmap = mirrorImage(data, bitmap);
+        if( !fused ) {
+            if( !ignore_exif_orientation ) {
+                if( bitmap != null ) {
+                    // rotate the bitmap if necessary for exif tags
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
+                    bitmap = rotateForExif(bitmap, data);
+                }
+            }
+
+            if( request.do_auto_stabilise ) {
+                bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing);
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
+            }
+            if( request.mirror ) {
+                bitmap = mirrorImage(data, bitmap);
+            }
         }
         if( request.image_format != Request.ImageFormat.STD && bitmap == null ) {
             if( MyDebug.LOG )
@@ -2477,7 +3403,7 @@ public class ImageSaver extends Thread {
      *                                  been rotated to account for Exif orientation tags in the data.
      */
     @SuppressLint("SimpleDateFormat")
-    private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+    private boolean saveSingleImageNow(final Request request, ImageBuffer data, Bitmap bitmap, String filename_suffix, final boolean update_thumbnail, final boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveSingleImageNow");
 
@@ -2500,7 +3426,7 @@ public class ImageSaver extends Thread {
         boolean raw_only = !ignore_raw_only && applicationInterface.isRawOnly();
         if( MyDebug.LOG )
             Log.d(TAG, "raw_only: " + raw_only);
-        StorageUtils storageUtils = main_activity.getStorageUtils();
+        final StorageUtils storageUtils = main_activity.getStorageUtils();
 
         String extension;
         switch( request.image_format ) {
@@ -2517,7 +3443,7 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "extension: " + extension);
 
-        main_activity.savingImage(true);
+        savingImage(true);
 
         // If using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
         // Otherwise, only picFile is non-null
@@ -2526,6 +3452,17 @@ public class ImageSaver extends Thread {
         boolean use_media_store = false;
         ContentValues contentValues = null; // used if using scoped storage
         try {
+            if( data.isYuv() && bitmap == null ) {
+                // the steps below that use the image data directly (saving without re-encoding,
+                // reading the Exif orientation, the thumbnail) require a JPEG, so convert now
+                if( MyDebug.LOG )
+                    Log.d(TAG, "convert yuv image to bitmap");
+                bitmap = loadBitmapWithRotation(data, true);
+                if( bitmap == null ) {
+                    throw new IOException();
+                }
+                ignore_exif_orientation = true;
+            }
             if( !raw_only ) {
                 PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
                 bitmap = postProcessBitmapResult.bitmap;
@@ -2658,13 +3595,44 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "saveUri: " + saveUri);
 
             if( picFile != null || saveUri != null ) {
+                // For JPEG format, where possible we set the Exif tags in memory before saving, so
+                // that the file is written in a single pass, rather than saving and then rewriting
+                // the file with ExifInterface.saveAttributes().
+                byte [] jpeg_data = null; // if non-null, the JPEG to save (compressed from bitmap, if non-null)
+                JpegExifSplicer exif_splicer = null; // if non-null, the JPEG to save with Exif tags already set
+                if( request.image_format == Request.ImageFormat.STD ) {
+                    if( bitmap != null ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "compress bitmap to memory, quality " + request.image_quality);
+                        ByteArrayOutputStream compressed_stream = new ByteArrayOutputStream();
+                        bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, compressed_stream);
+                        jpeg_data = compressed_stream.toByteArray();
+                        // need to set EXIF data from the original data
+                        exif_splicer = createExifSplicer(request, data, ImageBuffer.wrap(jpeg_data));
+                    }
+                    else if( needUpdateExif(request) ) {
+                        exif_splicer = createExifSplicer(request, null, data);
+                    }
+                    if( MyDebug.LOG ) {
+                        Log.d(TAG, "Save single image performance: time after setting exif in memory: " + (System.currentTimeMillis() - time_s));
+                    }
+                }
+
                 OutputStream outputStream;
                 if( picFile != null )
                     outputStream = new FileOutputStream(picFile);
                 else
                     outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
                 try {
-                    if( bitmap != null ) {
+                    if( exif_splicer != null ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "write jpeg with exif, size " + exif_splicer.getOutputLength());
+                        exif_splicer.writeTo(outputStream);
+                    }
+                    else if( jpeg_data != null ) {
+                        outputStream.write(jpeg_data);
+                    }
+                    else if( bitmap != null ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "compress bitmap, quality " + request.image_quality);
                         Bitmap.CompressFormat compress_format;
@@ -2682,7 +3650,7 @@ public class ImageSaver extends Thread {
                         bitmap.compress(compress_format, request.image_quality, outputStream);
                     }
                     else {
-                        outputStream.write(data);
+                        data.writeTo(outputStream);
                     }
                 }
                 finally {
@@ -2698,13 +3666,18 @@ public class ImageSaver extends Thread {
                     success = true;
                 }
 
-                if( request.image_format == Request.ImageFormat.STD ) {
-                    // handle transferring/setting Exif tags (JPEG format only)
+                if( request.image_format == Request.ImageFormat.STD && exif_splicer == null ) {
+                    // handle transferring/setting Exif tags (JPEG format only), if we couldn't do so
+                    // before saving
                     if( bitmap != null ) {
                         // need to update EXIF data! (only supported for JPEG image formats)
                         if( MyDebug.LOG )
                             Log.d(TAG, "set Exif tags from data");
-                        if( picFile != null ) {
+                        if( data.isYuv() ) {
+                            // no Exif tags to transfer
+                            updateExif(request, picFile, saveUri);
+                        }
+                        else if( picFile != null ) {
                             setExifFromData(request, data, picFile);
                         }
                         else {
@@ -2738,18 +3711,24 @@ public class ImageSaver extends Thread {
                     }
                 }
 
-                if( update_thumbnail ) {
-                    // clear just in case we're unable to update this - don't want an out of date cached uri
-                    storageUtils.clearLastMediaScanned();
-                }
+                final boolean hasnoexifdatetime = request.remove_device_exif != Request.RemoveDeviceExif.OFF && request.remove_device_exif != Request.RemoveDeviceExif.KEEP_DATETIME;
+                final File picFile_f = picFile;
+                final Uri saveUri_f = saveUri;
 
-                boolean hasnoexifdatetime = request.remove_device_exif != Request.RemoveDeviceExif.OFF && request.remove_device_exif != Request.RemoveDeviceExif.KEEP_DATETIME;
+                publish(request, new Runnable() {
+                    public void run() {
+                        if( update_thumbnail ) {
+                            // clear just in case we're unable to update this - don't want an out of date cached uri
+                            storageUtils.clearLastMediaScanned();
+                        }
 
-                if( picFile != null && saveUri == null ) {
-                    // broadcast for SAF is done later, when we've actually written out the file
-                    storageUtils.broadcastFile(picFile, true, false, update_thumbnail, hasnoexifdatetime, null);
-                    main_activity.test_last_saved_image = picFile.getAbsolutePath();
-                }
+                        if( picFile_f != null && saveUri_f == null ) {
+                            // broadcast for SAF is done later, when we've actually written out the file
+                            storageUtils.broadcastFile(picFile_f, true, false, update_thumbnail, hasnoexifdatetime, null);
+                            main_activity.test_last_saved_image = picFile_f.getAbsolutePath();
+                        }
+                    }
+                });
 
                 if( request.image_capture_intent ) {
                     if( MyDebug.LOG )
@@ -2770,20 +3749,28 @@ public class ImageSaver extends Thread {
 
                         // no need to broadcast when using mediastore method
                         if( !request.image_capture_intent ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "announce mediastore uri");
-                            // in theory this is pointless, as announceUri no longer does anything on Android 7+,
-                            // and mediastore method is only used on Android 10+, but keep this just in case
-                            // announceUri does something in future
-                            storageUtils.announceUri(saveUri, true, false);
-                            if( update_thumbnail ) {
-                                // we also want to save the uri - we can use the media uri directly, rather than having to scan it
-                                storageUtils.setLastMediaScanned(saveUri, false, hasnoexifdatetime, saveUri);
-                            }
+                            publish(request, new Runnable() {
+                                public void run() {
+                                    if( MyDebug.LOG )
+                                        Log.d(TAG, "announce mediastore uri");
+                                    // in theory this is pointless, as announceUri no longer does anything on Android 7+,
+                                    // and mediastore method is only used on Android 10+, but keep this just in case
+                                    // announceUri does something in future
+                                    storageUtils.announceUri(saveUri_f, true, false);
+                                    if( update_thumbnail ) {
+                                        // we also want to save the uri - we can use the media uri directly, rather than having to scan it
+                                        storageUtils.setLastMediaScanned(saveUri_f, false, hasnoexifdatetime, saveUri_f);
+                                    }
+                                }
+                            });
                         }
                     }
                     else {
-                        broadcastSAFFile(saveUri, update_thumbnail, hasnoexifdatetime, request.image_capture_intent);
+                        publish(request, new Runnable() {
+                            public void run() {
+                                broadcastSAFFile(saveUri_f, update_thumbnail, hasnoexifdatetime, request.image_capture_intent);
+                            }
+                        });
                     }
 
                     main_activity.test_last_saved_imageuri = saveUri;
@@ -2811,17 +3798,23 @@ public class ImageSaver extends Thread {
             main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
         }
 
-        if( raw_only ) {
-            // no saved image to record
-        }
-        else if( success && saveUri == null ) {
-            applicationInterface.addLastImage(picFile, share_image);
-        }
-        else if( success && storageUtils.isUsingSAF() ){
-            applicationInterface.addLastImageSAF(saveUri, share_image);
-        }
-        else if( success && use_media_store ){
-            applicationInterface.addLastImageMediaStore(saveUri, share_image);
+        if( !raw_only && success ) {
+            final File picFile_f = picFile;
+            final Uri saveUri_f = saveUri;
+            final boolean use_media_store_f = use_media_store;
+            publish(request, new Runnable() {
+                public void run() {
+                    if( saveUri_f == null ) {
+                        applicationInterface.addLastImage(picFile_f, share_image);
+                    }
+                    else if( storageUtils.isUsingSAF() ){
+                        applicationInterface.addLastImageSAF(saveUri_f, share_image);
+                    }
+                    else if( use_media_store_f ){
+                        applicationInterface.addLastImageMediaStore(saveUri_f, share_image);
+                    }
+                }
+            });
         }
 
         // I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
@@ -2839,22 +3832,8 @@ public class ImageSaver extends Thread {
             }
             Bitmap thumbnail;
             if( bitmap == null ) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inMutable = false;
-                if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-                    // setting is ignored in Android 5 onwards
-                    options.inPurgeable = true;
-                }
-                options.inSampleSize = sample_size;
-                thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
-                    Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
-                }
-                // now get the rotation from the Exif data
-                if( MyDebug.LOG )
-                    Log.d(TAG, "rotate thumbnail for exif tags?");
-                thumbnail = rotateForExif(thumbnail, data);
+                // uses the Exif embedded thumbnail if large enough, and rotates for the Exif orientation
+                thumbnail = main_activity.getThumbnailProvider().createThumbnail(data.getArray(), data.getLength(), sample_size);
             }
             else {
                 int width = bitmap.getWidth();
@@ -2890,10 +3869,18 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "failed to create thumbnail bitmap");
             }
             else {
+                if( saveUri != null || picFile != null ) {
+                    // cache so that the gallery icon doesn't need to decode the saved image again
+                    main_activity.getThumbnailProvider().putThumbnail(saveUri != null ? saveUri : Uri.fromFile(picFile), thumbnail);
+                }
                 final Bitmap thumbnail_f = thumbnail;
-                main_activity.runOnUiThread(new Runnable() {
+                publish(request, new Runnable() {
                     public void run() {
-                        applicationInterface.updateThumbnail(thumbnail_f, false);
+                        main_activity.runOnUiThread(new Runnable() {
+                            public void run() {
+                                applicationInterface.updateThumbnail(thumbnail_f, false);
+                            }
+                        });
                     }
                 });
                 if( MyDebug.LOG ) {
@@ -2903,12 +3890,13 @@ public class ImageSaver extends Thread {
         }
 
         if( bitmap != null ) {
-            bitmap.recycle();
+            // return to the pool, so the bitmap can be reused for the next image that's processed
+            bitmapPool.release(bitmap);
         }
 
         System.gc();
 
-        main_activity.savingImage(false);
+        savingImage(false);
 
         if( MyDebug.LOG ) {
             Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
@@ -2918,14 +3906,14 @@ public class ImageSaver extends Thread {
 
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
      */
-    private void setExifFromData(final Request request, byte [] data, File to_file) throws IOException {
+    private void setExifFromData(final Request request, ImageBuffer data, File to_file) throws IOException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "setExifFromData");
             Log.d(TAG, "to_file: " + to_file);
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = data.newInputStream();
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
             setExif(request, exif, exif_new);
@@ -2937,6 +3925,84 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Sets the Exif tags for jpeg in memory, so that the image can then be saved in a single pass.
+     *  Only the header of the JPEG (the segments before the image data) is modified, via a small
+     *  temporary file in the cache folder, as ExifInterface can't save to a stream.
+     * @param exif_data If non-null, Exif tags are transferred from this JPEG as for
+     *                  setExifFromData(), otherwise the tags are modified as for updateExif().
+     *                  If this is a YUV image, there are no tags to transfer, so as for camera
+     *                  extensions, the tags that the camera would have set (e.g., date and time)
+     *                  are added.
+     * @param jpeg      The JPEG to save.
+     * @return The JPEG to save with Exif tags set, or null if this failed (in which case the caller
+     *         should save jpeg, and then set the Exif tags on the saved file).
+     */
+    private JpegExifSplicer createExifSplicer(final Request request, ImageBuffer exif_data, ImageBuffer jpeg) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createExifSplicer");
+        File header_file = null;
+        try {
+            JpegExifSplicer splicer = new JpegExifSplicer(jpeg.getArray(), jpeg.getLength());
+            header_file = File.createTempFile("exif_header", ".jpg", main_activity.getCacheDir());
+            OutputStream header_stream = new FileOutputStream(header_file);
+            try {
+                header_stream.write(splicer.getHeader());
+            }
+            finally {
+                header_stream.close();
+            }
+
+            ExifInterface exif_new = new ExifInterface(header_file.getAbsolutePath());
+            if( exif_data != null && !exif_data.isYuv() ) {
+                InputStream inputStream = exif_data.newInputStream();
+                try {
+                    ExifInterface exif = new ExifInterface(inputStream);
+                    applyExif(request, exif, exif_new);
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+            else {
+                boolean no_device_exif = request.using_camera_extensions || exif_data != null;
+                modifyExif(exif_new, request.remove_device_exif, request.type == Request.Type.JPEG, request.using_camera2, no_device_exif, request.current_date, request.store_location, request.location, request.store_geo_direction, request.geo_direction, request.custom_tag_artist, request.custom_tag_copyright, request.level_angle, request.pitch_angle, request.store_ypr);
+            }
+            exif_new.saveAttributes();
+
+            byte [] header = new byte[(int)header_file.length()];
+            DataInputStream header_input = new DataInputStream(new FileInputStream(header_file));
+            try {
+                header_input.readFully(header);
+            }
+            finally {
+                header_input.close();
+            }
+            splicer.setHeader(header, header.length);
+            if( MyDebug.LOG )
+                Log.d(TAG, "header size changed from " + splicer.getScanStart() + " to " + header.length);
+            return splicer;
+        }
+        catch(IOException e) {
+            // e.g., if the JPEG has an unexpected structure
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to set exif in memory: " + e.getMessage());
+            e.printStackTrace();
+        }
+        catch(NoClassDefFoundError e) {
+            // have had Google Play crashes from new ExifInterface() elsewhere for Galaxy Ace4 (vivalto3g), Galaxy S Duos3 (vivalto3gvn), so also catch here just in case
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to set exif in memory: NoClassDefFoundError");
+            e.printStackTrace();
+        }
+        finally {
+            if( header_file != null && !header_file.delete() ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to delete exif header file");
+            }
+        }
+        return null;
+    }
+
     private void broadcastSAFFile(Uri saveUri, boolean set_last_scanned, boolean hasnoexifdatetime, boolean image_capture_intent) {
         if( MyDebug.LOG )
             Log.d(TAG, "broadcastSAFFile");
@@ -2946,14 +4012,14 @@ public class ImageSaver extends Thread {
 
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data, and to a file descriptor, rather than a file.
      */
-    private void setExifFromData(final Request request, byte [] data, FileDescriptor to_file_descriptor) throws IOException {
+    private void setExifFromData(final Request request, ImageBuffer data, FileDescriptor to_file_descriptor) throws IOException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "setExifFromData");
             Log.d(TAG, "to_file_descriptor: " + to_file_descriptor);
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = data.newInputStream();
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file_descriptor);
             setExif(request, exif, exif_new);
@@ -3506,6 +4572,15 @@ public class ImageSaver extends Thread {
     private void setExif(final Request request, ExifInterface exif, ExifInterface exif_new) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "setExif");
+        applyExif(request, exif, exif_new);
+        exif_new.saveAttributes();
+    }
+
+    /** As setExif(), but doesn't save the attributes.
+     */
+    private void applyExif(final Request request, ExifInterface exif, ExifInterface exif_new) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "applyExif");
 
         if( request.remove_device_exif == Request.RemoveDeviceExif.OFF ) {
             transferDeviceExif(exif, exif_new);
@@ -3526,7 +4601,6 @@ public class ImageSaver extends Thread {
         modifyExif(exif_new, request.remove_device_exif, request.type == Request.Type.JPEG, request.using_camera2, request.using_camera_extensions, request.current_date, request.store_location, request.location, request.store_geo_direction, request.geo_direction, request.custom_tag_artist, request.custom_tag_copyright, request.level_angle, request.pitch_angle, request.store_ypr);
 
         removeExifTags(exif_new, request); // must be last, before saving attributes
-        exif_new.saveAttributes();
     }
 
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
@@ -3541,10 +4615,10 @@ public class ImageSaver extends Thread {
                 Log.e(TAG, "RAW requires LOLLIPOP or higher");
             return false;
         }
-        StorageUtils storageUtils = main_activity.getStorageUtils();
+        final StorageUtils storageUtils = main_activity.getStorageUtils();
         boolean success = false;
 
-        main_activity.savingImage(true);
+        savingImage(true);
 
         OutputStream output = null;
         RawImage raw_image = request.raw_image;
@@ -3620,58 +4694,65 @@ public class ImageSaver extends Thread {
             output = null;
             success = true;
 
-            // set last image for share/trash options for pause preview
-            // Must be done before broadcastFile() (because on Android 7+ with non-SAF, we update
-            // the LastImage's uri from the MediaScannerConnection.scanFile() callback from
-            // StorageUtils.broadcastFile(), which assumes the last image has already been set.
-            MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
-            boolean raw_only = applicationInterface.isRawOnly();
-            if( MyDebug.LOG )
-                Log.d(TAG, "raw_only: " + raw_only);
-            if( saveUri == null ) {
-                applicationInterface.addLastImage(picFile, raw_only);
-            }
-            else if( storageUtils.isUsingSAF() ){
-                applicationInterface.addLastImageSAF(saveUri, raw_only);
-            }
-            else if( success && use_media_store ){
-                applicationInterface.addLastImageMediaStore(saveUri, raw_only);
+            if( saveUri != null && use_media_store && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
+                contentValues.clear();
+                contentValues.put(MediaStore.Images.Media.IS_PENDING, 0);
+                main_activity.getContentResolver().update(saveUri, contentValues, null, null);
             }
 
-            // if RAW only, need to update the cached uri
-            if( raw_only ) {
-                // clear just in case we're unable to update this - don't want an out of date cached uri
-                storageUtils.clearLastMediaScanned();
-            }
+            final File picFile_f = picFile;
+            final Uri saveUri_f = saveUri;
+            final boolean use_media_store_f = use_media_store;
+            publish(request, new Runnable() {
+                public void run() {
+                    // set last image for share/trash options for pause preview
+                    // Must be done before broadcastFile() (because on Android 7+ with non-SAF, we update
+                    // the LastImage's uri from the MediaScannerConnection.scanFile() callback from
+                    // StorageUtils.broadcastFile(), which assumes the last image has already been set.
+                    MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+                    boolean raw_only = applicationInterface.isRawOnly();
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "raw_only: " + raw_only);
+                    if( saveUri_f == null ) {
+                        applicationInterface.addLastImage(picFile_f, raw_only);
+                    }
+                    else if( storageUtils.isUsingSAF() ){
+                        applicationInterface.addLastImageSAF(saveUri_f, raw_only);
+                    }
+                    else if( use_media_store_f ){
+                        applicationInterface.addLastImageMediaStore(saveUri_f, raw_only);
+                    }
 
-            // n.b., at time of writing, remove_device_exif will always be OFF for RAW, but have added the code for future proofing
-            boolean hasnoexifdatetime = request.remove_device_exif != Request.RemoveDeviceExif.OFF && request.remove_device_exif != Request.RemoveDeviceExif.KEEP_DATETIME;
+                    // if RAW only, need to update the cached uri
+                    if( raw_only ) {
+                        // clear just in case we're unable to update this - don't want an out of date cached uri
+                        storageUtils.clearLastMediaScanned();
+                    }
 
-            if( saveUri == null ) {
-                storageUtils.broadcastFile(picFile, true, false, raw_only, hasnoexifdatetime, null);
-            }
-            else if( use_media_store ) {
-                if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
-                    contentValues.clear();
-                    contentValues.put(MediaStore.Images.Media.IS_PENDING, 0);
-                    main_activity.getContentResolver().update(saveUri, contentValues, null, null);
-                }
+                    // n.b., at time of writing, remove_device_exif will always be OFF for RAW, but have added the code for future proofing
+                    boolean hasnoexifdatetime = request.remove_device_exif != Request.RemoveDeviceExif.OFF && request.remove_device_exif != Request.RemoveDeviceExif.KEEP_DATETIME;
 
-                // no need to broadcast when using mediastore method
+                    if( saveUri_f == null ) {
+                        storageUtils.broadcastFile(picFile_f, true, false, raw_only, hasnoexifdatetime, null);
+                    }
+                    else if( use_media_store_f ) {
+                        // no need to broadcast when using mediastore method
 
-                // in theory this is pointless, as announceUri no longer does anything on Android 7+,
-                // and mediastore method is only used on Android 10+, but keep this just in case
-                // announceUri does something in future
-                storageUtils.announceUri(saveUri, true, false);
+                        // in theory this is pointless, as announceUri no longer does anything on Android 7+,
+                        // and mediastore method is only used on Android 10+, but keep this just in case
+                        // announceUri does something in future
+                        storageUtils.announceUri(saveUri_f, true, false);
 
-                if( raw_only ) {
-                    // we also want to save the uri - we can use the media uri directly, rather than having to scan it
-                    storageUtils.setLastMediaScanned(saveUri, true, hasnoexifdatetime, saveUri);
+                        if( raw_only ) {
+                            // we also want to save the uri - we can use the media uri directly, rather than having to scan it
+                            storageUtils.setLastMediaScanned(saveUri_f, true, hasnoexifdatetime, saveUri_f);
+                        }
+                    }
+                    else {
+                        storageUtils.broadcastUri(saveUri_f, true, false, raw_only, hasnoexifdatetime, false);
+                    }
                 }
-            }
-            else {
-                storageUtils.broadcastUri(saveUri, true, false, raw_only, hasnoexifdatetime, false);
-            }
+            });
         }
         catch(FileNotFoundException e) {
             if( MyDebug.LOG )
@@ -3703,33 +4784,35 @@ public class ImageSaver extends Thread {
 
         System.gc();
 
-        main_activity.savingImage(false);
+        savingImage(false);
 
         return success;
     }
 
-    /** Rotates the supplied bitmap according to the orientation tag stored in the exif data. If no
-     *  rotation is required, the input bitmap is returned. If rotation is required, the input
-     *  bitmap is recycled.
+    /** Returns the clockwise rotation in degrees (0, 90, 180 or 270) required according to the
+     *  orientation tag stored in the exif data.
      * @param data Jpeg data containing the Exif information to use.
      */
-    private Bitmap rotateForExif(Bitmap bitmap, byte [] data) {
+    private static int getExifRotation(ImageBuffer data) {
         if( MyDebug.LOG )
-            Log.d(TAG, "rotateForExif");
+            Log.d(TAG, "getExifRotation");
+        if( data.isYuv() ) {
+            // YUV images have no Exif tags, but store the equivalent rotation
+            return data.getRotation();
+        }
+        int exif_orientation = 0;
         InputStream inputStream = null;
         try {
             ExifInterface exif;
 
             if( MyDebug.LOG )
                 Log.d(TAG, "use data stream to read exif tags");
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = data.newInputStream();
             exif = new ExifInterface(inputStream);
 
             int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
             if( MyDebug.LOG )
                 Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
-            boolean needs_tf = false;
-            int exif_orientation = 0;
             // see http://jpegclub.org/exif_orientation.html
             // and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
             switch (exif_orientation_s) {
@@ -3738,15 +4821,12 @@ public class ImageSaver extends Thread {
                     // leave unchanged
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_180:
-                    needs_tf = true;
                     exif_orientation = 180;
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_90:
-                    needs_tf = true;
                     exif_orientation = 90;
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_270:
-                    needs_tf = true;
                     exif_orientation = 270;
                     break;
                 default:
@@ -3757,18 +4837,6 @@ public class ImageSaver extends Thread {
             }
             if( MyDebug.LOG )
                 Log.d(TAG, "    exif orientation: " + exif_orientation);
-
-            if( needs_tf ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
-                Matrix m = new Matrix();
-                m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
-                Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
-                if( rotated_bitmap != bitmap ) {
-                    bitmap.recycle();
-                    bitmap = rotated_bitmap;
-                }
-            }
         }
         catch(IOException exception) {
             if( MyDebug.LOG )
@@ -3791,6 +4859,35 @@ public class ImageSaver extends Thread {
                 }
             }
         }
+        return exif_orientation;
+    }
+
+    /** Rotates the supplied bitmap according to the orientation tag stored in the exif data. If no
+     *  rotation is required, the input bitmap is returned. If rotation is required, the input
+     *  bitmap is released.
+     * @param data Jpeg data containing the Exif information to use.
+     */
+    private Bitmap rotateForExif(Bitmap bitmap, ImageBuffer data) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "rotateForExif");
+        return rotateBitmap(bitmap, getExifRotation(data));
+    }
+
+    /** As rotateForExif(), but with the rotation already read from the Exif tags with
+     *  getExifRotation().
+     */
+    private Bitmap rotateBitmap(Bitmap bitmap, int exif_orientation) {
+        if( exif_orientation != 0 ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
+            Matrix m = new Matrix();
+            m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
+            Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
+            if( rotated_bitmap != bitmap ) {
+                bitmapPool.release(bitmap);
+                bitmap = rotated_bitmap;
+            }
+        }
         return bitmap;
     }
 
@@ -3800,7 +4897,7 @@ public class ImageSaver extends Thread {
      * @param mutable Whether to create a mutable bitmap.
      * @return A bitmap representing the correctly rotated jpeg.
      */
-    private Bitmap loadBitmapWithRotation(byte [] data, boolean mutable) {
+    private Bitmap loadBitmapWithRotation(ImageBuffer data, boolean mutable) {
         Bitmap bitmap = loadBitmap(data, mutable, 1);
         if( bitmap != null ) {
             // rotate the bitmap if necessary for exif tags
@@ -3886,9 +4983,7 @@ public class ImageSaver extends Thread {
     private void updateExif(Request request, File picFile, Uri saveUri) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "updateExif: " + picFile);
-        if( request.store_geo_direction || request.store_ypr || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
-                request.using_camera_extensions || // when using camera extensions, we need to call modifyExif() to fix up various missing tags
-                needGPSExifFix(request.type == Request.Type.JPEG, request.using_camera2, request.store_location) ) {
+        if( needUpdateExif(request) ) {
             long time_s = System.currentTimeMillis();
             if( MyDebug.LOG )
                 Log.d(TAG, "add additional exif info");
@@ -3927,6 +5022,14 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Whether modifyExif() needs to be called when saving directly from the JPEG data.
+     */
+    private boolean needUpdateExif(Request request) {
+        return request.store_geo_direction || request.store_ypr || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
+                request.using_camera_extensions || // when using camera extensions, we need to call modifyExif() to fix up various missing tags
+                needGPSExifFix(request.type == Request.Type.JPEG, request.using_camera2, request.store_location);
+    }
+
     /** Makes various modifications to the exif data, if necessary.
      *  Any fix-ups should respect the setting of RemoveDeviceExif!
      */
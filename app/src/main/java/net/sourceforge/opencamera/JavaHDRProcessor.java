@@ -0,0 +1,555 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/** Pure Java implementation of the HDR merge performed by HDRProcessor.processHDRCore() and
+ *  process_hdr.rs. This works on ARGB pixels stored in int arrays rather than Bitmaps and RenderScript
+ *  Allocations, so it can also be run (and benchmarked) on a desktop JVM.
+ *  The response functions and tonemapping parameters are computed with the same code as
+ *  HDRProcessor. The merge itself is split into tiles of rows that are processed in parallel on a
+ *  ForkJoinPool; each tile allocates its scratch arrays once, so the per-pixel loop doesn't
+ *  allocate.
+ *  Unlike HDRProcessor, this doesn't perform auto-alignment (offsets should be supplied by the
+ *  caller) or sort the images, and doesn't apply local contrast enhancement (hdr_alpha).
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class JavaHDRProcessor {
+    private static final String TAG = "JavaHDRProcessor";
+
+    public static final int max_images_c = 7; // should match max_bitmaps_c in process_hdr.rs
+    private static final int tile_height_c = 32; // number of rows in each tile
+
+    // should match the constants in process_hdr.rs
+    private static final int tonemap_algorithm_clamp_c = 0;
+    private static final int tonemap_algorithm_exponential_c = 1;
+    private static final int tonemap_algorithm_reinhard_c = 2;
+    private static final int tonemap_algorithm_fu2_c = 3;
+    private static final int tonemap_algorithm_aces_c = 4;
+    private static final float exposure_c = 1.2f;
+    private static final float fu2_exposure_bias_c = 2.0f / 255.0f;
+
+    private static ForkJoinPool shared_pool; // lazily created
+
+    private final ForkJoinPool pool;
+
+    /** Creates a processor that runs on a pool shared by all instances, with one thread per
+     *  available processor.
+     */
+    public JavaHDRProcessor() {
+        this(getSharedPool());
+    }
+
+    /** Creates a processor that runs on the supplied pool.
+     */
+    public JavaHDRProcessor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    static synchronized ForkJoinPool getSharedPool() {
+        if( shared_pool == null ) {
+            shared_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return shared_pool;
+    }
+
+    /** Converts a list of images into a HDR image, which is then tonemapped to a final RGB image.
+     * @param images         The images as ARGB pixels, in order of increasing brightness (exposure).
+     *                       Must contain between 2 and max_images_c images, each of width*height
+     *                       pixels.
+     * @param width          The width of the images.
+     * @param height         The height of the images.
+     * @param offsets_x      If non-null, the x offset of each image relative to the base image, as
+     *                       computed by HDRProcessor.autoAlignment(). The entry for the base image is
+     *                       ignored.
+     * @param offsets_y      If non-null, the y offset of each image relative to the base image.
+     * @param tonemapping_algorithm
+     *                       Algorithm to use for tonemapping.
+     * @param output         Array of width*height pixels to store the result in. This may be the
+     *                       base image, images[getBaseIndex(images.length)], but must not be any of
+     *                       the other images.
+     */
+    public void processHDR(int [][] images, int width, int height, int [] offsets_x, int [] offsets_y, HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, int [] output) throws HDRProcessorException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDR");
+        long time_s = System.currentTimeMillis();
+
+        MergeParameters params = createMergeParameters(images, width, height, offsets_x, offsets_y, tonemapping_algorithm, output);
+        pool.invoke(new MergeTask(params, 0, height));
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDR: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Checks the inputs, and computes the response functions and tonemapping parameters for a
+     *  merge; see processHDR() for the parameters.
+     */
+    private static MergeParameters createMergeParameters(int [][] images, int width, int height, int [] offsets_x, int [] offsets_y, HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, int [] output) throws HDRProcessorException {
+        int n_images = images.length;
+        if( n_images < 2 || n_images > max_images_c ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "n_images not supported: " + n_images);
+            throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+        }
+        int n_pixels = width*height;
+        for(int i=0;i<n_images;i++) {
+            if( images[i].length != n_pixels ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "image " + i + " has " + images[i].length + " pixels, expected " + n_pixels);
+                throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+            }
+        }
+        if( output.length != n_pixels ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "output has " + output.length + " pixels, expected " + n_pixels);
+            throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+        }
+
+        final int base_image = getBaseIndex(n_images);
+        int [] offsets_x_ = new int[n_images];
+        int [] offsets_y_ = new int[n_images];
+        for(int i=0;i<n_images;i++) {
+            if( i != base_image ) {
+                offsets_x_[i] = offsets_x != null ? offsets_x[i] : 0;
+                offsets_y_[i] = offsets_y != null ? offsets_y[i] : 0;
+            }
+        }
+
+        // compute response_functions
+        HDRProcessor.ResponseFunction [] response_functions = new HDRProcessor.ResponseFunction[n_images];
+        for(int i=0;i<n_images;i++) {
+            if( i != base_image ) {
+                response_functions[i] = createFunctionFromImages(i, images[i], images[base_image], width, height, offsets_x_[i], offsets_y_[i]);
+            }
+            else {
+                response_functions[i] = HDRProcessor.ResponseFunction.createIdentity();
+            }
+        }
+        if( n_images % 2 == 0 ) {
+            // need to remap so that we aim for a brightness between the middle two images
+            HDRProcessor.remapResponseFunctions(response_functions, base_image);
+        }
+
+        int median_brightness = computeMedianBrightness(images[base_image], width, height);
+        if( MyDebug.LOG )
+            Log.d(TAG, "median_brightness: " + median_brightness);
+        HDRProcessor.TonemapParameters tonemap_parameters = HDRProcessor.computeTonemapParameters(response_functions, median_brightness, tonemapping_algorithm);
+
+        float [] parameter_A = new float[n_images];
+        float [] parameter_B = new float[n_images];
+        for(int i=0;i<n_images;i++) {
+            parameter_A[i] = response_functions[i].parameter_A;
+            parameter_B[i] = response_functions[i].parameter_B;
+        }
+
+        return new MergeParameters(images, base_image, width, height, offsets_x_, offsets_y_, parameter_A, parameter_B, getTonemapAlgorithmCode(tonemapping_algorithm), tonemap_parameters, output);
+    }
+
+    /** Returns the index of the image with the base exposure (and no offset), for the supplied
+     *  number of images. For an even number of images, this is the brighter of the middle two.
+     */
+    public static int getBaseIndex(int n_images) {
+        return n_images % 2 == 0 ? n_images/2 : (n_images - 1) / 2;
+    }
+
+    private static int getTonemapAlgorithmCode(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm) {
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                return tonemap_algorithm_clamp_c;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                return tonemap_algorithm_exponential_c;
+            case TONEMAPALGORITHM_FU2:
+                return tonemap_algorithm_fu2_c;
+            case TONEMAPALGORITHM_ACES:
+                return tonemap_algorithm_aces_c;
+            default:
+                return tonemap_algorithm_reinhard_c;
+        }
+    }
+
+    /** Equivalent of HDRProcessor.createFunctionFromBitmaps(), but for int arrays.
+     */
+    private static HDRProcessor.ResponseFunction createFunctionFromImages(int id, int [] in_image, int [] out_image, int width, int height, int offset_x, int offset_y) {
+        List<Double> x_samples = new ArrayList<>();
+        List<Double> y_samples = new ArrayList<>();
+
+        final int n_samples_c = 100;
+        final int n_w_samples = (int)Math.sqrt(n_samples_c);
+        final int n_h_samples = n_samples_c/n_w_samples;
+
+        for(int y=0;y<n_h_samples;y++) {
+            double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
+            int y_coord = (int)(alpha * height);
+            for(int x=0;x<n_w_samples;x++) {
+                double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
+                int x_coord = (int)(beta * width);
+                if( x_coord + offset_x < 0 || x_coord + offset_x >= width || y_coord + offset_y < 0 || y_coord + offset_y >= height ) {
+                    continue;
+                }
+                int in_col = in_image[(y_coord + offset_y)*width + x_coord + offset_x];
+                int out_col = out_image[y_coord*width + x_coord];
+                x_samples.add(HDRProcessor.averageRGB(in_col));
+                y_samples.add(HDRProcessor.averageRGB(out_col));
+            }
+        }
+        return HDRProcessor.createFunctionFromSamples(null, id, x_samples, y_samples);
+    }
+
+    /** Returns the median brightness (maximum of the RGB components) from sampling the image, in
+     *  the same way as HDRProcessor.computeMedianLuminance().
+     */
+    static int computeMedianBrightness(int [] image, int width, int height) {
+        final int n_samples_c = 100;
+        final int n_w_samples = (int)Math.sqrt(n_samples_c);
+        final int n_h_samples = n_samples_c/n_w_samples;
+
+        int [] histo = new int[256];
+        int total = 0;
+        for(int y=0;y<n_h_samples;y++) {
+            double alpha = ((double) y + 1.0) / ((double) n_h_samples + 1.0);
+            int y_coord = (int) (alpha * height);
+            for(int x=0;x<n_w_samples;x++) {
+                double beta = ((double) x + 1.0) / ((double) n_w_samples + 1.0);
+                int x_coord = (int) (beta * width);
+                int color = image[y_coord*width + x_coord];
+                int r = (color & 0xFF0000) >> 16;
+                int g = (color & 0xFF00) >> 8;
+                int b = (color & 0xFF);
+                int luminance = Math.max(r, g);
+                luminance = Math.max(luminance, b);
+                histo[luminance]++;
+                total++;
+            }
+        }
+        int middle = total/2;
+        int count = 0;
+        for(int i=0;i<256;i++) {
+            count += histo[i];
+            if( count >= middle ) {
+                return i;
+            }
+        }
+        return 255;
+    }
+
+    /** The inputs for a merge, shared by all tiles.
+     */
+    private static class MergeParameters {
+        final int [][] images;
+        final int base_image;
+        final int width;
+        final int height;
+        final int [] offsets_x;
+        final int [] offsets_y;
+        final float [] parameter_A;
+        final float [] parameter_B;
+        final int tonemap_algorithm;
+        final float tonemap_scale;
+        final float linear_scale;
+        final float W;
+        final int [] output;
+
+        MergeParameters(int [][] images, int base_image, int width, int height, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, int tonemap_algorithm, HDRProcessor.TonemapParameters tonemap_parameters, int [] output) {
+            this.images = images;
+            this.base_image = base_image;
+            this.width = width;
+            this.height = height;
+            this.offsets_x = offsets_x;
+            this.offsets_y = offsets_y;
+            this.parameter_A = parameter_A;
+            this.parameter_B = parameter_B;
+            this.tonemap_algorithm = tonemap_algorithm;
+            this.tonemap_scale = tonemap_parameters.tonemap_scale;
+            this.linear_scale = tonemap_parameters.linear_scale;
+            this.W = tonemap_parameters.W;
+            this.output = output;
+        }
+    }
+
+    /** Merges the rows [y_start, y_stop), splitting into subtasks until the number of rows is at most
+     *  tile_height_c.
+     */
+    private static class MergeTask extends RecursiveAction {
+        private final MergeParameters params;
+        private final int y_start;
+        private final int y_stop;
+
+        MergeTask(MergeParameters params, int y_start, int y_stop) {
+            this.params = params;
+            this.y_start = y_start;
+            this.y_stop = y_stop;
+        }
+
+        @Override
+        protected void compute() {
+            if( y_stop - y_start <= tile_height_c ) {
+                mergeTile(params, y_start, y_stop);
+            }
+            else {
+                int y_mid = (y_start + y_stop)/2;
+                invokeAll(new MergeTask(params, y_start, y_mid), new MergeTask(params, y_mid, y_stop));
+            }
+        }
+    }
+
+    /** Merges the rows [y_start, y_stop). This is a port of the hdr_n() kernel in process_hdr.rs (for
+     *  3 images, this gives the same results as the hdr() kernel).
+     */
+    private static void mergeTile(MergeParameters params, int y_start, int y_stop) {
+        final int n_images = params.images.length;
+        final int width = params.width;
+        final int height = params.height;
+        final int [][] images = params.images;
+        final int [] base = images[params.base_image];
+        final int [] offsets_x = params.offsets_x;
+        final int [] offsets_y = params.offsets_y;
+        final int [] output = params.output;
+        final int mid_indx = (n_images-1)/2; // round down to dark image for even number of images
+        final boolean even = n_images % 2 == 0;
+        final int n_adj = (n_images-1)/2;
+        final float safe_range_c = 96.0f;
+        final float range_low_c = 32.0f;
+        final float range_high_c = 48.0f;
+        final float wiener_C_lo = 2000.0f;
+        final float wiener_C_hi = 8000.0f;
+        final float wiener_scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+
+        // scratch arrays, allocated once per tile
+        int [] pixels = new int[n_images];
+        float [] parameter_A = new float[n_images];
+        float [] parameter_B = new float[n_images];
+
+        for(int y=y_start;y<y_stop;y++) {
+            int row = y*width;
+            for(int x=0;x<width;x++) {
+                int in = base[row+x];
+                for(int i=0;i<n_images;i++) {
+                    int ix = x+offsets_x[i];
+                    int iy = y+offsets_y[i];
+                    if( ix >= 0 && iy >= 0 && ix < width && iy < height ) {
+                        pixels[i] = images[i][iy*width+ix];
+                        parameter_A[i] = params.parameter_A[i];
+                        parameter_B[i] = params.parameter_B[i];
+                    }
+                    else {
+                        pixels[i] = in;
+                        parameter_A[i] = params.parameter_A[mid_indx];
+                        parameter_B[i] = params.parameter_B[mid_indx];
+                    }
+                }
+
+                float hdr_r, hdr_g, hdr_b;
+                float sum_weight;
+
+                int color = pixels[mid_indx];
+                float r = (float)((color >> 16) & 0xFF);
+                float g = (float)((color >> 8) & 0xFF);
+                float b = (float)(color & 0xFF);
+                float avg = (r+g+b) / 3.0f;
+                float diff = Math.abs( avg - 127.5f );
+                float weight = 1.0f;
+                if( avg <= 127.5f ) {
+                    // see comment for corresponding code in hdr() in process_hdr.rs
+                    if( avg <= range_low_c ) {
+                        weight = 0.0f;
+                    }
+                    else if( avg <= range_high_c ) {
+                        weight = (avg - range_low_c) / (range_high_c - range_low_c);
+                    }
+                }
+                else if( diff > safe_range_c ) {
+                    // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                    weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                }
+
+                // response function
+                r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+                g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+                b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+                hdr_r = weight * r;
+                hdr_g = weight * g;
+                hdr_b = weight * b;
+                sum_weight = weight;
+
+                if( even ) {
+                    int color1 = pixels[mid_indx+1];
+                    float r1 = (float)((color1 >> 16) & 0xFF);
+                    float g1 = (float)((color1 >> 8) & 0xFF);
+                    float b1 = (float)(color1 & 0xFF);
+                    float avg1 = (r1+g1+b1) / 3.0f;
+                    float diff1 = Math.abs( avg1 - 127.5f );
+                    float weight1 = 1.0f;
+                    if( diff1 > safe_range_c ) {
+                        // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                        weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                    r1 = parameter_A[mid_indx+1] * r1 + parameter_B[mid_indx+1];
+                    g1 = parameter_A[mid_indx+1] * g1 + parameter_B[mid_indx+1];
+                    b1 = parameter_A[mid_indx+1] * b1 + parameter_B[mid_indx+1];
+
+                    hdr_r += weight1 * r1;
+                    hdr_g += weight1 * g1;
+                    hdr_b += weight1 * b1;
+                    sum_weight += weight1;
+
+                    avg = (avg+avg1)/2.0f;
+                    weight = (weight+weight1)/2.0f;
+                }
+
+                if( weight < 1.0f ) {
+                    float base_r = r;
+                    float base_g = g;
+                    float base_b = b;
+                    int adj_indx = mid_indx;
+                    int step_dir = avg <= 127.5f ? 1 : -1;
+                    if( even && step_dir == 1 ) {
+                        adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+                    }
+
+                    for(int k=0;k<n_adj;k++) {
+                        // now look at a neighbour image
+                        weight = 1.0f - weight;
+                        adj_indx += step_dir;
+
+                        color = pixels[adj_indx];
+                        r = (float)((color >> 16) & 0xFF);
+                        g = (float)((color >> 8) & 0xFF);
+                        b = (float)(color & 0xFF);
+                        if( k+1 < n_adj ) {
+                            // there will be at least one more adjacent image to look at
+                            avg = (r+g+b) / 3.0f;
+                            diff = Math.abs( avg - 127.5f );
+                            if( diff > safe_range_c ) {
+                                // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                                weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                            }
+                        }
+                        r = parameter_A[adj_indx] * r + parameter_B[adj_indx];
+                        g = parameter_A[adj_indx] * g + parameter_B[adj_indx];
+                        b = parameter_A[adj_indx] * b + parameter_B[adj_indx];
+
+                        float value = Math.max(r, g);
+                        value = Math.max(value, b);
+                        if( value <= 250.0f ) {
+                            // deghosting, see comments in process_hdr.rs
+                            float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+                            float wx = Math.abs( value - 127.5f ) - 96.0f;
+                            if( wx > 0.0f ) {
+                                wiener_C = wiener_C_lo + wx*wiener_scale;
+                            }
+                            float diff_r = base_r - r;
+                            float diff_g = base_g - g;
+                            float diff_b = base_b - b;
+                            float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                            float ghost_weight = L/(L+wiener_C);
+                            r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+                            g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+                            b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+                        }
+
+                        hdr_r += weight * r;
+                        hdr_g += weight * g;
+                        hdr_b += weight * b;
+                        sum_weight += weight;
+
+                        if( diff <= safe_range_c ) {
+                            break;
+                        }
+                    }
+                }
+
+                hdr_r /= sum_weight;
+                hdr_g /= sum_weight;
+                hdr_b /= sum_weight;
+
+                output[row+x] = tonemap(params, hdr_r, hdr_g, hdr_b);
+            }
+        }
+    }
+
+    private static float FU2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    private static int clampToByte(float value) {
+        int result = (int)(value+0.5f);
+        return Math.max(0, Math.min(result, 255));
+    }
+
+    /** Port of tonemap() in process_hdr.rs. Returns the tonemapped ARGB pixel.
+     */
+    private static int tonemap(MergeParameters params, float hdr_r, float hdr_g, float hdr_b) {
+        int r, g, b;
+        switch( params.tonemap_algorithm ) {
+            case tonemap_algorithm_clamp_c:
+            {
+                // Simple clamp
+                r = clampToByte(hdr_r);
+                g = clampToByte(hdr_g);
+                b = clampToByte(hdr_b);
+                break;
+            }
+            case tonemap_algorithm_exponential_c:
+            {
+                float scale = params.linear_scale * 255.0f;
+                r = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f )));
+                g = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f )));
+                b = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f )));
+                break;
+            }
+            case tonemap_algorithm_fu2_c:
+            {
+                // FU2 (Filmic)
+                float white_scale = 255.0f / FU2Tonemap(params.W);
+                r = clampToByte(white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_r));
+                g = clampToByte(white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_g));
+                b = clampToByte(white_scale * FU2Tonemap(fu2_exposure_bias_c * hdr_b));
+                break;
+            }
+            case tonemap_algorithm_aces_c:
+            {
+                // https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/ (released under public domain cc0)
+                final float a = 2.51f;
+                final float bb = 0.03f;
+                final float c = 2.43f;
+                final float d = 0.59f;
+                final float e = 0.14f;
+                float x_r = hdr_r/255.0f;
+                float x_g = hdr_g/255.0f;
+                float x_b = hdr_b/255.0f;
+                r = clampToByte(255.0f * (x_r*(a*x_r+bb))/(x_r*(c*x_r+d)+e));
+                g = clampToByte(255.0f * (x_g*(a*x_g+bb))/(x_g*(c*x_g+d)+e));
+                b = clampToByte(255.0f * (x_b*(a*x_b+bb))/(x_b*(c*x_b+d)+e));
+                break;
+            }
+            default:
+            {
+                // Reinhard
+                float value = Math.max(hdr_r, hdr_g);
+                value = Math.max(value, hdr_b);
+                float scale = 255.0f / ( params.tonemap_scale + value );
+                scale *= params.linear_scale;
+                // linear_scale should be such that values don't map to more than 255, but we clamp
+                // anyway rather than relying on overflow behaviour
+                r = clampToByte(scale * hdr_r);
+                g = clampToByte(scale * hdr_g);
+                b = clampToByte(scale * hdr_b);
+                break;
+            }
+        }
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
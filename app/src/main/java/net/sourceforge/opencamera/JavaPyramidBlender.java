@@ -0,0 +1,439 @@
+package net.sourceforge.opencamera;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java Laplacian pyramid blending, for blending adjacent images of a panorama. This uses
+ *  the same filters and blend windows as the reduce, expand, subtract, add and merge kernels of
+ *  pyramid_blending.rs, except that values are kept as floats between levels rather than being
+ *  rounded to bytes.
+ *  Each pyramid level is stored as 3 floats (red, green, blue) per pixel, in buffers that are kept
+ *  between calls and only reallocated if a larger image is blended, so blending each pair of images
+ *  of a panorama doesn't allocate. All operations work in place: the Laplacian levels overwrite the
+ *  Gaussian levels they're computed from, the blend is written into the left hand pyramid, and the
+ *  collapse adds each expanded level into the level below.
+ *  The reduce and expand filters are the 5-tap Gaussian of pyramid_blending.rs, applied as
+ *  separate horizontal and vertical passes, with the rows of each pass split into tiles that are
+ *  processed in parallel on a ForkJoinPool. Edges are handled by clamping coordinates; as the
+ *  same expand filter is used to create and collapse the pyramids, an image that isn't blended is
+ *  reconstructed exactly (up to floating point rounding).
+ *  The buffers take about 38 bytes per pixel of the blended images (the two pyramids, and a
+ *  temporary buffer of half a level), see releaseBuffers().
+ *  An instance must not be used from more than one thread at a time.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class JavaPyramidBlender {
+    private static final String TAG = "JavaPyramidBlender";
+
+    private static final int tile_height_c = 32; // number of rows in each tile
+
+    // should match the constants in pyramid_blending.rs
+    private static final float g0 = 0.05f, g1 = 0.25f, g2 = 0.4f;
+
+    private final int n_levels;
+    private final ForkJoinPool pool;
+
+    // buffers, kept between calls
+    private final float [][] lhs_levels;
+    private final float [][] rhs_levels;
+    private float [] temp; // for the output of the horizontal pass of a filter
+    private int [] path; // the centre of the blend window for each row of the current level
+
+    /** Creates a blender that runs on the pool shared with JavaHDRProcessor.
+     * @param n_levels The number of levels to reduce by, so the pyramids have n_levels+1 levels.
+     */
+    public JavaPyramidBlender(int n_levels) {
+        this(n_levels, JavaHDRProcessor.getSharedPool());
+    }
+
+    /** Creates a blender that runs on the supplied pool.
+     * @param n_levels The number of levels to reduce by, so the pyramids have n_levels+1 levels.
+     */
+    public JavaPyramidBlender(int n_levels, ForkJoinPool pool) {
+        if( n_levels < 1 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid n_levels: " + n_levels);
+        }
+        this.n_levels = n_levels;
+        this.pool = pool;
+        this.lhs_levels = new float[n_levels+1][];
+        this.rhs_levels = new float[n_levels+1][];
+    }
+
+    /** Images passed to blend() must have width and height each a multiple of this value.
+     */
+    public int getBlendDimension() {
+        return 1 << n_levels;
+    }
+
+    /** Frees the buffers. They will be reallocated if blend() is called again.
+     */
+    public void releaseBuffers() {
+        for(int i=0;i<=n_levels;i++) {
+            lhs_levels[i] = null;
+            rhs_levels[i] = null;
+        }
+        temp = null;
+        path = null;
+    }
+
+    private static float [] ensureCapacity(float [] buffer, int size) {
+        if( buffer == null || buffer.length < size ) {
+            return new float[size];
+        }
+        return buffer;
+    }
+
+    /** Computes the centre of the blend window for each row, interpolating the best path. Each best path value x selects a centre between a quarter and three
+     *  quarters of the width, and the path is interpolated linearly between rows (but kept constant
+     *  near the centre of each entry).
+     * @param result      Array of at least height entries, to store the centre for each row.
+     * @param best_path   For each of best_path.length bands of rows, a value from 0 to
+     *                    best_path_n_x-1.
+     */
+    public static void computeInterpolatedBestPath(int [] result, int [] best_path, int best_path_n_x, int width, int height) {
+        float best_path_y_scale = best_path.length/(float)height;
+        for(int y=0;y<height;y++) {
+            float best_path_y_index = ((y+0.5f)*best_path_y_scale);
+            float best_path_value;
+            if( best_path_y_index <= 0.5f ) {
+                best_path_value = best_path[0];
+            }
+            else if( best_path_y_index >= best_path.length-1+0.5f ) {
+                best_path_value = best_path[best_path.length-1];
+            }
+            else {
+                best_path_y_index -= 0.5f;
+                int best_path_y_index_i = (int)best_path_y_index;
+                float linear_alpha = best_path_y_index - best_path_y_index_i;
+                final float edge_length = 0.1f;
+                float alpha;
+                if( linear_alpha < edge_length )
+                    alpha = 0.0f;
+                else if( linear_alpha > 1.0f-edge_length )
+                    alpha = 1.0f;
+                else
+                    alpha = (linear_alpha - edge_length) / (1.0f - 2.0f*edge_length);
+                int prev_best_path = best_path[best_path_y_index_i];
+                int next_best_path = best_path[best_path_y_index_i+1];
+                best_path_value = (1.0f-alpha) * prev_best_path + alpha * next_best_path;
+            }
+            float alpha = best_path_value / (best_path_n_x-1.0f);
+            float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
+            result[y] = (int)(frac*width + 0.5f);
+        }
+    }
+
+    /** Returns the width of the blend region at a level: the top level blends over half the width
+     *  of the images, and lower levels over a narrower region.
+     * @param level_width The width of the images at this level.
+     */
+    private int getLevelBlendWidth(int level, int level_width) {
+        int blend_window_width = level_width/2;
+        int blend_width;
+        if( level == n_levels ) {
+            blend_width = blend_window_width;
+        }
+        else {
+            blend_width = Math.min(2 << level, blend_window_width);
+        }
+        return blend_width;
+    }
+
+    /** Blends from lhs on the left to rhs on the right, following the best path.
+     * @param lhs           The left hand image, as ARGB pixels (the array may be longer than
+     *                      width*height).
+     * @param rhs           The right hand image, as ARGB pixels.
+     * @param width         The width of the images, must be a multiple of getBlendDimension().
+     * @param height        The height of the images, must be a multiple of getBlendDimension().
+     * @param best_path     The path for the centre of the blend, see computeInterpolatedBestPath();
+     *                      if null, the blend is centred.
+     * @param best_path_n_x The number of possible values of each best_path entry.
+     * @param output        Array of at least width*height pixels to store the result in. This may
+     *                      be lhs or rhs.
+     */
+    public void blend(int [] lhs, int [] rhs, int width, int height, int [] best_path, int best_path_n_x, int [] output) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "blend: " + width + " x " + height);
+        long time_s = 0;
+        if( MyDebug.LOG )
+            time_s = System.currentTimeMillis();
+
+        final int blend_dimension = getBlendDimension();
+        if( width % blend_dimension != 0 || height % blend_dimension != 0 || width <= 0 || height <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("image size " + width + " x " + height + " not a multiple of " + blend_dimension);
+        }
+        else if( lhs.length < width*height || rhs.length < width*height || output.length < width*height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("arrays too small for image size");
+        }
+        if( best_path == null ) {
+            best_path = new int[]{1};
+            best_path_n_x = 3;
+        }
+        if( path == null || path.length < height ) {
+            path = new int[height];
+        }
+
+        // allocate buffers
+        for(int i=0;i<=n_levels;i++) {
+            int size = 3*(width >> i)*(height >> i);
+            lhs_levels[i] = ensureCapacity(lhs_levels[i], size);
+            rhs_levels[i] = ensureCapacity(rhs_levels[i], size);
+        }
+        temp = ensureCapacity(temp, 3*(width/2)*height);
+
+        createLaplacianPyramid(lhs, lhs_levels, width, height);
+        createLaplacianPyramid(rhs, rhs_levels, width, height);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating pyramids: " + (System.currentTimeMillis() - time_s));
+
+        for(int i=0;i<=n_levels;i++) {
+            int level_width = width >> i;
+            int blend_width = getLevelBlendWidth(i, level_width);
+            computeInterpolatedBestPath(path, best_path, best_path_n_x, level_width, height >> i);
+            mergeLevel(lhs_levels[i], rhs_levels[i], level_width, height >> i, blend_width);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after merging: " + (System.currentTimeMillis() - time_s));
+
+        // collapse
+        for(int i=n_levels-1;i>=0;i--) {
+            expand(lhs_levels[i+1], width >> (i+1), height >> (i+1), lhs_levels[i], 1.0f);
+        }
+        writeOutput(lhs_levels[0], width, height, output);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### blend time: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Processes the rows [y_start, y_stop) of an image.
+     */
+    private interface RowKernel {
+        void processRows(int y_start, int y_stop);
+    }
+
+    /** Runs a kernel on the rows [y_start, y_stop), splitting into subtasks until the number of rows
+     *  is at most tile_height_c.
+     */
+    private static class RowTask extends RecursiveAction {
+        private final RowKernel kernel;
+        private final int y_start;
+        private final int y_stop;
+
+        RowTask(RowKernel kernel, int y_start, int y_stop) {
+            this.kernel = kernel;
+            this.y_start = y_start;
+            this.y_stop = y_stop;
+        }
+
+        @Override
+        protected void compute() {
+            if( y_stop - y_start <= tile_height_c ) {
+                kernel.processRows(y_start, y_stop);
+            }
+            else {
+                int y_mid = (y_start + y_stop)/2;
+                invokeAll(new RowTask(kernel, y_start, y_mid), new RowTask(kernel, y_mid, y_stop));
+            }
+        }
+    }
+
+    private void forEachRow(int height, RowKernel kernel) {
+        if( height > 0 ) {
+            pool.invoke(new RowTask(kernel, 0, height));
+        }
+    }
+
+    /** Converts image to floats in levels[0], and creates the Laplacian pyramid in place.
+     */
+    private void createLaplacianPyramid(final int [] image, float [][] levels, final int width, int height) {
+        final float [] level0 = levels[0];
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int src = y*width;
+                    int dst = 3*src;
+                    for(int x=0;x<width;x++,src++,dst+=3) {
+                        int color = image[src];
+                        level0[dst] = (color >> 16) & 0xFF;
+                        level0[dst+1] = (color >> 8) & 0xFF;
+                        level0[dst+2] = color & 0xFF;
+                    }
+                }
+            }
+        });
+        // gaussian pyramid
+        for(int i=0;i<n_levels;i++) {
+            reduce(levels[i], width >> i, height >> i, levels[i+1]);
+        }
+        // replace each level except the top by the difference from the expanded level above (which
+        // is still the gaussian level, as we go from the bottom)
+        for(int i=0;i<n_levels;i++) {
+            expand(levels[i+1], width >> (i+1), height >> (i+1), levels[i], -1.0f);
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    /** Blurs and downsamples src by a factor of 2 in each direction, storing the result in dst.
+     */
+    private void reduce(final float [] src, final int width, final int height, final float [] dst) {
+        final int reduced_width = width/2;
+        final int reduced_height = height/2;
+        final float [] temp = this.temp;
+        // horizontal pass: every row of src, every other column
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int row = 3*y*width;
+                    int out = 3*y*reduced_width;
+                    for(int x=0;x<reduced_width;x++,out+=3) {
+                        int sx = 2*x;
+                        int i0 = row + 3*clamp(sx-2, width-1);
+                        int i1 = row + 3*clamp(sx-1, width-1);
+                        int i2 = row + 3*sx;
+                        int i3 = row + 3*clamp(sx+1, width-1);
+                        int i4 = row + 3*clamp(sx+2, width-1);
+                        for(int c=0;c<3;c++) {
+                            temp[out+c] = g0*(src[i0+c] + src[i4+c]) + g1*(src[i1+c] + src[i3+c]) + g2*src[i2+c];
+                        }
+                    }
+                }
+            }
+        });
+        // vertical pass: every other row
+        final int stride = 3*reduced_width;
+        forEachRow(reduced_height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int sy = 2*y;
+                    int r0 = stride*clamp(sy-2, height-1);
+                    int r1 = stride*clamp(sy-1, height-1);
+                    int r2 = stride*sy;
+                    int r3 = stride*clamp(sy+1, height-1);
+                    int r4 = stride*clamp(sy+2, height-1);
+                    int out = stride*y;
+                    for(int i=0;i<stride;i++) {
+                        dst[out+i] = g0*(temp[r0+i] + temp[r4+i]) + g1*(temp[r1+i] + temp[r3+i]) + g2*temp[r2+i];
+                    }
+                }
+            }
+        });
+    }
+
+    /** Upsamples src by a factor of 2 in each direction, inserting zeroes, and blurs; the result
+     *  multiplied by sign is added to dst.
+     * @param width  The width of src.
+     * @param height The height of src.
+     */
+    private void expand(final float [] src, final int width, final int height, final float [] dst, final float sign) {
+        final int expanded_width = 2*width;
+        final float [] temp = this.temp;
+        // horizontal pass: every row of src; of the 5 taps, only those at even x are non-zero, and
+        // the result is doubled to preserve brightness
+        final float e0 = 2.0f*g0, e1 = 2.0f*g1, e2 = 2.0f*g2;
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int row = 3*y*width;
+                    int out = 3*y*expanded_width;
+                    for(int x=0;x<width;x++,out+=6) {
+                        int i0 = row + 3*clamp(x-1, width-1);
+                        int i1 = row + 3*x;
+                        int i2 = row + 3*clamp(x+1, width-1);
+                        for(int c=0;c<3;c++) {
+                            // even column 2x, then odd column 2x+1
+                            temp[out+c] = e0*(src[i0+c] + src[i2+c]) + e2*src[i1+c];
+                            temp[out+3+c] = e1*(src[i1+c] + src[i2+c]);
+                        }
+                    }
+                }
+            }
+        });
+        // vertical pass
+        final int stride = 3*expanded_width;
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int r0 = stride*clamp(y-1, height-1);
+                    int r1 = stride*y;
+                    int r2 = stride*clamp(y+1, height-1);
+                    int out_even = stride*2*y;
+                    int out_odd = out_even + stride;
+                    for(int i=0;i<stride;i++) {
+                        dst[out_even+i] += sign*(e0*(temp[r0+i] + temp[r2+i]) + e2*temp[r1+i]);
+                        dst[out_odd+i] += sign*(e1*(temp[r1+i] + temp[r2+i]));
+                    }
+                }
+            }
+        });
+    }
+
+    /** Blends level1 over the right hand side of level0, storing the result in level0. For each
+     *  row y, the blend region is blend_width pixels wide, centred on path[y]; see merge_core() in
+     *  pyramid_blending.rs.
+     */
+    private void mergeLevel(final float [] level0, final float [] level1, final int width, int height, final int blend_width) {
+        final int [] path = this.path;
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int start_x = path[y] - blend_width/2;
+                    int i = 3*y*width;
+                    for(int x=0;x<width;x++,i+=3) {
+                        float alpha = ((float)(x - start_x)) / (float)blend_width;
+                        if( alpha <= 0.0f ) {
+                            continue;
+                        }
+                        else if( alpha >= 1.0f ) {
+                            level0[i] = level1[i];
+                            level0[i+1] = level1[i+1];
+                            level0[i+2] = level1[i+2];
+                        }
+                        else {
+                            for(int c=0;c<3;c++) {
+                                level0[i+c] += alpha*(level1[i+c] - level0[i+c]);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static int toByte(float value) {
+        // equivalent of (uchar)clamp(value+0.5f, 0.0f, 255.0f)
+        return (int)Math.max(0.0f, Math.min(value+0.5f, 255.0f));
+    }
+
+    /** Converts level0 back to ARGB pixels.
+     */
+    private void writeOutput(final float [] level0, final int width, int height, final int [] output) {
+        forEachRow(height, new RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int dst = y*width;
+                    int src = 3*dst;
+                    for(int x=0;x<width;x++,src+=3,dst++) {
+                        output[dst] = 0xFF000000 | (toByte(level0[src]) << 16) | (toByte(level0[src+1]) << 8) | toByte(level0[src+2]);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,125 @@
+package net.sourceforge.opencamera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Allows replacing the header of a JPEG (the segments before the image data, which include the
+ *  Exif APP1 segment) without copying or rewriting the image data, so that a JPEG with modified Exif
+ *  tags can be written in a single pass.
+ *  getHeader() returns the header as a JPEG file with no image data (i.e., terminated by an EOI
+ *  marker), which can be modified by an ExifInterface; the modified header is then passed to
+ *  setHeader(), and writeTo() writes the modified header followed by the original image data (and
+ *  anything after it).
+ */
+public class JpegExifSplicer {
+    private static final int marker_c = 0xFF;
+    private static final int marker_soi_c = 0xD8;
+    private static final int marker_eoi_c = 0xD9;
+    private static final int marker_sos_c = 0xDA;
+
+    private final byte [] jpeg;
+    private final int jpeg_length; // the JPEG is the first jpeg_length bytes of jpeg
+    private final int scan_start; // offset in jpeg of the start of scan marker
+    private byte [] header; // the header to write, or null if using the original header
+    private int header_length; // length of header to write, excluding the EOI marker
+
+    /** Parses the JPEG, which isn't copied, so must not be modified until no longer using this
+     *  object.
+     * @throws IOException If jpeg isn't a JPEG with image data.
+     */
+    public JpegExifSplicer(byte [] jpeg) throws IOException {
+        this(jpeg, jpeg.length);
+    }
+
+    /** As JpegExifSplicer(byte []), but for a JPEG that is the first jpeg_length bytes of jpeg
+     *  (e.g., the array of an ImageBuffer).
+     */
+    public JpegExifSplicer(byte [] jpeg, int jpeg_length) throws IOException {
+        this.jpeg = jpeg;
+        this.jpeg_length = jpeg_length;
+        this.scan_start = findHeaderEnd(jpeg, jpeg_length, marker_sos_c);
+        this.header_length = scan_start;
+    }
+
+    /** Returns the offset of the image data, i.e., the length of the original header.
+     */
+    public int getScanStart() {
+        return scan_start;
+    }
+
+    /** Returns a copy of the original header, as a JPEG with no image data.
+     */
+    public byte [] getHeader() {
+        byte [] result = new byte[scan_start+2];
+        System.arraycopy(jpeg, 0, result, 0, scan_start);
+        result[scan_start] = (byte)marker_c;
+        result[scan_start+1] = (byte)marker_eoi_c;
+        return result;
+    }
+
+    /** Sets the header to write in place of the original one. This should be a JPEG with no
+     *  image data, as returned by getHeader() (after modifying the Exif tags).
+     * @throws IOException If new_header isn't a JPEG terminated by an EOI marker.
+     */
+    public void setHeader(byte [] new_header, int length) throws IOException {
+        this.header_length = findHeaderEnd(new_header, length, marker_eoi_c);
+        this.header = new_header;
+    }
+
+    /** Returns the number of bytes that writeTo() will write.
+     */
+    public long getOutputLength() {
+        return header_length + (long)(jpeg_length - scan_start);
+    }
+
+    /** Writes the JPEG with the header set by setHeader().
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(header != null ? header : jpeg, 0, header_length);
+        outputStream.write(jpeg, scan_start, jpeg_length - scan_start);
+    }
+
+    /** Returns the offset of the first marker that ends the header (either a start of scan or end
+     *  of image marker).
+     * @throws IOException If the data isn't a JPEG, or if the first such marker isn't end_marker.
+     */
+    private static int findHeaderEnd(byte [] data, int length, int end_marker) throws IOException {
+        if( length < 4 || (data[0] & 0xFF) != marker_c || (data[1] & 0xFF) != marker_soi_c ) {
+            throw new IOException("not a jpeg");
+        }
+        int pos = 2;
+        while( true ) {
+            if( pos + 2 > length || (data[pos] & 0xFF) != marker_c ) {
+                throw new IOException("invalid jpeg marker at " + pos);
+            }
+            int marker_pos = pos;
+            // markers may be preceded by any number of fill bytes
+            while( pos + 1 < length && (data[pos+1] & 0xFF) == marker_c ) {
+                pos++;
+            }
+            if( pos + 1 >= length ) {
+                throw new IOException("truncated jpeg");
+            }
+            int marker = data[pos+1] & 0xFF;
+            pos += 2;
+            if( marker == marker_sos_c || marker == marker_eoi_c ) {
+                if( marker != end_marker ) {
+                    throw new IOException("unexpected jpeg marker: " + marker);
+                }
+                return marker_pos;
+            }
+            else if( marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7) ) {
+                // TEM or RSTn, which have no length
+                continue;
+            }
+            if( pos + 2 > length ) {
+                throw new IOException("truncated jpeg");
+            }
+            int segment_length = ((data[pos] & 0xFF) << 8) | (data[pos+1] & 0xFF);
+            if( segment_length < 2 ) {
+                throw new IOException("invalid jpeg segment length: " + segment_length);
+            }
+            pos += segment_length;
+        }
+    }
+}
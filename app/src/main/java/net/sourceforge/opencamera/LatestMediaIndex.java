@@ -0,0 +1,147 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** Index of the most recent media saved for each save location, so that the gallery thumbnail can
+ *  be found without querying the whole MediaStore bucket or listing the whole SAF folder.
+ *  An entry is only a hint: StorageUtils checks that the entry is still valid (the media still
+ *  exists, and the stamp shows nothing newer has been added to the save location) before using
+ *  it, and otherwise falls back to a full scan.
+ *  This class only holds the entries, and converts them to and from a string so that StorageUtils
+ *  can persist them in the shared preferences.
+ */
+public class LatestMediaIndex {
+    private static final String TAG = "LatestMediaIndex";
+
+    /** Maximum number of save locations to remember, the least recently used are discarded.
+     */
+    static final int max_entries_c = 6;
+
+    public static class Entry {
+        public final String location; // identifies the save location
+        public final String uri; // the uri of the latest media: a SAF uri if mediastore==false, otherwise a mediastore uri
+        public final boolean mediastore;
+        public final boolean video;
+        /** Used to check whether the save location has changed since the entry was recorded. For
+         *  mediastore this is the largest id in the save location's bucket; for SAF this is the
+         *  last modified time of the folder.
+         */
+        public final long stamp;
+
+        public Entry(String location, String uri, boolean mediastore, boolean video, long stamp) {
+            this.location = location;
+            this.uri = uri;
+            this.mediastore = mediastore;
+            this.video = video;
+            this.stamp = stamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if( !(o instanceof Entry) )
+                return false;
+            Entry that = (Entry)o;
+            return this.location.equals(that.location) && this.uri.equals(that.uri) &&
+                    this.mediastore == that.mediastore && this.video == that.video && this.stamp == that.stamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return location.hashCode() ^ uri.hashCode();
+        }
+    }
+
+    // ordered from least to most recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    public synchronized Entry get(String location) {
+        return entries.get(location);
+    }
+
+    /** Adds or replaces the entry for its save location, and marks it as the most recently used.
+     *  Entries that can't be stored (e.g., containing tab or newline characters) are ignored.
+     */
+    public synchronized void put(Entry entry) {
+        if( !isValidString(entry.location) || !isValidString(entry.uri) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't store entry for: " + entry.location);
+            entries.remove(entry.location);
+            return;
+        }
+        entries.remove(entry.location);
+        entries.put(entry.location, entry);
+        Iterator<String> iter = entries.keySet().iterator();
+        while( entries.size() > max_entries_c ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    public synchronized void remove(String location) {
+        entries.remove(location);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static boolean isValidString(String string) {
+        return string != null && string.indexOf('\t') == -1 && string.indexOf('\n') == -1;
+    }
+
+    /** Returns a string representation of the index, suitable for storing in the shared
+     *  preferences: one line per entry, from least to most recently used, with fields separated by
+     *  tabs.
+     */
+    public synchronized String serialize() {
+        StringBuilder builder = new StringBuilder();
+        for(Entry entry : entries.values()) {
+            builder.append(entry.location).append('\t');
+            builder.append(entry.uri).append('\t');
+            builder.append(entry.mediastore ? '1' : '0').append('\t');
+            builder.append(entry.video ? '1' : '0').append('\t');
+            builder.append(entry.stamp).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /** Creates an index from a string returned by serialize(). Lines that can't be parsed are
+     *  skipped.
+     */
+    public static LatestMediaIndex deserialize(String string) {
+        LatestMediaIndex index = new LatestMediaIndex();
+        if( string == null ) {
+            return index;
+        }
+        List<Entry> parsed = new ArrayList<>();
+        for(String line : string.split("\n")) {
+            String [] fields = line.split("\t", -1);
+            if( fields.length != 5 ) {
+                continue;
+            }
+            try {
+                long stamp = Long.parseLong(fields[4]);
+                parsed.add(new Entry(fields[0], fields[1], fields[2].equals("1"), fields[3].equals("1"), stamp));
+            }
+            catch(NumberFormatException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to parse: " + line);
+            }
+        }
+        for(Entry entry : parsed) {
+            index.put(entry);
+        }
+        return index;
+    }
+
+    /** For testing: returns the locations from least to most recently used.
+     */
+    public synchronized List<String> getLocations() {
+        return new ArrayList<>(entries.keySet());
+    }
+}
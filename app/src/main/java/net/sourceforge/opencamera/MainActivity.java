@@ -138,9 +138,31 @@ public class MainActivity extends AppCompatActivity {
     private ValueAnimator gallery_save_anim;
     private boolean last_continuous_fast_burst; // whether the last photo operation was a continuous_fast_burst
     private Future<?> update_gallery_future;
+    private final ThumbnailProvider thumbnailProvider = new ThumbnailProvider((int)Math.min(Runtime.getRuntime().maxMemory()/32, Integer.MAX_VALUE));
 
     private TextToSpeech textToSpeech;
     private boolean textToSpeechSuccess;
+    private StartupInitializer startupInitializer;
+    private final Handler startup_handler = new Handler();
+    private static final long deferred_startup_timeout_c = 3000; // run deferred startup tasks after this time (in ms), even if the camera hasn't started
+    // in case we never receive a frame from the camera (e.g., camera fails to open), don't defer the remaining startup
+    // tasks indefinitely - posted when resuming, and cancelled when pausing
+    private final Runnable deferred_startup_timeout_runnable = new Runnable() {
+        @Override
+        public void run() {
+            if( MyDebug.LOG )
+                Log.d(TAG, "run deferred startup tasks after timeout");
+            runDeferredStartup();
+        }
+    };
+    // posted when we receive the first frame from the camera, so that the deferred startup tasks aren't run from
+    // within drawing the preview
+    private final Runnable deferred_startup_first_frame_runnable = new Runnable() {
+        @Override
+        public void run() {
+            runDeferredStartup();
+        }
+    };
 
     private AudioListener audio_listener; // may be null - created when needed
 
@@ -231,7 +253,7 @@ public class MainActivity extends AppCompatActivity {
     private int cached_display_rotation;
 
     @Override
-    protected void onCreate(Bundle savedInstanceState) {
+    protected void onCreate(final Bundle savedInstanceState) {
         long debug_time = 0;
         if( MyDebug.LOG ) {
             Log.d(TAG, "onCreate: " + this);
@@ -267,7 +289,7 @@ public class MainActivity extends AppCompatActivity {
             if( MyDebug.LOG )
                 Log.d(TAG, "shortcut: " + getIntent().getAction());
         }
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
         // determine whether we should support "auto stabilise" feature
         // risk of running out of memory on lower end devices, due to manipulation of large bitmaps
@@ -292,6 +314,131 @@ public class MainActivity extends AppCompatActivity {
         if( MyDebug.LOG )
             Log.d(TAG, "supports_force_video_4k? " + supports_force_video_4k);
 
+        final boolean has_done_first_time = sharedPreferences.contains(PreferenceKeys.FirstTimePreferenceKey);
+        if( MyDebug.LOG )
+            Log.d(TAG, "has_done_first_time: " + has_done_first_time);
+
+        // Set up the components as a graph of tasks, so that independent work can run in parallel on background
+        // threads. Tasks that aren't needed to show the camera are deferred until we receive the first frame
+        // from the camera (see checkFirstPreviewFrame()).
+        startupInitializer = new StartupInitializer();
+        startupInitializer.addTask("camera2_support", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                // determine whether we support Camera2 API
+                initCamera2Support();
+            }
+        });
+        startupInitializer.addTask("components", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                initComponents(savedInstanceState);
+            }
+        });
+        startupInitializer.addTask("sensors", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                initSensors();
+            }
+        }, "components");
+        startupInitializer.addTask("folder_history", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                initFolderHistory();
+            }
+        }, "components");
+        startupInitializer.addTask("listeners", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                initListeners();
+            }
+        }, "components");
+        startupInitializer.addTask("device_defaults", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                // set some per-device defaults
+                // must be done before creating the Preview (as setDeviceDefaults() may set Camera2 API)
+                if( !has_done_first_time ) {
+                    // must be done after initCamera2Support()
+                    setDeviceDefaults();
+                }
+            }
+        }, "camera2_support", "components");
+        startupInitializer.addTask("window_flags", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                // set up window flags for normal operation
+                setWindowFlagsForCamera();
+            }
+        }, "components");
+        startupInitializer.addTask("preview", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                initPreview();
+            }
+        }, "camera2_support", "device_defaults", "window_flags");
+        startupInitializer.addTask("multi_camera", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                initMultiCamera();
+            }
+        }, "preview");
+        startupInitializer.addTask("dialogs", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                showStartupDialogs(sharedPreferences, has_done_first_time);
+            }
+        }, "components");
+        startupInitializer.addTask("on_screen_buttons", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                initOnScreenButtons();
+            }
+        }, "preview", "multi_camera");
+        startupInitializer.addTask("intents", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                setModeFromIntents(savedInstanceState);
+            }
+        }, "preview", "folder_history", "sensors", "on_screen_buttons");
+
+        startupInitializer.addTask("icons", StartupInitializer.Phase.PHASE_DEFERRED, true, new Runnable() {
+            public void run() {
+                // load icons
+                preloadIcons(R.array.flash_icons);
+                preloadIcons(R.array.focus_mode_icons);
+            }
+        });
+        startupInitializer.addTask("speech", StartupInitializer.Phase.PHASE_DEFERRED, true, new Runnable() {
+            public void run() {
+                initTextToSpeech();
+            }
+        });
+        startupInitializer.addTask("location", StartupInitializer.Phase.PHASE_DEFERRED, false, new Runnable() {
+            public void run() {
+                // n.b., onResume() doesn't start location until we've run the deferred tasks
+                initLocation();
+            }
+        }, "components");
+        startupInitializer.addTask("bluetooth_remote", StartupInitializer.Phase.PHASE_DEFERRED, false, new Runnable() {
+            public void run() {
+                // n.b., onResume() doesn't start the remote control until we've run the deferred tasks
+                bluetoothRemoteControl.startRemoteControl();
+            }
+        }, "components");
+
+        startupInitializer.runStartup();
+        // n.b., the timeout for the deferred tasks is started in onResume()
+
+        // create notification channel - only needed on Android 8+
+        // update: notifications now removed due to needing permissions on Android 13+
+        /*if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+            CharSequence name = "Open Camera Image Saving";
+            String description = "Notification channel for processing and saving images in the background";
+            int importance = NotificationManager.IMPORTANCE_LOW;
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, name, importance);
+            channel.setDescription(description);
+            // Register the channel with the system; you can't change the importance
+            // or other notification behaviors after this
+            NotificationManager notificationManager = getSystemService(NotificationManager.class);
+            notificationManager.createNotificationChannel(channel);
+        }*/
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "onCreate: total time for Activity startup: " + (System.currentTimeMillis() - debug_time));
+    }
+
+    /** Creates the components that the rest of the activity depends on.
+     */
+    private void initComponents(Bundle savedInstanceState) {
         // set up components
         bluetoothRemoteControl = new BluetoothRemoteControl(this);
         permissionHandler = new PermissionHandler(this);
@@ -299,32 +446,15 @@ public class MainActivity extends AppCompatActivity {
         mainUI = new MainUI(this);
         manualSeekbars = new ManualSeekbars();
         applicationInterface = new MyApplicationInterface(this, savedInstanceState);
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating application interface: " + (System.currentTimeMillis() - debug_time));
         textFormatter = new TextFormatter(this);
         soundPoolManager = new SoundPoolManager(this);
         magneticSensor = new MagneticSensor(this);
         //speechControl = new SpeechControl(this);
+    }
 
-        // determine whether we support Camera2 API
-        // must be done before setDeviceDefaults()
-        initCamera2Support();
-
-        // set some per-device defaults
-        // must be done before creating the Preview (as setDeviceDefaults() may set Camera2 API)
-        boolean has_done_first_time = sharedPreferences.contains(PreferenceKeys.FirstTimePreferenceKey);
-        if( MyDebug.LOG )
-            Log.d(TAG, "has_done_first_time: " + has_done_first_time);
-        if( !has_done_first_time ) {
-            // must be done after initCamera2Support()
-            setDeviceDefaults();
-        }
-
-        // set up window flags for normal operation
-        setWindowFlagsForCamera();
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after setting window flags: " + (System.currentTimeMillis() - debug_time));
-
+    /** Sets up the history of save folders, called on a background thread during startup.
+     */
+    private void initFolderHistory() {
         save_location_history = new SaveLocationHistory(this, PreferenceKeys.SaveLocationHistoryBasePreferenceKey, getStorageUtils().getSaveLocation());
         checkSaveLocations();
         if( applicationInterface.getStorageUtils().isUsingSAF() ) {
@@ -332,9 +462,11 @@ public class MainActivity extends AppCompatActivity {
                 Log.d(TAG, "create new SaveLocationHistory for SAF");
             save_location_history_saf = new SaveLocationHistory(this, PreferenceKeys.SaveLocationHistorySAFBasePreferenceKey, getStorageUtils().getSaveLocationSAF());
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after updating folder history: " + (System.currentTimeMillis() - debug_time));
+    }
 
+    /** Finds the sensors, called on a background thread during startup.
+     */
+    private void initSensors() {
         // set up sensors
         mSensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
 
@@ -348,21 +480,17 @@ public class MainActivity extends AppCompatActivity {
             if( MyDebug.LOG )
                 Log.d(TAG, "no support for accelerometer");
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating accelerometer sensor: " + (System.currentTimeMillis() - debug_time));
 
         // magnetic sensor (for compass direction)
         magneticSensor.initSensor(mSensorManager);
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating magnetic sensor: " + (System.currentTimeMillis() - debug_time));
+    }
 
+    private void initPreview() {
         // clear any seek bars (just in case??)
         mainUI.closeExposureUI();
 
         // set up the camera and its preview
         preview = new Preview(applicationInterface, (this.findViewById(R.id.preview)));
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating preview: " + (System.currentTimeMillis() - debug_time));
 
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 ) {
             // don't show orientation animations
@@ -383,7 +511,12 @@ public class MainActivity extends AppCompatActivity {
                 layout.rotationAnimation = WindowManager.LayoutParams.ROTATION_ANIMATION_JUMPCUT;
             getWindow().setAttributes(layout);
         }
+    }
 
+    /** Determines whether to show the separate icon for switching between multiple cameras, called
+     *  on a background thread during startup.
+     */
+    private void initMultiCamera() {
         // Setup multi-camera buttons (must be done after creating preview so we know which Camera API is being used,
         // and before initialising on-screen visibility).
         // We only allow the separate icon for switching cameras if:
@@ -434,15 +567,15 @@ public class MainActivity extends AppCompatActivity {
                 this.other_camera_ids = null;
             }
         }
+    }
 
+    private void initOnScreenButtons() {
         // initialise on-screen button visibility
         View switchCameraButton = findViewById(R.id.switch_camera);
-        switchCameraButton.setVisibility(n_cameras > 1 ? View.VISIBLE : View.GONE);
+        switchCameraButton.setVisibility(preview.getCameraControllerManager().getNumberOfCameras() > 1 ? View.VISIBLE : View.GONE);
         // switchMultiCameraButton visibility updated below in mainUI.updateOnScreenIcons(), as it also depends on user preference
         View speechRecognizerButton = findViewById(R.id.audio_control);
         speechRecognizerButton.setVisibility(View.GONE); // disabled by default, until the speech recognizer is created
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after setting button visibility: " + (System.currentTimeMillis() - debug_time));
         View pauseVideoButton = findViewById(R.id.pause_video);
         pauseVideoButton.setVisibility(View.GONE);
         View takePhotoVideoButton = findViewById(R.id.take_photo_when_video_recording);
@@ -465,7 +598,10 @@ public class MainActivity extends AppCompatActivity {
 
         // initialise state of on-screen icons
         mainUI.updateOnScreenIcons();
+    }
 
+    private void initListeners() {
+        View takePhotoButton = findViewById(R.id.take_photo);
         if( MainActivity.lock_to_landscape ) {
             // listen for orientation event change (only required if lock_to_landscape==true
             // (MainUI.onOrientationChanged() does nothing if lock_to_landscape==false)
@@ -475,8 +611,6 @@ public class MainActivity extends AppCompatActivity {
                     MainActivity.this.mainUI.onOrientationChanged(orientation);
                 }
             };
-            if( MyDebug.LOG )
-                Log.d(TAG, "onCreate: time after setting orientation event listener: " + (System.currentTimeMillis() - debug_time));
         }
 
         layoutChangeListener = new View.OnLayoutChangeListener() {
@@ -556,18 +690,16 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             }
         });
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after setting long click listeners: " + (System.currentTimeMillis() - debug_time));
 
         // listen for gestures
         gestureDetector = new GestureDetector(this, new MyGestureDetector());
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating gesture detector: " + (System.currentTimeMillis() - debug_time));
 
         setupSystemUiVisibilityListener();
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after setting system ui visibility listener: " + (System.currentTimeMillis() - debug_time));
+    }
 
+    /** Shows the first time or What's New dialogs, if required.
+     */
+    private void showStartupDialogs(SharedPreferences sharedPreferences, boolean has_done_first_time) {
         // show "about" dialog for first time use
         if( !has_done_first_time ) {
             if( !is_test ) {
@@ -652,55 +784,64 @@ public class MainActivity extends AppCompatActivity {
                 editor.apply();
             }
         }
+    }
 
-        setModeFromIntents(savedInstanceState);
-
-        // load icons
-        preloadIcons(R.array.flash_icons);
-        preloadIcons(R.array.focus_mode_icons);
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after preloading icons: " + (System.currentTimeMillis() - debug_time));
-
-        // initialise text to speech engine
+    /** Initialises the text to speech engine, called on a background thread as this can be slow.
+     */
+    private void initTextToSpeech() {
         textToSpeechSuccess = false;
-        // run in separate thread so as to not delay startup time
-        new Thread(new Runnable() {
-            public void run() {
-                textToSpeech = new TextToSpeech(MainActivity.this, new TextToSpeech.OnInitListener() {
-                    @Override
-                    public void onInit(int status) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "TextToSpeech initialised");
-                        if( status == TextToSpeech.SUCCESS ) {
-                            textToSpeechSuccess = true;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "TextToSpeech succeeded");
-                        }
-                        else {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "TextToSpeech failed");
-                        }
-                    }
-                });
+        textToSpeech = new TextToSpeech(this, new TextToSpeech.OnInitListener() {
+            @Override
+            public void onInit(int status) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "TextToSpeech initialised");
+                if( status == TextToSpeech.SUCCESS ) {
+                    textToSpeechSuccess = true;
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "TextToSpeech succeeded");
+                }
+                else {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "TextToSpeech failed");
+                }
             }
-        }).start();
+        });
+    }
 
-        // create notification channel - only needed on Android 8+
-        // update: notifications now removed due to needing permissions on Android 13+
-        /*if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
-            CharSequence name = "Open Camera Image Saving";
-            String description = "Notification channel for processing and saving images in the background";
-            int importance = NotificationManager.IMPORTANCE_LOW;
-            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, name, importance);
-            channel.setDescription(description);
-            // Register the channel with the system; you can't change the importance
-            // or other notification behaviors after this
-            NotificationManager notificationManager = getSystemService(NotificationManager.class);
-            notificationManager.createNotificationChannel(channel);
-        }*/
+    /** Runs the deferred startup tasks, if they haven't already been run.
+     */
+    private void runDeferredStartup() {
+        if( app_is_paused ) {
+            // will be rescheduled when resuming, see onResume()
+            if( MyDebug.LOG )
+                Log.d(TAG, "don't run deferred startup tasks as paused");
+        }
+        else if( !startupInitializer.hasStartedDeferred() ) {
+            startup_handler.removeCallbacks(deferred_startup_timeout_runnable);
+            startupInitializer.runDeferred();
+            if( MyDebug.LOG )
+                Log.d(TAG, "startup trace: " + startupInitializer.getTrace());
+        }
+    }
 
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: total time for Activity startup: " + (System.currentTimeMillis() - debug_time));
+    /** Called whenever the preview is drawn, to detect when we first receive a frame from the camera
+     *  after startup, and then post running the deferred startup tasks.
+     */
+    void checkFirstPreviewFrame() {
+        if( startupInitializer.hasStartedDeferred() ) {
+            return;
+        }
+        CameraController camera_controller = preview.getCameraController();
+        if( camera_controller != null && preview.isPreviewStarted() && !camera_controller.shouldCoverPreview() ) {
+            startupInitializer.mark("first_frame");
+            // n.b., removed first so we don't queue up multiple runnables if further frames are drawn before it runs
+            startup_handler.removeCallbacks(deferred_startup_first_frame_runnable);
+            startup_handler.post(deferred_startup_first_frame_runnable);
+        }
+    }
+
+    public StartupInitializer getStartupInitializer() {
+        return startupInitializer;
     }
 
     /** Whether to use codepaths that are compatible with scoped storage.
@@ -1198,6 +1339,7 @@ public class MainActivity extends AppCompatActivity {
         activity_count--;
         if( MyDebug.LOG )
             Log.d(TAG, "activity_count: " + activity_count);
+        startup_handler.removeCallbacksAndMessages(null);
 
         // should do asap before waiting for images to be saved - as risk the application will be killed whilst waiting for that to happen,
         // and we want to avoid notifications hanging around
@@ -1474,11 +1616,18 @@ public class MainActivity extends AppCompatActivity {
         }
         getWindow().getDecorView().addOnLayoutChangeListener(layoutChangeListener);
 
-        // if BLE remote control is enabled, then start the background BLE service
-        bluetoothRemoteControl.startRemoteControl();
+        if( startupInitializer.hasStartedDeferred() ) {
+            // if BLE remote control is enabled, then start the background BLE service
+            bluetoothRemoteControl.startRemoteControl();
 
-        //speechControl.initSpeechRecognizer();
-        initLocation();
+            //speechControl.initSpeechRecognizer();
+            initLocation();
+        }
+        else {
+            // these are started by the deferred startup tasks, once the camera is running (or after a timeout)
+            startup_handler.removeCallbacks(deferred_startup_timeout_runnable);
+            startup_handler.postDelayed(deferred_startup_timeout_runnable, deferred_startup_timeout_c);
+        }
         initGyroSensors();
         applicationInterface.getImageSaver().onResume();
         soundPoolManager.initSound();
@@ -1600,6 +1749,9 @@ public class MainActivity extends AppCompatActivity {
         }
         super.onPause(); // docs say to call this before freeing other things
         this.app_is_paused = true;
+        // deferred startup tasks will be rescheduled when resuming, if they haven't yet run
+        startup_handler.removeCallbacks(deferred_startup_timeout_runnable);
+        startup_handler.removeCallbacks(deferred_startup_first_frame_runnable);
 
         mainUI.destroyPopup(); // important as user could change/reset settings from Android settings when pausing
         unregisterDisplayListener();
@@ -1704,6 +1856,17 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onTrimMemory: " + level);
+        super.onTrimMemory(level);
+        // may be called before onCreate() has finished
+        if( applicationInterface != null ) {
+            applicationInterface.getImageSaver().onTrimMemory(level);
+        }
+    }
+
     @Override
     public void onConfigurationChanged(@NonNull Configuration newConfig) {
         if( MyDebug.LOG )
@@ -2522,6 +2685,7 @@ public class MainActivity extends AppCompatActivity {
                 case "preference_show_battery":
                 case "preference_show_time":
                 case "preference_free_memory":
+                case "preference_show_capture_latency":
                 case "preference_show_iso":
                 case "preference_histogram":
                 case "preference_zebra_stripes":
@@ -2562,6 +2726,7 @@ public class MainActivity extends AppCompatActivity {
                     //case "preference_raw_focus_bracketing": // as above
                     //case "preference_nr_save": // we could probably whitelist this, but have not done so in case in future we allow RAW to be saved for the base image
                     //case "preference_hdr_save_expo": // we need to update if this is changed, as it affects whether we request RAW or not in HDR mode when RAW is enabled
+                case "preference_fast_burst_keep_best":
                 case "preference_hdr_tonemapping":
                 case "preference_hdr_contrast_enhancement":
                     //case "preference_expo_bracketing_n_images": // need to set up camera controller
@@ -2599,6 +2764,7 @@ public class MainActivity extends AppCompatActivity {
                 case "preference_record_audio_channels":
                 case "preference_lock_video":
                 case "preference_video_subtitle":
+                case "preference_motion_trace":
                     //case "preference_video_bitrate": // could probably whitelist, but safest to restart camera
                     //case "preference_video_fps": // could probably whitelist, but safest to restart camera
                     //case "preference_force_video_4k": // could probably whitelist, but safest to restart camera
@@ -2673,6 +2839,7 @@ public class MainActivity extends AppCompatActivity {
         bundle.putBoolean("supports_burst_raw", this.supportsBurstRaw());
         bundle.putBoolean("supports_hdr", this.supportsHDR());
         bundle.putBoolean("supports_nr", this.supportsNoiseReduction());
+        bundle.putBoolean("supports_fast_burst", this.supportsFastBurst());
         bundle.putBoolean("supports_panorama", this.supportsPanorama());
         bundle.putBoolean("has_gyro_sensors", applicationInterface.getGyroSensor().hasSensors());
         bundle.putBoolean("supports_expo_bracketing", this.supportsExpoBracketing());
@@ -4028,7 +4195,21 @@ public class MainActivity extends AppCompatActivity {
                     is_raw = media.filename != null && StorageUtils.filenameIsRaw(media.filename);
                     is_video = media.video;
 
-                    if( ghost_image_last && !media.video ) {
+                    if( !media.video ) {
+                        // use the thumbnail created when the photo was saved, if still cached (this is already rotated)
+                        int min_size = 0;
+                        if( ghost_image_last ) {
+                            // need a thumbnail of similar resolution to loadThumbnailFromUri() with sample_factor 1
+                            Point display_size = new Point();
+                            getWindowManager().getDefaultDisplay().getSize(display_size);
+                            min_size = Math.max(display_size.x, display_size.y)/2;
+                        }
+                        thumbnail = thumbnailProvider.getThumbnail(media.uri, min_size);
+                        if( thumbnail != null ) {
+                            rotate_for_orientation = false;
+                        }
+                    }
+                    if( thumbnail == null && ghost_image_last && !media.video ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "load full size bitmap for ghost image last photo");
                         // if media.mediastore, we'll rotate below using the media.orientation
@@ -5436,6 +5617,7 @@ public class MainActivity extends AppCompatActivity {
             this.showPhotoVideoToast(false);
         }
         block_startup_toast = false;
+        startupInitializer.mark("shutter_ready");
         if( MyDebug.LOG )
             Log.d(TAG, "cameraSetup: total time for cameraSetup: " + (System.currentTimeMillis() - debug_time));
 
@@ -5705,6 +5887,10 @@ public class MainActivity extends AppCompatActivity {
         return this.applicationInterface.getStorageUtils();
     }
 
+    public ThumbnailProvider getThumbnailProvider() {
+        return this.thumbnailProvider;
+    }
+
     public File getImageFolder() {
         return this.applicationInterface.getStorageUtils().getImageFolder();
     }
@@ -0,0 +1,232 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Records gyroscope and accelerometer readings, and the timestamps of camera frames, so that
+ *  they can be saved alongside a video or burst of photos (e.g., for stabilisation in post
+ *  processing).
+ *  Samples are stored in preallocated ring buffers of primitive arrays, so adding a sample doesn't
+ *  allocate. The buffers should be regularly drained to a file with drainTo(); if they fill up,
+ *  the oldest samples are lost.
+ *  The file format is big-endian (as written by DataOutputStream): a header of the bytes "OCMT",
+ *  the int version, and the int flags (FLAG_FRAME_TIMESTAMP_REALTIME); followed by records of the
+ *  byte type, the long timestamp in nanoseconds, and for TYPE_GYRO and TYPE_ACCEL the x, y, z
+ *  float values in the device's coordinate system (as for SensorEvent.values). Within each type,
+ *  records are in order, but records of different types are interleaved in batches, so readers
+ *  should sort by timestamp if required.
+ *  Sensor timestamps are as for SensorEvent.timestamp; frame timestamps are the start of exposure
+ *  from the camera, in the same time base if FLAG_FRAME_TIMESTAMP_REALTIME is set.
+ *  Adding samples may be done from different threads to draining.
+ *  Traces are kept in an app specific folder rather than next to the video or photos, as those may
+ *  be SAF or MediaStore URIs; use pruneTraces() to limit how many are kept.
+ */
+public class MotionTrace {
+    private static final String TAG = "MotionTrace";
+
+    public static final int VERSION = 1;
+    public static final int FLAG_FRAME_TIMESTAMP_REALTIME = 1;
+
+    public static final byte TYPE_GYRO = 1; // angular speed in rad/s
+    public static final byte TYPE_ACCEL = 2; // acceleration in m/s^2
+    public static final byte TYPE_FRAME = 3; // preview or video frame
+    public static final byte TYPE_PHOTO_FRAME = 4; // frame captured for a photo
+
+    // sensor samples
+    private final byte [] sample_types;
+    private final long [] sample_timestamps;
+    private final float [] sample_values; // 3 values per sample
+    private int first_sample;
+    private int n_samples;
+
+    // frames
+    private final byte [] frame_types;
+    private final long [] frame_timestamps;
+    private int first_frame;
+    private int n_frames;
+
+    private long n_lost; // number of samples or frames lost due to the buffers being full
+
+    // copies of the buffers, for writing outside of the lock
+    private final byte [] write_sample_types;
+    private final long [] write_sample_timestamps;
+    private final float [] write_sample_values;
+    private final byte [] write_frame_types;
+    private final long [] write_frame_timestamps;
+
+    /**
+     * @param sample_capacity The number of sensor samples that can be buffered.
+     * @param frame_capacity  The number of frame timestamps that can be buffered.
+     */
+    public MotionTrace(int sample_capacity, int frame_capacity) {
+        sample_types = new byte[sample_capacity];
+        sample_timestamps = new long[sample_capacity];
+        sample_values = new float[3*sample_capacity];
+        frame_types = new byte[frame_capacity];
+        frame_timestamps = new long[frame_capacity];
+        write_sample_types = new byte[sample_capacity];
+        write_sample_timestamps = new long[sample_capacity];
+        write_sample_values = new float[3*sample_capacity];
+        write_frame_types = new byte[frame_capacity];
+        write_frame_timestamps = new long[frame_capacity];
+    }
+
+    /** Adds a sensor sample.
+     * @param type TYPE_GYRO or TYPE_ACCEL.
+     */
+    public synchronized void addSample(byte type, long timestamp_ns, float x, float y, float z) {
+        int capacity = sample_types.length;
+        int index;
+        if( n_samples == capacity ) {
+            index = first_sample;
+            first_sample = (first_sample+1) % capacity;
+            n_lost++;
+        }
+        else {
+            index = (first_sample+n_samples) % capacity;
+            n_samples++;
+        }
+        sample_types[index] = type;
+        sample_timestamps[index] = timestamp_ns;
+        sample_values[3*index] = x;
+        sample_values[3*index+1] = y;
+        sample_values[3*index+2] = z;
+    }
+
+    /** Adds the timestamp of a camera frame.
+     * @param is_photo Whether the frame was captured for a photo (TYPE_PHOTO_FRAME), rather than
+     *                 being a preview or video frame (TYPE_FRAME).
+     */
+    public synchronized void addFrame(long timestamp_ns, boolean is_photo) {
+        int capacity = frame_types.length;
+        int index;
+        if( n_frames == capacity ) {
+            index = first_frame;
+            first_frame = (first_frame+1) % capacity;
+            n_lost++;
+        }
+        else {
+            index = (first_frame+n_frames) % capacity;
+            n_frames++;
+        }
+        frame_types[index] = is_photo ? TYPE_PHOTO_FRAME : TYPE_FRAME;
+        frame_timestamps[index] = timestamp_ns;
+    }
+
+    public synchronized int getNSamples() {
+        return n_samples;
+    }
+
+    public synchronized int getNFrames() {
+        return n_frames;
+    }
+
+    /** Returns the total number of samples and frames that have been lost due to the buffers
+     *  being full.
+     */
+    public synchronized long getNLost() {
+        return n_lost;
+    }
+
+    /** Writes the file header.
+     * @param flags Combination of FLAG_* values.
+     */
+    public static void writeHeader(DataOutputStream stream, int flags) throws IOException {
+        stream.writeBytes("OCMT");
+        stream.writeInt(VERSION);
+        stream.writeInt(flags);
+    }
+
+    /** Writes the buffered samples and frames as records, and removes them from the buffers. The
+     *  stream is not flushed. Should only be called from one thread at a time.
+     */
+    public void drainTo(DataOutputStream stream) throws IOException {
+        int n_write_samples;
+        int n_write_frames;
+        synchronized( this ) {
+            n_write_samples = n_samples;
+            for(int i=0;i<n_samples;i++) {
+                int index = (first_sample+i) % sample_types.length;
+                write_sample_types[i] = sample_types[index];
+                write_sample_timestamps[i] = sample_timestamps[index];
+                System.arraycopy(sample_values, 3*index, write_sample_values, 3*i, 3);
+            }
+            first_sample = 0;
+            n_samples = 0;
+
+            n_write_frames = n_frames;
+            for(int i=0;i<n_frames;i++) {
+                int index = (first_frame+i) % frame_types.length;
+                write_frame_types[i] = frame_types[index];
+                write_frame_timestamps[i] = frame_timestamps[index];
+            }
+            first_frame = 0;
+            n_frames = 0;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "drain " + n_write_samples + " samples and " + n_write_frames + " frames");
+
+        for(int i=0;i<n_write_samples;i++) {
+            stream.writeByte(write_sample_types[i]);
+            stream.writeLong(write_sample_timestamps[i]);
+            stream.writeFloat(write_sample_values[3*i]);
+            stream.writeFloat(write_sample_values[3*i+1]);
+            stream.writeFloat(write_sample_values[3*i+2]);
+        }
+        for(int i=0;i<n_write_frames;i++) {
+            stream.writeByte(write_frame_types[i]);
+            stream.writeLong(write_frame_timestamps[i]);
+        }
+    }
+
+    /** Deletes the oldest ".motion" files in the folder (by last modified time), so that at most
+     *  max_files remain. Other files are left alone.
+     * @return The number of files deleted.
+     */
+    public static int pruneTraces(File folder, int max_files) {
+        File [] files = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".motion");
+            }
+        });
+        if( files == null || files.length <= max_files ) {
+            return 0;
+        }
+        final long [] last_modified = new long[files.length];
+        Integer [] order = new Integer[files.length];
+        for(int i=0;i<files.length;i++) {
+            // read once, as the comparator must be consistent
+            last_modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        // newest first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long lhs_time = last_modified[lhs];
+                long rhs_time = last_modified[rhs];
+                return lhs_time > rhs_time ? -1 : (lhs_time < rhs_time ? 1 : 0);
+            }
+        });
+        int n_deleted = 0;
+        for(int i=Math.max(max_files, 0);i<order.length;i++) {
+            File file = files[order[i]];
+            if( MyDebug.LOG )
+                Log.d(TAG, "delete old motion trace: " + file);
+            if( file.delete() ) {
+                n_deleted++;
+            }
+            else if( MyDebug.LOG ) {
+                Log.e(TAG, "failed to delete: " + file);
+            }
+        }
+        return n_deleted;
+    }
+}
@@ -1,18 +1,24 @@
 package net.sourceforge.opencamera;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 import net.sourceforge.opencamera.preview.ApplicationInterface;
 import net.sourceforge.opencamera.preview.BasicApplicationInterface;
@@ -90,8 +96,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     private final static float panorama_pics_per_screen = 3.33333f;
     private int n_capture_images = 0; // how many calls to onPictureTaken() since the last call to onCaptureStarted()
     private int n_capture_images_raw = 0; // how many calls to onRawPictureTaken() since the last call to onCaptureStarted()
+    private int fast_burst_keep_best = 0; // if non-zero, the images of the current fast burst are batched, and only this many of the sharpest are saved
     private int n_panorama_pics = 0;
-    public final static int max_panorama_pics_c = 10; // if we increase this, review against memory requirements under MainActivity.supportsPanorama()
+    // PanoramaProcessor streams the input images, so the memory requirement is dominated by the output image; 20 images
+    // covers a full 360 degrees for typical camera angles
+    // if we increase this, review against memory requirements under MainActivity.supportsPanorama()
+    public final static int max_panorama_pics_c = 20;
     private boolean panorama_pic_accepted; // whether the last panorama picture was accepted, or else needs to be retaken
     private boolean panorama_dir_left_to_right = true; // direction of panorama (set after we've captured two images)
 
@@ -99,6 +109,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     private Uri last_video_file_uri = null;
 
     private final Timer subtitleVideoTimer = new Timer();
+    private static final int subtitle_sample_interval_ms_c = 1000; // interval between subtitle entries
+    private static final int subtitle_flush_interval_ms_c = 10000; // how often to write subtitles to the file
+    private static final int subtitle_buffer_size_c = 64; // maximum number of subtitle entries to buffer before writing
+    private Timer motionTraceTimer; // created when first needed
+    private MotionTraceTask motionTraceTask; // non-null if recording a motion trace
+    private static final int motion_trace_sample_capacity_c = 8192; // enough for several seconds of gyroscope and accelerometer samples at 200Hz
+    private static final int motion_trace_frame_capacity_c = 1024;
+    private static final int motion_trace_write_interval_ms_c = 1000;
+    private static final int motion_trace_max_files_c = 20; // older motion traces are deleted when a new one is started
     private TimerTask subtitleVideoTimerTask;
 
     private final Rect text_bounds = new Rect();
@@ -142,6 +161,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             this.share = share;
         }
     }
+    // modified from the ImageSaver's stage threads, so adding to or clearing the list should be synchronized to this
     private final List<LastImage> last_images = new ArrayList<>();
 
     private final ToastBoxer photo_delete_toast = new ToastBoxer();
@@ -1390,7 +1410,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         if( imageSaver.queueWouldBlock(photo_cost) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
@@ -1398,11 +1418,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
 
         // even if the queue isn't full, we may apply additional limits
-        int n_images_to_save = imageSaver.getNImagesToSave();
+        // n.b., compare by cost rather than number of images, so that (e.g.) RAW images count for more
+        long n_bytes_to_save = imageSaver.getNBytesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama ) {
             // only allow one fast burst at a time, so require queue to be empty
-            if( n_images_to_save > 0 ) {
+            if( n_bytes_to_save > 0 ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for fast burst");
                 return false;
@@ -1410,7 +1431,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( photo_mode == PhotoMode.NoiseReduction ) {
             // allow a max of 2 photos in memory when at max of 8 images
-            if( n_images_to_save >= 2*photo_cost ) {
+            if( n_bytes_to_save >= 2*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for nr");
                 return false;
@@ -1418,7 +1439,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_jpegs > 1 ) {
             // if in any other kind of burst mode (e.g., expo burst, HDR), allow a max of 3 photos in memory
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( n_bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for burst");
                 return false;
@@ -1426,15 +1447,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_raw > 0 ) {
             // if RAW mode, allow a max of 3 photos
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( n_bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for raw");
                 return false;
             }
         }
         // otherwise, still have a max limit of 5 photos
-        if( n_images_to_save >= 5*photo_cost ) {
-            if( main_activity.supportsNoiseReduction() && n_images_to_save <= 8 ) {
+        if( n_bytes_to_save >= 5*photo_cost ) {
+            if( main_activity.supportsNoiseReduction() && n_bytes_to_save <= imageSaver.computePhotoCost(0, CameraController.N_IMAGES_NR_DARK) ) {
                 // if we take a photo in NR mode, then switch to std mode, it doesn't make sense to suddenly block!
                 // so need to at least allow a new photo, if the number of photos is less than 1 NR photo
             }
@@ -1532,6 +1553,24 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return 1;
     }
 
+    /** Returns the number of the sharpest images to save from a fast burst, or 0 to save all
+     *  images.
+     */
+    private int getFastBurstKeepBestPref() {
+        String keep_best_value = sharedPreferences.getString(PreferenceKeys.FastBurstKeepBestPreferenceKey, "0");
+        int keep_best;
+        try {
+            keep_best = Integer.parseInt(keep_best_value);
+        }
+        catch(NumberFormatException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to parse FastBurstKeepBestPreferenceKey value: " + keep_best_value);
+            e.printStackTrace();
+            keep_best = 0;
+        }
+        return keep_best;
+    }
+
     @Override
     public boolean getBurstForNoiseReduction() {
         PhotoMode photo_mode = getPhotoMode();
@@ -1808,6 +1847,18 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return imageSaver.getMaxDNG();
     }
 
+    /** Capture YUV for the photo modes where every image is decoded for processing, and only the
+     *  result is saved by default. Other modes (including expo bracketing, where every image is
+     *  saved) capture JPEGs, so that the camera's encoder is used for the saved images.
+     */
+    @Override
+    public boolean isYuvCapturePref() {
+        if( main_activity.getPreview().isVideo() )
+            return false;
+        PhotoMode photo_mode = getPhotoMode();
+        return photo_mode == PhotoMode.HDR || photo_mode == PhotoMode.NoiseReduction;
+    }
+
     @Override
     public boolean useCamera2FakeFlash() {
         return sharedPreferences.getBoolean(PreferenceKeys.Camera2FakeFlashPreferenceKey, false);
@@ -2040,21 +2091,194 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         main_activity.getMainUI().destroyPopup(); // as the available popup options change while recording video
     }
 
+    /** Writes a motion trace to a file, regularly draining the trace's buffers so that they don't
+     *  fill up.
+     */
+    private static class MotionTraceTask extends TimerTask {
+        private final MotionTrace motionTrace;
+        private final File file;
+        private final int flags;
+        private DataOutputStream stream;
+        private boolean failed;
+
+        MotionTraceTask(MotionTrace motionTrace, File file, int flags) {
+            this.motionTrace = motionTrace;
+            this.file = file;
+            this.flags = flags;
+        }
+
+        @Override
+        public void run() {
+            write();
+        }
+
+        private synchronized void write() {
+            if( failed ) {
+                return;
+            }
+            try {
+                if( stream == null ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "create motion trace file: " + file);
+                    stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                    MotionTrace.writeHeader(stream, flags);
+                }
+                motionTrace.drainTo(stream);
+                stream.flush();
+            }
+            catch(IOException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to write motion trace");
+                e.printStackTrace();
+                failed = true;
+                close();
+            }
+        }
+
+        /** Writes any remaining data, and closes the file.
+         */
+        synchronized void finish() {
+            write();
+            if( MyDebug.LOG && motionTrace.getNLost() > 0 )
+                Log.e(TAG, "motion trace lost samples: " + motionTrace.getNLost());
+            close();
+        }
+
+        private void close() {
+            if( stream != null ) {
+                try {
+                    stream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+                stream = null;
+            }
+        }
+    }
+
+    private boolean getMotionTracePref() {
+        return sharedPreferences.getBoolean(PreferenceKeys.MotionTracePreferenceKey, false);
+    }
+
+    /** Starts recording gyroscope, accelerometer and frame timestamps to a file in the app's
+     *  "motion" folder, if enabled by the user preference. Any motion trace already being recorded is
+     *  finished. Only the most recent motion_trace_max_files_c traces are kept.
+     * @param name The filename to use, without extension.
+     */
+    private void startMotionTrace(String name) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "startMotionTrace: " + name);
+        finishMotionTraceTask();
+        CameraController camera_controller = main_activity.getPreview().getCameraController();
+        if( !getMotionTracePref() || camera_controller == null || !gyroSensor.hasSensors() ) {
+            stopMotionTrace();
+            return;
+        }
+        final File folder = main_activity.getExternalFilesDir("motion"); // app specific folder, so no permissions required
+        if( folder == null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't access folder for motion trace");
+            stopMotionTrace();
+            return;
+        }
+        int flags = camera_controller.isFrameTimestampRealtime() ? MotionTrace.FLAG_FRAME_TIMESTAMP_REALTIME : 0;
+        final MotionTrace motionTrace = new MotionTrace(motion_trace_sample_capacity_c, motion_trace_frame_capacity_c);
+        motionTraceTask = new MotionTraceTask(motionTrace, new File(folder, name + ".motion"), flags);
+        gyroSensor.startMotionTrace(motionTrace);
+        camera_controller.setFrameTimestampCallback(new CameraController.FrameTimestampCallback() {
+            @Override
+            public void onFrameTimestamp(long timestamp_ns, boolean is_photo) {
+                motionTrace.addFrame(timestamp_ns, is_photo);
+            }
+        });
+        if( motionTraceTimer == null ) {
+            motionTraceTimer = new Timer();
+        }
+        // prune before the new file is created, which is on the first run of motionTraceTask
+        motionTraceTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                MotionTrace.pruneTraces(folder, motion_trace_max_files_c-1);
+            }
+        }, 0);
+        motionTraceTimer.schedule(motionTraceTask, motion_trace_write_interval_ms_c, motion_trace_write_interval_ms_c);
+    }
+
+    /** Stops recording the motion trace started by startMotionTrace(), if any.
+     */
+    private void stopMotionTrace() {
+        if( motionTraceTask != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stopMotionTrace");
+            gyroSensor.stopMotionTrace();
+            CameraController camera_controller = main_activity.getPreview().getCameraController();
+            if( camera_controller != null ) {
+                camera_controller.setFrameTimestampCallback(null);
+            }
+            finishMotionTraceTask();
+        }
+    }
+
+    /** Finishes writing the current motion trace file on the background thread.
+     */
+    private void finishMotionTraceTask() {
+        if( motionTraceTask != null ) {
+            final MotionTraceTask task = motionTraceTask;
+            motionTraceTask = null;
+            task.cancel();
+            motionTraceTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    task.finish();
+                }
+            }, 0);
+        }
+    }
+
+    /** Returns the name to use for the motion trace of the current video file, which is the video
+     *  filename without its extension.
+     */
+    private String getVideoMotionTraceName(VideoMethod video_method) {
+        String name = null;
+        if( video_method == VideoMethod.FILE && last_video_file != null ) {
+            name = last_video_file.getName();
+        }
+        else if( (video_method == VideoMethod.SAF || video_method == VideoMethod.MEDIASTORE) && last_video_file_uri != null ) {
+            name = storageUtils.getFileName(last_video_file_uri);
+        }
+        if( name == null ) {
+            // e.g., video capture intent
+            return getMotionTraceName("VID_");
+        }
+        int indx = name.indexOf('.');
+        if( indx != -1 ) {
+            name = name.substring(0, indx);
+        }
+        return name;
+    }
+
+    private static String getMotionTraceName(String prefix) {
+        return prefix + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    }
+
     private void startVideoSubtitlesTask(final VideoMethod video_method) {
-        final String preference_stamp_dateformat = this.getStampDateFormatPref();
-        final String preference_stamp_timeformat = this.getStampTimeFormatPref();
         final String preference_stamp_gpsformat = this.getStampGPSFormatPref();
-        final String preference_units_distance = this.getUnitsDistancePref();
-        //final String preference_stamp_geo_address = this.getStampGeoAddressPref();
         final boolean store_location = getGeotaggingPref();
         final boolean store_geo_direction = getGeodirectionPref();
+        final SubtitleWriter subtitleWriter = new SubtitleWriter(subtitle_buffer_size_c, subtitle_sample_interval_ms_c,
+                this.getStampDateFormatPref(), this.getStampTimeFormatPref(), preference_stamp_gpsformat, this.getUnitsDistancePref(),
+                main_activity.getTextFormatter());
+        // the subtitles file is only created when first writing, which may be after restarting with a new video file, so
+        // remember the current video file
+        final File video_file = last_video_file;
+        final Uri video_file_uri = last_video_file_uri;
         class SubtitleVideoTimerTask extends TimerTask {
             // need to keep a reference to pfd_saf for as long as writer, to avoid getting garbage collected - see https://sourceforge.net/p/opencamera/tickets/417/
             private ParcelFileDescriptor pfd_saf;
             private OutputStreamWriter writer;
             private Uri uri;
-            private int count = 1;
-            private long min_video_time_from = 0;
+            private long last_flush_time_ms;
 
             private String getSubtitleFilename(String video_filename) {
                 if( MyDebug.LOG )
@@ -2070,220 +2294,154 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
 
             public void run() {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "SubtitleVideoTimerTask run");
+                /*if( MyDebug.LOG )
+                    Log.d(TAG, "SubtitleVideoTimerTask run");*/
                 long video_time = main_activity.getPreview().getVideoTime(true); // n.b., in case of restarts due to max filesize, we only want the time for this video file!
                 if( !main_activity.getPreview().isVideoRecording() ) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "no longer video recording");
                     return;
                 }
+                long time_ms = System.currentTimeMillis();
                 if( main_activity.getPreview().isVideoRecordingPaused() ) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "video recording is paused");
+                    // write what we have so far, in case recording isn't resumed
+                    flush();
                     return;
                 }
-                Date current_date = new Date();
-                Calendar current_calendar = Calendar.getInstance();
-                int offset_ms = current_calendar.get(Calendar.MILLISECOND);
-                // We subtract an offset, because if the current time is say 00:00:03.425 and the video has been recording for
-                // 1s, we instead need to record the video time when it became 00:00:03.000. This does mean that the GPS
-                // location is going to be off by up to 1s, but that should be less noticeable than the clock being off.
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "count: " + count);
-                    Log.d(TAG, "offset_ms: " + offset_ms);
-                    Log.d(TAG, "video_time: " + video_time);
-                }
-                String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, current_date);
-                String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, current_date);
                 Location location = store_location ? getLocation() : null;
-                double geo_direction = store_geo_direction && main_activity.getPreview().hasGeoDirection() ? main_activity.getPreview().getGeoDirection() : 0.0;
-                String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, preference_units_distance, store_location && location!=null, location, store_geo_direction && main_activity.getPreview().hasGeoDirection(), geo_direction);
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "date_stamp: " + date_stamp);
-                    Log.d(TAG, "time_stamp: " + time_stamp);
-                    // don't log gps_stamp, in case of privacy!
-                }
-
-                String datetime_stamp = "";
-                if( date_stamp.length() > 0 )
-                    datetime_stamp += date_stamp;
-                if( time_stamp.length() > 0 ) {
-                    if( datetime_stamp.length() > 0 )
-                        datetime_stamp += " ";
-                    datetime_stamp += time_stamp;
+                boolean has_geo_direction = store_geo_direction && main_activity.getPreview().hasGeoDirection();
+                double geo_direction = has_geo_direction ? main_activity.getPreview().getGeoDirection() : 0.0;
+                boolean full = subtitleWriter.addSample(video_time, time_ms, location, has_geo_direction, geo_direction);
+                if( full || time_ms >= last_flush_time_ms + subtitle_flush_interval_ms_c ) {
+                    flush();
                 }
+            }
 
-                // build subtitles
-                StringBuilder subtitles = new StringBuilder();
-                if( datetime_stamp.length() > 0 )
-                    subtitles.append(datetime_stamp).append("\n");
-
-                if( gps_stamp.length() > 0 ) {
-                    /*Address address = null;
-                    if( store_location && !preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
-                        // try to find an address
-                        if( main_activity.isAppPaused() ) {
-                            // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
-                            // is paused - this shouldn't happen, since we stop video when paused, but just to be safe
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "don't call geocoder for video subtitles  as app is paused?!");
+            /** Writes the buffered subtitles to the file, creating the file if necessary.
+             */
+            private void flush() {
+                synchronized( this ) {
+                    last_flush_time_ms = System.currentTimeMillis();
+                    if( subtitleWriter.getNSamples() == 0 ) {
+                        return;
+                    }
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "SubtitleVideoTimerTask flush " + subtitleWriter.getNSamples() + " samples");
+                    try {
+                        String entries = subtitleWriter.formatSamples();
+                        if( entries.length() == 0 ) {
+                            // don't create the file if there's nothing to write
+                            return;
                         }
-                        else if( Geocoder.isPresent() ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "geocoder is present");
-                            Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                            try {
-                                List<Address> addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
-                                if( addresses != null && addresses.size() > 0 ) {
-                                    address = addresses.get(0);
-                                    // don't log address, in case of privacy!
-                                    if( MyDebug.LOG ) {
-                                        Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                    }
-                                }
-                            }
-                            catch(Exception e) {
-                                Log.e(TAG, "failed to read from geocoder");
-                                e.printStackTrace();
-                            }
+                        if( writer == null ) {
+                            openWriter();
                         }
-                        else {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "geocoder not present");
+                        if( writer != null ) {
+                            writer.write(entries);
+                            writer.flush();
+                            // n.b., we flush rather than closing/reopening the writer each time, as appending doesn't seem to work with storage access framework
                         }
                     }
-
-                    if( address != null ) {
-                        for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
-                            // write in forward order
-                            String addressLine = address.getAddressLine(i);
-                            subtitles.append(addressLine).append("\n");
-                        }
-                    }*/
-
-                    //if( address == null || preference_stamp_geo_address.equals("preference_stamp_geo_address_both") )
-                    {
+                    catch(IOException e) {
                         if( MyDebug.LOG )
-                            Log.d(TAG, "display gps coords");
-                        subtitles.append(gps_stamp).append("\n");
+                            Log.e(TAG, "SubtitleVideoTimerTask failed to create or write");
+                        e.printStackTrace();
                     }
-                    /*else if( store_geo_direction ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "not displaying gps coords, but need to display geo direction");
-                        gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, preference_units_distance, false, null, store_geo_direction && main_activity.getPreview().hasGeoDirection(), geo_direction);
-                        if( gps_stamp.length() > 0 ) {
-                            // don't log gps_stamp, in case of privacy!
-                            subtitles.append(gps_stamp).append("\n");
-                        }
-                    }*/
                 }
+            }
 
-                if( subtitles.length() == 0 ) {
-                    return;
+            /** Creates the subtitles file for the current video file.
+             */
+            private void openWriter() throws IOException {
+                if( video_method == VideoMethod.FILE ) {
+                    String subtitle_filename = video_file.getAbsolutePath();
+                    subtitle_filename = getSubtitleFilename(subtitle_filename);
+                    writer = new FileWriter(subtitle_filename);
                 }
-                long video_time_from = video_time - offset_ms;
-                long video_time_to = video_time_from + 999;
-                // don't want to start from before 0; also need to keep track of min_video_time_from to avoid bug reported at
-                // https://forum.xda-developers.com/showpost.php?p=74827802&postcount=345 for pause video where we ended up
-                // with overlapping times when resuming
-                if( video_time_from < min_video_time_from )
-                    video_time_from = min_video_time_from;
-                min_video_time_from = video_time_to + 1;
-                String subtitle_time_from = TextFormatter.formatTimeMS(video_time_from);
-                String subtitle_time_to = TextFormatter.formatTimeMS(video_time_to);
-                try {
-                    synchronized( this ) {
-                        if( writer == null ) {
-                            if( video_method == VideoMethod.FILE ) {
-                                String subtitle_filename = last_video_file.getAbsolutePath();
-                                subtitle_filename = getSubtitleFilename(subtitle_filename);
-                                writer = new FileWriter(subtitle_filename);
-                            }
-                            else if( video_method == VideoMethod.SAF || video_method == VideoMethod.MEDIASTORE ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "last_video_file_uri: " + last_video_file_uri);
-                                String subtitle_filename = storageUtils.getFileName(last_video_file_uri);
-                                subtitle_filename = getSubtitleFilename(subtitle_filename);
-                                if( video_method == VideoMethod.SAF ) {
-                                    uri = storageUtils.createOutputFileSAF(subtitle_filename, ""); // don't set a mimetype, as we don't want it to append a new extension
-                                }
-                                else {
-                                    Uri folder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ?
-                                            MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY) :
-                                            MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-                                    ContentValues contentValues = new ContentValues();
-                                    contentValues.put(MediaStore.Video.Media.DISPLAY_NAME, subtitle_filename);
-                                    // set mime type - it's unclear if .SRT files have an official mime type, but (a) we must set a mime type otherwise
-                                    // resultant files are named "*.srt.mp4", and (b) the mime type must be video/*, otherwise we get exception:
-                                    // "java.lang.IllegalArgumentException: MIME type text/plain cannot be inserted into content://media/external_primary/video/media; expected MIME type under video/*"
-                                    // and we need the file to be saved in the same folder (in DCIM/ ) as the video
-                                    contentValues.put(MediaStore.Images.Media.MIME_TYPE, "video/x-srt");
-                                    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
-                                        String relative_path = storageUtils.getSaveRelativeFolder();
-                                        if( MyDebug.LOG )
-                                            Log.d(TAG, "relative_path: " + relative_path);
-                                        contentValues.put(MediaStore.Video.Media.RELATIVE_PATH, relative_path);
-                                        contentValues.put(MediaStore.Video.Media.IS_PENDING, 1);
-                                    }
-
-                                    // Note, we catch exceptions specific to insert() here and rethrow as IOException,
-                                    // rather than catching below, to avoid catching things too broadly.
-                                    // Catching too broadly could mean we miss genuine problems that should be fixed.
-                                    try {
-                                        uri = main_activity.getContentResolver().insert(folder, contentValues);
-                                    }
-                                    catch(IllegalArgumentException e) {
-                                        // can happen for mediastore method if invalid ContentResolver.insert() call
-                                        if( MyDebug.LOG )
-                                            Log.e(TAG, "IllegalArgumentException from SubtitleVideoTimerTask inserting to mediastore: " + e.getMessage());
-                                        e.printStackTrace();
-                                        throw new IOException();
-                                    }
-                                    catch(IllegalStateException e) {
-                                        if( MyDebug.LOG )
-                                            Log.e(TAG, "IllegalStateException from SubtitleVideoTimerTask inserting to mediastore: " + e.getMessage());
-                                        e.printStackTrace();
-                                        throw new IOException();
-                                    }
-                                    if( uri == null ) {
-                                        throw new IOException();
-                                    }
-                                }
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "uri: " + uri);
-                                pfd_saf = getContext().getContentResolver().openFileDescriptor(uri, "w");
-                                writer = new FileWriter(pfd_saf.getFileDescriptor());
-                            }
+                else if( video_method == VideoMethod.SAF || video_method == VideoMethod.MEDIASTORE ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "video_file_uri: " + video_file_uri);
+                    String subtitle_filename = storageUtils.getFileName(video_file_uri);
+                    subtitle_filename = getSubtitleFilename(subtitle_filename);
+                    if( video_method == VideoMethod.SAF ) {
+                        uri = storageUtils.createOutputFileSAF(subtitle_filename, ""); // don't set a mimetype, as we don't want it to append a new extension
+                    }
+                    else {
+                        Uri folder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ?
+                                MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY) :
+                                MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+                        ContentValues contentValues = new ContentValues();
+                        contentValues.put(MediaStore.Video.Media.DISPLAY_NAME, subtitle_filename);
+                        // set mime type - it's unclear if .SRT files have an official mime type, but (a) we must set a mime type otherwise
+                        // resultant files are named "*.srt.mp4", and (b) the mime type must be video/*, otherwise we get exception:
+                        // "java.lang.IllegalArgumentException: MIME type text/plain cannot be inserted into content://media/external_primary/video/media; expected MIME type under video/*"
+                        // and we need the file to be saved in the same folder (in DCIM/ ) as the video
+                        contentValues.put(MediaStore.Images.Media.MIME_TYPE, "video/x-srt");
+                        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
+                            String relative_path = storageUtils.getSaveRelativeFolder();
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "relative_path: " + relative_path);
+                            contentValues.put(MediaStore.Video.Media.RELATIVE_PATH, relative_path);
+                            contentValues.put(MediaStore.Video.Media.IS_PENDING, 1);
                         }
-                        if( writer != null ) {
-                            writer.append(Integer.toString(count));
-                            writer.append('\n');
-                            writer.append(subtitle_time_from);
-                            writer.append(" --> ");
-                            writer.append(subtitle_time_to);
-                            writer.append('\n');
-                            writer.append(subtitles.toString()); // subtitles should include the '\n' at the end
-                            writer.append('\n'); // additional newline to indicate end of this subtitle
-                            writer.flush();
-                            // n.b., we flush rather than closing/reopening the writer each time, as appending doesn't seem to work with storage access framework
+
+                        // Note, we catch exceptions specific to insert() here and rethrow as IOException,
+                        // rather than catching below, to avoid catching things too broadly.
+                        // Catching too broadly could mean we miss genuine problems that should be fixed.
+                        try {
+                            uri = main_activity.getContentResolver().insert(folder, contentValues);
+                        }
+                        catch(IllegalArgumentException e) {
+                            // can happen for mediastore method if invalid ContentResolver.insert() call
+                            if( MyDebug.LOG )
+                                Log.e(TAG, "IllegalArgumentException from SubtitleVideoTimerTask inserting to mediastore: " + e.getMessage());
+                            e.printStackTrace();
+                            throw new IOException();
+                        }
+                        catch(IllegalStateException e) {
+                            if( MyDebug.LOG )
+                                Log.e(TAG, "IllegalStateException from SubtitleVideoTimerTask inserting to mediastore: " + e.getMessage());
+                            e.printStackTrace();
+                            throw new IOException();
+                        }
+                        if( uri == null ) {
+                            throw new IOException();
                         }
                     }
-                    count++;
-                }
-                catch(IOException e) {
                     if( MyDebug.LOG )
-                        Log.e(TAG, "SubtitleVideoTimerTask failed to create or write");
-                    e.printStackTrace();
+                        Log.d(TAG, "uri: " + uri);
+                    pfd_saf = getContext().getContentResolver().openFileDescriptor(uri, "w");
+                    writer = new FileWriter(pfd_saf.getFileDescriptor());
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "SubtitleVideoTimerTask exit");
             }
 
+            /** Stops the task, and writes any remaining subtitles and closes the file on the timer
+             *  thread - the final write may need to create the file, which shouldn't be done on the
+             *  UI thread.
+             */
             public boolean cancel() {
                 if( MyDebug.LOG )
                     Log.d(TAG, "SubtitleVideoTimerTask cancel");
+                boolean result = super.cancel();
+                // n.b., the timer runs tasks one at a time, so this can't run at the same time as run()
+                subtitleVideoTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                }, 0);
+                return result;
+            }
+
+            /** Writes any remaining subtitles, and closes the file.
+             */
+            private void finish() {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "SubtitleVideoTimerTask finish");
                 synchronized( this ) {
+                    flush();
                     if( writer != null ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "close writer");
@@ -2304,7 +2462,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                         }
                         pfd_saf = null;
                     }
-                    if( video_method == VideoMethod.MEDIASTORE ) {
+                    if( video_method == VideoMethod.MEDIASTORE && uri != null ) { // uri is null if the file was never created
                         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
                             ContentValues contentValues = new ContentValues();
                             contentValues.put(MediaStore.Video.Media.IS_PENDING, 0);
@@ -2312,10 +2470,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                         }
                     }
                 }
-                return super.cancel();
             }
         }
-        subtitleVideoTimer.schedule(subtitleVideoTimerTask = new SubtitleVideoTimerTask(), 0, 1000);
+        subtitleVideoTimer.schedule(subtitleVideoTimerTask = new SubtitleVideoTimerTask(), 0, subtitleWriter.getSampleInterval());
     }
 
     @Override
@@ -2347,6 +2504,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( dategeo_subtitles && video_method != ApplicationInterface.VideoMethod.URI ) {
             startVideoSubtitlesTask(video_method);
         }
+        if( getMotionTracePref() ) {
+            startMotionTrace(getVideoMotionTraceName(video_method));
+        }
     }
 
     @Override
@@ -2385,6 +2545,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             subtitleVideoTimerTask.cancel();
             subtitleVideoTimerTask = null;
         }
+        stopMotionTrace();
 
         completeVideo(video_method, uri);
         boolean done = broadcastVideo(video_method, uri, filename);
@@ -2503,6 +2664,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             // Assume that video_method is unchanged between old and new video file when restarting.
             startVideoSubtitlesTask(video_method);
         }
+
+        // and the motion trace
+        if( motionTraceTask != null ) {
+            startMotionTrace(getVideoMotionTraceName(video_method));
+        }
     }
 
     /** Called when we've finished recording to a video file, to do any necessary cleanup for the
@@ -2638,6 +2804,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     @Override
     public void onPhotoError() {
+        if( !main_activity.getPreview().isVideoRecording() ) {
+            stopMotionTrace();
+        }
+        if( fast_burst_keep_best > 0 ) {
+            // still save the best of the images we received
+            fast_burst_keep_best = 0;
+            imageSaver.finishImageBatch(saveInBackground(false));
+        }
         main_activity.getPreview().showToast(null, R.string.failed_to_take_picture);
     }
 
@@ -2747,6 +2921,25 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         n_capture_images_raw = 0;
         drawPreview.onCaptureStarted();
 
+        fast_burst_keep_best = 0;
+        if( getPhotoMode() == PhotoMode.FastBurst && !main_activity.getPreview().isVideo() && !main_activity.lastContinuousFastBurst() ) {
+            // continuous fast bursts aren't batched, as the number of images isn't limited
+            int keep_best = getFastBurstKeepBestPref();
+            if( keep_best > 0 && keep_best < getBurstNImages() ) {
+                fast_burst_keep_best = keep_best;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "fast_burst_keep_best: " + fast_burst_keep_best);
+        }
+
+        if( getMotionTracePref() && !main_activity.getPreview().isVideo() ) {
+            PhotoMode photo_mode = getPhotoMode();
+            if( photo_mode == PhotoMode.HDR || photo_mode == PhotoMode.ExpoBracketing || photo_mode == PhotoMode.FocusBracketing ||
+                    photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.NoiseReduction ) {
+                startMotionTrace(getMotionTraceName("IMG_"));
+            }
+        }
+
         if( getPhotoMode() == PhotoMode.X_Night ) {
             main_activity.getPreview().showToast(null, R.string.preference_nr_mode_low_light_message, true);
         }
@@ -2757,6 +2950,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "onPictureCompleted");
 
+        if( !main_activity.getPreview().isVideoRecording() ) {
+            stopMotionTrace();
+        }
+
         PhotoMode photo_mode = getPhotoMode();
         if( main_activity.getPreview().isVideo() ) {
             if( MyDebug.LOG )
@@ -2764,7 +2961,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             // must be in photo snapshot while recording video mode, only support standard photo mode
             photo_mode = PhotoMode.Standard;
         }
-        if( photo_mode == PhotoMode.NoiseReduction ) {
+        if( photo_mode == PhotoMode.NoiseReduction || fast_burst_keep_best > 0 ) {
+            fast_burst_keep_best = 0;
             boolean image_capture_intent = isImageCaptureIntent();
             boolean do_in_background = saveInBackground(image_capture_intent);
             imageSaver.finishImageBatch(do_in_background);
@@ -3088,6 +3286,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( !main_activity.isCameraInBackground() ) {
             // no point drawing when in background (e.g., settings open)
             drawPreview.onDrawPreview(canvas);
+            main_activity.checkFirstPreviewFrame();
         }
     }
 
@@ -3245,11 +3444,12 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      * @param save_expo If the photo mode is one where multiple images are saved to a single
      *                  resultant image, this indicates if all the base images should also be saved
      *                  as separate images.
-     * @param images The set of images.
+     * @param images The set of images. These are passed on to the ImageSaver, which releases them
+     *               when done.
      * @param current_date The current date/time stamp for the images.
      * @return Whether saving was successful.
      */
-    private boolean saveImage(boolean save_expo, List<byte []> images, Date current_date) {
+    private boolean saveImage(boolean save_expo, List<ImageBuffer> images, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveImage");
 
@@ -3365,9 +3565,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                 Log.d(TAG, "ignore panorama image as target no longer achieved!");
             // n.b., gyroSensor.hasTarget() will be false if this is the first picture in the panorama series
             panorama_pic_accepted = false;
+            ImageBuffer.releaseAll(images);
             success = true; // still treat as success
         }
-        else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama ) {
+        else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama || (photo_mode == PhotoMode.FastBurst && fast_burst_keep_best > 0) ) {
             boolean first_image;
             if( photo_mode == PhotoMode.Panorama ) {
                 panorama_pic_accepted = true;
@@ -3400,8 +3601,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     }
                 }
 
+                ImageSaver.Request.ProcessType processType;
+                if( photo_mode == PhotoMode.NoiseReduction )
+                    processType = ImageSaver.Request.ProcessType.AVERAGE;
+                else if( photo_mode == PhotoMode.Panorama )
+                    processType = ImageSaver.Request.ProcessType.PANORAMA;
+                else
+                    processType = ImageSaver.Request.ProcessType.BEST;
                 imageSaver.startImageBatch(true,
-                        photo_mode == PhotoMode.NoiseReduction ? ImageSaver.Request.ProcessType.AVERAGE : ImageSaver.Request.ProcessType.PANORAMA,
+                        processType,
                         save_base,
                         image_capture_intent, image_capture_intent_uri,
                         using_camera2, using_camera_extensions,
@@ -3427,6 +3635,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     imageSaver.getImageBatchRequest().camera_view_angle_x = main_activity.getPreview().getViewAngleX(false);
                     imageSaver.getImageBatchRequest().camera_view_angle_y = main_activity.getPreview().getViewAngleY(false);
                 }
+                else if( photo_mode == PhotoMode.FastBurst ) {
+                    imageSaver.getImageBatchRequest().keep_best_n = fast_burst_keep_best;
+                }
             }
 
             float [] gyro_rotation_matrix = null;
@@ -3508,7 +3719,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     @Override
-    public boolean onPictureTaken(byte [] data, Date current_date) {
+    public boolean onPictureTaken(ImageBuffer data, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "onPictureTaken");
 
@@ -3516,7 +3727,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "n_capture_images is now " + n_capture_images);
 
-        List<byte []> images = new ArrayList<>();
+        List<ImageBuffer> images = new ArrayList<>();
         images.add(data);
 
         boolean success = saveImage(false, images, current_date);
@@ -3528,7 +3739,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     }
 
     @Override
-    public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
+    public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "onBurstPictureTaken: received " + images.size() + " images");
 
@@ -3612,7 +3823,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return success;
     }
 
-    void addLastImage(File file, boolean share) {
+    synchronized void addLastImage(File file, boolean share) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "addLastImage: " + file);
             Log.d(TAG, "share?: " + share);
@@ -3622,7 +3833,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         last_images.add(last_image);
     }
 
-    void addLastImageSAF(Uri uri, boolean share) {
+    synchronized void addLastImageSAF(Uri uri, boolean share) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "addLastImageSAF: " + uri);
             Log.d(TAG, "share?: " + share);
@@ -3632,7 +3843,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         last_images.add(last_image);
     }
 
-    void addLastImageMediaStore(Uri uri, boolean share) {
+    synchronized void addLastImageMediaStore(Uri uri, boolean share) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "addLastImageMediaStore: " + uri);
             Log.d(TAG, "share?: " + share);
@@ -3642,7 +3853,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         last_images.add(last_image);
     }
 
-    void clearLastImages() {
+    synchronized void clearLastImages() {
         if( MyDebug.LOG )
             Log.d(TAG, "clearLastImages");
         last_images_type = LastImagesType.FILE;
@@ -9,74 +9,55 @@ import android.util.Log;
 public class MyAudioTriggerListenerCallback implements AudioListener.AudioListenerCallback {
     private static final String TAG = "MyAudioTriggerLstnrCb";
 
+    private static final int window_size_c = 256; // 32ms at 8kHz
+    private static final float band_low_hz_c = 300.0f; // wind noise is mostly below this frequency
+    private static final float band_high_hz_c = 3400.0f;
+    private static final float min_band_ratio_c = 0.5f;
+    private static final int max_trigger_duration_ms_c = 1500; // longer sounds (e.g., continuous talking) don't trigger
+    // the sensitivity values are for the mean absolute sample level that was used previously; for
+    // noise-like sounds the RMS level is about sqrt(pi/2) times larger
+    private static final float rms_per_mean_abs_c = 1.25f;
+
     private final MainActivity main_activity;
 
-    private int last_level = -1;
-    private long time_quiet_loud = -1;
+    private final AudioTriggerDetector detector = new AudioTriggerDetector(AudioListener.sample_rate, window_size_c);
     private long time_last_audio_trigger_photo = -1;
-    private int audio_noise_sensitivity = -1;
 
     MyAudioTriggerListenerCallback(MainActivity main_activity) {
         this.main_activity = main_activity;
+        detector.setBand(band_low_hz_c, band_high_hz_c, min_band_ratio_c);
     }
 
+    /** Sets the minimum rise in level above the background noise for a sound to trigger.
+     * @param audio_noise_sensitivity The rise in mean absolute sample value; this is converted to
+     *                                the equivalent rise in RMS level.
+     */
     void setAudioNoiseSensitivity(int audio_noise_sensitivity) {
-        this.audio_noise_sensitivity = audio_noise_sensitivity;
+        detector.setMinRise(rms_per_mean_abs_c*audio_noise_sensitivity);
     }
 
     /** Listens to audio noise and decides when there's been a "loud" noise to trigger taking a photo.
      */
     @Override
-    public void onAudio(int level) {
+    public void onAudio(short [] buffer, int n_samples) {
+        int event = detector.process(buffer, 0, n_samples);
         boolean audio_trigger = false;
-        /*if( level > 150 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "loud noise!: " + level);
-            audio_trigger = true;
-        }*/
-
-        if( last_level == -1 ) {
-            last_level = level;
-            return;
-        }
-        int diff = level - last_level;
-
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "noise_sensitivity: " + audio_noise_sensitivity);
-            Log.d(TAG, "diff: " + diff);
-        }
-
-        if( diff > audio_noise_sensitivity ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "got louder!: " + last_level + " to " + level + " , diff: " + diff);
-            time_quiet_loud = System.currentTimeMillis();
-            if( MyDebug.LOG )
-                Log.d(TAG, "    time: " + time_quiet_loud);
-        }
-        else if( diff < -audio_noise_sensitivity && time_quiet_loud != -1 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "got quieter!: " + last_level + " to " + level + " , diff: " + diff);
-            long time_now = System.currentTimeMillis();
-            long duration = time_now - time_quiet_loud;
+        if( event != AudioTriggerDetector.EVENT_NONE ) {
+            int duration = detector.getEventDurationMs();
             if( MyDebug.LOG ) {
-                Log.d(TAG, "stopped being loud - was loud since: " + time_quiet_loud);
-                Log.d(TAG, "    time_now: " + time_now);
+                Log.d(TAG, "loud noise: " + (event == AudioTriggerDetector.EVENT_CLAP ? "clap" : "voice"));
                 Log.d(TAG, "    duration: " + duration);
+                Log.d(TAG, "    peak: " + detector.getEventPeak());
+                Log.d(TAG, "    noise floor: " + detector.getNoiseFloor());
             }
-            if( duration < 1500 ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "audio_trigger set");
+            if( duration < max_trigger_duration_ms_c ) {
                 audio_trigger = true;
             }
-            time_quiet_loud = -1;
-        }
-        else {
-            if( MyDebug.LOG )
-                Log.d(TAG, "audio level: " + last_level + " to " + level + " , diff: " + diff);
+            else if( MyDebug.LOG ) {
+                Log.d(TAG, "ignore loud noise due to being too long");
+            }
         }
 
-        last_level = level;
-
         if( audio_trigger ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "audio trigger");
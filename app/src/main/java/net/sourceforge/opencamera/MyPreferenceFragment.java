@@ -460,6 +460,16 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
             pg.removePreference(pref);
         }
 
+        final boolean supports_fast_burst = bundle.getBoolean("supports_fast_burst");
+        if( MyDebug.LOG )
+            Log.d(TAG, "supports_fast_burst: " + supports_fast_burst);
+
+        if( !supports_fast_burst ) {
+            Preference pref = findPreference("preference_fast_burst_keep_best");
+            PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
+            pg.removePreference(pref);
+        }
+
         final boolean supports_exposure_compensation = bundle.getBoolean("supports_exposure_compensation");
         final int exposure_compensation_min = bundle.getInt("exposure_compensation_min");
         final int exposure_compensation_max = bundle.getInt("exposure_compensation_max");
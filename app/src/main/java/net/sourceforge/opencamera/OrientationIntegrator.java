@@ -0,0 +1,246 @@
+package net.sourceforge.opencamera;
+
+/** Tracks the orientation of the device relative to a starting orientation, by integrating
+ *  gyroscope readings, with optional correction from the accelerometer (a complementary filter).
+ *  The orientation is stored as a unit quaternion (w, x, y, z), which corresponds to the rotation
+ *  matrix R that transforms vectors in the device's current coordinate system to the starting
+ *  coordinate system. A second quaternion tracks the orientation from the gyroscope only.
+ *  Quaternions are renormalised periodically to avoid accumulating rounding errors.
+ *  This doesn't depend on android.hardware, and doesn't allocate, so can be called for every
+ *  sensor event.
+ */
+public class OrientationIntegrator {
+    private static final int renormalise_interval_c = 32; // number of updates between renormalising
+
+    // orientation including accelerometer correction
+    private float qw, qx, qy, qz;
+    // orientation from gyroscope only
+    private float gw, gx, gy, gz;
+    private int n_updates; // number of updates since renormalising
+
+    public OrientationIntegrator() {
+        reset();
+    }
+
+    /** Resets to the identity orientation.
+     */
+    public void reset() {
+        qw = 1.0f;
+        qx = 0.0f;
+        qy = 0.0f;
+        qz = 0.0f;
+        gw = 1.0f;
+        gx = 0.0f;
+        gy = 0.0f;
+        gz = 0.0f;
+        n_updates = 0;
+    }
+
+    /** Applies a gyroscope reading, i.e., rotates the orientation by the angular speed over the
+     *  time step.
+     * @param wx The angular speed around the x axis, in radians/second.
+     * @param wy The angular speed around the y axis, in radians/second.
+     * @param wz The angular speed around the z axis, in radians/second.
+     * @param dt The time step, in seconds.
+     */
+    public void integrateGyro(float wx, float wy, float wz, float dt) {
+        // compute the delta rotation quaternion from the axis and angle of rotation
+        double omega = Math.sqrt(wx*wx + wy*wy + wz*wz);
+        if( omega > 1.0e-5 ) {
+            // normalise to get the axis
+            wx /= omega;
+            wy /= omega;
+            wz /= omega;
+        }
+        double theta_over_two = omega * dt / 2.0;
+        float sin_theta_over_two = (float)Math.sin(theta_over_two);
+        float dw = (float)Math.cos(theta_over_two);
+        float dx = sin_theta_over_two * wx;
+        float dy = sin_theta_over_two * wy;
+        float dz = sin_theta_over_two * wz;
+
+        // q = q * d
+        float w = qw*dw - qx*dx - qy*dy - qz*dz;
+        float x = qw*dx + qx*dw + qy*dz - qz*dy;
+        float y = qw*dy - qx*dz + qy*dw + qz*dx;
+        float z = qw*dz + qx*dy - qy*dx + qz*dw;
+        qw = w;
+        qx = x;
+        qy = y;
+        qz = z;
+
+        w = gw*dw - gx*dx - gy*dy - gz*dz;
+        x = gw*dx + gx*dw + gy*dz - gz*dy;
+        y = gw*dy - gx*dz + gy*dw + gz*dx;
+        z = gw*dz + gx*dy - gy*dx + gz*dw;
+        gw = w;
+        gx = x;
+        gy = y;
+        gz = z;
+
+        if( ++n_updates >= renormalise_interval_c ) {
+            renormalise();
+        }
+    }
+
+    /** Corrects the orientation (but not the gyroscope only orientation) towards matching the
+     *  accelerometer: the orientation is rotated by gain times the angle between the accelerometer
+     *  vector transformed by the orientation and the reference vector.
+     * @param accel     The current accelerometer vector, normalised.
+     * @param reference The accelerometer vector at the starting orientation, normalised.
+     * @param gain      The fraction of the angle to correct by, from 0 to 1.
+     */
+    public void correctAccel(final float [] accel, final float [] reference, float gain) {
+        // transform accel by the orientation: t = q.accel.q^-1
+        float ax = accel[0], ay = accel[1], az = accel[2];
+        float cx = 2.0f*(qy*az - qz*ay);
+        float cy = 2.0f*(qz*ax - qx*az);
+        float cz = 2.0f*(qx*ay - qy*ax);
+        float tx = ax + qw*cx + qy*cz - qz*cy;
+        float ty = ay + qw*cy + qz*cx - qx*cz;
+        float tz = az + qw*cz + qx*cy - qy*cx;
+
+        double cos_angle = tx*reference[0] + ty*reference[1] + tz*reference[2];
+        if( cos_angle >= 0.99999999995 ) {
+            // already matches
+            return;
+        }
+        // compute axis to rotate t to reference, (t X reference) normalised
+        double a_x = ty * reference[2] - tz * reference[1];
+        double a_y = tz * reference[0] - tx * reference[2];
+        double a_z = tx * reference[1] - ty * reference[0];
+        double a_mag = Math.sqrt(a_x*a_x + a_y*a_y + a_z*a_z);
+        if( a_mag < 1.0e-5 ) {
+            // parallel or anti-parallel case
+            return;
+        }
+        double angle = Math.acos(Math.max(-1.0, cos_angle)) * gain;
+        double s = Math.sin(angle/2.0) / a_mag;
+        float dw = (float)Math.cos(angle/2.0);
+        float dx = (float)(a_x * s);
+        float dy = (float)(a_y * s);
+        float dz = (float)(a_z * s);
+
+        // q = d * q
+        float w = dw*qw - dx*qx - dy*qy - dz*qz;
+        float x = dw*qx + dx*qw + dy*qz - dz*qy;
+        float y = dw*qy - dx*qz + dy*qw + dz*qx;
+        float z = dw*qz + dx*qy - dy*qx + dz*qw;
+        qw = w;
+        qx = x;
+        qy = y;
+        qz = z;
+
+        if( ++n_updates >= renormalise_interval_c ) {
+            renormalise();
+        }
+    }
+
+    private void renormalise() {
+        n_updates = 0;
+        float recip = (float)(1.0/Math.sqrt(qw*qw + qx*qx + qy*qy + qz*qz));
+        qw *= recip;
+        qx *= recip;
+        qy *= recip;
+        qz *= recip;
+        recip = (float)(1.0/Math.sqrt(gw*gw + gx*gx + gy*gy + gz*gz));
+        gw *= recip;
+        gx *= recip;
+        gy *= recip;
+        gz *= recip;
+    }
+
+    /** Transforms the vector by the quaternion, or by its inverse if inverse is true. The result
+     *  may be the same array as the vector.
+     */
+    private static void rotate(final float [] result, final float [] vector, float w, float x, float y, float z, boolean inverse) {
+        if( inverse ) {
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        float vx = vector[0], vy = vector[1], vz = vector[2];
+        // v' = v + w.c + u X c, where u = (x, y, z) and c = 2 (u X v)
+        float cx = 2.0f*(y*vz - z*vy);
+        float cy = 2.0f*(z*vx - x*vz);
+        float cz = 2.0f*(x*vy - y*vx);
+        result[0] = vx + w*cx + y*cz - z*cy;
+        result[1] = vy + w*cy + z*cx - x*cz;
+        result[2] = vz + w*cz + x*cy - y*cx;
+    }
+
+    /** Transforms a vector from the device's current coordinate system to the starting coordinate
+     *  system, i.e., computes R.vector.
+     */
+    public void rotateVector(final float [] result, final float [] vector) {
+        rotate(result, vector, qw, qx, qy, qz, false);
+    }
+
+    /** Transforms a vector from the starting coordinate system to the device's current coordinate
+     *  system, i.e., computes R^T.vector.
+     */
+    public void inverseRotateVector(final float [] result, final float [] vector) {
+        rotate(result, vector, qw, qx, qy, qz, true);
+    }
+
+    /** As inverseRotateVector(), but for the gyroscope only orientation.
+     */
+    public void inverseRotateVectorGyroOnly(final float [] result, final float [] vector) {
+        rotate(result, vector, gw, gx, gy, gz, true);
+    }
+
+    /** Returns the orientation as a 3x3 rotation matrix, stored by rows.
+     */
+    public void getRotationMatrix(final float [] matrix) {
+        float xx = qx*qx, yy = qy*qy, zz = qz*qz;
+        float xy = qx*qy, xz = qx*qz, yz = qy*qz;
+        float wx = qw*qx, wy = qw*qy, wz = qw*qz;
+        matrix[0] = 1.0f - 2.0f*(yy + zz);
+        matrix[1] = 2.0f*(xy - wz);
+        matrix[2] = 2.0f*(xz + wy);
+        matrix[3] = 2.0f*(xy + wz);
+        matrix[4] = 1.0f - 2.0f*(xx + zz);
+        matrix[5] = 2.0f*(yz - wx);
+        matrix[6] = 2.0f*(xz - wy);
+        matrix[7] = 2.0f*(yz + wx);
+        matrix[8] = 1.0f - 2.0f*(xx + yy);
+    }
+
+    /** Sets the orientation (but not the gyroscope only orientation) from a 3x3 rotation matrix,
+     *  stored by rows.
+     */
+    public void setRotationMatrix(final float [] matrix) {
+        float m00 = matrix[0], m11 = matrix[4], m22 = matrix[8];
+        float trace = m00 + m11 + m22;
+        // choose the computation based on the largest component, for numerical stability
+        if( trace > 0.0f ) {
+            float s = 2.0f*(float)Math.sqrt(trace + 1.0f); // 4w
+            qw = 0.25f*s;
+            qx = (matrix[7] - matrix[5]) / s;
+            qy = (matrix[2] - matrix[6]) / s;
+            qz = (matrix[3] - matrix[1]) / s;
+        }
+        else if( m00 > m11 && m00 > m22 ) {
+            float s = 2.0f*(float)Math.sqrt(1.0f + m00 - m11 - m22); // 4x
+            qw = (matrix[7] - matrix[5]) / s;
+            qx = 0.25f*s;
+            qy = (matrix[1] + matrix[3]) / s;
+            qz = (matrix[2] + matrix[6]) / s;
+        }
+        else if( m11 > m22 ) {
+            float s = 2.0f*(float)Math.sqrt(1.0f + m11 - m00 - m22); // 4y
+            qw = (matrix[2] - matrix[6]) / s;
+            qx = (matrix[1] + matrix[3]) / s;
+            qy = 0.25f*s;
+            qz = (matrix[5] + matrix[7]) / s;
+        }
+        else {
+            float s = 2.0f*(float)Math.sqrt(1.0f + m22 - m00 - m11); // 4z
+            qw = (matrix[3] - matrix[1]) / s;
+            qx = (matrix[2] + matrix[6]) / s;
+            qy = (matrix[5] + matrix[7]) / s;
+            qz = 0.25f*s;
+        }
+        renormalise();
+    }
+}
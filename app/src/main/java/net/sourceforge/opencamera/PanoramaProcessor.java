@@ -7,6 +7,11 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -35,6 +40,7 @@ public class PanoramaProcessor {
 
     private final Context context;
     private final HDRProcessor hdrProcessor;
+    private final BitmapPool bitmapPool;
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using panorama
 
     // we lazily create and cache scripts that would otherwise have to be repeatedly created in a single
@@ -42,10 +48,17 @@ public class PanoramaProcessor {
     // these should be set to null in freeScript(), to help garbage collection
     private ScriptC_pyramid_blending pyramidBlendingScript = null;
     private ScriptC_feature_detector featureDetectorScript = null;
+    private FeatureMatcher featureMatcher = null; // kept so that its buffers are reused for each pair of images
+    private JavaPyramidBlender javaPyramidBlender = null; // kept so that its buffers are reused for each pair of images
 
-    public PanoramaProcessor(Context context, HDRProcessor hdrProcessor) {
+    /**
+     * @param bitmapPool Pool used for the intermediate bitmaps and buffers that are created for each
+     *                   input image.
+     */
+    public PanoramaProcessor(Context context, HDRProcessor hdrProcessor, BitmapPool bitmapPool) {
         this.context = context;
         this.hdrProcessor = hdrProcessor;
+        this.bitmapPool = bitmapPool;
     }
 
     private void freeScripts() {
@@ -54,6 +67,8 @@ public class PanoramaProcessor {
 
         pyramidBlendingScript = null;
         featureDetectorScript = null;
+        featureMatcher = null;
+        javaPyramidBlender = null;
     }
     public void onDestroy() {
         if( MyDebug.LOG )
@@ -86,397 +101,6 @@ public class PanoramaProcessor {
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Allocation reduceBitmap(ScriptC_pyramid_blending script, Allocation allocation) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "reduceBitmap");
-        int width = allocation.getType().getX();
-        int height = allocation.getType().getY();
-
-        Allocation reduced_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), width/2, height/2));
-
-        script.set_bitmap(allocation);
-        script.forEach_reduce(reduced_allocation, reduced_allocation);
-
-        return reduced_allocation;
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Allocation expandBitmap(ScriptC_pyramid_blending script, Allocation allocation) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "expandBitmap");
-        long time_s = 0;
-        if( MyDebug.LOG )
-            time_s = System.currentTimeMillis();
-
-        int width = allocation.getType().getX();
-        int height = allocation.getType().getY();
-        Allocation result_allocation;
-
-        Allocation expanded_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
-        if( MyDebug.LOG )
-            Log.d(TAG, "### expandBitmap: time after creating expanded_allocation: " + (System.currentTimeMillis() - time_s));
-
-        script.set_bitmap(allocation);
-        script.forEach_expand(expanded_allocation, expanded_allocation);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### expandBitmap: time after expand: " + (System.currentTimeMillis() - time_s));
-
-        final boolean use_blur_2d = false; // faster to do blue as two 1D passes
-        if( use_blur_2d ) {
-            result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
-            if( MyDebug.LOG )
-                Log.d(TAG, "### expandBitmap: time after creating result_allocation: " + (System.currentTimeMillis() - time_s));
-            script.set_bitmap(expanded_allocation);
-            script.forEach_blur(expanded_allocation, result_allocation);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### expandBitmap: time after blur: " + (System.currentTimeMillis() - time_s));
-            expanded_allocation.destroy();
-            //result_allocation = expanded_allocation;
-        }
-        else {
-            Allocation temp_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
-            if( MyDebug.LOG )
-                Log.d(TAG, "### expandBitmap: time after creating temp_allocation: " + (System.currentTimeMillis() - time_s));
-            script.set_bitmap(expanded_allocation);
-            script.forEach_blur1dX(expanded_allocation, temp_allocation);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### expandBitmap: time after blur1dX: " + (System.currentTimeMillis() - time_s));
-
-            // now re-use expanded_allocation for the result_allocation
-            result_allocation = expanded_allocation;
-            script.set_bitmap(temp_allocation);
-            script.forEach_blur1dY(temp_allocation, result_allocation);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
-
-            temp_allocation.destroy();
-        }
-
-        return result_allocation;
-    }
-
-    /** Creates an allocation where each pixel equals the pixel from allocation0 minus the corresponding
-     *  pixel from allocation1.
-     */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Allocation subtractBitmap(ScriptC_pyramid_blending script, Allocation allocation0, Allocation allocation1) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "subtractBitmap");
-        int width = allocation0.getType().getX();
-        int height = allocation0.getType().getY();
-        if( allocation1.getType().getX() != width || allocation1.getType().getY() != height ) {
-            Log.e(TAG, "allocations of different dimensions");
-            throw new RuntimeException();
-        }
-        Allocation result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
-        script.set_bitmap(allocation1);
-        script.forEach_subtract(allocation0, result_allocation);
-
-        return result_allocation;
-    }
-
-    /** Updates allocation0 such that each pixel equals the pixel from allocation0 plus the
-     *  corresponding pixel from allocation1.
-     *  allocation0 should be of type RGBA_8888, allocation1 should be of type F32_3.
-     */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void addBitmap(ScriptC_pyramid_blending script, Allocation allocation0, Allocation allocation1) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "addBitmap");
-        int width = allocation0.getType().getX();
-        int height = allocation0.getType().getY();
-        if( allocation1.getType().getX() != width || allocation1.getType().getY() != height ) {
-            Log.e(TAG, "allocations of different dimensions");
-            throw new RuntimeException();
-        }
-        script.set_bitmap(allocation1);
-        script.forEach_add(allocation0, allocation0);
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private List<Allocation> createGaussianPyramid(ScriptC_pyramid_blending script, Bitmap bitmap, int n_levels) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "createGaussianPyramid");
-        List<Allocation> pyramid = new ArrayList<>();
-
-        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
-        pyramid.add(allocation);
-        for(int i=0;i<n_levels;i++ ) {
-            allocation = reduceBitmap(script, allocation);
-            pyramid.add(allocation);
-        }
-
-        return pyramid;
-    }
-
-    /** Creates a laplacian pyramid of the supplied bitmap, ordered from bottom to top. The i-th
-     *  entry is equal to [G(i) - G'(i+1)], where G(i) is the i-th level of the gaussian pyramid,
-     *  and G' is created by expanding a level of the gaussian pyramid; except the last entry
-     *  is simply equal to the last (i.e., top) level of the gaussian pyramid.
-     *  The allocations are of type floating point (F32_3), except the last which is of type
-     *  RGBA_8888.
-     */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private List<Allocation> createLaplacianPyramid(ScriptC_pyramid_blending script, Bitmap bitmap, int n_levels, String name) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "createLaplacianPyramid");
-        long time_s = 0;
-        if( MyDebug.LOG )
-            time_s = System.currentTimeMillis();
-
-        List<Allocation> gaussianPyramid = createGaussianPyramid(script, bitmap, n_levels);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### createLaplacianPyramid: time after createGaussianPyramid: " + (System.currentTimeMillis() - time_s));
-        /*if( MyDebug.LOG )
-        {
-            // debug
-            savePyramid("gaussian", gaussianPyramid);
-        }*/
-        List<Allocation> pyramid = new ArrayList<>();
-
-        for(int i=0;i<gaussianPyramid.size()-1;i++) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "createLaplacianPyramid: i = " + i);
-            Allocation this_gauss = gaussianPyramid.get(i);
-            Allocation next_gauss = gaussianPyramid.get(i+1);
-            Allocation next_gauss_expanded = expandBitmap(script, next_gauss);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### createLaplacianPyramid: time after expandBitmap for level " + i + ": " + (System.currentTimeMillis() - time_s));
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "this_gauss: " + this_gauss.getType().getX() + " , " + this_gauss.getType().getY());
-                Log.d(TAG, "next_gauss: " + next_gauss.getType().getX() + " , " + next_gauss.getType().getY());
-                Log.d(TAG, "next_gauss_expanded: " + next_gauss_expanded.getType().getX() + " , " + next_gauss_expanded.getType().getY());
-            }
-            /*if( MyDebug.LOG )
-            {
-                // debug
-                saveAllocation(name + "_this_gauss_" + i + ".jpg", this_gauss);
-                saveAllocation(name + "_next_gauss_expanded_" + i + ".jpg", next_gauss_expanded);
-            }*/
-            Allocation difference = subtractBitmap(script, this_gauss, next_gauss_expanded);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### createLaplacianPyramid: time after subtractBitmap for level " + i + ": " + (System.currentTimeMillis() - time_s));
-            /*if( MyDebug.LOG )
-            {
-                // debug
-                saveAllocation(name + "_difference_" + i + ".jpg", difference);
-            }*/
-            pyramid.add(difference);
-            //pyramid.add(this_gauss);
-
-            this_gauss.destroy();
-            gaussianPyramid.set(i, null); // to help garbage collection
-            next_gauss_expanded.destroy();
-            if( MyDebug.LOG )
-                Log.d(TAG, "### createLaplacianPyramid: time after level " + i + ": " + (System.currentTimeMillis() - time_s));
-        }
-        pyramid.add(gaussianPyramid.get(gaussianPyramid.size()-1));
-
-        return pyramid;
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private Bitmap collapseLaplacianPyramid(ScriptC_pyramid_blending script, List<Allocation> pyramid) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "collapseLaplacianPyramid");
-
-        Allocation allocation = pyramid.get(pyramid.size()-1);
-        boolean first = true;
-        for(int i=pyramid.size()-2;i>=0;i--) {
-            Allocation expanded_allocation = expandBitmap(script, allocation);
-            if( !first ) {
-                allocation.destroy();
-            }
-            addBitmap(script, expanded_allocation, pyramid.get(i));
-            allocation = expanded_allocation;
-            first = false;
-        }
-
-        int width = allocation.getType().getX();
-        int height = allocation.getType().getY();
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        allocation.copyTo(bitmap);
-        if( !first ) {
-            allocation.destroy();
-        }
-        return bitmap;
-    }
-
-    /** Updates every allocation in pyramid0 to be a blend from the left hand of pyramid0 to the
-     *  right hand of pyramid1.
-     *  Note that the width of the blend region will be half of the width of each image.
-     * @param best_path If non-null, the blend region will follow the supplied best path.
-     */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void mergePyramids(ScriptC_pyramid_blending script, List<Allocation> pyramid0, List<Allocation> pyramid1, int [] best_path, int best_path_n_x) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "mergePyramids");
-
-        if( best_path == null ) {
-            best_path = new int[1];
-            best_path_n_x = 3;
-            best_path[0] = 1;
-            //best_path[0] = 2; // test
-        }
-        if( MyDebug.LOG ) {
-            for(int i=0;i<best_path.length;i++)
-                Log.d(TAG, "best_path[" + i + "]: " + best_path[i]);
-        }
-        //Allocation bestPathAllocation = Allocation.createSized(rs, Element.I32(rs), best_path.length);
-        //script.bind_best_path(bestPathAllocation);
-        //bestPathAllocation.copyFrom(best_path);
-
-        int max_height = 0;
-        for(int i=0;i<pyramid0.size();i++) {
-            Allocation allocation0 = pyramid0.get(i);
-            int height = allocation0.getType().getY();
-            max_height = Math.max(max_height, height);
-        }
-
-        Allocation interpolatedbestPathAllocation = Allocation.createSized(rs, Element.I32(rs), max_height);
-        script.bind_interpolated_best_path(interpolatedbestPathAllocation);
-        int [] interpolated_best_path = new int[max_height];
-
-        for(int i=0;i<pyramid0.size();i++) {
-            Allocation allocation0 = pyramid0.get(i);
-            Allocation allocation1 = pyramid1.get(i);
-
-            int width = allocation0.getType().getX();
-            int height = allocation0.getType().getY();
-            if( allocation1.getType().getX() != width || allocation1.getType().getY() != height ) {
-                Log.e(TAG, "allocations of different dimensions");
-                throw new RuntimeException();
-            }
-            else if( allocation0.getType().getElement().getDataType() != allocation1.getType().getElement().getDataType() ) {
-                Log.e(TAG, "allocations of different data types");
-                throw new RuntimeException();
-            }
-
-            script.set_bitmap(allocation1);
-
-            // when using best_path, we have a narrower region to blend across
-            //int blend_window_width = width;
-            int blend_window_width = width/2;
-            //int blend_width = (i==pyramid0.size()-1) ? blend_window_width : 2;
-            int blend_width;
-            if( i==pyramid0.size()-1 ) {
-                blend_width = blend_window_width;
-            }
-            else {
-                blend_width = 2;
-                for(int j=0;j<i;j++) {
-                    blend_width *= 2;
-                }
-                blend_width = Math.min(blend_width, blend_window_width);
-            }
-            /*int blend_width = blend_window_width;
-            for(int j=i;j<pyramid0.size()-1;j++) {
-                blend_width /= 2;
-            }
-            blend_width = Math.max(blend_width, 2);*/
-            //blend_width = 1; // test
-
-            //float best_path_x_width = width / (best_path_n_x+1.0f); // width of each "bucket" for the best paths
-            //blend_width = Math.min(blend_width, (int)(2.0f*best_path_x_width+0.5f));
-            float best_path_y_scale = best_path.length/(float)height;
-            /*if( MyDebug.LOG ) {
-                Log.d(TAG, "i = " + i);
-                Log.d(TAG, "    width: " + width);
-                Log.d(TAG, "    blend_width: " + blend_width);
-                Log.d(TAG, "    height: " + height);
-                //Log.d(TAG, "    best_path_x_width: " + best_path_x_width);
-                Log.d(TAG, "    best_path_y_scale: " + best_path_y_scale);
-            }*/
-
-            // compute interpolated_best_path
-            for(int y=0;y<height;y++) {
-                if( false )
-                {
-                    // no interpolation:
-                    int best_path_y_index = (int)((y+0.5f)*best_path_y_scale);
-                    int best_path_value = best_path[best_path_y_index];
-                    //interpolated_best_path[y] = (int)((best_path_value+1) * best_path_x_width + 0.5f);
-                    float alpha = best_path_value / (best_path_n_x-1.0f);
-                    float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
-                    interpolated_best_path[y] = (int)(frac*width + 0.5f);
-                    /*if( MyDebug.LOG ) {
-                        Log.d(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y] + " (best_path_value " + best_path_value + ")");
-                    }*/
-                }
-                //if( false )
-                {
-                    // linear interpolation
-                    float best_path_y_index = ((y+0.5f)*best_path_y_scale);
-                    float best_path_value;
-                    if( best_path_y_index <= 0.5f ) {
-                        best_path_value = best_path[0];
-                    }
-                    else if( best_path_y_index >= best_path.length-1+0.5f ) {
-                        best_path_value = best_path[best_path.length-1];
-                    }
-                    else {
-                        best_path_y_index -= 0.5f;
-                        int best_path_y_index_i = (int)best_path_y_index;
-                        float linear_alpha = best_path_y_index - best_path_y_index_i;
-                        //float alpha = linear_alpha;
-                        //final float edge_length = 0.25f;
-                        final float edge_length = 0.1f;
-                        float alpha;
-                        if( linear_alpha < edge_length )
-                            alpha = 0.0f;
-                        else if( linear_alpha > 1.0f-edge_length )
-                            alpha = 1.0f;
-                        else
-                            alpha = (linear_alpha - edge_length) / (1.0f - 2.0f*edge_length);
-                        int prev_best_path = best_path[best_path_y_index_i];
-                        int next_best_path = best_path[best_path_y_index_i+1];
-                        best_path_value = (1.0f-alpha) * prev_best_path + alpha * next_best_path;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "    alpha: " + alpha);
-                            Log.d(TAG, "    prev_best_path: " + prev_best_path);
-                            Log.d(TAG, "    next_best_path: " + next_best_path);
-                        }*/
-                    }
-                    //interpolated_best_path[y] = (int)((best_path_value+1) * best_path_x_width + 0.5f);
-                    float alpha = best_path_value / (best_path_n_x-1.0f);
-                    float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
-                    interpolated_best_path[y] = (int)(frac*width + 0.5f);
-                    /*if( MyDebug.LOG ) {
-                        Log.d(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y] + " (best_path_value " + best_path_value + ")");
-                    }*/
-                }
-                if( interpolated_best_path[y] - blend_width/2 < 0 ) {
-                    Log.e(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y]);
-                    Log.e(TAG, "    blend_width: " + blend_width);
-                    Log.e(TAG, "    width: " + width);
-                    throw new RuntimeException("blend window runs off left hand size");
-                }
-                else if( interpolated_best_path[y] + blend_width/2 > width ) {
-                    Log.e(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y]);
-                    Log.e(TAG, "    blend_width: " + blend_width);
-                    Log.e(TAG, "    width: " + width);
-                    throw new RuntimeException("blend window runs off right hand size");
-                }
-            }
-            interpolatedbestPathAllocation.copyFrom(interpolated_best_path);
-
-            script.invoke_setBlendWidth(blend_width, width);
-            //script.set_best_path_x_width(best_path_x_width);
-            //script.set_best_path_y_scale(best_path.length/(float)height);
-
-            if( allocation0.getType().getElement().getDataType() == Element.DataType.FLOAT_32 ) {
-                script.forEach_merge_f(allocation0, allocation0);
-            }
-            else {
-                script.forEach_merge(allocation0, allocation0);
-            }
-        }
-
-        //bestPathAllocation.destroy();
-        interpolatedbestPathAllocation.destroy();
-    }
-
     /** For testing.
      */
     private void saveBitmap(Bitmap bitmap, String name) {
@@ -543,14 +167,6 @@ public class PanoramaProcessor {
         bitmap.recycle();
     }
 
-    /*@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void savePyramid(String name, List<Allocation> pyramid) {
-        for(int i=0;i<pyramid.size();i++) {
-            Allocation allocation = pyramid.get(i);
-            saveAllocation(name + "_" + i + ".jpg", allocation);
-        }
-    }*/
-
     private final static int blend_n_levels = 4; // number of levels used for pyramid blending
 
     /** Bitmaps passed to blendPyramids must have width and height each a multiple of the value
@@ -582,20 +198,6 @@ public class PanoramaProcessor {
             saveBitmap(lhs, "lhs.jpg");
             saveBitmap(rhs, "rhs.jpg");
         }*/
-        // debug
-        /*if( MyDebug.LOG )
-        {
-            List<Allocation> lhs_pyramid = createGaussianPyramid(script, lhs, blend_n_levels);
-            List<Allocation> rhs_pyramid = createGaussianPyramid(script, rhs, blend_n_levels);
-            savePyramid("lhs_gauss", lhs_pyramid);
-            savePyramid("rhs_gauss", rhs_pyramid);
-            for(Allocation allocation : lhs_pyramid) {
-                allocation.destroy();
-            }
-            for(Allocation allocation : rhs_pyramid) {
-                allocation.destroy();
-            }
-        }*/
 
         if( lhs.getWidth() != rhs.getWidth() || lhs.getHeight() != rhs.getHeight() ) {
             Log.e(TAG, "lhs/rhs bitmaps of different dimensions");
@@ -703,50 +305,23 @@ public class PanoramaProcessor {
                 Log.d(TAG, "### blendPyramids: time after finding best path: " + (System.currentTimeMillis() - time_s));
         }
 
-        List<Allocation> lhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, lhs, blend_n_levels, "lhs");
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 1st call: " + (System.currentTimeMillis() - time_s));
-        List<Allocation> rhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, rhs, blend_n_levels, "rhs");
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 2nd call: " + (System.currentTimeMillis() - time_s));
-
-        // debug
-        /*if( MyDebug.LOG )
-        {
-            savePyramid("lhs_laplacian", lhs_pyramid);
-            savePyramid("rhs_laplacian", rhs_pyramid);
-        }*/
-
-        // debug
-        /*if( MyDebug.LOG )
-        {
-            Bitmap lhs_collapsed = collapseLaplacianPyramid(script, lhs_pyramid);
-            saveBitmap(lhs_collapsed, "lhs_collapsed.jpg");
-            Bitmap rhs_collapsed = collapseLaplacianPyramid(script, rhs_pyramid);
-            saveBitmap(rhs_collapsed, "rhs_collapsed.jpg");
-            lhs_collapsed.recycle();
-            rhs_collapsed.recycle();
-        }*/
-
-        mergePyramids(pyramidBlendingScript, lhs_pyramid, rhs_pyramid, best_path, best_path_n_x);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after mergePyramids: " + (System.currentTimeMillis() - time_s));
-        Bitmap merged_bitmap = collapseLaplacianPyramid(pyramidBlendingScript, lhs_pyramid);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after collapseLaplacianPyramid: " + (System.currentTimeMillis() - time_s));
-        // debug
-        /*if( MyDebug.LOG )
-        {
-            savePyramid("merged_laplacian", lhs_pyramid);
-            saveBitmap(merged_bitmap, "merged_bitmap.jpg");
-        }*/
-
-        for(Allocation allocation : lhs_pyramid) {
-            allocation.destroy();
-        }
-        for(Allocation allocation : rhs_pyramid) {
-            allocation.destroy();
+        // JavaPyramidBlender splits the pyramid filters across all cores, and keeps its buffers
+        // between calls (see computePanoramaWorkingBitmaps()), rather than creating new
+        // allocations for every level of each pyramid
+        if( javaPyramidBlender == null ) {
+            javaPyramidBlender = new JavaPyramidBlender(blend_n_levels);
         }
+        int width = lhs.getWidth();
+        int height = lhs.getHeight();
+        int [] lhs_pixels = bitmapPool.obtainIntBuffer(width*height);
+        int [] rhs_pixels = bitmapPool.obtainIntBuffer(width*height);
+        lhs.getPixels(lhs_pixels, 0, width, 0, 0, width, height);
+        rhs.getPixels(rhs_pixels, 0, width, 0, 0, width, height);
+        javaPyramidBlender.blend(lhs_pixels, rhs_pixels, width, height, best_path, best_path_n_x, lhs_pixels);
+        Bitmap merged_bitmap = bitmapPool.obtainBitmap(width, height, Bitmap.Config.ARGB_8888);
+        merged_bitmap.setPixels(lhs_pixels, 0, width, 0, 0, width, height);
+        bitmapPool.release(lhs_pixels);
+        bitmapPool.release(rhs_pixels);
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time taken: " + (System.currentTimeMillis() - time_s));
         return merged_bitmap;
@@ -779,109 +354,6 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-        final int wid = 2*feature_descriptor_radius+1;
-        final int wid2 = wid*wid;
-        for(int indx=st_indx;indx<nd_indx;indx++) {
-            FeatureMatch match = matches.get(indx);
-
-                /*float distance = 0;
-                for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                    for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                        int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                        int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-                        //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                        //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                        int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                        int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-                        int dist2 = value0*value0 + value1+value1;
-                        distance += ((float)dist2)/65025.0f; // so distance for a given pixel is from 0 to 1
-                    }
-                }
-                distance /= (float)wid2; // normalise from 0 to 1
-                match.distance = distance;*/
-
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
-            float fgsum = 0;
-
-            // much faster to read via getPixels() rather than pixel by pixel
-            //bitmaps.get(0).getPixels(pixels0, 0, wid, point0.x - feature_descriptor_radius, point0.y - feature_descriptor_radius, wid, wid);
-            //bitmaps.get(1).getPixels(pixels1, 0, wid, point1.x - feature_descriptor_radius, point1.y - feature_descriptor_radius, wid, wid);
-            //int pixel_idx = 0;
-
-            int pixel_idx0 = match.index0*wid2;
-            int pixel_idx1 = match.index1*wid2;
-
-            for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                    //int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                    //int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-
-                    //int pixel0 = pixels0[pixel_idx];
-                    //int pixel1 = pixels1[pixel_idx];
-                    //pixel_idx++;
-
-                    //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                    //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                    //int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                    //int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-
-                    int value0 = pixels0[pixel_idx0];
-                    int value1 = pixels1[pixel_idx1];
-                    pixel_idx0++;
-                    pixel_idx1++;
-
-                    fsum += value0;
-                    f2sum += value0*value0;
-                    gsum += value1;
-                    g2sum += value1*value1;
-                    fgsum += value0*value1;
-                }
-            }
-            float fden = wid2*f2sum - fsum*fsum;
-            float f_recip = fden==0 ? 0.0f : 1/ fden;
-            float gden = wid2*g2sum - gsum*gsum;
-            float g_recip = gden==0 ? 0.0f : 1/ gden;
-            float fg_corr = wid2*fgsum-fsum*gsum;
-            //if( MyDebug.LOG ) {
-            //  Log.d(TAG, "match distance: ");
-            //  Log.d(TAG, "    fg_corr: " + fg_corr);
-            //  Log.d(TAG, "    fden: " + fden);
-            //  Log.d(TAG, "    gden: " + gden);
-            //  Log.d(TAG, "    f_recip: " + f_recip);
-            //  Log.d(TAG, "    g_recip: " + g_recip);
-            //}
-            // negate, as we want it so that lower value means better match, and normalise to 0-1
-            match.distance = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
-        }
-    }
-
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
-        private final List<FeatureMatch> matches;
-        private final int st_indx;
-        private final int nd_indx;
-        private final int feature_descriptor_radius;
-        private final List<Bitmap> bitmaps;
-        private final int [] pixels0;
-        private final int [] pixels1;
-
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-            super("ComputeDistancesBetweenMatchesThread");
-            this.matches = matches;
-            this.st_indx = st_indx;
-            this.nd_indx = nd_indx;
-            this.feature_descriptor_radius = feature_descriptor_radius;
-            this.bitmaps = bitmaps;
-            this.pixels0 = pixels0;
-            this.pixels1 = pixels1;
-        }
-
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-        }
-    }
-
     static class AutoAlignmentByFeatureResult {
         final int offset_x;
         final int offset_y;
@@ -1233,101 +705,46 @@ public class PanoramaProcessor {
             Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             Log.d(TAG, "max_match_dist2: " + max_match_dist2);
         }
-        List<FeatureMatch> matches = new ArrayList<>();
-        for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
+        if( featureMatcher == null ) {
+            featureMatcher = new FeatureMatcher(feature_descriptor_radius);
+        }
+        int [][] xs = new int[2][];
+        int [][] ys = new int[2][];
+        for(int i=0;i<2;i++) {
+            xs[i] = new int[points_arrays[i].length];
+            ys[i] = new int[points_arrays[i].length];
+            for(int j=0;j<points_arrays[i].length;j++) {
+                xs[i][j] = points_arrays[i][j].x;
+                ys[i][j] = points_arrays[i][j].y;
             }
         }
+        // only consider a match if close enough in actual distance
+        int n_candidates = featureMatcher.findCandidates(xs[0], ys[0], points_arrays[0].length, xs[1], ys[1], points_arrays[1].length, max_match_dist2);
         if( MyDebug.LOG )
-            Log.d(TAG, "### possible matches: " + matches.size());
+            Log.d(TAG, "### possible matches: " + n_candidates);
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
         // compute distances between matches
         {
             final int wid = 2*feature_descriptor_radius+1;
-            final int wid2 = wid*wid;
-            int [] pixels0 = new int[points_arrays[0].length*wid2];
-            int [] pixels1 = new int[points_arrays[1].length*wid2];
-            for(int i=0;i<points_arrays[0].length;i++) {
-                int x = points_arrays[0][i].x;
-                int y = points_arrays[0][i].y;
-                bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            for(int i=0;i<points_arrays[1].length;i++) {
-                int x = points_arrays[1][i].x;
-                int y = points_arrays[1][i].y;
-                bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            // convert to greyscale
-            for(int i=0;i<pixels0.length;i++) {
-                int pixel = pixels0[i];
-                pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-            for(int i=0;i<pixels1.length;i++) {
-                int pixel = pixels1[i];
-                pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-
-            final boolean use_smp = true;
-            if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
-                if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
+            for(int i=0;i<2;i++) {
+                // much faster to read via getPixels() rather than pixel by pixel
+                int [] patches = featureMatcher.getPatchBuffer(points_arrays[i].length);
+                for(int j=0;j<points_arrays[i].length;j++) {
+                    int x = points_arrays[i][j].x;
+                    int y = points_arrays[i][j].y;
+                    bitmaps.get(i).getPixels(patches, j*featureMatcher.getDescriptorSize(), wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
-            }
-            else {
-                int st_indx = 0, nd_indx = matches.size();
-                /*final int wid = 2*feature_descriptor_radius+1;
-                final int wid2 = wid*wid;
-                int [] pixels0 = new int[wid2];
-                int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+                featureMatcher.setDescriptors(i, patches, points_arrays[i].length);
             }
+            featureMatcher.computeDistances();
+        }
+        List<FeatureMatch> matches = new ArrayList<>(n_candidates);
+        for(int i=0;i<n_candidates;i++) {
+            FeatureMatch match = new FeatureMatch(featureMatcher.getCandidateIndex0(i), featureMatcher.getCandidateIndex1(i));
+            match.distance = featureMatcher.getCandidateDistance(i);
+            matches.add(match);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
@@ -2031,7 +1448,7 @@ public class PanoramaProcessor {
     }
 
     private Bitmap createProjectedBitmap(final Rect src_rect_workspace, final Rect dst_rect_workspace, final Bitmap bitmap, final Paint p, final int bitmap_width, final int bitmap_height, final double camera_angle, final int centre_shift_x) {
-        Bitmap projected_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
+        Bitmap projected_bitmap = bitmapPool.obtainBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
         {
             // project
             Canvas projected_canvas = new Canvas(projected_bitmap);
@@ -2131,7 +1548,7 @@ public class PanoramaProcessor {
             // For the y crop, there isn't any advantage to shifting.
 
             //Bitmap lhs = Bitmap.createBitmap(panorama, offset_x + dst_offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap lhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap lhs = bitmapPool.obtainBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
             {
                 Canvas lhs_canvas = new Canvas(lhs);
                 src_rect_workspace.set(offset_x + dst_offset_x - blend_hwidth, 0, offset_x + dst_offset_x + blend_hwidth, bitmap_height);
@@ -2142,7 +1559,7 @@ public class PanoramaProcessor {
             }
 
             //Bitmap rhs = Bitmap.createBitmap(projected_bitmap, offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap rhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap rhs = bitmapPool.obtainBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
             {
                 Canvas rhs_canvas = new Canvas(rhs);
                 src_rect_workspace.set(offset_x - blend_hwidth, 0, offset_x + blend_hwidth, bitmap_height);
@@ -2184,9 +1601,9 @@ public class PanoramaProcessor {
             // note it's intentional that we don't shift for crop_y0, see comment above
             canvas.drawBitmap(blended_bitmap, offset_x + dst_offset_x - blend_hwidth - crop_x0, 0, p);
 
-            lhs.recycle();
-            rhs.recycle();
-            blended_bitmap.recycle();
+            bitmapPool.release(lhs);
+            bitmapPool.release(rhs);
+            bitmapPool.release(blended_bitmap);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after blending for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
@@ -2270,7 +1687,7 @@ public class PanoramaProcessor {
         p.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER)); // reset
         */
 
-        projected_bitmap.recycle();
+        bitmapPool.release(projected_bitmap);
         /*if( rotated_bitmap != null ) {
             rotated_bitmap.recycle();
         }*/
@@ -2324,70 +1741,72 @@ public class PanoramaProcessor {
         */
     }
 
-    /**
-     * @return Returns the ratio between maximum and minimum computed brightnesses.
+    /** Computes the brightness of bitmap_r relative to bitmap_l, by comparing the regions either side
+     *  of the join between the two images.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private float adjustExposuresLocal(List<Bitmap> bitmaps, int bitmap_width, int bitmap_height, int slice_width, long time_s) {
+    private float computeBrightnessScale(Bitmap bitmap_l, Bitmap bitmap_r, int bitmap_width, int bitmap_height, int slice_width, long time_s) {
         final int exposure_hwidth = bitmap_width/10;
         final int offset_x = (bitmap_width - slice_width)/2;
 
-        List<Float> relative_brightness = new ArrayList<>();
-        float current_relative_brightness = 1.0f;
-        relative_brightness.add(current_relative_brightness);
-        float min_relative_brightness = current_relative_brightness;
-        float max_relative_brightness = current_relative_brightness;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before cropping bitmaps: " + (System.currentTimeMillis() - time_s));
 
+        // scale down for performance
+        Matrix scale_matrix = new Matrix();
+        scale_matrix.postScale(0.5f, 0.5f);
+
+        Bitmap crop_l = Bitmap.createBitmap(bitmap_l, offset_x+slice_width-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
+        Bitmap crop_r = Bitmap.createBitmap(bitmap_r, offset_x-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
         if( MyDebug.LOG )
-            Log.d(TAG, "### time before computing brightnesses: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "### time after cropping bitmaps: " + (System.currentTimeMillis() - time_s));
 
-        for(int i=0;i<bitmaps.size()-1;i++) {
-            // compute brightness difference between i-th and (i+1)-th images
-            Bitmap bitmap_l = bitmaps.get(i);
-            Bitmap bitmap_r = bitmaps.get(i+1);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time before cropping bitmaps: " + (System.currentTimeMillis() - time_s));
+        int [] histo_l = hdrProcessor.computeHistogram(crop_l, false);
+        HDRProcessor.HistogramInfo histogramInfo_l = hdrProcessor.getHistogramInfo(histo_l);
+        int [] histo_r = hdrProcessor.computeHistogram(crop_r, false);
+        HDRProcessor.HistogramInfo histogramInfo_r = hdrProcessor.getHistogramInfo(histo_r);
 
-            // scale down for performance
-            Matrix scale_matrix = new Matrix();
-            scale_matrix.postScale(0.5f, 0.5f);
+        float brightness_scale = ((float)Math.max(histogramInfo_r.median_brightness, 1)) / (float)Math.max(histogramInfo_l.median_brightness, 1);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    left median: " + histogramInfo_l.median_brightness);
+            Log.d(TAG, "    right median: " + histogramInfo_r.median_brightness);
+            Log.d(TAG, "    brightness_scale: " + brightness_scale);
+        }
 
-            //bitmap_l = Bitmap.createBitmap(bitmap_l, offset_x+slice_width-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height);
-            //bitmap_r = Bitmap.createBitmap(bitmap_r, offset_x-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height);
-            bitmap_l = Bitmap.createBitmap(bitmap_l, offset_x+slice_width-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
-            bitmap_r = Bitmap.createBitmap(bitmap_r, offset_x-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after cropping bitmaps: " + (System.currentTimeMillis() - time_s));
-            // debug
-            /*if( MyDebug.LOG )
-            {
-                saveBitmap(bitmap_l, "exposure_bitmap_l.jpg");
-                saveBitmap(bitmap_r, "exposure_bitmap_r.jpg");
-            }*/
+        if( crop_l != bitmap_l )
+            crop_l.recycle();
+        if( crop_r != bitmap_r )
+            crop_r.recycle();
+        return brightness_scale;
+    }
 
-            int [] histo_l = hdrProcessor.computeHistogram(bitmap_l, false);
-            HDRProcessor.HistogramInfo histogramInfo_l = hdrProcessor.getHistogramInfo(histo_l);
-            int [] histo_r = hdrProcessor.computeHistogram(bitmap_r, false);
-            HDRProcessor.HistogramInfo histogramInfo_r = hdrProcessor.getHistogramInfo(histo_r);
+    /** Computes the brightness targets used to equalise the exposures of the images.
+     * @param brightness_scales  The i-th entry is the brightness of the (i+1)-th image relative to the
+     *                           i-th image, as returned by computeBrightnessScale().
+     * @param histogramInfos     The histogram info for each image.
+     * @param brightness_targets Output array, of the same size as histogramInfos, to store the
+     *                           brightness target for each image, to pass to
+     *                           HDRProcessor.brightenImage().
+     * @return Returns the ratio between maximum and minimum computed brightnesses.
+     */
+    private float computeExposureTargets(List<Float> brightness_scales, List<HDRProcessor.HistogramInfo> histogramInfos, int [] brightness_targets, long time_s) {
+        List<Float> relative_brightness = new ArrayList<>();
+        float current_relative_brightness = 1.0f;
+        relative_brightness.add(current_relative_brightness);
+        float min_relative_brightness = current_relative_brightness;
+        float max_relative_brightness = current_relative_brightness;
 
-            float brightness_scale = ((float)Math.max(histogramInfo_r.median_brightness, 1)) / (float)Math.max(histogramInfo_l.median_brightness, 1);
-            current_relative_brightness *= brightness_scale;
+        for(int i=0;i<brightness_scales.size();i++) {
+            current_relative_brightness *= brightness_scales.get(i);
             if( MyDebug.LOG ) {
                 Log.d(TAG, "compare brightnesses from images " + i + " to " + (i+1) + ":");
-                Log.d(TAG, "    left median: " + histogramInfo_l.median_brightness);
-                Log.d(TAG, "    right median: " + histogramInfo_r.median_brightness);
-                Log.d(TAG, "    brightness_scale: " + brightness_scale);
+                Log.d(TAG, "    brightness_scale: " + brightness_scales.get(i));
                 Log.d(TAG, "    current_relative_brightness: " + current_relative_brightness);
             }
             relative_brightness.add(current_relative_brightness);
 
             min_relative_brightness = Math.min(min_relative_brightness, current_relative_brightness);
             max_relative_brightness = Math.max(max_relative_brightness, current_relative_brightness);
-
-            if( bitmap_l != bitmaps.get(i) )
-                bitmap_l.recycle();
-            if( bitmap_r != bitmaps.get(i+1) )
-                bitmap_r.recycle();
         }
 
         float ratio_brightnesses = (max_relative_brightness/min_relative_brightness);
@@ -2412,14 +1831,10 @@ public class PanoramaProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### time after computing brightnesses: " + (System.currentTimeMillis() - time_s));
 
-        List<HDRProcessor.HistogramInfo> histogramInfos = new ArrayList<>();
         float mean_median_brightness = 0.0f; // mean of the global median brightnesse
         float mean_equalised_brightness = 0.0f; // mean of the brightnesses if all adjusted to match exposure of the first image
-        for(int i=0;i<bitmaps.size();i++) {
-            Bitmap bitmap = bitmaps.get(i);
-            int [] histo = hdrProcessor.computeHistogram(bitmap, false);
-            HDRProcessor.HistogramInfo histogramInfo = hdrProcessor.getHistogramInfo(histo);
-            histogramInfos.add(histogramInfo);
+        for(int i=0;i<histogramInfos.size();i++) {
+            HDRProcessor.HistogramInfo histogramInfo = histogramInfos.get(i);
             mean_median_brightness += histogramInfo.median_brightness;
             float equalised_brightness = histogramInfo.median_brightness/relative_brightness.get(i);
             mean_equalised_brightness += equalised_brightness;
@@ -2428,8 +1843,8 @@ public class PanoramaProcessor {
                 Log.d(TAG, "    and equalised_brightness " + equalised_brightness);
             }
         }
-        mean_median_brightness /= bitmaps.size();
-        mean_equalised_brightness /= bitmaps.size();
+        mean_median_brightness /= histogramInfos.size();
+        mean_equalised_brightness /= histogramInfos.size();
         if( MyDebug.LOG ) {
             Log.d(TAG, "mean_median_brightness: " + mean_median_brightness);
             Log.d(TAG, "mean_equalised_brightness: " + mean_equalised_brightness);
@@ -2441,11 +1856,10 @@ public class PanoramaProcessor {
             Log.d(TAG, "### time after computing global histograms: " + (System.currentTimeMillis() - time_s));
 
         float min_preferred_scale = 1000.0f, max_preferred_scale = 0.0f;
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<histogramInfos.size();i++) {
             if( MyDebug.LOG )
-                Log.d(TAG, "    adjust exposure for image: " + i);
+                Log.d(TAG, "    compute exposure adjustment for image: " + i);
 
-            Bitmap bitmap = bitmaps.get(i);
             HDRProcessor.HistogramInfo histogramInfo = histogramInfos.get(i);
 
             int brightness_target = (int)(histogramInfo.median_brightness*avg_relative_brightness/relative_brightness.get(i) + 0.1f);
@@ -2471,12 +1885,12 @@ public class PanoramaProcessor {
                 Log.d(TAG, "    actual brightness scale: " + this_brightness_target / (float) histogramInfo.median_brightness);
             }
 
-            hdrProcessor.brightenImage(bitmap, histogramInfo.median_brightness, histogramInfo.max_brightness, this_brightness_target);
+            brightness_targets[i] = this_brightness_target;
         }
         if( MyDebug.LOG ) {
             Log.d(TAG, "min_preferred_scale: " + min_preferred_scale);
             Log.d(TAG, "max_preferred_scale: " + max_preferred_scale);
-            Log.d(TAG, "### time after adjusting brightnesses: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "### time after computing brightness targets: " + (System.currentTimeMillis() - time_s));
         }
         /*if( min_preferred_scale < 0.5f || max_preferred_scale > 2.0f ) {
             throw new RuntimeException("");
@@ -2555,9 +1969,19 @@ public class PanoramaProcessor {
         }
     }*/
 
+    /** First pass over the input images: computes the transforms to align the images, and the
+     *  exposure information needed to equalise their brightness. Only neighbouring pairs of images
+     *  are compared, so at most two images (plus the one being prefetched) are loaded at a time.
+     * @param brightness_scales Output list for the brightness of each image relative to the
+     *                          previous image, see computeBrightnessScale().
+     * @param histogramInfos    Output list for the histogram info of each image.
+     * @param first_bitmap      The first image, already obtained from the prefetcher (so that it
+     *                          isn't decoded twice). This method takes ownership of it.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
-                                           List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
+                                           List<Float> brightness_scales, List<HDRProcessor.HistogramInfo> histogramInfos,
+                                           BitmapPrefetcher prefetcher, Bitmap first_bitmap, final int bitmap_width, final int bitmap_height,
                                            final int offset_x, final int slice_width, final int align_hwidth,
                                            long time_s) throws PanoramaProcessorException {
         Matrix cumulative_transform = new Matrix();
@@ -2568,10 +1992,21 @@ public class PanoramaProcessor {
         final boolean use_auto_align = true;
         //final boolean use_auto_align = false;
 
-        for(int i=0;i<bitmaps.size();i++) {
+        final int n_bitmaps = prefetcher.getBitmapCount();
+        Bitmap prev_bitmap = null;
+        for(int i=0;i<n_bitmaps;i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "process bitmap: " + i);
 
+            Bitmap bitmap = i == 0 ? first_bitmap : prefetcher.getBitmap(i);
+            if( bitmap.getWidth() != bitmap_width || bitmap.getHeight() != bitmap_height ) {
+                Log.e(TAG, "bitmaps not of equal sizes");
+                prefetcher.releaseBitmap(bitmap);
+                if( prev_bitmap != null )
+                    prefetcher.releaseBitmap(prev_bitmap);
+                throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
+            }
+
             double angle_z = 0.0;
 
             if( use_auto_align && i > 0 ) {
@@ -2585,7 +2020,7 @@ public class PanoramaProcessor {
                     Log.d(TAG, "    offset_x: " + offset_x);
                     Log.d(TAG, "    slice_width: " + slice_width);
                     Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
-                    Log.d(TAG, "    bitmap(i-1) width: " + bitmaps.get(i - 1).getWidth());
+                    Log.d(TAG, "    bitmap(i-1) width: " + prev_bitmap.getWidth());
                 }
 
                 //final boolean use_align_by_feature = false;
@@ -2620,8 +2055,8 @@ public class PanoramaProcessor {
                 //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
                 Matrix align_scale_matrix = new Matrix();
                 align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+                alignment_bitmaps.add( Bitmap.createBitmap(bitmap, align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+                alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
                 if( MyDebug.LOG )
                     Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
 
@@ -2724,22 +2159,35 @@ public class PanoramaProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "    dst_offset_x is now: " + dst_offset_x);
 
+            if( i > 0 ) {
+                brightness_scales.add( computeBrightnessScale(prev_bitmap, bitmap, bitmap_width, bitmap_height, slice_width, time_s) );
+            }
+            int [] histo = hdrProcessor.computeHistogram(bitmap, false);
+            histogramInfos.add( hdrProcessor.getHistogramInfo(histo) );
+
+            // the previous image is no longer needed
+            if( prev_bitmap != null )
+                prefetcher.releaseBitmap(prev_bitmap);
+            prev_bitmap = bitmap;
+
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after processing " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
+        if( prev_bitmap != null )
+            prefetcher.releaseBitmap(prev_bitmap);
     }
 
     /** Typically images will have different rotations. Rather than assuming the first image is the
      *  optimal transform (with no rotation), we rotate the transforms to the mean of the rotations.
      *  This is effectively equivalent to rotating the final image to be hopefully more level.
      */
-    private void adjustPanoramaTransforms(List<Bitmap> bitmaps, List<Matrix> cumulative_transforms,
+    private void adjustPanoramaTransforms(int n_bitmaps, List<Matrix> cumulative_transforms,
                                           int panorama_width, int slice_width, int bitmap_width, int bitmap_height) {
         float [] values = new float[9];
 
         float min_rotation = 1000, max_rotation = - 1000;
         float sum_rotation = 0.0f;
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<n_bitmaps;i++) {
             cumulative_transforms.get(i).getValues(values);
             // get rotation anticlockwise in degrees - https://stackoverflow.com/questions/12256854/get-the-rotate-value-from-matrix-in-android
             float rotation = (float)Math.toDegrees(Math.atan2(values[Matrix.MSKEW_X], values[Matrix.MSCALE_X]));
@@ -2750,7 +2198,7 @@ public class PanoramaProcessor {
             sum_rotation += rotation;
         }
         //float mid_rotation = 0.5f*(min_rotation + max_rotation);
-        //float mid_rotation = sum_rotation/bitmaps.size();
+        //float mid_rotation = sum_rotation/n_bitmaps;
         if( MyDebug.LOG ) {
             Log.d(TAG, "min_rotation: " + min_rotation + " degrees");
             Log.d(TAG, "max_rotation: " + max_rotation + " degrees");
@@ -2790,7 +2238,7 @@ public class PanoramaProcessor {
 
         // we now apply a rotation of -mid_rotation about what will be the centre of the resultant panoramic image, remembering
         // that each matrix in cumulative_transforms is set up for each input images coordinate space
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<n_bitmaps;i++) {
             float centre_x = panorama_width/2.0f - i*slice_width;
             float centre_y = bitmap_height/2.0f;
             // apply a post rotate of mid_rotation clockwise about (centre_x, centre_y)
@@ -2804,12 +2252,16 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Second pass over the input images: adjusts the exposure of each image, then projects and
+     *  blends it into the panorama. Each image is released as soon as it has been rendered.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void renderPanorama(List<Bitmap> bitmaps, int bitmap_width, int bitmap_height,
+    private void renderPanorama(BitmapPrefetcher prefetcher, int bitmap_width, int bitmap_height,
                                 List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
+                                List<HDRProcessor.HistogramInfo> histogramInfos, int [] brightness_targets,
                                 final int blend_hwidth, final int slice_width, final int offset_x,
                                 final Bitmap panorama, final int crop_x0, final int crop_y0,
-                                final double camera_angle, long time_s) {
+                                final double camera_angle, long time_s) throws PanoramaProcessorException {
 
         Rect src_rect = new Rect();
         Rect dst_rect = new Rect();
@@ -2817,10 +2269,16 @@ public class PanoramaProcessor {
         Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
         Canvas canvas = new Canvas(panorama);
 
-        for(int i=0;i<bitmaps.size();i++) {
+        final int n_bitmaps = prefetcher.getBitmapCount();
+        for(int i=0;i<n_bitmaps;i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "render bitmap: " + i);
-            Bitmap bitmap = bitmaps.get(i);
+            Bitmap bitmap = prefetcher.getBitmap(i);
+            final Bitmap input_bitmap = bitmap;
+            HDRProcessor.HistogramInfo histogramInfo = histogramInfos.get(i);
+            hdrProcessor.brightenImage(bitmap, histogramInfo.median_brightness, histogramInfo.max_brightness, brightness_targets[i]);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjusting brightness of " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
             int align_x = align_x_values.get(i);
             //int align_y = align_y_values.get(i);
             int align_y = 0;
@@ -2866,7 +2324,7 @@ public class PanoramaProcessor {
                     // ...but on the last image, we don't want to shift too far off screen, as we'll then chop
                     // off part of the image.
                     // See testPanorama19, where without this fix we lose a bit along the right hand side
-                    if( i == bitmaps.size()-1 && trans_x < 0 && bake_trans_x + trans_x > 0 ) {
+                    if( i == n_bitmaps-1 && trans_x < 0 && bake_trans_x + trans_x > 0 ) {
                         bake_trans_x = - trans_x;
                         //if( true )
                         //    throw new RuntimeException(); // test
@@ -2884,7 +2342,7 @@ public class PanoramaProcessor {
                 }
 
                 {
-                    Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
+                    Bitmap rotated_bitmap = bitmapPool.obtainBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
                     Canvas rotated_canvas = new Canvas(rotated_bitmap);
                     rotated_canvas.save();
 
@@ -2901,7 +2359,7 @@ public class PanoramaProcessor {
                 }
             }
 
-            renderPanoramaImage(i, bitmaps.size(), src_rect, dst_rect,
+            renderPanoramaImage(i, n_bitmaps, src_rect, dst_rect,
                     bitmap, p, bitmap_width, bitmap_height,
                     blend_hwidth, slice_width, offset_x,
                     panorama, canvas, crop_x0, crop_y0,
@@ -2909,16 +2367,153 @@ public class PanoramaProcessor {
                     camera_angle, time_s);
 
             if( free_bitmap ) {
-                bitmap.recycle();
+                bitmapPool.release(bitmap);
             }
+            prefetcher.releaseBitmap(input_bitmap);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after rendering " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
     }
 
+    /** Supplies the input images to panorama(). The images are requested in order, in two passes
+     *  (one to align the images, and one to render them), and each image is released as soon as
+     *  the processor has finished with it, so an implementation can load images on demand rather
+     *  than keeping all of them in memory.
+     *  Note that an implementation that decodes on demand will decode each image twice, as both
+     *  passes need the full resolution image; any per-image work that doesn't depend on the
+     *  pixels (e.g., reading the orientation) should be done once up front.
+     */
+    public interface BitmapProvider {
+        int getBitmapCount();
+
+        /** Returns the index-th image, or null on failure. This may be called more than once for
+         *  each index, and is called on a background thread.
+         */
+        Bitmap getBitmap(int index);
+
+        /** Called when the processor has finished with a bitmap returned by getBitmap(). Note that
+         *  the processor may have modified the bitmap.
+         */
+        void releaseBitmap(Bitmap bitmap);
+    }
+
+    /** Requests bitmaps from a BitmapProvider, loading the next bitmap on a background thread
+     *  whilst the current one is being processed.
+     */
+    private static class BitmapPrefetcher {
+        private final BitmapProvider provider;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private Future<Bitmap> next_bitmap;
+        private int next_index = -1;
+
+        BitmapPrefetcher(BitmapProvider provider) {
+            this.provider = provider;
+        }
+
+        int getBitmapCount() {
+            return provider.getBitmapCount();
+        }
+
+        Bitmap getBitmap(final int index) throws PanoramaProcessorException {
+            Bitmap bitmap;
+            if( next_bitmap != null && next_index == index ) {
+                try {
+                    bitmap = next_bitmap.get();
+                }
+                catch(ExecutionException | InterruptedException e) {
+                    Log.e(TAG, "failed to load bitmap " + index);
+                    e.printStackTrace();
+                    bitmap = null;
+                }
+                next_bitmap = null;
+            }
+            else {
+                cancelPrefetch();
+                bitmap = provider.getBitmap(index);
+            }
+            if( bitmap == null ) {
+                Log.e(TAG, "failed to load bitmap " + index);
+                throw new PanoramaProcessorException(PanoramaProcessorException.FAILED_TO_LOAD);
+            }
+
+            if( index+1 < provider.getBitmapCount() ) {
+                next_index = index+1;
+                next_bitmap = executor.submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        return provider.getBitmap(index+1);
+                    }
+                });
+            }
+            return bitmap;
+        }
+
+        void releaseBitmap(Bitmap bitmap) {
+            provider.releaseBitmap(bitmap);
+        }
+
+        /** Waits for any bitmap being prefetched, and releases it.
+         */
+        private void cancelPrefetch() {
+            if( next_bitmap != null ) {
+                try {
+                    Bitmap bitmap = next_bitmap.get();
+                    if( bitmap != null )
+                        provider.releaseBitmap(bitmap);
+                }
+                catch(ExecutionException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+                next_bitmap = null;
+            }
+        }
+
+        void shutdown() {
+            cancelPrefetch();
+            executor.shutdown();
+        }
+    }
+
+    /** Creates a panorama from bitmaps that are already loaded. The bitmaps are recycled, and the
+     *  list is cleared.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(final List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        Bitmap panorama;
+        try {
+            panorama = panorama(new BitmapProvider() {
+                @Override
+                public int getBitmapCount() {
+                    return bitmaps.size();
+                }
+
+                @Override
+                public Bitmap getBitmap(int index) {
+                    return bitmaps.get(index);
+                }
+
+                @Override
+                public void releaseBitmap(Bitmap bitmap) {
+                    // bitmaps are recycled below, as they may be requested again
+                }
+            }, panorama_pics_per_screen, camera_angle_y, crop);
+        }
+        finally {
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+        }
+        return panorama;
+    }
+
+    /** Creates a panorama, streaming the input images from the supplied provider: at most a few
+     *  input images are loaded at any time (rather than all of them), so the number of images is
+     *  limited by the size of the output rather than the inputs.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+    public Bitmap panorama(BitmapProvider provider, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "panorama");
             Log.d(TAG, "camera_angle_y: " + camera_angle_y);
@@ -2928,28 +2523,33 @@ public class PanoramaProcessor {
         if( MyDebug.LOG )
             time_s = System.currentTimeMillis();
 
-        int bitmap_width = bitmaps.get(0).getWidth();
-        int bitmap_height = bitmaps.get(0).getHeight();
+        final int n_bitmaps = provider.getBitmapCount();
+        if( n_bitmaps == 0 ) {
+            Log.e(TAG, "no bitmaps");
+            throw new PanoramaProcessorException(PanoramaProcessorException.INVALID_N_IMAGES);
+        }
+        BitmapPrefetcher prefetcher = new BitmapPrefetcher(provider);
+        try {
+            return panorama(prefetcher, n_bitmaps, panorama_pics_per_screen, camera_angle_y, crop, time_s);
+        }
+        finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap panorama(BitmapPrefetcher prefetcher, final int n_bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop, long time_s) throws PanoramaProcessorException {
+        // we need the first image for its size; rather than releasing it, it's passed on to
+        // computePanoramaTransforms(), so that it isn't decoded again (which would also discard the
+        // prefetch of the 2nd image that the prefetcher has now started)
+        Bitmap first_bitmap = prefetcher.getBitmap(0);
+        final int bitmap_width = first_bitmap.getWidth();
+        final int bitmap_height = first_bitmap.getHeight();
         if( MyDebug.LOG ) {
             Log.d(TAG, "bitmap_width: " + bitmap_width);
             Log.d(TAG, "bitmap_height: " + bitmap_height);
         }
 
-        for(int i=1;i<bitmaps.size();i++) {
-            Bitmap bitmap = bitmaps.get(i);
-            if( bitmap.getWidth() != bitmap_width || bitmap.getHeight() != bitmap_height ) {
-                Log.e(TAG, "bitmaps not of equal sizes");
-                throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
-            }
-        }
-        /*{
-            // test
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                saveBitmap(bitmap, "input_bitmap_" + i +".png");
-            }
-        }*/
-
         final int slice_width = (int) (bitmap_width / panorama_pics_per_screen);
         if( MyDebug.LOG )
             Log.d(TAG, "slice_width: " + slice_width);
@@ -2996,22 +2596,26 @@ public class PanoramaProcessor {
         List<Integer> align_x_values = new ArrayList<>();
         List<Integer> dst_offset_x_values = new ArrayList<>();
 
-        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
-                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
+        List<Float> brightness_scales = new ArrayList<>();
+        List<HDRProcessor.HistogramInfo> histogramInfos = new ArrayList<>();
+
+        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, brightness_scales, histogramInfos,
+                prefetcher, first_bitmap, bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
         // the transforms
-        int panorama_width = (bitmaps.size()*slice_width+2*offset_x);
+        int panorama_width = (n_bitmaps*slice_width+2*offset_x);
         if( MyDebug.LOG ) {
             Log.d(TAG, "original panorama_width: " + panorama_width);
         }
 
-        adjustPanoramaTransforms(bitmaps, cumulative_transforms, panorama_width, slice_width, bitmap_width, bitmap_height);
+        adjustPanoramaTransforms(n_bitmaps, cumulative_transforms, panorama_width, slice_width, bitmap_width, bitmap_height);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after adjusting transforms: " + (System.currentTimeMillis() - time_s));
 
         //adjustExposures(bitmaps, time_s);
-        float ratio_brightnesses = adjustExposuresLocal(bitmaps, bitmap_width, bitmap_height, slice_width, time_s);
+        int [] brightness_targets = new int[n_bitmaps];
+        float ratio_brightnesses = computeExposureTargets(brightness_scales, histogramInfos, brightness_targets, time_s);
 
         int panorama_height = bitmap_height;
         int crop_x0 = 0;
@@ -3021,7 +2625,7 @@ public class PanoramaProcessor {
             // compute crop regions
             int crop_x1 = bitmap_width-1;
             int crop_y1 = bitmap_height-1;
-            for(int i=0;i<bitmaps.size();i++) {
+            for(int i=0;i<n_bitmaps;i++) {
                 float [] points = new float[8];
 
                 points[0] = 0.0f;
@@ -3059,7 +2663,7 @@ public class PanoramaProcessor {
                     crop_x0 = Math.max(crop_x0, (int)points[0]);
                     crop_x0 = Math.max(crop_x0, (int)points[4]);
                 }
-                if( i == bitmaps.size()-1 ) {
+                if( i == n_bitmaps-1 ) {
                     crop_x1 = Math.min(crop_x1, (int)points[2]);
                     crop_x1 = Math.min(crop_x1, (int)points[6]);
                 }
@@ -3115,16 +2719,12 @@ public class PanoramaProcessor {
 
         if( MyDebug.LOG )
             Log.d(TAG, "### time before rendering bitmaps: " + (System.currentTimeMillis() - time_s));
-        renderPanorama(bitmaps, bitmap_width, bitmap_height, cumulative_transforms, align_x_values, dst_offset_x_values,
+        renderPanorama(prefetcher, bitmap_width, bitmap_height, cumulative_transforms, align_x_values, dst_offset_x_values,
+                histogramInfos, brightness_targets,
                 blend_hwidth, slice_width, offset_x, panorama, crop_x0, crop_y0, camera_angle, time_s);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after rendering bitmaps: " + (System.currentTimeMillis() - time_s));
 
-        for(Bitmap bitmap : bitmaps) {
-            bitmap.recycle();
-        }
-        bitmaps.clear();
-
         if( ratio_brightnesses >= 3.0f ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "apply contrast enhancement, ratio_brightnesses: " + ratio_brightnesses);
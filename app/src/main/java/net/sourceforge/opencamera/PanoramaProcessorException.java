@@ -7,6 +7,7 @@ public class PanoramaProcessorException extends Exception {
     final static public int INVALID_N_IMAGES = 0; // the supplied number of images is not supported
     final static public int UNEQUAL_SIZES = 1; // images not of the same resolution
     final static public int FAILED_TO_CROP = 1; // failed to crop
+    final static public int FAILED_TO_LOAD = 2; // failed to load an input image
 
     final private int code;
 
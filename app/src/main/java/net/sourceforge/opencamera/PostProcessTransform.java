@@ -0,0 +1,153 @@
+package net.sourceforge.opencamera;
+
+/** Composes the geometric transforms applied to a photo by ImageSaver's post-processing (rotating
+ *  for the Exif orientation, auto-stabilise's rotation, scale and crop, and mirroring) into a
+ *  single affine transform, so the photo can be resampled once rather than once per step.
+ *  Each step matches the result of Bitmap.createBitmap() when applying that step on its own: for
+ *  a step with a matrix, the output is the bounding box of the transformed image, rounded to
+ *  whole pixels, with the transformed image translated so the bounding box starts at the origin;
+ *  for a crop, the output is the cropped region. So the composed transform and output size are
+ *  the same as for applying the steps one after another.
+ *  The transform maps pixel coordinates in the original image to pixel coordinates in the output,
+ *  as x' = a*x + b*y + c, y' = d*x + e*y + f.
+ *  This doesn't depend on android.graphics, so can be tested on a desktop JVM.
+ */
+public class PostProcessTransform {
+    // as SK_ScalarNearlyZero, so that rotations by multiples of 90 degrees are exact, as for
+    // android.graphics.Matrix
+    private static final double nearly_zero_c = 1.0/4096.0;
+
+    private double a = 1.0, b = 0.0, c = 0.0;
+    private double d = 0.0, e = 1.0, f = 0.0;
+    private int width;
+    private int height;
+
+    /**
+     * @param width  The width of the original image.
+     * @param height The height of the original image.
+     */
+    public PostProcessTransform(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Returns the width of the output image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the height of the output image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    private static double snap(double value) {
+        return Math.abs(value) <= nearly_zero_c ? 0.0 : value;
+    }
+
+    /** Applies a step with the linear transform (la, lb; ld, le), as for Bitmap.createBitmap()
+     *  with a matrix.
+     */
+    private void applyStep(double la, double lb, double ld, double le) {
+        // bounding box of the current output rectangle under the step
+        double [] xs = {0.0, la*width, lb*height, la*width + lb*height};
+        double [] ys = {0.0, ld*width, le*height, ld*width + le*height};
+        double min_x = xs[0], max_x = xs[0], min_y = ys[0], max_y = ys[0];
+        for(int i=1;i<4;i++) {
+            min_x = Math.min(min_x, xs[i]);
+            max_x = Math.max(max_x, xs[i]);
+            min_y = Math.min(min_y, ys[i]);
+            max_y = Math.max(max_y, ys[i]);
+        }
+        // Bitmap.createBitmap() computes the bounds as floats
+        float left = (float)min_x;
+        float top = (float)min_y;
+        int new_width = Math.round((float)max_x - left);
+        int new_height = Math.round((float)max_y - top);
+
+        // total = translate(-left, -top) * step * total
+        double new_a = la*a + lb*d;
+        double new_b = la*b + lb*e;
+        double new_c = la*c + lb*f - left;
+        double new_d = ld*a + le*d;
+        double new_e = ld*b + le*e;
+        double new_f = ld*c + le*f - top;
+        a = new_a;
+        b = new_b;
+        c = new_c;
+        d = new_d;
+        e = new_e;
+        f = new_f;
+        width = new_width;
+        height = new_height;
+    }
+
+    /** Scales and then rotates the image clockwise (as for Matrix.postScale() then
+     *  Matrix.postRotate()).
+     * @param degrees The angle to rotate by, in degrees.
+     */
+    public void scaleRotate(double scale, double degrees) {
+        double radians = Math.toRadians(degrees);
+        double cos = snap(Math.cos(radians));
+        double sin = snap(Math.sin(radians));
+        applyStep(scale*cos, -scale*sin, scale*sin, scale*cos);
+    }
+
+    /** Rotates the image clockwise.
+     * @param degrees The angle to rotate by, in degrees.
+     */
+    public void rotate(double degrees) {
+        scaleRotate(1.0, degrees);
+    }
+
+    /** Mirrors the image horizontally.
+     */
+    public void mirror() {
+        applyStep(-1.0, 0.0, 0.0, 1.0);
+    }
+
+    /** Crops the image to the rectangle with top left (x0, y0) and the supplied size.
+     */
+    public void crop(int x0, int y0, int crop_width, int crop_height) {
+        if( x0 < 0 || y0 < 0 || crop_width <= 0 || crop_height <= 0 || x0 + crop_width > width || y0 + crop_height > height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("crop " + x0 + ", " + y0 + " size " + crop_width + " x " + crop_height + " outside image of size " + width + " x " + height);
+        }
+        c -= x0;
+        f -= y0;
+        width = crop_width;
+        height = crop_height;
+    }
+
+    /** Whether the transform maps axis aligned rectangles to axis aligned rectangles (i.e., only
+     *  rotates by multiples of 90 degrees), as for Matrix.rectStaysRect().
+     */
+    public boolean preservesAxes() {
+        return (b == 0.0 && d == 0.0) || (a == 0.0 && e == 0.0);
+    }
+
+    /** Stores the transform as a 3x3 matrix in row major order, as for Matrix.setValues().
+     */
+    public void getValues(float [] values) {
+        values[0] = (float)a;
+        values[1] = (float)b;
+        values[2] = (float)c;
+        values[3] = (float)d;
+        values[4] = (float)e;
+        values[5] = (float)f;
+        values[6] = 0.0f;
+        values[7] = 0.0f;
+        values[8] = 1.0f;
+    }
+
+    /** Maps the point (point[0], point[1]) in the original image to the output image, in place.
+     */
+    public void mapPoint(double [] point) {
+        double x = point[0];
+        double y = point[1];
+        point[0] = a*x + b*y + c;
+        point[1] = d*x + e*y + f;
+    }
+}
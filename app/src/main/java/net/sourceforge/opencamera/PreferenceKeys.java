@@ -126,6 +126,8 @@ public class PreferenceKeys {
 
     public static final String FastBurstNImagesPreferenceKey = "preference_fast_burst_n_images";
 
+    public static final String FastBurstKeepBestPreferenceKey = "preference_fast_burst_keep_best";
+
     public static final String LocationPreferenceKey = "preference_location";
 
     public static final String RemoveDeviceExifPreferenceKey = "preference_remove_device_exif";
@@ -160,6 +162,8 @@ public class PreferenceKeys {
 
     public static final String VideoSubtitlePref = "preference_video_subtitle";
 
+    public static final String MotionTracePreferenceKey = "preference_motion_trace";
+
     public static final String FrontCameraMirrorKey = "preference_front_camera_mirror";
 
     public static final String EnableRemote = "preference_enable_remote";
@@ -216,6 +220,10 @@ public class PreferenceKeys {
 
     public static final String SaveLocationHistorySAFBasePreferenceKey = "save_location_history_saf";
 
+    /** This preference stores the index of the latest media for each save location, see LatestMediaIndex.
+     */
+    public static final String LatestMediaIndexPreferenceKey = "latest_media_index";
+
     public static final String SavePhotoPrefixPreferenceKey = "preference_save_photo_prefix";
 
     public static final String SaveVideoPrefixPreferenceKey = "preference_save_video_prefix";
@@ -280,6 +288,8 @@ public class PreferenceKeys {
 
     public static final String ShowFreeMemoryPreferenceKey = "preference_free_memory";
 
+    public static final String ShowCaptureLatencyPreferenceKey = "preference_show_capture_latency";
+
     public static final String ShowTimePreferenceKey = "preference_show_time";
 
     public static final String ShowCameraIDPreferenceKey = "preference_show_camera_id";
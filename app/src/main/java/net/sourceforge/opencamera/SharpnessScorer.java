@@ -0,0 +1,91 @@
+package net.sourceforge.opencamera;
+
+/** Scores how sharp images are, so that the sharpest images of a burst can be kept (see the fast
+ *  burst "keep sharpest" option), e.g., to discard those with motion blur from hand shake.
+ *  The score is the mean absolute response of a Laplacian filter on the luma plane. This is the
+ *  same measure as HDRProcessor.computeSharpness() (calculate_sharpness.rs), but normalised by the
+ *  number of pixels, and works on ARGB pixels in an int array, so it can be run on any thread
+ *  (and on a desktop JVM). Images should be downscaled before scoring: as well as being faster,
+ *  this reduces sensor noise, which would otherwise dominate the Laplacian.
+ */
+public class SharpnessScorer {
+
+    /** Returns the luma of an ARGB pixel, from 0 to 255, using the Rec. 601 weights.
+     */
+    private static int getLuma(int pixel) {
+        int r = (pixel >> 16) & 0xff;
+        int g = (pixel >> 8) & 0xff;
+        int b = pixel & 0xff;
+        return (77*r + 150*g + 29*b) >> 8;
+    }
+
+    /** Computes a value for how sharp the image is perceived to be. The higher the value, the
+     *  sharper the image. Values are comparable between images of the same scene at the same size.
+     * @param pixels The image as ARGB pixels, of width*height pixels.
+     * @return The sharpness, or 0 if the image is smaller than 3x3.
+     */
+    public static float computeSharpness(int [] pixels, int width, int height) {
+        if( pixels.length != width*height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("pixels has length " + pixels.length + ", expected " + width + " x " + height);
+        }
+        if( width < 3 || height < 3 ) {
+            return 0.0f;
+        }
+        // keep three rows of luma, so we only convert each pixel once
+        int [] above = new int[width];
+        int [] row = new int[width];
+        int [] below = new int[width];
+        for(int x=0;x<width;x++) {
+            above[x] = getLuma(pixels[x]);
+            row[x] = getLuma(pixels[width+x]);
+        }
+        long total = 0;
+        for(int y=1;y<height-1;y++) {
+            int offset = (y+1)*width;
+            for(int x=0;x<width;x++) {
+                below[x] = getLuma(pixels[offset+x]);
+            }
+            for(int x=1;x<width-1;x++) {
+                // uses a laplacian filter https://en.wikipedia.org/wiki/Discrete_Laplace_operator
+                int laplacian = row[x-1] + row[x+1] + above[x] + below[x] - 4*row[x];
+                total += Math.abs(laplacian);
+            }
+            int [] temp = above;
+            above = row;
+            row = below;
+            below = temp;
+        }
+        return total / (float)((width-2)*(height-2));
+    }
+
+    /** Returns the indices of the n_keep images with the highest scores, in increasing order of
+     *  index (i.e., the order the images were taken). Where scores are equal, earlier images are
+     *  preferred.
+     * @param scores The sharpness of each image.
+     * @param n_keep The number of images to keep; if this is at least the number of images, all
+     *               images are kept.
+     */
+    public static int [] selectSharpest(float [] scores, int n_keep) {
+        int n_images = scores.length;
+        n_keep = Math.max(0, Math.min(n_keep, n_images));
+        boolean [] keep = new boolean[n_images];
+        for(int i=0;i<n_keep;i++) {
+            int best = -1;
+            for(int j=0;j<n_images;j++) {
+                if( !keep[j] && (best == -1 || scores[j] > scores[best]) ) {
+                    best = j;
+                }
+            }
+            keep[best] = true;
+        }
+        int [] indices = new int[n_keep];
+        int count = 0;
+        for(int i=0;i<n_images;i++) {
+            if( keep[i] ) {
+                indices[count++] = i;
+            }
+        }
+        return indices;
+    }
+}
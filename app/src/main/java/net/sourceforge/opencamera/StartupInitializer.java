@@ -0,0 +1,326 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+/** Runs the initialisation of the application as a graph of tasks with explicit dependencies, so
+ *  that independent work can run on background threads, and work that isn't needed to show the
+ *  camera can be deferred until after the camera is running.
+ *  Tasks are run in one of two phases:
+ *  - PHASE_STARTUP tasks are run by runStartup(), which returns once they've all completed. Tasks
+ *    that aren't on a background thread are run on the calling thread, in the order they were
+ *    added (waiting for any background tasks they depend on).
+ *  - PHASE_DEFERRED tasks are run by runDeferred() (e.g., once the first preview frame is shown).
+ *    This doesn't wait for the background tasks to complete, so deferred tasks on the calling
+ *    thread may only depend on startup tasks.
+ *  A background task is started as soon as all its dependencies have completed (and its phase has
+ *  started). Dependencies must be added before the tasks that depend on them, so the graph can't
+ *  have cycles.
+ *  The start and end times of each task, and any milestones recorded with mark(), are kept as a
+ *  startup trace, see getTrace().
+ */
+public class StartupInitializer {
+    private static final String TAG = "StartupInitializer";
+
+    public enum Phase {
+        PHASE_STARTUP,
+        PHASE_DEFERRED
+    }
+
+    private static class Task {
+        final String name;
+        final Phase phase;
+        final boolean background;
+        final Runnable runnable;
+        final List<Task> dependencies = new ArrayList<>();
+        boolean started;
+        boolean completed;
+        long start_time_ns;
+        long end_time_ns;
+        String thread_name;
+
+        Task(String name, Phase phase, boolean background, Runnable runnable) {
+            this.name = name;
+            this.phase = phase;
+            this.background = background;
+            this.runnable = runnable;
+        }
+    }
+
+    private final long start_time_ns = System.nanoTime();
+    private final List<Task> tasks = new ArrayList<>();
+    private final Map<String, Task> tasks_by_name = new HashMap<>();
+    private final Map<String, Long> marks = new HashMap<>(); // times of milestones, see mark()
+    private final List<String> mark_names = new ArrayList<>(); // in the order they were recorded
+    private boolean started_startup;
+    private boolean started_deferred;
+    private Throwable background_failure; // the first exception thrown by a background startup task
+
+    /** Adds a task.
+     * @param name         A unique name for the task, used for dependencies and the trace.
+     * @param phase        Which phase the task runs in.
+     * @param background   Whether to run the task on a background thread.
+     * @param runnable     The work to do.
+     * @param dependencies Names of the tasks that must complete before this task runs. These must
+     *                     have already been added.
+     */
+    public synchronized void addTask(String name, Phase phase, boolean background, Runnable runnable, String... dependencies) {
+        if( tasks_by_name.containsKey(name) ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("duplicate task: " + name);
+        }
+        if( (phase == Phase.PHASE_STARTUP && started_startup) || started_deferred ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("task " + name + " added after its phase started");
+        }
+        Task task = new Task(name, phase, background, runnable);
+        for(String dependency_name : dependencies) {
+            Task dependency = tasks_by_name.get(dependency_name);
+            if( dependency == null ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("task " + name + " depends on unknown task: " + dependency_name);
+            }
+            if( phase == Phase.PHASE_STARTUP && dependency.phase == Phase.PHASE_DEFERRED ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("startup task " + name + " depends on deferred task: " + dependency_name);
+            }
+            if( phase == Phase.PHASE_DEFERRED && !background && dependency.phase == Phase.PHASE_DEFERRED ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("deferred task " + name + " on the calling thread depends on deferred task: " + dependency_name);
+            }
+            task.dependencies.add(dependency);
+        }
+        tasks.add(task);
+        tasks_by_name.put(name, task);
+    }
+
+    /** Runs the PHASE_STARTUP tasks, returning once they have all completed. If a background task
+     *  throws an exception, it's rethrown (wrapped in a RuntimeException) on the calling thread.
+     */
+    public void runStartup() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "runStartup");
+        List<Task> phase_tasks;
+        synchronized( this ) {
+            if( started_startup ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("runStartup called twice");
+            }
+            started_startup = true;
+            phase_tasks = getTasks(Phase.PHASE_STARTUP);
+            startReadyBackgroundTasks();
+        }
+        for(Task task : phase_tasks) {
+            if( !task.background ) {
+                waitForDependencies(task);
+                runTask(task);
+            }
+        }
+        synchronized( this ) {
+            for(Task task : phase_tasks) {
+                while( !task.completed ) {
+                    waitForChange();
+                }
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "runStartup done: " + getTrace());
+    }
+
+    /** Runs the PHASE_DEFERRED tasks. Tasks on the calling thread have completed when this returns,
+     *  but background tasks may still be running. Subsequent calls do nothing.
+     */
+    public void runDeferred() {
+        List<Task> phase_tasks;
+        synchronized( this ) {
+            if( !started_startup ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("runDeferred called before runStartup");
+            }
+            if( started_deferred ) {
+                return;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "runDeferred");
+            started_deferred = true;
+            phase_tasks = getTasks(Phase.PHASE_DEFERRED);
+            startReadyBackgroundTasks();
+        }
+        for(Task task : phase_tasks) {
+            if( !task.background ) {
+                runTask(task);
+            }
+        }
+    }
+
+    /** Whether runDeferred() has been called.
+     */
+    public synchronized boolean hasStartedDeferred() {
+        return started_deferred;
+    }
+
+    /** Records the time of a milestone (e.g., the first preview frame) in the trace. Only the first
+     *  time for each name is recorded.
+     */
+    public synchronized void mark(String name) {
+        if( !marks.containsKey(name) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "mark: " + name);
+            marks.put(name, System.nanoTime());
+            mark_names.add(name);
+        }
+    }
+
+    /** Returns the time in milliseconds since this object was created when the named milestone was
+     *  recorded by mark(), or -1 if it hasn't been recorded.
+     */
+    public synchronized long getMarkTimeMs(String name) {
+        Long time_ns = marks.get(name);
+        return time_ns == null ? -1 : toMs(time_ns);
+    }
+
+    /** Returns whether the named task has completed.
+     */
+    public synchronized boolean hasCompleted(String name) {
+        Task task = tasks_by_name.get(name);
+        return task != null && task.completed;
+    }
+
+    /** Returns the start time of the named task in milliseconds since this object was created, or
+     *  -1 if it hasn't started.
+     */
+    public synchronized long getStartTimeMs(String name) {
+        Task task = tasks_by_name.get(name);
+        return task == null || !task.started ? -1 : toMs(task.start_time_ns);
+    }
+
+    /** Returns the end time of the named task in milliseconds since this object was created, or -1
+     *  if it hasn't completed.
+     */
+    public synchronized long getEndTimeMs(String name) {
+        Task task = tasks_by_name.get(name);
+        return task == null || !task.completed ? -1 : toMs(task.end_time_ns);
+    }
+
+    /** Returns a summary of the start and end times of each task that has started, and of the
+     *  milestones, in milliseconds since this object was created.
+     */
+    public synchronized String getTrace() {
+        StringBuilder trace = new StringBuilder();
+        for(Task task : tasks) {
+            if( task.started ) {
+                trace.append(String.format(Locale.US, "\n%s: %d - %s ms [%s]", task.name, toMs(task.start_time_ns), task.completed ? String.valueOf(toMs(task.end_time_ns)) : "?", task.thread_name));
+            }
+        }
+        for(String name : mark_names) {
+            trace.append(String.format(Locale.US, "\n%s: %d ms", name, toMs(marks.get(name))));
+        }
+        return trace.toString();
+    }
+
+    private long toMs(long time_ns) {
+        return (time_ns - start_time_ns)/1000000;
+    }
+
+    private List<Task> getTasks(Phase phase) {
+        List<Task> phase_tasks = new ArrayList<>();
+        for(Task task : tasks) {
+            if( task.phase == phase ) {
+                phase_tasks.add(task);
+            }
+        }
+        return phase_tasks;
+    }
+
+    private boolean hasStartedPhase(Phase phase) {
+        return phase == Phase.PHASE_STARTUP ? started_startup : started_deferred;
+    }
+
+    /** Starts the background tasks of started phases whose dependencies have all completed. Must
+     *  be called whilst synchronized.
+     */
+    private void startReadyBackgroundTasks() {
+        for(final Task task : tasks) {
+            if( task.background && !task.started && hasStartedPhase(task.phase) && dependenciesCompleted(task) ) {
+                task.started = true;
+                new Thread(new Runnable() {
+                    public void run() {
+                        runTask(task);
+                    }
+                }, "startup-" + task.name).start();
+            }
+        }
+    }
+
+    private static boolean dependenciesCompleted(Task task) {
+        for(Task dependency : task.dependencies) {
+            if( !dependency.completed ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Waits until the task's dependencies have completed. Must be called whilst synchronized.
+     */
+    private synchronized void waitForDependencies(Task task) {
+        while( !dependenciesCompleted(task) ) {
+            waitForChange();
+        }
+    }
+
+    /** Waits for a task to complete. Must be called whilst synchronized.
+     */
+    private void waitForChange() {
+        if( background_failure != null ) {
+            throw new RuntimeException("background startup task failed", background_failure);
+        }
+        try {
+            wait();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted waiting for startup tasks", e);
+        }
+        if( background_failure != null ) {
+            throw new RuntimeException("background startup task failed", background_failure);
+        }
+    }
+
+    private void runTask(Task task) {
+        synchronized( this ) {
+            task.started = true;
+            task.start_time_ns = System.nanoTime();
+            task.thread_name = task.background ? "background" : Thread.currentThread().getName();
+        }
+        try {
+            task.runnable.run();
+        }
+        catch(RuntimeException | Error e) {
+            if( task.background && task.phase == Phase.PHASE_STARTUP ) {
+                // rethrow on the thread waiting in runStartup()
+                synchronized( this ) {
+                    if( background_failure == null ) {
+                        background_failure = e;
+                    }
+                    notifyAll();
+                }
+                return;
+            }
+            throw e;
+        }
+        synchronized( this ) {
+            task.completed = true;
+            task.end_time_ns = System.nanoTime();
+            if( MyDebug.LOG )
+                Log.d(TAG, "completed " + task.name + " in " + (task.end_time_ns - task.start_time_ns)/1000000 + "ms");
+            startReadyBackgroundTasks();
+            notifyAll();
+        }
+    }
+}
@@ -58,6 +58,7 @@ public class StorageUtils {
     private boolean last_media_scanned_is_raw;
     private boolean last_media_scanned_hasnoexifdatetime;
     private Uri last_media_scanned_check_uri;
+    private LatestMediaIndex latest_media_index; // lazily loaded from the shared preferences, see getLatestMediaIndex()
     // If last_media_scanned_hasnoexifdatetime==true, it means that the last media saved had the
     // option to strip exif tags. Therefore we should do more to remember the last media scanned,
     // as we otherwise won't be able to find it again.
@@ -286,6 +287,9 @@ public class StorageUtils {
                             if( set_last_scanned ) {
                                 boolean is_raw = filenameIsRaw(file.getName());
                                 setLastMediaScanned(uri, is_raw, hasnoexifdatetime, saf_uri != null ? saf_uri : uri);
+                                if( is_new_picture || is_new_video ) {
+                                    recordLatestMedia(uri, saf_uri, is_new_video);
+                                }
                             }
                             announceUri(uri, is_new_picture, is_new_video);
                             applicationInterface.scannedFile(file, uri);
@@ -334,11 +338,17 @@ public class StorageUtils {
             //announceUri(media_uri, is_new_picture, is_new_video);
             broadcastFile(real_file, is_new_picture, is_new_video, set_last_scanned, hasnoexifdatetime, uri);
         }
-        else if( !image_capture_intent ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "announce SAF uri");
-            // shouldn't do this for an image capture intent - e.g., causes crash when calling from Google Keep
-            announceUri(uri, is_new_picture, is_new_video);
+        else {
+            if( set_last_scanned && (is_new_picture || is_new_video) ) {
+                // no mediastore uri, but we can still index the SAF uri
+                recordLatestMedia(null, uri, is_new_video);
+            }
+            if( !image_capture_intent ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "announce SAF uri");
+                // shouldn't do this for an image capture intent - e.g., causes crash when calling from Google Keep
+                announceUri(uri, is_new_picture, is_new_video);
+            }
         }
     }
 
@@ -1486,15 +1496,7 @@ public class StorageUtils {
             return null;
         }
 
-        String save_folder = getImageFolderPath(); // may be null if using SAF
-        if( MyDebug.LOG )
-            Log.d(TAG, "save_folder: " + save_folder);
-        String bucket_id = null;
-        if( save_folder != null ) {
-            bucket_id = String.valueOf(save_folder.toLowerCase().hashCode());
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "bucket_id: " + bucket_id);
+        String bucket_id = getLatestMediaBucketId();
 
         Uri baseUri;
         switch( uri_type ) {
@@ -1520,8 +1522,250 @@ public class StorageUtils {
         return media;
     }
 
+    /** Returns the mediastore bucket id for the save folder, or null if not known.
+     */
+    private String getLatestMediaBucketId() {
+        String save_folder = getImageFolderPath(); // may be null if using SAF
+        if( MyDebug.LOG )
+            Log.d(TAG, "save_folder: " + save_folder);
+        String bucket_id = null;
+        if( save_folder != null ) {
+            bucket_id = String.valueOf(save_folder.toLowerCase().hashCode());
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "bucket_id: " + bucket_id);
+        return bucket_id;
+    }
+
+    /** Whether getLatestMedia() reads from the SAF folder, rather than from the mediastore.
+     */
+    private boolean latestMediaUsesSAF() {
+        return MainActivity.useScopedStorage() && this.isUsingSAF();
+    }
+
+    /** Returns the key identifying the current save location in the LatestMediaIndex.
+     */
+    private String getLatestMediaIndexLocation(boolean use_saf) {
+        return use_saf ? "saf:" + getSaveLocationSAF() : "mediastore:" + getLatestMediaBucketId();
+    }
+
+    private synchronized LatestMediaIndex getLatestMediaIndex() {
+        if( latest_media_index == null ) {
+            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+            latest_media_index = LatestMediaIndex.deserialize(sharedPreferences.getString(PreferenceKeys.LatestMediaIndexPreferenceKey, null));
+        }
+        return latest_media_index;
+    }
+
+    private void saveLatestMediaIndex() {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(PreferenceKeys.LatestMediaIndexPreferenceKey, getLatestMediaIndex().serialize());
+        editor.apply();
+    }
+
+    /** Returns the last modified time of the SAF folder, or 0 if not available. On most document
+     *  providers this changes whenever a file is added to or removed from the folder.
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private long getFolderLastModifiedSAF(Uri treeUri) {
+        long last_modified = 0;
+        Cursor cursor = null;
+        try {
+            Uri folder_uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+            cursor = context.getContentResolver().query(folder_uri, new String[] {DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
+            if( cursor != null && cursor.moveToFirst() ) {
+                last_modified = cursor.getLong(0);
+            }
+        }
+        catch(Exception e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "Exception trying to find last modified of SAF folder");
+            e.printStackTrace();
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "getFolderLastModifiedSAF: " + last_modified);
+        return last_modified;
+    }
+
+    /** Returns the largest mediastore id of the images and videos in the bucket (or all buckets if
+     *  bucket_id is null), or 0 if there are none. Since ids are allocated in increasing order, this
+     *  changes whenever new media is added.
+     */
+    @SuppressLint("InlinedApi") // see note for getLatestMediaCore()
+    private long getNewestMediaStoreId(String bucket_id) {
+        long newest_id = 0;
+        String selection = "(" + MediaStore.Files.FileColumns.MEDIA_TYPE + "=" + MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE + " OR " +
+                MediaStore.Files.FileColumns.MEDIA_TYPE + "=" + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ")";
+        if( bucket_id != null ) {
+            selection = ImageColumns.BUCKET_ID + " = " + bucket_id + " AND " + selection;
+        }
+        Uri queryUri = MediaStore.Files.getContentUri("external").buildUpon().appendQueryParameter("limit", "1").build();
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(queryUri, new String[] {MediaStore.Files.FileColumns._ID}, selection, null, MediaStore.Files.FileColumns._ID + " DESC");
+            if( cursor != null && cursor.moveToFirst() ) {
+                newest_id = cursor.getLong(0);
+            }
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "getNewestMediaStoreId: " + newest_id);
+        return newest_id;
+    }
+
+    /** Records the supplied media as the latest for the current save location, see LatestMediaIndex.
+     *  Called after saving new media.
+     * @param media_uri The mediastore uri, may be null if not known.
+     * @param saf_uri   The SAF uri, or null if not saving with SAF.
+     */
+    private void recordLatestMedia(Uri media_uri, Uri saf_uri, boolean is_video) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "recordLatestMedia: " + media_uri + " , " + saf_uri);
+        boolean use_saf = latestMediaUsesSAF();
+        String location = getLatestMediaIndexLocation(use_saf);
+        LatestMediaIndex.Entry entry = null;
+        try {
+            if( use_saf ) {
+                if( saf_uri != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                    long stamp = getFolderLastModifiedSAF(getTreeUriSAF());
+                    if( stamp != 0 ) {
+                        entry = new LatestMediaIndex.Entry(location, saf_uri.toString(), false, is_video, stamp);
+                    }
+                }
+            }
+            else if( media_uri != null ) {
+                entry = new LatestMediaIndex.Entry(location, media_uri.toString(), true, is_video, ContentUris.parseId(media_uri));
+            }
+        }
+        catch(Exception e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "Exception trying to record latest media");
+            e.printStackTrace();
+        }
+        if( entry != null )
+            getLatestMediaIndex().put(entry);
+        else
+            getLatestMediaIndex().remove(location);
+        saveLatestMediaIndex();
+    }
+
+    /** Returns the media for the current save location from the LatestMediaIndex, or null if there
+     *  is no entry, or the entry is no longer valid (the media no longer exists, or other media has
+     *  been added to the save location since). This only requires a fixed number of single row
+     *  queries, however many files are in the save location.
+     */
+    @SuppressLint("InlinedApi") // see note for getLatestMediaCore()
+    private Media getLatestMediaFromIndex(String location, boolean use_saf) {
+        LatestMediaIndex.Entry entry = getLatestMediaIndex().get(location);
+        if( MyDebug.LOG )
+            Log.d(TAG, "getLatestMediaFromIndex: " + (entry == null ? null : entry.uri));
+        if( entry == null ) {
+            return null;
+        }
+        Media media = null;
+        Cursor cursor = null;
+        try {
+            Uri uri = Uri.parse(entry.uri);
+            if( use_saf ) {
+                if( !entry.mediastore && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                        getFolderLastModifiedSAF(getTreeUriSAF()) == entry.stamp ) {
+                    String [] projection = new String[] {DocumentsContract.Document.COLUMN_LAST_MODIFIED, DocumentsContract.Document.COLUMN_DISPLAY_NAME};
+                    cursor = context.getContentResolver().query(uri, projection, null, null, null);
+                    if( cursor != null && cursor.moveToFirst() ) {
+                        media = new Media(false, 0, entry.video, uri, cursor.getLong(0), 0, cursor.getString(1));
+                    }
+                }
+            }
+            else if( entry.mediastore && getNewestMediaStoreId(getLatestMediaBucketId()) == entry.stamp ) {
+                String [] projection = entry.video ?
+                        new String[] {VideoColumns._ID, VideoColumns.DATE_TAKEN, VideoColumns.DISPLAY_NAME} :
+                        new String[] {ImageColumns._ID, ImageColumns.DATE_TAKEN, ImageColumns.DISPLAY_NAME, ImageColumns.ORIENTATION};
+                cursor = context.getContentResolver().query(uri, projection, null, null, null);
+                if( cursor != null && cursor.moveToFirst() ) {
+                    int orientation = entry.video ? 0 : cursor.getInt(3);
+                    media = new Media(true, cursor.getLong(0), entry.video, uri, cursor.getLong(1), orientation, cursor.getString(2));
+                }
+            }
+        }
+        catch(Exception e) {
+            // e.g., SecurityException if we don't have permission
+            if( MyDebug.LOG )
+                Log.e(TAG, "Exception trying to read latest media index");
+            e.printStackTrace();
+            media = null;
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+        if( media == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "latest media index is stale");
+            getLatestMediaIndex().remove(location);
+            saveLatestMediaIndex();
+        }
+        return media;
+    }
+
+    /** Stores the result of a full scan in the LatestMediaIndex, so that the next call to
+     *  getLatestMedia() doesn't need to scan.
+     */
+    private void updateLatestMediaIndex(String location, Media media, boolean use_saf) {
+        long stamp = 0;
+        try {
+            if( use_saf ) {
+                if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                    stamp = getFolderLastModifiedSAF(getTreeUriSAF());
+                }
+            }
+            else if( media.mediastore ) {
+                // n.b., if the bucket has no media, then media was found from any folder, which we don't index
+                stamp = getNewestMediaStoreId(getLatestMediaBucketId());
+            }
+        }
+        catch(Exception e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "Exception trying to update latest media index");
+            e.printStackTrace();
+        }
+        if( stamp != 0 ) {
+            getLatestMediaIndex().put(new LatestMediaIndex.Entry(location, media.uri.toString(), media.mediastore, media.video, stamp));
+            saveLatestMediaIndex();
+        }
+    }
+
+    /** Returns the most recent media in the save location. This first tries the LatestMediaIndex,
+     *  and only scans the save location if the index doesn't have a valid entry.
+     */
     Media getLatestMedia() {
-        if( MainActivity.useScopedStorage() && this.isUsingSAF() ) {
+        boolean use_saf = latestMediaUsesSAF();
+        String location = getLatestMediaIndexLocation(use_saf);
+        Media media = getLatestMediaFromIndex(location, use_saf);
+        if( media != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "found latest media from index: " + media.uri);
+            return media;
+        }
+        media = getLatestMediaScan(use_saf);
+        if( media != null ) {
+            updateLatestMediaIndex(location, media, use_saf);
+        }
+        return media;
+    }
+
+    private Media getLatestMediaScan(boolean use_saf) {
+        if( use_saf ) {
             Uri treeUri = this.getTreeUriSAF();
             return getLatestMediaSAF(treeUri);
         }
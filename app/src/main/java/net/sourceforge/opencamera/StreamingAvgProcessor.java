@@ -0,0 +1,305 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+/** Averages a burst of images for noise reduction, where each image is supplied as a series of
+ *  horizontal strips. This is an alternative to HDRProcessor.processAvg()/updateAvg() for when we
+ *  don't have enough memory to decode each image to a full resolution bitmap, and to hold the
+ *  RenderScript allocations.
+ *  The averaged image is stored as 16-bit fixed point values (6 bytes per pixel), and a copy of the
+ *  reference image is kept (4 bytes per pixel) for deghosting. These are stored as one array per
+ *  strip, so we don't need a single large allocation. Memory use doesn't depend on the number of
+ *  images.
+ *  The merge is a port of the avg_f() kernel in process_avg.rs. Alignment should be done by the
+ *  caller, see HDRProcessor.alignAvgBitmaps().
+ *  Usage: call setReferenceStrip() for every strip of the reference image, then for each further
+ *  image call foldStrip() for every strip (using getNewRowStart()/getNewRowStop() to find which
+ *  rows of the new image are needed). The result can then be read with copyStripToFloat4(), or
+ *  passed to HDRProcessor.avgBrighten().
+ */
+public class StreamingAvgProcessor {
+    private static final String TAG = "StreamingAvgProcessor";
+
+    public static final int default_strip_height_c = 64;
+    private static final float fixed_point_scale_c = 256.0f; // accumulated values are stored as value*fixed_point_scale_c
+    private static final int radius_c = 2; // radius of the neighbourhood used for deghosting, should match process_avg.rs
+
+    private final int width;
+    private final int height;
+    private final int strip_height;
+    private final int n_strips;
+    private final short [][] avg_strips; // averaged RGB values, 3 per pixel, in fixed point
+    private final int [][] orig_strips; // the reference image
+
+    /**
+     * @param width        The width of the images.
+     * @param height       The height of the images.
+     * @param strip_height The number of rows in each strip.
+     */
+    public StreamingAvgProcessor(int width, int height, int strip_height) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "StreamingAvgProcessor");
+            Log.d(TAG, "width: " + width);
+            Log.d(TAG, "height: " + height);
+            Log.d(TAG, "strip_height: " + strip_height);
+        }
+        if( width <= 0 || height <= 0 || strip_height <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid dimensions");
+        }
+        this.width = width;
+        this.height = height;
+        this.strip_height = strip_height;
+        this.n_strips = (height + strip_height - 1)/strip_height;
+        this.avg_strips = new short[n_strips][];
+        this.orig_strips = new int[n_strips][];
+    }
+
+    /** Returns the number of bytes that will be used to store an image of the supplied size, not
+     *  including the buffers for the strips that are passed in.
+     */
+    public static long computeMemoryCost(int width, int height) {
+        return (long)width * (long)height * (3*2 + 4);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getStripHeight() {
+        return strip_height;
+    }
+
+    public int getNStrips() {
+        return n_strips;
+    }
+
+    /** Returns the first row of the supplied strip.
+     */
+    public int getStripY(int strip) {
+        return strip*strip_height;
+    }
+
+    /** Returns the number of rows in the supplied strip.
+     */
+    public int getStripRows(int strip) {
+        return Math.min(strip_height, height - strip*strip_height);
+    }
+
+    /** Returns the maximum number of rows of a new image that are needed to merge a strip, i.e., the
+     *  maximum of getNewRowStop()-getNewRowStart().
+     */
+    public int getMaxNewRows() {
+        return strip_height + 2*radius_c;
+    }
+
+    /** Returns the first row of a new image that's needed to merge the supplied strip, given the
+     *  offset of the new image.
+     */
+    public int getNewRowStart(int strip, int offset_y) {
+        return Math.max(getStripY(strip) + offset_y - radius_c, 0);
+    }
+
+    /** Returns one past the last row of a new image that's needed to merge the supplied strip, given
+     *  the offset of the new image. This may be less than or equal to getNewRowStart(), if the
+     *  offset means that the strip doesn't overlap the new image.
+     */
+    public int getNewRowStop(int strip, int offset_y) {
+        return Math.min(getStripY(strip) + getStripRows(strip) + offset_y + radius_c, height);
+    }
+
+    /** Sets a strip of the reference (first) image.
+     * @param pixels ARGB pixels for the rows of the strip, of length at least
+     *               width*getStripRows(strip).
+     */
+    public void setReferenceStrip(int strip, int [] pixels) {
+        int n_pixels = width*getStripRows(strip);
+        int [] orig = new int[n_pixels];
+        short [] avg = new short[3*n_pixels];
+        System.arraycopy(pixels, 0, orig, 0, n_pixels);
+        for(int i=0,j=0;i<n_pixels;i++,j+=3) {
+            int color = pixels[i];
+            avg[j] = (short)(((color >> 16) & 0xFF) << 8);
+            avg[j+1] = (short)(((color >> 8) & 0xFF) << 8);
+            avg[j+2] = (short)((color & 0xFF) << 8);
+        }
+        orig_strips[strip] = orig;
+        avg_strips[strip] = avg;
+    }
+
+    private static short toFixedPoint(float value) {
+        int result = (int)(value*fixed_point_scale_c + 0.5f);
+        result = Math.max(0, Math.min(result, 0xFFFF));
+        return (short)result;
+    }
+
+    private static float fromFixedPoint(short value) {
+        return (value & 0xFFFF)/fixed_point_scale_c;
+    }
+
+    /** Returns the array storing the reference image for row y, or null if out of range.
+     */
+    private int [] getOrigRow(int y) {
+        if( y < 0 || y >= height )
+            return null;
+        return orig_strips[y/strip_height];
+    }
+
+    /** Merges the rows of a new image into a strip of the averaged image.
+     * @param strip           The strip to update.
+     * @param new_pixels      ARGB pixels of the new image, for the rows from new_row_start to
+     *                        new_row_stop-1 (as returned by getNewRowStart(), getNewRowStop()).
+     * @param offset_x        The x offset of the new image, as computed by
+     *                        HDRProcessor.alignAvgBitmaps().
+     * @param offset_y        The y offset of the new image.
+     * @param avg_factor      The weighting factor for the image averaged so far; should be 1 for the
+     *                        first image after the reference, and increasing by 1 for each image.
+     * @param wiener_C        See HDRProcessor.computeAvgWienerC().
+     * @param wiener_C_cutoff See HDRProcessor.computeAvgWienerCutoffFactor().
+     */
+    public void foldStrip(int strip, int [] new_pixels, int offset_x, int offset_y, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+        short [] avg = avg_strips[strip];
+        if( avg == null ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("reference strip not set");
+        }
+        final int y_start = getStripY(strip);
+        final int n_rows = getStripRows(strip);
+        final int new_row_start = getNewRowStart(strip, offset_y);
+        final int new_row_stop = getNewRowStop(strip, offset_y);
+        final float new_scale = 1.0f/(avg_factor+1.0f);
+
+        for(int r=0;r<n_rows;r++) {
+            final int y = y_start + r;
+            final int ny = y + offset_y;
+            if( ny < 0 || ny >= height ) {
+                // new image doesn't overlap this row
+                continue;
+            }
+            final int new_row = (ny - new_row_start)*width;
+            // rows for the neighbourhood, see avg_f() in process_avg.rs
+            final boolean rows_in_range = y-radius_c >= 0 && y+radius_c < height && ny-radius_c >= 0 && ny+radius_c < height;
+            int [] orig_row = getOrigRow(y);
+            int [] orig_above = null;
+            int [] orig_below = null;
+            int orig_row_i = (y % strip_height)*width;
+            int orig_above_i = 0;
+            int orig_below_i = 0;
+            int new_above_i = 0;
+            int new_below_i = 0;
+            if( rows_in_range ) {
+                orig_above = getOrigRow(y-radius_c);
+                orig_below = getOrigRow(y+radius_c);
+                orig_above_i = ((y-radius_c) % strip_height)*width;
+                orig_below_i = ((y+radius_c) % strip_height)*width;
+                new_above_i = (ny - radius_c - new_row_start)*width;
+                new_below_i = (ny + radius_c - new_row_start)*width;
+                if( new_row_start > ny - radius_c || new_row_stop <= ny + radius_c ) {
+                    // throw RuntimeException, as this is a programming error
+                    throw new RuntimeException("new_pixels don't cover the required rows");
+                }
+            }
+
+            int avg_i = 3*r*width;
+            for(int x=0;x<width;x++,avg_i+=3) {
+                final int nx = x + offset_x;
+                if( nx < 0 || nx >= width ) {
+                    continue;
+                }
+                float avg_r = fromFixedPoint(avg[avg_i]);
+                float avg_g = fromFixedPoint(avg[avg_i+1]);
+                float avg_b = fromFixedPoint(avg[avg_i+2]);
+                int color = new_pixels[new_row + nx];
+                float new_r = (float)((color >> 16) & 0xFF);
+                float new_g = (float)((color >> 8) & 0xFF);
+                float new_b = (float)(color & 0xFF);
+
+                // temporal merging
+                // smaller value of wiener_C means stronger filter (i.e., less averaging)
+                float L;
+                if( rows_in_range && x-radius_c >= 0 && x+radius_c < width && nx-radius_c >= 0 && nx+radius_c < width ) {
+                    // diff based on neighbourhood [sampling a subset of pixels]
+                    L = colorDiff2(orig_above[orig_above_i + x-radius_c], new_pixels[new_above_i + nx-radius_c]);
+                    L += colorDiff2(orig_above[orig_above_i + x+radius_c], new_pixels[new_above_i + nx+radius_c]);
+                    L += colorDiff2(orig_row[orig_row_i + x], color);
+                    L += colorDiff2(orig_below[orig_below_i + x-radius_c], new_pixels[new_below_i + nx-radius_c]);
+                    L += colorDiff2(orig_below[orig_below_i + x+radius_c], new_pixels[new_below_i + nx+radius_c]);
+                    L /= 5;
+                }
+                else {
+                    float diff_r = avg_r - new_r;
+                    float diff_g = avg_g - new_g;
+                    float diff_b = avg_b - new_b;
+                    L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                }
+
+                if( L > wiener_C_cutoff ) {
+                    // error too large, so no contribution for new image pixel
+                    continue;
+                }
+                float weight = L/(L+wiener_C); // lower weight means more averaging
+                new_r = weight * avg_r + (1.0f-weight) * new_r;
+                new_g = weight * avg_g + (1.0f-weight) * new_g;
+                new_b = weight * avg_b + (1.0f-weight) * new_b;
+
+                avg[avg_i] = toFixedPoint((avg_factor*avg_r + new_r)*new_scale);
+                avg[avg_i+1] = toFixedPoint((avg_factor*avg_g + new_g)*new_scale);
+                avg[avg_i+2] = toFixedPoint((avg_factor*avg_b + new_b)*new_scale);
+            }
+        }
+    }
+
+    /** Returns the squared distance between two ARGB colours (ignoring alpha).
+     */
+    private static float colorDiff2(int color0, int color1) {
+        int diff_r = ((color0 >> 16) & 0xFF) - ((color1 >> 16) & 0xFF);
+        int diff_g = ((color0 >> 8) & 0xFF) - ((color1 >> 8) & 0xFF);
+        int diff_b = (color0 & 0xFF) - (color1 & 0xFF);
+        return (float)(diff_r*diff_r + diff_g*diff_g + diff_b*diff_b);
+    }
+
+    /** Copies a strip of the averaged image to buffer, as 4 floats per pixel (RGB, and alpha set to
+     *  255), in the range [0, 255].
+     * @param buffer Array of length at least 4*width*getStripRows(strip).
+     */
+    public void copyStripToFloat4(int strip, float [] buffer) {
+        short [] avg = avg_strips[strip];
+        int n_pixels = width*getStripRows(strip);
+        for(int i=0,j=0,k=0;i<n_pixels;i++,j+=3,k+=4) {
+            buffer[k] = fromFixedPoint(avg[j]);
+            buffer[k+1] = fromFixedPoint(avg[j+1]);
+            buffer[k+2] = fromFixedPoint(avg[j+2]);
+            buffer[k+3] = 255.0f;
+        }
+    }
+
+    /** Returns a strip of the averaged image as ARGB pixels (rounded to the nearest integer).
+     * @param pixels Array of length at least width*getStripRows(strip).
+     */
+    public void copyStripToARGB(int strip, int [] pixels) {
+        short [] avg = avg_strips[strip];
+        int n_pixels = width*getStripRows(strip);
+        for(int i=0,j=0;i<n_pixels;i++,j+=3) {
+            int r = ((avg[j] & 0xFFFF) + 128) >> 8;
+            int g = ((avg[j+1] & 0xFFFF) + 128) >> 8;
+            int b = ((avg[j+2] & 0xFFFF) + 128) >> 8;
+            r = Math.min(r, 255);
+            g = Math.min(g, 255);
+            b = Math.min(b, 255);
+            pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /** Frees the memory for a strip, once it's no longer needed. This should only be called after
+     *  all images have been merged, as the reference strip is needed for merging neighbouring
+     *  strips.
+     */
+    public void releaseStrip(int strip) {
+        avg_strips[strip] = null;
+        orig_strips[strip] = null;
+    }
+}
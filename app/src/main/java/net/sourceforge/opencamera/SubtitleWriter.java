@@ -0,0 +1,188 @@
+package net.sourceforge.opencamera;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/** Buffers samples of the date, time, location and direction while recording video, and writes
+ *  them as SRT subtitles in batches.
+ *  Samples are stored in a preallocated ring buffer, so adding a sample doesn't allocate (and so
+ *  samples may be taken more often than once per second without causing garbage collection). The
+ *  samples are only formatted when written, using formatters that are created once.
+ *  Each sample becomes a subtitle entry lasting sample_interval_ms, aligned so that entries start
+ *  when the clock time is a multiple of sample_interval_ms (so for 1s, the displayed time changes
+ *  when the clock ticks).
+ *  All methods are synchronized, so samples may be added from a timer thread and written from
+ *  another thread.
+ */
+public class SubtitleWriter {
+    private static final String TAG = "SubtitleWriter";
+
+    private final int sample_interval_ms;
+    private final DateFormat date_format; // null if not displaying the date
+    private final DateFormat time_format; // null if not displaying the time
+    private final String preference_stamp_gpsformat;
+    private final String preference_units_distance;
+    private final TextFormatter textFormatter; // may be null if preference_stamp_gpsformat is "preference_stamp_gpsformat_none"
+
+    // ring buffer of samples
+    private final long [] video_times;
+    private final long [] clock_times;
+    private final boolean [] has_locations;
+    private final double [] latitudes;
+    private final double [] longitudes;
+    private final boolean [] has_altitudes;
+    private final double [] altitudes;
+    private final boolean [] has_geo_directions;
+    private final double [] geo_directions;
+    private int first_sample; // index of the oldest sample
+    private int n_samples;
+
+    private int count = 1; // index of the next subtitle entry
+    private long min_video_time_from;
+    private final Date date = new Date(); // reused for formatting
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * @param capacity           The maximum number of samples to buffer, see addSample().
+     * @param sample_interval_ms The interval between samples, which is the duration of each
+     *                           subtitle entry.
+     */
+    public SubtitleWriter(int capacity, int sample_interval_ms, String preference_stamp_dateformat, String preference_stamp_timeformat,
+                          String preference_stamp_gpsformat, String preference_units_distance, TextFormatter textFormatter) {
+        if( capacity <= 0 || sample_interval_ms <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid capacity " + capacity + " or sample interval " + sample_interval_ms);
+        }
+        this.sample_interval_ms = sample_interval_ms;
+        this.date_format = TextFormatter.getDateFormat(preference_stamp_dateformat);
+        this.time_format = TextFormatter.getTimeFormat(preference_stamp_timeformat);
+        this.preference_stamp_gpsformat = preference_stamp_gpsformat;
+        this.preference_units_distance = preference_units_distance;
+        this.textFormatter = textFormatter;
+
+        video_times = new long[capacity];
+        clock_times = new long[capacity];
+        has_locations = new boolean[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        has_altitudes = new boolean[capacity];
+        altitudes = new double[capacity];
+        has_geo_directions = new boolean[capacity];
+        geo_directions = new double[capacity];
+    }
+
+    public int getSampleInterval() {
+        return sample_interval_ms;
+    }
+
+    /** Adds a sample. If the buffer is already full, the oldest sample is discarded, so the caller
+     *  should write the samples when this returns true.
+     * @param video_time_ms The time into the video file.
+     * @param clock_time_ms The clock time, as returned by System.currentTimeMillis().
+     * @param location      The location, or null if not storing the location. This is only read
+     *                      during this call.
+     * @return Whether the buffer is now full.
+     */
+    public synchronized boolean addSample(long video_time_ms, long clock_time_ms, Location location, boolean has_geo_direction, double geo_direction) {
+        int capacity = video_times.length;
+        int index;
+        if( n_samples == capacity ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "buffer full, discard oldest sample");
+            index = first_sample;
+            first_sample = (first_sample+1) % capacity;
+        }
+        else {
+            index = (first_sample+n_samples) % capacity;
+            n_samples++;
+        }
+        video_times[index] = video_time_ms;
+        clock_times[index] = clock_time_ms;
+        has_locations[index] = location != null;
+        if( location != null ) {
+            latitudes[index] = location.getLatitude();
+            longitudes[index] = location.getLongitude();
+            has_altitudes[index] = location.hasAltitude();
+            altitudes[index] = location.getAltitude();
+        }
+        has_geo_directions[index] = has_geo_direction;
+        geo_directions[index] = geo_direction;
+        return n_samples == capacity;
+    }
+
+    public synchronized int getNSamples() {
+        return n_samples;
+    }
+
+    /** Formats the buffered samples as SRT entries, and removes them from the buffer. Samples
+     *  with no text to display (e.g., if no location is available, and not displaying the date or
+     *  time) are skipped.
+     * @return The SRT entries, which may be empty.
+     */
+    public synchronized String formatSamples() {
+        output.setLength(0);
+        int capacity = video_times.length;
+        for(int i=0;i<n_samples;i++) {
+            int index = (first_sample+i) % capacity;
+            formatSample(index);
+        }
+        first_sample = 0;
+        n_samples = 0;
+        return output.toString();
+    }
+
+    private void formatSample(int index) {
+        text.setLength(0);
+        date.setTime(clock_times[index]);
+        if( date_format != null ) {
+            text.append(date_format.format(date));
+        }
+        if( time_format != null ) {
+            String time_stamp = time_format.format(date);
+            if( text.length() > 0 && time_stamp.length() > 0 )
+                text.append(' ');
+            text.append(time_stamp);
+        }
+        if( text.length() > 0 )
+            text.append('\n');
+        if( textFormatter != null ) {
+            String gps_stamp = textFormatter.getGPSString(preference_stamp_gpsformat, preference_units_distance,
+                    has_locations[index], latitudes[index], longitudes[index], has_altitudes[index], altitudes[index],
+                    has_geo_directions[index], geo_directions[index]);
+            if( gps_stamp.length() > 0 ) {
+                text.append(gps_stamp).append('\n');
+            }
+        }
+        if( text.length() == 0 ) {
+            return;
+        }
+
+        // We subtract an offset, because if the current time is say 00:00:03.425 and the video has been recording for
+        // 1s, we instead need to record the video time when it became 00:00:03.000. This does mean that the GPS
+        // location is going to be off by up to 1s, but that should be less noticeable than the clock being off.
+        long offset_ms = clock_times[index] % sample_interval_ms;
+        long video_time_from = video_times[index] - offset_ms;
+        long video_time_to = video_time_from + sample_interval_ms - 1;
+        // don't want to start from before 0; also need to keep track of min_video_time_from to avoid bug reported at
+        // https://forum.xda-developers.com/showpost.php?p=74827802&postcount=345 for pause video where we ended up
+        // with overlapping times when resuming
+        if( video_time_from < min_video_time_from )
+            video_time_from = min_video_time_from;
+        if( video_time_to < video_time_from )
+            video_time_to = video_time_from;
+        min_video_time_from = video_time_to + 1;
+
+        output.append(count).append('\n');
+        TextFormatter.appendTimeMS(output, video_time_from);
+        output.append(" --> ");
+        TextFormatter.appendTimeMS(output, video_time_to);
+        output.append('\n');
+        output.append(text); // text includes the '\n' at the end
+        output.append('\n'); // additional newline to indicate end of this subtitle
+        count++;
+    }
+}
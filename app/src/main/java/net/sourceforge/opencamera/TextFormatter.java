@@ -22,50 +22,57 @@ public class TextFormatter {
         this.context = context;
     }
 
+    /** Returns the format for dates according to the user preference preference_stamp_dateformat,
+     *  or null if preference_stamp_dateformat is "preference_stamp_dateformat_none".
+     *  The returned format may be reused to format several dates (from the same thread).
+     */
+    public static DateFormat getDateFormat(String preference_stamp_dateformat) {
+        switch(preference_stamp_dateformat) {
+            case "preference_stamp_dateformat_none":
+                return null;
+            case "preference_stamp_dateformat_yyyymmdd":
+                // use dashes instead of slashes - this should follow https://en.wikipedia.org/wiki/ISO_8601
+                return new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+            case "preference_stamp_dateformat_ddmmyyyy":
+                return new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
+            case "preference_stamp_dateformat_mmddyyyy":
+                return new SimpleDateFormat("MM/dd/yyyy", Locale.getDefault());
+            default:
+                return DateFormat.getDateInstance();
+        }
+    }
+
     /** Formats the date according to the user preference preference_stamp_dateformat.
      *  Returns "" if preference_stamp_dateformat is "preference_stamp_dateformat_none".
      */
     public static String getDateString(String preference_stamp_dateformat, Date date) {
-        String date_stamp = "";
-        if( !preference_stamp_dateformat.equals("preference_stamp_dateformat_none") ) {
-            switch(preference_stamp_dateformat) {
-                case "preference_stamp_dateformat_yyyymmdd":
-                    // use dashes instead of slashes - this should follow https://en.wikipedia.org/wiki/ISO_8601
-                    date_stamp = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(date);
-                    break;
-                case "preference_stamp_dateformat_ddmmyyyy":
-                    date_stamp = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault()).format(date);
-                    break;
-                case "preference_stamp_dateformat_mmddyyyy":
-                    date_stamp = new SimpleDateFormat("MM/dd/yyyy", Locale.getDefault()).format(date);
-                    break;
-                default:
-                    date_stamp = DateFormat.getDateInstance().format(date);
-                    break;
-            }
+        DateFormat date_format = getDateFormat(preference_stamp_dateformat);
+        return date_format == null ? "" : date_format.format(date);
+    }
+
+    /** Returns the format for times according to the user preference preference_stamp_timeformat,
+     *  or null if preference_stamp_timeformat is "preference_stamp_timeformat_none".
+     *  The returned format may be reused to format several times (from the same thread).
+     */
+    public static DateFormat getTimeFormat(String preference_stamp_timeformat) {
+        switch(preference_stamp_timeformat) {
+            case "preference_stamp_timeformat_none":
+                return null;
+            case "preference_stamp_timeformat_12hour":
+                return new SimpleDateFormat("hh:mm:ss a", Locale.getDefault());
+            case "preference_stamp_timeformat_24hour":
+                return new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+            default:
+                return DateFormat.getTimeInstance();
         }
-        return date_stamp;
     }
 
     /** Formats the time according to the user preference preference_stamp_timeformat.
      *  Returns "" if preference_stamp_timeformat is "preference_stamp_timeformat_none".
      */
     public static String getTimeString(String preference_stamp_timeformat, Date date) {
-        String time_stamp = "";
-        if( !preference_stamp_timeformat.equals("preference_stamp_timeformat_none") ) {
-            switch(preference_stamp_timeformat) {
-                case "preference_stamp_timeformat_12hour":
-                    time_stamp = new SimpleDateFormat("hh:mm:ss a", Locale.getDefault()).format(date);
-                    break;
-                case "preference_stamp_timeformat_24hour":
-                    time_stamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(date);
-                    break;
-                default:
-                    time_stamp = DateFormat.getTimeInstance().format(date);
-                    break;
-            }
-        }
-        return time_stamp;
+        DateFormat time_format = getTimeFormat(preference_stamp_timeformat);
+        return time_format == null ? "" : time_format.format(date);
     }
 
     private String getDistanceString(double distance, String preference_units_distance) {
@@ -83,17 +90,27 @@ public class TextFormatter {
      *  store_geo_direction are false.
      */
     public String getGPSString(String preference_stamp_gpsformat, String preference_units_distance, boolean store_location, Location location, boolean store_geo_direction, double geo_direction) {
+        if( store_location && location != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "location: " + location);
+            return getGPSString(preference_stamp_gpsformat, preference_units_distance, true, location.getLatitude(), location.getLongitude(), location.hasAltitude(), location.getAltitude(), store_geo_direction, geo_direction);
+        }
+        return getGPSString(preference_stamp_gpsformat, preference_units_distance, false, 0.0, 0.0, false, 0.0, store_geo_direction, geo_direction);
+    }
+
+    /** As getGPSString(String, String, boolean, Location, boolean, double), but with the location
+     *  supplied as values, for callers that store locations without keeping Location objects.
+     */
+    public String getGPSString(String preference_stamp_gpsformat, String preference_units_distance, boolean store_location, double latitude, double longitude, boolean has_altitude, double altitude, boolean store_geo_direction, double geo_direction) {
         String gps_stamp = "";
         if( !preference_stamp_gpsformat.equals("preference_stamp_gpsformat_none") ) {
             if( store_location ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "location: " + location);
                 if( preference_stamp_gpsformat.equals("preference_stamp_gpsformat_dms") )
-                    gps_stamp += LocationSupplier.locationToDMS(location.getLatitude()) + ", " + LocationSupplier.locationToDMS(location.getLongitude());
+                    gps_stamp += LocationSupplier.locationToDMS(latitude) + ", " + LocationSupplier.locationToDMS(longitude);
                 else
-                    gps_stamp += Location.convert(location.getLatitude(), Location.FORMAT_DEGREES) + ", " + Location.convert(location.getLongitude(), Location.FORMAT_DEGREES);
-                if( location.hasAltitude() ) {
-                    gps_stamp += ", " + getDistanceString(location.getAltitude(), preference_units_distance);
+                    gps_stamp += Location.convert(latitude, Location.FORMAT_DEGREES) + ", " + Location.convert(longitude, Location.FORMAT_DEGREES);
+                if( has_altitude ) {
+                    gps_stamp += ", " + getDistanceString(altitude, preference_units_distance);
                 }
             }
             if( store_geo_direction ) {
@@ -120,4 +137,29 @@ public class TextFormatter {
         return String.format(Locale.getDefault(), "%02d:%02d:%02d,%03d", hours, minutes, seconds, ms);
     }
 
+    /** As formatTimeMS(), but appends to the supplied StringBuilder rather than creating a new
+     *  String, and always uses ASCII digits (as required for SRT files).
+     */
+    public static void appendTimeMS(StringBuilder builder, long time_ms) {
+        int ms = (int) (time_ms) % 1000 ;
+        int seconds = (int) (time_ms / 1000) % 60 ;
+        int minutes = (int) ((time_ms / (1000*60)) % 60);
+        int hours   = (int) ((time_ms / (1000*60*60)));
+        appendZeroPadded(builder, hours, 2);
+        builder.append(':');
+        appendZeroPadded(builder, minutes, 2);
+        builder.append(':');
+        appendZeroPadded(builder, seconds, 2);
+        builder.append(',');
+        appendZeroPadded(builder, ms, 3);
+    }
+
+    private static void appendZeroPadded(StringBuilder builder, int value, int n_digits) {
+        for(int limit=10,i=1;i<n_digits;i++,limit*=10) {
+            if( value < limit )
+                builder.append('0');
+        }
+        builder.append(value);
+    }
+
 }
@@ -0,0 +1,226 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Creates the thumbnails for newly saved photos, and keeps a small cache of recent thumbnails so
+ *  that they don't need to be decoded again from the saved files.
+ *  Where the Exif data of a JPEG has an embedded thumbnail that is large enough and of the same
+ *  aspect ratio, that is decoded instead of the full image, which is much faster. Otherwise the
+ *  full image is decoded with inSampleSize (for which the JPEG decoder already scales in the DCT
+ *  domain, for sample sizes up to 8).
+ *  The cache stores copies of the thumbnails, and returns copies, as callers may recycle the
+ *  bitmaps they're given.
+ */
+public class ThumbnailProvider {
+    private static final String TAG = "ThumbnailProvider";
+
+    private static final float max_aspect_error_c = 0.02f; // relative difference allowed between the aspect ratio of the embedded thumbnail and image
+
+    private final LruCache<String, Bitmap> cache;
+
+    /**
+     * @param max_cache_bytes The maximum total size of the cached thumbnails.
+     */
+    public ThumbnailProvider(int max_cache_bytes) {
+        cache = new LruCache<String, Bitmap>(max_cache_bytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /** Returns the inSampleSize to decode the embedded thumbnail with, to give a thumbnail at
+     *  least as large as decoding the full image with inSampleSize of sample_size; or -1 if the
+     *  embedded thumbnail can't be used, as it's too small or has a different aspect ratio (e.g.,
+     *  some devices store 4:3 thumbnails for 16:9 photos).
+     */
+    public static int getEmbeddedSampleSize(int thumbnail_width, int thumbnail_height, int image_width, int image_height, int sample_size) {
+        if( thumbnail_width <= 0 || thumbnail_height <= 0 || image_width <= 0 || image_height <= 0 || sample_size <= 0 ) {
+            return -1;
+        }
+        float thumbnail_aspect = thumbnail_width/(float)thumbnail_height;
+        float image_aspect = image_width/(float)image_height;
+        if( Math.abs(thumbnail_aspect - image_aspect) > max_aspect_error_c*image_aspect ) {
+            return -1;
+        }
+        int target_width = image_width/sample_size;
+        if( thumbnail_width < target_width ) {
+            return -1;
+        }
+        int embedded_sample_size = 1;
+        while( thumbnail_width/(2*embedded_sample_size) >= target_width ) {
+            embedded_sample_size *= 2;
+        }
+        return embedded_sample_size;
+    }
+
+    /** Creates a thumbnail from JPEG data, rotated according to the Exif orientation.
+     * @param sample_size The thumbnail should be at least the size given by decoding the full
+     *                    image with this inSampleSize.
+     * @return The thumbnail, or null if the data couldn't be decoded.
+     */
+    public Bitmap createThumbnail(byte [] data, int sample_size) {
+        return createThumbnail(data, data.length, sample_size);
+    }
+
+    /** As createThumbnail(byte [], int), but for JPEG data that is the first length bytes of data
+     *  (e.g., the array of an ImageBuffer).
+     */
+    public Bitmap createThumbnail(byte [] data, int length, int sample_size) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createThumbnail, sample_size: " + sample_size);
+        long debug_time = 0;
+        if( MyDebug.LOG ) {
+            debug_time = System.currentTimeMillis();
+        }
+        ExifInterface exif = null;
+        InputStream inputStream = new ByteArrayInputStream(data, 0, length);
+        try {
+            exif = new ExifInterface(inputStream);
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to read exif: " + e.getMessage());
+            e.printStackTrace();
+        }
+        catch(NoClassDefFoundError e) {
+            // have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g), Galaxy S Duos3 (vivalto3gvn)
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to read exif: NoClassDefFoundError");
+            e.printStackTrace();
+        }
+        finally {
+            try {
+                inputStream.close();
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Bitmap thumbnail = null;
+        if( exif != null && exif.hasThumbnail() && exif.isThumbnailCompressed() ) {
+            byte [] thumbnail_data = exif.getThumbnailBytes();
+            if( thumbnail_data != null ) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, length, options);
+                int image_width = options.outWidth;
+                int image_height = options.outHeight;
+                BitmapFactory.decodeByteArray(thumbnail_data, 0, thumbnail_data.length, options);
+                int embedded_sample_size = getEmbeddedSampleSize(options.outWidth, options.outHeight, image_width, image_height, sample_size);
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "image size: " + image_width + " x " + image_height);
+                    Log.d(TAG, "embedded thumbnail size: " + options.outWidth + " x " + options.outHeight);
+                    Log.d(TAG, "embedded_sample_size: " + embedded_sample_size);
+                }
+                if( embedded_sample_size > 0 ) {
+                    options.inJustDecodeBounds = false;
+                    options.inSampleSize = embedded_sample_size;
+                    thumbnail = BitmapFactory.decodeByteArray(thumbnail_data, 0, thumbnail_data.length, options);
+                }
+            }
+        }
+        if( thumbnail == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "decode full image");
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sample_size;
+            thumbnail = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        if( thumbnail != null && exif != null ) {
+            thumbnail = rotateForExifOrientation(thumbnail, exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED));
+        }
+        if( MyDebug.LOG ) {
+            if( thumbnail != null )
+                Log.d(TAG, "thumbnail size: " + thumbnail.getWidth() + " x " + thumbnail.getHeight());
+            Log.d(TAG, "createThumbnail time: " + (System.currentTimeMillis() - debug_time));
+        }
+        return thumbnail;
+    }
+
+    /** Rotates the bitmap for the Exif orientation. If rotation is required, the input bitmap is
+     *  recycled.
+     */
+    private static Bitmap rotateForExifOrientation(Bitmap bitmap, int exif_orientation) {
+        int rotation;
+        switch( exif_orientation ) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                rotation = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                rotation = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                rotation = 270;
+                break;
+            default:
+                // leave other orientations unchanged, as for ImageSaver.rotateForExif()
+                rotation = 0;
+                break;
+        }
+        if( rotation != 0 ) {
+            Matrix m = new Matrix();
+            m.setRotate(rotation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
+            Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+            if( rotated_bitmap != bitmap ) {
+                bitmap.recycle();
+                bitmap = rotated_bitmap;
+            }
+        }
+        return bitmap;
+    }
+
+    /** Returns the key for a uri in the cache. MediaStore uris are identified by their id, as the
+     *  uri returned when inserting may use a different volume name to the uri from querying.
+     */
+    static String getCacheKey(Uri uri) {
+        if( "media".equals(uri.getAuthority()) && uri.getLastPathSegment() != null ) {
+            return "media:" + uri.getLastPathSegment();
+        }
+        return uri.toString();
+    }
+
+    /** Stores a copy of the thumbnail for the uri.
+     */
+    public void putThumbnail(Uri uri, Bitmap thumbnail) {
+        Bitmap copy = thumbnail.copy(thumbnail.getConfig(), false);
+        if( copy != null ) {
+            cache.put(getCacheKey(uri), copy);
+        }
+    }
+
+    /** Returns a copy of the cached thumbnail for the uri, or null if not cached, or if the cached
+     *  thumbnail's larger dimension is smaller than min_size.
+     */
+    public Bitmap getThumbnail(Uri uri, int min_size) {
+        Bitmap thumbnail = cache.get(getCacheKey(uri));
+        if( thumbnail == null ) {
+            return null;
+        }
+        if( Math.max(thumbnail.getWidth(), thumbnail.getHeight()) < min_size ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "cached thumbnail too small for: " + uri);
+            return null;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "found cached thumbnail for: " + uri);
+        return thumbnail.copy(thumbnail.getConfig(), false);
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+}
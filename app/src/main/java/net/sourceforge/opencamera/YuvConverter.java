@@ -0,0 +1,156 @@
+package net.sourceforge.opencamera;
+
+import java.nio.ByteBuffer;
+
+/** Converts uncompressed YUV images captured by the camera (see ImageBuffer.isYuv()), so that
+ *  multi-frame modes such as HDR and noise reduction can process the frames without a JPEG
+ *  encode and decode for each frame.
+ *  Frames are stored in NV21 layout: the full resolution Y plane, followed by the half resolution
+ *  chroma planes interleaved as V, U pairs. Conversion to RGB is with the BT.601 full range
+ *  matrix, as used by the camera's JPEG encoder (JFIF).
+ *  This doesn't depend on android.graphics, so can be tested on a desktop JVM.
+ */
+public class YuvConverter {
+    // fixed point (16 bit) coefficients for BT.601 full range
+    private static final int r_v_c = 91881; // 1.402
+    private static final int g_u_c = 22554; // 0.344136
+    private static final int g_v_c = 46802; // 0.714136
+    private static final int b_u_c = 116130; // 1.772
+
+    /** Returns the number of bytes needed for an NV21 image of the supplied size.
+     */
+    public static int getNV21Length(int width, int height) {
+        return width*height + 2*((width+1)/2)*((height+1)/2);
+    }
+
+    /** Copies the planes of a YUV_420_888 image (e.g., from android.media.Image.getPlanes()) into
+     *  NV21 layout. The Y plane must have a pixel stride of 1 (as guaranteed for YUV_420_888);
+     *  the U and V planes must have the same row and pixel strides. The positions of the buffers
+     *  are unchanged.
+     *  If the chroma is already stored as interleaved V, U pairs (as most devices do), each row is
+     *  copied in bulk; to check this, a byte of the V plane is temporarily modified (see
+     *  isInterleavedVU()).
+     * @param out Array of at least getNV21Length(width, height) bytes.
+     */
+    public static void packNV21(ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride, int width, int height, byte [] out) {
+        // duplicate so that we don't change the positions of the supplied buffers
+        ByteBuffer y_buffer = y_plane.duplicate();
+        int offset = 0;
+        for(int y=0;y<height;y++) {
+            y_buffer.position(y*y_row_stride);
+            y_buffer.get(out, offset, width);
+            offset += width;
+        }
+        int chroma_width = (width+1)/2;
+        int chroma_height = (height+1)/2;
+        if( uv_pixel_stride == 2 && isInterleavedVU(u_plane, v_plane) ) {
+            // each row of the V plane is already in NV21 layout, except that the last U value isn't
+            // within the row (and for the last row, may be beyond the end of the V plane)
+            ByteBuffer vu_buffer = v_plane.duplicate();
+            int row_length = 2*chroma_width-1;
+            for(int y=0;y<chroma_height;y++) {
+                int index = y*uv_row_stride;
+                vu_buffer.position(index);
+                vu_buffer.get(out, offset, row_length);
+                offset += row_length;
+                out[offset++] = u_plane.get(index + row_length - 1);
+            }
+        }
+        else {
+            for(int y=0;y<chroma_height;y++) {
+                int index = y*uv_row_stride;
+                for(int x=0;x<chroma_width;x++) {
+                    out[offset++] = v_plane.get(index);
+                    out[offset++] = u_plane.get(index);
+                    index += uv_pixel_stride;
+                }
+            }
+        }
+    }
+
+    /** Returns whether the U plane starts one byte after the V plane in the same memory, i.e., the
+     *  chroma is stored as interleaved V, U pairs. As the buffers can't be compared directly, this
+     *  is checked by temporarily changing the second byte of the V plane, and seeing if the first
+     *  byte of the U plane changes - comparing the contents instead could be fooled by images
+     *  with flat chroma. Returns false if the V plane is read only.
+     */
+    private static boolean isInterleavedVU(ByteBuffer u_plane, ByteBuffer v_plane) {
+        if( v_plane.isReadOnly() || v_plane.limit() < 2 || u_plane.limit() < 1 ) {
+            return false;
+        }
+        byte value = v_plane.get(1);
+        if( u_plane.get(0) != value ) {
+            return false;
+        }
+        byte test_value = (byte)~value;
+        v_plane.put(1, test_value);
+        boolean interleaved = u_plane.get(0) == test_value;
+        v_plane.put(1, value);
+        return interleaved;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    /** Converts a Y value and U, V values (offset so that 0 is neutral) to an opaque ARGB colour.
+     */
+    private static int toArgb(int luma, int u, int v) {
+        int base = (luma << 16) + (1 << 15); // include rounding
+        int r = clamp((base + r_v_c*v) >> 16);
+        int g = clamp((base - g_u_c*u - g_v_c*v) >> 16);
+        int b = clamp((base + b_u_c*u) >> 16);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /** Converts rows of an NV21 image to ARGB pixels, optionally downscaling.
+     * @param nv21        The image, in NV21 layout.
+     * @param width       The width of the image.
+     * @param height      The height of the image.
+     * @param row_start   The first output row to convert (in the downscaled image).
+     * @param row_stop    One past the last output row to convert (in the downscaled image).
+     * @param sample_size The downscaling factor: each output pixel is the average of the Y
+     *                    values of a sample_size x sample_size block, with the chroma at the
+     *                    centre of the block. The output has width width/sample_size and height
+     *                    height/sample_size.
+     * @param out         Receives the pixels of the output rows, starting at index 0, with a
+     *                    stride of the output width.
+     */
+    public static void nv21ToArgb(byte [] nv21, int width, int height, int row_start, int row_stop, int sample_size, int [] out) {
+        int out_width = width/sample_size;
+        int out_height = height/sample_size;
+        if( row_start < 0 || row_stop > out_height || row_start > row_stop ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("rows " + row_start + " to " + row_stop + " outside image of height " + out_height);
+        }
+        int chroma_offset = width*height;
+        int chroma_row_stride = 2*((width+1)/2);
+        int n_samples = sample_size*sample_size;
+        int index = 0;
+        for(int out_y=row_start;out_y<row_stop;out_y++) {
+            int y0 = out_y*sample_size;
+            int chroma_row = chroma_offset + ((y0 + sample_size/2)/2)*chroma_row_stride;
+            for(int out_x=0;out_x<out_width;out_x++) {
+                int x0 = out_x*sample_size;
+                int luma;
+                if( sample_size == 1 ) {
+                    luma = nv21[y0*width + x0] & 0xff;
+                }
+                else {
+                    int sum = 0;
+                    for(int y=y0;y<y0+sample_size;y++) {
+                        int row = y*width;
+                        for(int x=x0;x<x0+sample_size;x++) {
+                            sum += nv21[row + x] & 0xff;
+                        }
+                    }
+                    luma = (sum + n_samples/2)/n_samples;
+                }
+                int chroma = chroma_row + 2*((x0 + sample_size/2)/2);
+                int v = (nv21[chroma] & 0xff) - 128;
+                int u = (nv21[chroma+1] & 0xff) - 128;
+                out[index++] = toArgb(luma, u, v);
+            }
+        }
+    }
+}
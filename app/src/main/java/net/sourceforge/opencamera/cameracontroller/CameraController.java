@@ -10,6 +10,7 @@ import java.util.List;
 
 import android.graphics.Rect;
 import android.location.Location;
+import android.media.Image;
 import android.media.MediaRecorder;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -98,6 +99,7 @@ public abstract class CameraController {
         public boolean supports_focus_bracketing; // whether setBurstTye(BURSTTYPE_FOCUS) can be used
         public boolean supports_burst; // whether setBurstTye(BURSTTYPE_NORMAL) can be used
         public boolean supports_raw;
+        public boolean supports_yuv_capture; // whether setYuvCapture() can be used
         public float view_angle_x; // horizontal angle of view in degrees (when unzoomed)
         public float view_angle_y; // vertical angle of view in degrees (when unzoomed)
 
@@ -269,18 +271,21 @@ public abstract class CameraController {
     }
 
     /** Interface to define callbacks related to taking photos. These callbacks are all called on the UI thread.
+     *  Images passed to onPictureTaken() and onBurstPictureTaken() are owned by the callee, which
+     *  must call ImageBuffer.release() on each when done with it (possibly on another thread, e.g.,
+     *  after saving), so that pooled buffers can be reused.
      */
     public interface PictureCallback {
         void onStarted(); // called immediately before we start capturing the picture
         void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
-        void onPictureTaken(byte[] data);
+        void onPictureTaken(ImageBuffer data);
         /** Only called if RAW is requested.
          *  Caller should call raw_image.close() when done with the image.
          */
         void onRawPictureTaken(RawImage raw_image);
         /** Only called if burst is requested.
          */
-        void onBurstPictureTaken(List<byte[]> images);
+        void onBurstPictureTaken(List<ImageBuffer> images);
         /** Only called if burst is requested.
          */
         void onRawBurstPictureTaken(List<RawImage> raw_images);
@@ -313,6 +318,31 @@ public abstract class CameraController {
         void onError();
     }
 
+    /** Interface to define callback for analysing the preview, see setPreviewAnalysisCallback().
+     *  This callback is called on a background thread.
+     */
+    public interface PreviewAnalysisCallback {
+        /** Called for each frame of the analysis stream, which is a downscaled YUV_420_888 image with
+         *  the same aspect ratio as the preview, in the orientation of the camera sensor.
+         *  The image is closed by the caller when this returns, so the image and its plane buffers
+         *  must not be used after returning.
+         */
+        void onPreviewImage(Image image);
+    }
+
+    /** Interface to define callback for the timestamps of frames, see setFrameTimestampCallback().
+     *  This callback is called on a background thread, so should return quickly.
+     */
+    public interface FrameTimestampCallback {
+        /** Called when the camera starts exposing a frame, for both the preview (including when
+         *  recording video) and photos.
+         * @param timestamp_ns The start of exposure, in nanoseconds, in the time base given by
+         *                     isFrameTimestampRealtime().
+         * @param is_photo     Whether the frame is being captured for a photo.
+         */
+        void onFrameTimestamp(long timestamp_ns, boolean is_photo);
+    }
+
     public static class Face {
         public final int score;
         /* The rect has values from [-1000,-1000] (for top-left) to [1000,1000] (for bottom-right) for whatever is
@@ -481,6 +511,17 @@ public abstract class CameraController {
      */
     public abstract void setRaw(boolean want_raw, int max_raw_images);
 
+    /** Request that photos are captured as uncompressed YUV images rather than JPEGs, for modes
+     *  that process the images (e.g., HDR and noise reduction), avoiding a JPEG encode and decode
+     *  for each image. Images are then passed to the PictureCallback in NV21 layout (see
+     *  ImageBuffer.isYuv()). This is ignored if RAW is enabled, or for picture sizes that can't
+     *  be captured as YUV, in which case JPEGs are captured as normal.
+     *  This should be called only when the preview is paused or not yet started, and only if
+     *  CameraFeatures.supports_yuv_capture is true.
+     */
+    public void setYuvCapture(boolean want_yuv) {
+    }
+
     /** Request a capture session compatible with high speed frame rates.
      *  This should be called only when the preview is paused or not yet started.
      */
@@ -586,6 +627,36 @@ public abstract class CameraController {
     public void updatePreviewTexture() {
         // dummy implementation
     }
+    /** Sets a callback to receive a downscaled YUV stream of the preview, which can be used to analyse
+     *  the preview without reading back from the TextureView. The stream is only attached when the
+     *  next capture session is created, and only for sessions that can support the additional
+     *  output - see isPreviewAnalysisActive().
+     * @param cb The callback, or null to disable the analysis stream.
+     */
+    public void setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        // dummy implementation
+    }
+    /** Whether the current capture session is delivering frames to the callback set by
+     *  setPreviewAnalysisCallback().
+     */
+    public boolean isPreviewAnalysisActive() {
+        return false;
+    }
+    /** Sets a callback to receive the timestamp of each frame from the camera, e.g., to align
+     *  frames with sensor events. Not supported by all camera controllers.
+     * @param cb The callback, or null to disable.
+     */
+    public void setFrameTimestampCallback(FrameTimestampCallback cb) {
+        // dummy implementation
+    }
+    /** Whether the timestamps passed to the callback set by setFrameTimestampCallback() have the
+     *  same time base as SystemClock.elapsedRealtimeNanos() (and so as SensorEvent timestamps, on
+     *  most devices). If false, the time base is unknown, and only differences between timestamps
+     *  are meaningful.
+     */
+    public boolean isFrameTimestampRealtime() {
+        return false;
+    }
     /** Starts the camera preview.
      *  @throws CameraControllerException if the camera preview fails to start.
      */
@@ -1,5 +1,6 @@
 package net.sourceforge.opencamera.cameracontroller;
 
+import net.sourceforge.opencamera.CaptureLatencyTracker;
 import net.sourceforge.opencamera.MyDebug;
 
 import java.io.IOException;
@@ -1743,6 +1744,7 @@ public class CameraController1 extends CameraController {
         public void onShutter() {
             if( MyDebug.LOG )
                 Log.d(TAG, "shutterCallback.onShutter()");
+            CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED);
         }
     }
 
@@ -1765,6 +1767,7 @@ public class CameraController1 extends CameraController {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onPictureTaken");
                 // n.b., this is automatically run in a different thread
+                CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_IMAGE_AVAILABLE);
 
                 if( want_expo_bracketing && n_burst > 1 ) {
                     pending_burst_images.add(data);
@@ -1782,16 +1785,16 @@ public class CameraController1 extends CameraController {
                         // also allows us to reorder from dark to light
                         // since we took the images with the base exposure being first
                         int n_half_images = pending_burst_images.size()/2;
-                        List<byte []> images = new ArrayList<>();
+                        List<ImageBuffer> images = new ArrayList<>();
                         // darker images
                         for(int i=0;i<n_half_images;i++) {
-                            images.add(pending_burst_images.get(i+1));
+                            images.add(ImageBuffer.wrap(pending_burst_images.get(i+1)));
                         }
                         // base image
-                        images.add(pending_burst_images.get(0));
+                        images.add(ImageBuffer.wrap(pending_burst_images.get(0)));
                         // lighter images
                         for(int i=0;i<n_half_images;i++) {
-                            images.add(pending_burst_images.get(n_half_images+1));
+                            images.add(ImageBuffer.wrap(pending_burst_images.get(n_half_images+1)));
                         }
 
                         picture.onBurstPictureTaken(images);
@@ -1829,7 +1832,8 @@ public class CameraController1 extends CameraController {
                     }
                 }
                 else {
-                    picture.onPictureTaken(data);
+                    // the old camera API allocates a new array for each photo, so there's nothing to pool
+                    picture.onPictureTaken(ImageBuffer.wrap(data));
                     picture.onCompleted();
                 }
             }
@@ -1,7 +1,9 @@
 package net.sourceforge.opencamera.cameracontroller;
 
+import net.sourceforge.opencamera.CaptureLatencyTracker;
 import net.sourceforge.opencamera.HDRProcessor;
 import net.sourceforge.opencamera.MyDebug;
+import net.sourceforge.opencamera.YuvConverter;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -218,6 +220,9 @@ public class CameraController2 extends CameraController {
     //private boolean want_raw = true;
     private int max_raw_images;
     private android.util.Size raw_size;
+    private boolean want_yuv;
+    private android.util.Size [] yuv_picture_sizes; // sizes supported for capturing photos as YUV, or null if not supported
+    private boolean picture_is_yuv; // whether imageReader captures YUV_420_888 rather than JPEG
     private ImageReader imageReaderRaw;
     private OnImageAvailableListener onImageAvailableListener;
     private OnRawImageAvailableListener onRawImageAvailableListener;
@@ -231,7 +236,12 @@ public class CameraController2 extends CameraController {
     private int n_burst_total; // total number of expected burst images in this capture (if known) (same for JPEG and RAW)
     private int n_burst_raw; // number of expected (remaining) burst RAW images in this capture
     private boolean burst_single_request; // if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
-    private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    private final List<ImageBuffer> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    // JPEG data is copied out of the Image into arrays from this pool (we have to copy, as the Image must be closed promptly to
+    // free up the ImageReader), so that bursts and repeated photos reuse arrays rather than allocating new ones for each image;
+    // the arrays are returned to the pool when the application releases the ImageBuffers, after saving
+    private final static long image_buffer_pool_max_free_bytes_c = 32*1024*1024;
+    private final ImageBuffer.Pool image_buffer_pool = new ImageBuffer.Pool(image_buffer_pool_max_free_bytes_c, MyDebug.LOG);
     private final List<RawImage> pending_burst_images_raw = new ArrayList<>();
     private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
     private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
@@ -241,7 +251,11 @@ public class CameraController2 extends CameraController {
     private boolean is_video_high_speed; // whether we're actually recording in high speed
     private List<int[]> ae_fps_ranges;
     private List<int[]> hs_fps_ranges;
-    //private ImageReader previewImageReader;
+    private ImageReader previewImageReader; // downscaled YUV stream for analysing the preview, see setPreviewAnalysisCallback()
+    private PreviewAnalysisCallback preview_analysis_callback;
+    private volatile FrameTimestampCallback frame_timestamp_callback; // volatile as read on the camera thread
+    private volatile boolean preview_analysis_active; // whether the current capture session has previewImageReader as a target
+    private final static int max_preview_analysis_width_c = 640; // maximum width for the preview analysis stream
     private SurfaceTexture texture;
     private Surface surface_texture;
     private HandlerThread thread;
@@ -1448,6 +1462,19 @@ public class CameraController2 extends CameraController {
         return value;
     }
 
+    /** Copies a YUV_420_888 image into a pooled buffer in NV21 layout, so the image can be closed
+     *  straight away as for JPEGs. The rotation is that which would have been set for the JPEG's
+     *  orientation.
+     */
+    private ImageBuffer copyYuvImage(Image image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane [] planes = image.getPlanes();
+        ImageBuffer bytes = image_buffer_pool.obtain(YuvConverter.getNV21Length(width, height));
+        YuvConverter.packNV21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(), width, height, bytes.getArray());
+        return bytes.setYuv(width, height, camera_settings.rotation);
+    }
+
     private class OnImageAvailableListener implements ImageReader.OnImageAvailableListener {
         private boolean skip_next_image = false; // whether to ignore the next image (used for dummy_capture_hack)
 
@@ -1473,8 +1500,9 @@ public class CameraController2 extends CameraController {
                     image.close();
                 return;
             }
+            CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_IMAGE_AVAILABLE);
 
-            List<byte []> single_burst_complete_images = null;
+            List<ImageBuffer> single_burst_complete_images = null;
             boolean call_takePhotoPartial = false;
             boolean call_takePhotoCompleted = false;
 
@@ -1486,11 +1514,16 @@ public class CameraController2 extends CameraController {
             }
             if( MyDebug.LOG )
                 Log.d(TAG, "image timestamp: " + image.getTimestamp());
-            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte [] bytes = new byte[buffer.remaining()];
+            ImageBuffer bytes;
+            if( image.getFormat() == ImageFormat.YUV_420_888 ) {
+                bytes = copyYuvImage(image);
+            }
+            else {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                bytes = image_buffer_pool.copyFrom(buffer);
+            }
             if( MyDebug.LOG )
-                Log.d(TAG, "read " + bytes.length + " bytes");
-            buffer.get(bytes);
+                Log.d(TAG, "read " + bytes.getLength() + " bytes");
             image.close();
 
             synchronized( background_camera_lock ) {
@@ -1912,6 +1945,7 @@ public class CameraController2 extends CameraController {
                     image.close();
                 return;
             }
+            CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_IMAGE_AVAILABLE);
             synchronized( background_camera_lock ) {
                 // see comment above in setCaptureResult() for why we synchronize
                 Image image = reader.acquireNextImage();
@@ -2298,6 +2332,7 @@ public class CameraController2 extends CameraController {
      */
     private void closeCaptureSession() {
         synchronized( background_camera_lock ) {
+            preview_analysis_active = false;
             if( captureSession != null ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "close capture session");
@@ -2332,10 +2367,7 @@ public class CameraController2 extends CameraController {
             camera = null;
         }
         closePictureImageReader();
-        /*if( previewImageReader != null ) {
-            previewImageReader.close();
-            previewImageReader = null;
-        }*/
+        closePreviewAnalysisImageReader();
         if( thread != null ) {
             // should only close thread after closing the camera, otherwise we get messages "sending message to a Handler on a dead thread"
             // see https://sourceforge.net/p/opencamera/discussion/general/thread/32c2b01b/?limit=25
@@ -2350,6 +2382,7 @@ public class CameraController2 extends CameraController {
                 e.printStackTrace();
             }
         }
+        image_buffer_pool.clear();
     }
 
     /** Enforce a minimum number of points in tonemap curves - needed due to Galaxy S10e having wrong behaviour if fewer
@@ -2428,6 +2461,7 @@ public class CameraController2 extends CameraController {
             imageReader.close();
             imageReader = null;
             onImageAvailableListener = null;
+            picture_is_yuv = false;
         }
         if( imageReaderRaw != null ) {
             imageReaderRaw.close();
@@ -2436,6 +2470,120 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    @Override
+    public void setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewAnalysisCallback: " + cb);
+        this.preview_analysis_callback = cb;
+    }
+
+    @Override
+    public boolean isPreviewAnalysisActive() {
+        return preview_analysis_active && preview_analysis_callback != null;
+    }
+
+    @Override
+    public void setFrameTimestampCallback(FrameTimestampCallback cb) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setFrameTimestampCallback: " + cb);
+        this.frame_timestamp_callback = cb;
+    }
+
+    @Override
+    public boolean isFrameTimestampRealtime() {
+        Integer timestamp_source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return timestamp_source != null && timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    private class OnPreviewImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // use acquireLatestImage() as we only care about the most recent frame
+            Image image = reader.acquireLatestImage();
+            if( image == null ) {
+                return;
+            }
+            try {
+                PreviewAnalysisCallback cb = preview_analysis_callback;
+                if( cb != null ) {
+                    cb.onPreviewImage(image);
+                }
+            }
+            finally {
+                image.close();
+            }
+        }
+    }
+
+    /** Returns the largest YUV_420_888 output size that has the same aspect ratio as the preview, and
+     *  has width no larger than max_preview_analysis_width_c, or null if there isn't one.
+     */
+    private android.util.Size choosePreviewAnalysisSize() {
+        StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if( configs == null || preview_width == 0 || preview_height == 0 ) {
+            return null;
+        }
+        android.util.Size [] yuv_sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+        if( yuv_sizes == null ) {
+            return null;
+        }
+        double preview_aspect = preview_width / (double)preview_height;
+        android.util.Size best_size = null;
+        for(android.util.Size size : yuv_sizes) {
+            if( size.getWidth() > max_preview_analysis_width_c ) {
+                continue;
+            }
+            double aspect = size.getWidth() / (double)size.getHeight();
+            if( Math.abs(aspect - preview_aspect) > 0.01*preview_aspect ) {
+                continue;
+            }
+            if( best_size == null || size.getWidth() > best_size.getWidth() ) {
+                best_size = size;
+            }
+        }
+        return best_size;
+    }
+
+    /** Creates previewImageReader for the capture session about to be created, if we have a preview
+     *  analysis callback and the session can support the additional output; otherwise closes it.
+     *  We only add the analysis stream for the "preview + YUV + JPEG" combination, which is
+     *  guaranteed to be supported on all hardware levels - so not when recording video, using high
+     *  speed video, RAW, YUV capture or vendor extensions.
+     */
+    private void updatePreviewAnalysisImageReader(boolean is_video) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "updatePreviewAnalysisImageReader");
+        closePreviewAnalysisImageReader();
+        if( preview_analysis_callback == null || is_video || want_video_high_speed || imageReaderRaw != null || picture_is_yuv || sessionType != SessionType.SESSIONTYPE_NORMAL ) {
+            return;
+        }
+        android.util.Size size = choosePreviewAnalysisSize();
+        if( size == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no suitable size for preview analysis");
+            return;
+        }
+        // maxImages of 2 is sufficient, as we always close the image in the listener
+        previewImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 2);
+        if( MyDebug.LOG )
+            Log.d(TAG, "created new previewImageReader: " + size.getWidth() + " x " + size.getHeight());
+        // unlike the picture imageReaders, run on the background thread, to avoid the analysis blocking the UI thread
+        previewImageReader.setOnImageAvailableListener(new OnPreviewImageAvailableListener(), handler);
+    }
+
+    private void closePreviewAnalysisImageReader() {
+        preview_analysis_active = false;
+        if( previewImageReader != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "closePreviewAnalysisImageReader");
+            if( previewBuilder != null ) {
+                previewBuilder.removeTarget(previewImageReader.getSurface());
+            }
+            previewImageReader.close();
+            previewImageReader = null;
+        }
+    }
+
     private List<String> convertFocusModesToValues(int [] supported_focus_modes_arr, float minimum_focus_distance) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "convertFocusModesToValues()");
@@ -2854,6 +3002,23 @@ public class CameraController2 extends CameraController {
         // test high resolution modes not supporting burst:
         //camera_features.picture_sizes.get(0).supports_burst = false;
 
+        // Capturing YUV at the maximum size is guaranteed alongside the preview for all hardware
+        // levels, but we only use it for FULL devices, which also guarantee bursts at maximum size
+        // (needed for noise reduction).
+        yuv_picture_sizes = null;
+        if( CameraControllerManager2.isHardwareLevelSupported(characteristics, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL) ) {
+            yuv_picture_sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+        }
+        if( yuv_picture_sizes == null || yuv_picture_sizes.length == 0 ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "YUV capture not supported");
+            yuv_picture_sizes = null;
+            want_yuv = false; // just in case it got set to true somehow
+        }
+        else {
+            camera_features.supports_yuv_capture = true;
+        }
+
         raw_size = null;
         if( capabilities_raw ) {
             android.util.Size [] raw_camera_picture_sizes = configs.getOutputSizes(ImageFormat.RAW_SENSOR);
@@ -4264,6 +4429,49 @@ public class CameraController2 extends CameraController {
         this.max_raw_images = max_raw_images;
     }
 
+    @Override
+    public void setYuvCapture(boolean want_yuv) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setYuvCapture: " + want_yuv);
+        if( camera == null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "no camera");
+            return;
+        }
+        if( this.want_yuv == want_yuv ) {
+            return;
+        }
+        if( want_yuv && this.yuv_picture_sizes == null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't set yuv capture when not supported");
+            return;
+        }
+        if( hasCaptureSession() ) {
+            // can only call this when captureSession not created - as it affects how we create the imageReader
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't set yuv capture when captureSession running!");
+            throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+        }
+        this.want_yuv = want_yuv;
+    }
+
+    /** Whether the picture imageReader should capture YUV_420_888 rather than JPEG, see
+     *  setYuvCapture().
+     */
+    private boolean useYuvPictureFormat() {
+        if( !want_yuv || want_raw || yuv_picture_sizes == null || previewIsVideoMode || sessionType != SessionType.SESSIONTYPE_NORMAL ) {
+            return false;
+        }
+        for(android.util.Size size : yuv_picture_sizes) {
+            if( size.getWidth() == picture_width && size.getHeight() == picture_height ) {
+                return true;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "picture size not supported for YUV: " + picture_width + " x " + picture_height);
+        return false;
+    }
+
     @Override
     public void setVideoHighSpeed(boolean want_video_high_speed) {
         if( MyDebug.LOG )
@@ -4523,11 +4731,12 @@ public class CameraController2 extends CameraController {
                 Log.e(TAG, "application needs to call setPictureSize()");
             throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
         }
-        // maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader
-        imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
-        //imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, 2);
+        // maxImages only needs to be 2, as we always read the JPEG (or YUV) data and close the image straight away in the imageReader
+        picture_is_yuv = useYuvPictureFormat();
+        imageReader = ImageReader.newInstance(picture_width, picture_height, picture_is_yuv ? ImageFormat.YUV_420_888 : ImageFormat.JPEG, 2);
         if( MyDebug.LOG ) {
             Log.d(TAG, "created new imageReader: " + imageReader);
+            Log.d(TAG, "picture_is_yuv: " + picture_is_yuv);
             Log.d(TAG, "imageReader surface: " + imageReader.getSurface().toString());
         }
         // It's intentional that we pass a handler on null, so the OnImageAvailableListener runs on the UI thread.
@@ -4550,6 +4759,8 @@ public class CameraController2 extends CameraController {
     private void clearPending() {
         if( MyDebug.LOG )
             Log.d(TAG, "clearPending");
+        // these images were never passed to the application, so we still own them
+        ImageBuffer.releaseAll(pending_burst_images);
         pending_burst_images.clear();
         pending_burst_images_raw.clear();
         pending_raw_image = null;
@@ -4649,11 +4860,7 @@ public class CameraController2 extends CameraController {
             Log.d(TAG, "setPreviewSize: " + width + " , " + height);
         preview_width = width;
         preview_height = height;
-        /*if( previewImageReader != null ) {
-            previewImageReader.close();
-        }
-        previewImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 2); 
-        */
+        // n.b., previewImageReader is created in createCaptureSession(), as whether we can use it depends on the other outputs of the session
     }
 
     @Override
@@ -5770,8 +5977,9 @@ public class CameraController2 extends CameraController {
                 if( MyDebug.LOG )
                     Log.d(TAG, "picture size: " + imageReader.getWidth() + " x " + imageReader.getHeight());
             }
-            /*if( MyDebug.LOG )
-            Log.d(TAG, "preview size: " + previewImageReader.getWidth() + " x " + previewImageReader.getHeight());*/
+            updatePreviewAnalysisImageReader(video_recorder != null);
+            if( MyDebug.LOG && previewImageReader != null )
+                Log.d(TAG, "preview analysis size: " + previewImageReader.getWidth() + " x " + previewImageReader.getHeight());
             if( MyDebug.LOG )
                 Log.d(TAG, "set preview size: " + this.preview_width + " x " + this.preview_height);
 
@@ -5808,6 +6016,13 @@ public class CameraController2 extends CameraController {
                             }
                             previewBuilder.addTarget(video_recorder_surface);
                         }
+                        if( previewImageReader != null ) {
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "add preview analysis surface to previewBuilder");
+                            }
+                            previewBuilder.addTarget(previewImageReader.getSurface());
+                            preview_analysis_active = true;
+                        }
                         try {
                             setRepeatingRequest();
                         }
@@ -5906,6 +6121,9 @@ public class CameraController2 extends CameraController {
                 else if( imageReaderRaw != null ) {
                     surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), imageReaderRaw.getSurface());
                 }
+                else if( previewImageReader != null ) {
+                    surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), previewImageReader.getSurface());
+                }
                 else {
                     surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
                 }
@@ -7937,6 +8155,9 @@ public class CameraController2 extends CameraController {
                 if( MyDebug.LOG )
                     Log.d(TAG, "has_received_frame now set to true");
             }
+            if( previewCaptureCallback.getRequestTagType(request) == RequestTagType.CAPTURE || previewCaptureCallback.getRequestTagType(request) == RequestTagType.CAPTURE_BURST_IN_PROGRESS ) {
+                CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED);
+            }
 
             super.onCaptureStarted(session, request, timestamp);
         }
@@ -8056,6 +8277,13 @@ public class CameraController2 extends CameraController {
                     Log.d(TAG, "exposure time: " + request.get(CaptureRequest.SENSOR_EXPOSURE_TIME));
                 }
             }
+            if( getRequestTagType(request) == RequestTagType.CAPTURE || getRequestTagType(request) == RequestTagType.CAPTURE_BURST_IN_PROGRESS ) {
+                CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED);
+            }
+            FrameTimestampCallback frame_cb = frame_timestamp_callback;
+            if( frame_cb != null ) {
+                frame_cb.onFrameTimestamp(timestamp, getRequestTagType(request) == RequestTagType.CAPTURE || getRequestTagType(request) == RequestTagType.CAPTURE_BURST_IN_PROGRESS);
+            }
             // n.b., we don't play the shutter sound here for RequestTagType.CAPTURE, as it typically sounds "too late"
             // (if ever we changed this, would also need to fix for burst, where we only set the RequestTagType.CAPTURE for the last image)
             super.onCaptureStarted(session, request, timestamp, frameNumber);
@@ -3,9 +3,13 @@ package net.sourceforge.opencamera.cameracontroller;
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.R;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
@@ -21,11 +25,33 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private static final String TAG = "CControllerManager2";
 
     private final Context context;
+    // CameraCharacteristics are fixed for a camera, so we cache them to avoid repeated calls to the
+    // camera service when the application iterates over the cameras (e.g., for getFacing())
+    private final Map<String, CameraCharacteristics> characteristics_cache = new HashMap<>();
 
     public CameraControllerManager2(Context context) {
         this.context = context;
     }
 
+    /** Returns the CameraCharacteristics for the camera, from the cache if possible.
+     */
+    private CameraCharacteristics getCameraCharacteristics(CameraManager manager, String cameraIdS) throws CameraAccessException {
+        synchronized( characteristics_cache ) {
+            CameraCharacteristics characteristics = characteristics_cache.get(cameraIdS);
+            if( characteristics != null ) {
+                return characteristics;
+            }
+        }
+        // query the camera service without holding the lock, so that (e.g.) the UI thread isn't blocked
+        // behind a background thread that is scanning the cameras - two threads may both query the same
+        // camera, but the result is the same either way
+        CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraIdS);
+        synchronized( characteristics_cache ) {
+            characteristics_cache.put(cameraIdS, characteristics);
+        }
+        return characteristics;
+    }
+
     @Override
     public int getNumberOfCameras() {
         CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
@@ -49,7 +75,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
         CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
         try {
             String cameraIdS = manager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCameraCharacteristics(manager, cameraIdS);
             switch( characteristics.get(CameraCharacteristics.LENS_FACING) ) {
                 case CameraMetadata.LENS_FACING_FRONT:
                     return CameraController.Facing.FACING_FRONT;
@@ -78,7 +104,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
         String description = null;
         try {
             String cameraIdS = manager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCameraCharacteristics(manager, cameraIdS);
 
             switch( characteristics.get(CameraCharacteristics.LENS_FACING) ) {
                 case CameraMetadata.LENS_FACING_FRONT:
@@ -198,7 +224,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
         CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
         try {
             String cameraIdS = manager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCameraCharacteristics(manager, cameraIdS);
             //return isHardwareLevelSupported(characteristics, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
             return isHardwareLevelSupported(characteristics, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
         }
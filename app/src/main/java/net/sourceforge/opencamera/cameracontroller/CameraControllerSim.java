@@ -0,0 +1,1141 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import net.sourceforge.opencamera.HDRProcessor;
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.media.MediaRecorder;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.TextureView;
+
+/** A simulated camera, which produces JPEG images from a FrameSource rather than a camera device.
+ *  This allows the capture pipeline (Preview, ImageSaver, HDRProcessor, PanoramaProcessor) to be
+ *  load and soak tested without camera hardware, e.g., on an emulator on a build server - see
+ *  Preview.test_sim_camera_config.
+ *  Captures are made on a background thread, with the picture callbacks called in the same order
+ *  and with the same burst behaviour as CameraController2: expo bracketing returns all images in a
+ *  single call to onBurstPictureTaken(); other bursts (noise reduction, focus bracketing, fast and
+ *  continuous burst) call onPictureTaken() for each image.
+ *  RAW isn't supported, as RawImage requires images from a camera device.
+ *  There is no preview: setPreviewTexture() etc and startPreview() do nothing.
+ */
+public class CameraControllerSim extends CameraController {
+    private static final String TAG = "CameraControllerSim";
+
+    /** Supplies the JPEG data for simulated captures. Called on the capture thread.
+     */
+    public interface FrameSource {
+        /**
+         * @param width          The requested width (the current picture size).
+         * @param height         The requested height (the current picture size).
+         * @param jpeg_quality   The requested JPEG quality.
+         * @param index          The index of the image, counting from 0 since the camera was opened.
+         * @param exposure_stops The exposure relative to the base exposure, in stops (non-zero for
+         *                       expo bracketing).
+         * @param focus_distance The focus distance for the image, in diopters.
+         */
+        byte [] createJpeg(int width, int height, int jpeg_quality, int index, double exposure_stops, float focus_distance);
+    }
+
+    /** Creates synthetic images: a checkerboard with a horizontal gradient, with the brightness
+     *  scaled by the exposure, and shifted by a few pixels between images to simulate camera shake.
+     *  The focus distance is ignored.
+     */
+    public static class SyntheticFrameSource implements FrameSource {
+        private Bitmap bitmap; // reused whilst the size is unchanged
+        private int [] row;
+
+        @Override
+        public byte [] createJpeg(int width, int height, int jpeg_quality, int index, double exposure_stops, float focus_distance) {
+            if( bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height ) {
+                if( bitmap != null ) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                row = new int[width];
+            }
+            double gain = Math.pow(2.0, exposure_stops);
+            int shift = (index % 5) - 2;
+            final int square_size = Math.max(1, width/64);
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    boolean light = (((x+shift)/square_size + (y+shift)/square_size) % 2) == 0;
+                    double value = (light ? 128.0 : 48.0) + (64.0*x)/width;
+                    int level = (int)Math.min(255.0, value*gain);
+                    row[x] = 0xff000000 | (level << 16) | (level << 8) | level;
+                }
+                bitmap.setPixels(row, 0, width, 0, y, width, 1);
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, jpeg_quality, output);
+            return output.toByteArray();
+        }
+    }
+
+    /** Returns recorded JPEGs in turn, ignoring the requested size, quality, exposure and focus
+     *  distance.
+     */
+    public static class RecordedFrameSource implements FrameSource {
+        private final List<byte []> jpegs;
+
+        public RecordedFrameSource(List<byte []> jpegs) {
+            if( jpegs.isEmpty() ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("no recorded frames");
+            }
+            this.jpegs = new ArrayList<>(jpegs);
+        }
+
+        @Override
+        public byte [] createJpeg(int width, int height, int jpeg_quality, int index, double exposure_stops, float focus_distance) {
+            return jpegs.get(index % jpegs.size()).clone();
+        }
+    }
+
+    /** The behaviour of the simulated camera. Changes have no effect once the camera is opened.
+     */
+    public static class Config {
+        public FrameSource frame_source = new SyntheticFrameSource();
+        public int width = 4000; // largest picture size
+        public int height = 3000;
+        public long capture_latency_ms = 100; // time from takePicture() to the first image
+        public long frame_interval_ms = 50; // time between images of a burst
+        public boolean supports_burst = true; // for fast burst and noise reduction
+        public boolean supports_expo_bracketing = true;
+        public int max_expo_bracketing_n_images = 5;
+        public boolean supports_focus_bracketing = true;
+        public int iso = 100; // the simulated scene, reported via captureResultIso()
+        public long exposure_time = 1000000000L/100; // the simulated scene, reported via captureResultExposureTime()
+        public Facing facing = Facing.FACING_BACK;
+        public int camera_orientation = 90;
+        public double capture_failure_rate; // probability of each takePicture() failing with the ErrorCallback
+        public int device_error_after_n_captures; // if positive, the camera device fails (as if disconnected) on this takePicture() call
+        public long random_seed = 1;
+    }
+
+    private final Config config;
+    private final ErrorCallback camera_error_cb;
+    private final Random random;
+    private final ExecutorService capture_executor = Executors.newSingleThreadExecutor();
+    private final Object lock = new Object();
+    // as for CameraController2, images are copied into pooled buffers, so that soak tests exercise the pool
+    private final ImageBuffer.Pool image_buffer_pool = new ImageBuffer.Pool(32*1024*1024, MyDebug.LOG);
+
+    // statistics, for soak testing
+    private int n_captures; // number of takePicture() calls
+    private int n_images; // number of images produced
+    private int n_capture_failures;
+    private long queue_blocked_time_ms; // time spent waiting for imageQueueWouldBlock() to return false
+
+    private String scene_mode = SCENE_MODE_DEFAULT;
+    private String color_effect = COLOR_EFFECT_DEFAULT;
+    private String white_balance = WHITE_BALANCE_DEFAULT;
+    private int white_balance_temperature = 5000;
+    private String antibanding = ANTIBANDING_DEFAULT;
+    private String edge_mode = EDGE_MODE_DEFAULT;
+    private String noise_reduction_mode = NOISE_REDUCTION_MODE_DEFAULT;
+    private boolean manual_iso;
+    private int iso;
+    private long exposure_time = EXPOSURE_TIME_DEFAULT;
+    private CameraController.Size picture_size;
+    private CameraController.Size preview_size;
+    private BurstType burst_type = BurstType.BURSTTYPE_NONE;
+    private int burst_requested_n_images;
+    private boolean burst_for_noise_reduction;
+    private boolean noise_reduction_low_light;
+    private int expo_bracketing_n_images = 3;
+    private double expo_bracketing_stops = 2.0;
+    private int focus_bracketing_n_images = 3;
+    private boolean focus_bracketing_add_infinity;
+    private float focus_bracketing_source_distance;
+    private float focus_bracketing_target_distance;
+    private boolean video_stabilization;
+    private TonemapProfile tonemap_profile = TonemapProfile.TONEMAPPROFILE_OFF;
+    private int jpeg_quality = 90;
+    private int zoom;
+    private int exposure_compensation;
+    private String focus_value = "focus_mode_auto";
+    private float focus_distance;
+    private String flash_value = "flash_off";
+    private boolean auto_exposure_lock;
+    private boolean auto_white_balance_lock;
+    private int display_orientation;
+    private List<CameraController.Area> focus_areas;
+    private List<CameraController.Area> metering_areas;
+
+    // access with lock
+    private boolean capturing_burst;
+    private int n_burst_taken;
+    private int n_burst_total;
+    private boolean continuous_burst_in_progress;
+    private boolean stop_focus_bracketing;
+    private boolean released;
+
+    /**
+     * @param camera_error_cb Called if the simulated camera device fails (see
+     *                        Config.device_error_after_n_captures).
+     */
+    public CameraControllerSim(int cameraId, Config config, ErrorCallback camera_error_cb) {
+        super(cameraId);
+        if( MyDebug.LOG )
+            Log.d(TAG, "create new CameraControllerSim: " + cameraId);
+        this.config = config;
+        this.camera_error_cb = camera_error_cb;
+        this.random = new Random(config.random_seed);
+        this.picture_size = new CameraController.Size(config.width, config.height);
+        this.preview_size = getPreviewSizes().get(0);
+        this.iso = config.iso;
+    }
+
+    @Override
+    public void release() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "release");
+        synchronized( lock ) {
+            released = true;
+            continuous_burst_in_progress = false;
+            stop_focus_bracketing = true;
+        }
+        capture_executor.shutdown();
+    }
+
+    @Override
+    public void onError() {
+        Log.e(TAG, "onError");
+        camera_error_cb.onError();
+    }
+
+    @Override
+    public String getAPI() {
+        return "Simulated camera";
+    }
+
+    private List<CameraController.Size> getPictureSizes() {
+        List<CameraController.Size> sizes = new ArrayList<>();
+        sizes.add(new CameraController.Size(config.width, config.height));
+        sizes.add(new CameraController.Size(config.width/2, config.height/2));
+        sizes.add(new CameraController.Size(config.width/4, config.height/4));
+        return sizes;
+    }
+
+    private List<CameraController.Size> getPreviewSizes() {
+        // same aspect ratio as the picture sizes
+        List<CameraController.Size> sizes = new ArrayList<>();
+        int preview_height = 1080;
+        int preview_width = (int)(((long)config.width*preview_height)/config.height);
+        sizes.add(new CameraController.Size(preview_width, preview_height));
+        return sizes;
+    }
+
+    @Override
+    public CameraFeatures getCameraFeatures() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "getCameraFeatures()");
+        CameraFeatures camera_features = new CameraFeatures();
+        camera_features.is_zoom_supported = false;
+        camera_features.picture_sizes = getPictureSizes();
+        camera_features.video_sizes = new ArrayList<>();
+        List<int []> fps_ranges = new ArrayList<>();
+        fps_ranges.add(new int[]{30, 30});
+        camera_features.video_sizes.add(new CameraController.Size(1920, 1080, fps_ranges, false));
+        camera_features.preview_sizes = getPreviewSizes();
+        camera_features.supported_flash_values = Arrays.asList("flash_off", "flash_auto", "flash_on", "flash_torch");
+        camera_features.supported_focus_values = Arrays.asList("focus_mode_auto", "focus_mode_infinity", "focus_mode_manual2", "focus_mode_continuous_picture");
+        camera_features.max_num_focus_areas = 1;
+        camera_features.minimum_focus_distance = 10.0f;
+        camera_features.is_exposure_lock_supported = true;
+        camera_features.is_white_balance_lock_supported = true;
+        camera_features.supports_iso_range = true;
+        camera_features.min_iso = 50;
+        camera_features.max_iso = 3200;
+        camera_features.supports_exposure_time = true;
+        camera_features.min_exposure_time = 1000000000L/8000;
+        camera_features.max_exposure_time = 1000000000L/2;
+        camera_features.min_exposure = -6;
+        camera_features.max_exposure = 6;
+        camera_features.exposure_step = 1.0f/3.0f;
+        camera_features.can_disable_shutter_sound = true;
+        camera_features.supports_expo_bracketing = config.supports_expo_bracketing;
+        camera_features.max_expo_bracketing_n_images = config.max_expo_bracketing_n_images;
+        camera_features.supports_focus_bracketing = config.supports_focus_bracketing;
+        camera_features.supports_burst = config.supports_burst;
+        camera_features.supports_raw = false;
+        camera_features.view_angle_x = 65.0f;
+        camera_features.view_angle_y = 50.0f;
+        return camera_features;
+    }
+
+    @Override
+    public SupportedValues setSceneMode(String value) {
+        this.scene_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getSceneMode() {
+        return scene_mode;
+    }
+
+    @Override
+    public boolean sceneModeAffectsFunctionality() {
+        return false;
+    }
+
+    @Override
+    public SupportedValues setColorEffect(String value) {
+        this.color_effect = value;
+        return null;
+    }
+
+    @Override
+    public String getColorEffect() {
+        return color_effect;
+    }
+
+    @Override
+    public SupportedValues setWhiteBalance(String value) {
+        this.white_balance = value;
+        return null;
+    }
+
+    @Override
+    public String getWhiteBalance() {
+        return white_balance;
+    }
+
+    @Override
+    public boolean setWhiteBalanceTemperature(int temperature) {
+        boolean changed = this.white_balance_temperature != temperature;
+        this.white_balance_temperature = temperature;
+        return changed;
+    }
+
+    @Override
+    public int getWhiteBalanceTemperature() {
+        return white_balance_temperature;
+    }
+
+    @Override
+    public SupportedValues setAntiBanding(String value) {
+        this.antibanding = value;
+        return null;
+    }
+
+    @Override
+    public String getAntiBanding() {
+        return antibanding;
+    }
+
+    @Override
+    public SupportedValues setEdgeMode(String value) {
+        this.edge_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getEdgeMode() {
+        return edge_mode;
+    }
+
+    @Override
+    public SupportedValues setNoiseReductionMode(String value) {
+        this.noise_reduction_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getNoiseReductionMode() {
+        return noise_reduction_mode;
+    }
+
+    @Override
+    public SupportedValues setISO(String value) {
+        // not supported, as supports_iso_range is true
+        return null;
+    }
+
+    @Override
+    public void setManualISO(boolean manual_iso, int iso) {
+        this.manual_iso = manual_iso;
+        if( manual_iso ) {
+            this.iso = Math.max(50, Math.min(iso, 3200));
+        }
+        else {
+            this.iso = config.iso;
+        }
+    }
+
+    @Override
+    public boolean isManualISO() {
+        return manual_iso;
+    }
+
+    @Override
+    public boolean setISO(int iso) {
+        boolean changed = this.iso != iso;
+        this.iso = iso;
+        return changed;
+    }
+
+    @Override
+    public String getISOKey() {
+        return "";
+    }
+
+    @Override
+    public int getISO() {
+        return iso;
+    }
+
+    @Override
+    public long getExposureTime() {
+        return exposure_time;
+    }
+
+    @Override
+    public boolean setExposureTime(long exposure_time) {
+        boolean changed = this.exposure_time != exposure_time;
+        this.exposure_time = exposure_time;
+        return changed;
+    }
+
+    @Override
+    public void setAperture(float aperture) {
+        // apertures not supported
+    }
+
+    @Override
+    public CameraController.Size getPictureSize() {
+        return picture_size;
+    }
+
+    @Override
+    public void setPictureSize(int width, int height) {
+        this.picture_size = new CameraController.Size(width, height);
+    }
+
+    @Override
+    public CameraController.Size getPreviewSize() {
+        return preview_size;
+    }
+
+    @Override
+    public void setPreviewSize(int width, int height) {
+        this.preview_size = new CameraController.Size(width, height);
+    }
+
+    @Override
+    public void setCameraExtension(boolean enabled, int extension) {
+        // extensions not supported
+    }
+
+    @Override
+    public boolean isCameraExtension() {
+        return false;
+    }
+
+    @Override
+    public int getCameraExtension() {
+        return -1;
+    }
+
+    @Override
+    public void setBurstType(BurstType new_burst_type) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setBurstType: " + new_burst_type);
+        this.burst_type = new_burst_type;
+    }
+
+    @Override
+    public BurstType getBurstType() {
+        return burst_type;
+    }
+
+    @Override
+    public void setBurstNImages(int burst_requested_n_images) {
+        this.burst_requested_n_images = burst_requested_n_images;
+    }
+
+    @Override
+    public void setBurstForNoiseReduction(boolean burst_for_noise_reduction, boolean noise_reduction_low_light) {
+        this.burst_for_noise_reduction = burst_for_noise_reduction;
+        this.noise_reduction_low_light = noise_reduction_low_light;
+    }
+
+    @Override
+    public boolean isContinuousBurstInProgress() {
+        synchronized( lock ) {
+            return continuous_burst_in_progress;
+        }
+    }
+
+    @Override
+    public void stopContinuousBurst() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stopContinuousBurst");
+        synchronized( lock ) {
+            continuous_burst_in_progress = false;
+        }
+    }
+
+    @Override
+    public void stopFocusBracketingBurst() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stopFocusBracketingBurst");
+        synchronized( lock ) {
+            stop_focus_bracketing = true;
+        }
+    }
+
+    @Override
+    public void setExpoBracketingNImages(int n_images) {
+        if( n_images <= 1 || (n_images % 2) == 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("n_images should be an odd number greater than 1");
+        }
+        this.expo_bracketing_n_images = Math.min(n_images, config.max_expo_bracketing_n_images);
+    }
+
+    @Override
+    public void setExpoBracketingStops(double stops) {
+        if( stops <= 0.0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("stops should be positive");
+        }
+        this.expo_bracketing_stops = stops;
+    }
+
+    @Override
+    public void setUseExpoFastBurst(boolean use_expo_fast_burst) {
+        // no difference for the simulated camera
+    }
+
+    @Override
+    public void setDummyCaptureHack(boolean dummy_capture_hack) {
+        // no difference for the simulated camera
+    }
+
+    @Override
+    public boolean isBurstOrExpo() {
+        return burst_type != BurstType.BURSTTYPE_NONE;
+    }
+
+    @Override
+    public boolean isCapturingBurst() {
+        synchronized( lock ) {
+            return capturing_burst;
+        }
+    }
+
+    @Override
+    public int getNBurstTaken() {
+        synchronized( lock ) {
+            return n_burst_taken;
+        }
+    }
+
+    @Override
+    public int getBurstTotal() {
+        synchronized( lock ) {
+            return n_burst_total;
+        }
+    }
+
+    @Override
+    public void setRaw(boolean want_raw, int max_raw_images) {
+        // RAW not supported
+    }
+
+    @Override
+    public void setVideoHighSpeed(boolean setVideoHighSpeed) {
+        // high speed not supported
+    }
+
+    @Override
+    public boolean getOpticalStabilization() {
+        return false;
+    }
+
+    @Override
+    public void setVideoStabilization(boolean enabled) {
+        this.video_stabilization = enabled;
+    }
+
+    @Override
+    public boolean getVideoStabilization() {
+        return video_stabilization;
+    }
+
+    @Override
+    public void setTonemapProfile(TonemapProfile tonemap_profile, float log_profile_strength, float gamma) {
+        this.tonemap_profile = tonemap_profile;
+    }
+
+    @Override
+    public TonemapProfile getTonemapProfile() {
+        return tonemap_profile;
+    }
+
+    @Override
+    public int getJpegQuality() {
+        return jpeg_quality;
+    }
+
+    @Override
+    public void setJpegQuality(int quality) {
+        this.jpeg_quality = quality;
+    }
+
+    @Override
+    public int getZoom() {
+        return zoom;
+    }
+
+    @Override
+    public void setZoom(int value) {
+        this.zoom = value;
+    }
+
+    @Override
+    public void resetZoom() {
+        this.zoom = 0;
+    }
+
+    @Override
+    public int getExposureCompensation() {
+        return exposure_compensation;
+    }
+
+    @Override
+    public boolean setExposureCompensation(int new_exposure) {
+        boolean changed = this.exposure_compensation != new_exposure;
+        this.exposure_compensation = new_exposure;
+        return changed;
+    }
+
+    @Override
+    public void setPreviewFpsRange(int min, int max) {
+        // no preview
+    }
+
+    @Override
+    public void clearPreviewFpsRange() {
+        // no preview
+    }
+
+    @Override
+    public List<int []> getSupportedPreviewFpsRange() {
+        List<int []> ranges = new ArrayList<>();
+        ranges.add(new int[]{15000, 30000});
+        return ranges;
+    }
+
+    @Override
+    public void setFocusValue(String focus_value) {
+        this.focus_value = focus_value;
+    }
+
+    @Override
+    public String getFocusValue() {
+        return focus_value;
+    }
+
+    @Override
+    public float getFocusDistance() {
+        return focus_distance;
+    }
+
+    @Override
+    public boolean setFocusDistance(float focus_distance) {
+        boolean changed = this.focus_distance != focus_distance;
+        this.focus_distance = focus_distance;
+        return changed;
+    }
+
+    @Override
+    public void setFocusBracketingNImages(int n_images) {
+        this.focus_bracketing_n_images = n_images;
+    }
+
+    @Override
+    public void setFocusBracketingAddInfinity(boolean focus_bracketing_add_infinity) {
+        this.focus_bracketing_add_infinity = focus_bracketing_add_infinity;
+    }
+
+    @Override
+    public void setFocusBracketingSourceDistance(float focus_bracketing_source_distance) {
+        this.focus_bracketing_source_distance = focus_bracketing_source_distance;
+    }
+
+    @Override
+    public float getFocusBracketingSourceDistance() {
+        return focus_bracketing_source_distance;
+    }
+
+    @Override
+    public void setFocusBracketingTargetDistance(float focus_bracketing_target_distance) {
+        this.focus_bracketing_target_distance = focus_bracketing_target_distance;
+    }
+
+    @Override
+    public float getFocusBracketingTargetDistance() {
+        return focus_bracketing_target_distance;
+    }
+
+    @Override
+    public void setFlashValue(String flash_value) {
+        this.flash_value = flash_value;
+    }
+
+    @Override
+    public String getFlashValue() {
+        return flash_value;
+    }
+
+    @Override
+    public void setRecordingHint(boolean hint) {
+    }
+
+    @Override
+    public void setAutoExposureLock(boolean enabled) {
+        this.auto_exposure_lock = enabled;
+    }
+
+    @Override
+    public boolean getAutoExposureLock() {
+        return auto_exposure_lock;
+    }
+
+    @Override
+    public void setAutoWhiteBalanceLock(boolean enabled) {
+        this.auto_white_balance_lock = enabled;
+    }
+
+    @Override
+    public boolean getAutoWhiteBalanceLock() {
+        return auto_white_balance_lock;
+    }
+
+    @Override
+    public void setRotation(int rotation) {
+    }
+
+    @Override
+    public void setLocationInfo(Location location) {
+    }
+
+    @Override
+    public void removeLocationInfo() {
+    }
+
+    @Override
+    public void enableShutterSound(boolean enabled) {
+    }
+
+    @Override
+    public boolean setFocusAndMeteringArea(List<CameraController.Area> areas) {
+        this.focus_areas = areas;
+        this.metering_areas = areas;
+        return true;
+    }
+
+    @Override
+    public void clearFocusAndMetering() {
+        this.focus_areas = null;
+        this.metering_areas = null;
+    }
+
+    @Override
+    public List<CameraController.Area> getFocusAreas() {
+        return focus_areas;
+    }
+
+    @Override
+    public List<CameraController.Area> getMeteringAreas() {
+        return metering_areas;
+    }
+
+    @Override
+    public boolean supportsAutoFocus() {
+        return focus_value.equals("focus_mode_auto");
+    }
+
+    @Override
+    public boolean supportsMetering() {
+        return true;
+    }
+
+    @Override
+    public boolean focusIsContinuous() {
+        return focus_value.equals("focus_mode_continuous_picture");
+    }
+
+    @Override
+    public boolean focusIsVideo() {
+        return false;
+    }
+
+    @Override
+    public void reconnect() {
+    }
+
+    @Override
+    public void setPreviewDisplay(SurfaceHolder holder) {
+        // no preview
+    }
+
+    @Override
+    public void setPreviewTexture(TextureView texture) {
+        // no preview
+    }
+
+    @Override
+    public void startPreview() {
+        // no preview
+    }
+
+    @Override
+    public void stopPreview() {
+        // no preview
+    }
+
+    @Override
+    public boolean startFaceDetection() {
+        return false;
+    }
+
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+    }
+
+    @Override
+    public void autoFocus(AutoFocusCallback cb, boolean capture_follows_autofocus_hint) {
+        // focus is instant
+        cb.onAutoFocus(true);
+    }
+
+    @Override
+    public void setCaptureFollowAutofocusHint(boolean capture_follows_autofocus_hint) {
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+    }
+
+    @Override
+    public void setContinuousFocusMoveCallback(ContinuousFocusMoveCallback cb) {
+    }
+
+    @Override
+    public void takePicture(final PictureCallback picture, final ErrorCallback error) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "takePicture");
+        final int capture_index;
+        synchronized( lock ) {
+            if( released ) {
+                Log.e(TAG, "takePicture called after release");
+                return;
+            }
+            capture_index = n_captures++;
+            if( burst_type == BurstType.BURSTTYPE_CONTINUOUS ) {
+                continuous_burst_in_progress = true;
+            }
+            stop_focus_bracketing = false;
+        }
+        capture_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                capture(capture_index, picture, error);
+            }
+        });
+    }
+
+    /** Returns true if the capture should stop, e.g., if the camera has been released.
+     */
+    private boolean sleep(long time_ms) {
+        if( time_ms > 0 ) {
+            try {
+                Thread.sleep(time_ms);
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        synchronized( lock ) {
+            return released;
+        }
+    }
+
+    /** Waits until the image queue can accept a further image. Returns true if the capture should
+     *  stop.
+     */
+    private boolean waitForImageQueue(PictureCallback picture) {
+        long time_s = System.currentTimeMillis();
+        while( picture.imageQueueWouldBlock(0, 1) ) {
+            if( sleep(10) ) {
+                return true;
+            }
+        }
+        synchronized( lock ) {
+            queue_blocked_time_ms += System.currentTimeMillis() - time_s;
+        }
+        return false;
+    }
+
+    private ImageBuffer createImage(double exposure_stops, float focus_distance) {
+        int index;
+        synchronized( lock ) {
+            index = n_images++;
+            n_burst_taken++;
+        }
+        byte [] jpeg = config.frame_source.createJpeg(picture_size.width, picture_size.height, jpeg_quality, index, exposure_stops, focus_distance);
+        return image_buffer_pool.copyFrom(ByteBuffer.wrap(jpeg));
+    }
+
+    /** Performs a capture for takePicture(), on the capture thread.
+     * @param capture_index The index of the takePicture() call, counting from 0.
+     */
+    private void capture(int capture_index, PictureCallback picture, ErrorCallback error) {
+        if( config.device_error_after_n_captures > 0 && capture_index+1 >= config.device_error_after_n_captures ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "simulate camera device failing");
+            camera_error_cb.onError();
+            return;
+        }
+
+        picture.onStarted();
+        if( sleep(config.capture_latency_ms) ) {
+            return;
+        }
+        if( random.nextDouble() < config.capture_failure_rate ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "simulate capture failing");
+            synchronized( lock ) {
+                n_capture_failures++;
+            }
+            error.onError();
+            return;
+        }
+
+        int n_burst;
+        switch( burst_type ) {
+            case BURSTTYPE_EXPO:
+                n_burst = expo_bracketing_n_images;
+                break;
+            case BURSTTYPE_FOCUS:
+                n_burst = focus_bracketing_n_images + (focus_bracketing_add_infinity ? 1 : 0);
+                break;
+            case BURSTTYPE_NORMAL:
+                if( burst_for_noise_reduction ) {
+                    // as CameraController2
+                    if( HDRProcessor.sceneIsLowLight(config.iso, config.exposure_time) )
+                        n_burst = noise_reduction_low_light ? N_IMAGES_NR_DARK_LOW_LIGHT : N_IMAGES_NR_DARK;
+                    else
+                        n_burst = 4;
+                }
+                else {
+                    n_burst = burst_requested_n_images;
+                }
+                break;
+            case BURSTTYPE_CONTINUOUS:
+                n_burst = 0; // unknown
+                break;
+            default:
+                n_burst = 1;
+                break;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "capture " + capture_index + " with n_burst " + n_burst);
+        synchronized( lock ) {
+            capturing_burst = burst_type != BurstType.BURSTTYPE_NONE;
+            n_burst_taken = 0;
+            n_burst_total = n_burst;
+        }
+
+        boolean stopped = false;
+        if( burst_type == BurstType.BURSTTYPE_EXPO ) {
+            List<ImageBuffer> images = new ArrayList<>();
+            for(int i=0;i<n_burst && !stopped;i++) {
+                if( i > 0 ) {
+                    stopped = sleep(config.frame_interval_ms);
+                }
+                double exposure_stops = (i - n_burst/2) * expo_bracketing_stops;
+                images.add(createImage(exposure_stops, focus_distance));
+            }
+            if( !stopped ) {
+                picture.onBurstPictureTaken(images);
+            }
+            else {
+                ImageBuffer.releaseAll(images);
+            }
+        }
+        else if( burst_type == BurstType.BURSTTYPE_CONTINUOUS ) {
+            for(int i=0;!stopped;i++) {
+                synchronized( lock ) {
+                    if( !continuous_burst_in_progress )
+                        break;
+                }
+                if( i > 0 ) {
+                    stopped = sleep(config.frame_interval_ms);
+                }
+                if( !stopped ) {
+                    stopped = waitForImageQueue(picture);
+                }
+                if( !stopped ) {
+                    picture.onPictureTaken(createImage(0.0, focus_distance));
+                }
+            }
+        }
+        else {
+            for(int i=0;i<n_burst && !stopped;i++) {
+                float this_focus_distance = focus_distance;
+                if( burst_type == BurstType.BURSTTYPE_FOCUS ) {
+                    synchronized( lock ) {
+                        if( stop_focus_bracketing )
+                            break;
+                    }
+                    if( focus_bracketing_add_infinity && i == n_burst-1 ) {
+                        this_focus_distance = 0.0f;
+                    }
+                    else {
+                        float alpha = focus_bracketing_n_images > 1 ? i/(float)(focus_bracketing_n_images-1) : 0.0f;
+                        this_focus_distance = (1.0f-alpha)*focus_bracketing_source_distance + alpha*focus_bracketing_target_distance;
+                    }
+                }
+                if( i > 0 ) {
+                    stopped = sleep(config.frame_interval_ms);
+                }
+                if( !stopped && burst_type != BurstType.BURSTTYPE_NONE && !burst_for_noise_reduction ) {
+                    // as CameraController2, for focus bracketing and fast burst we may take more images than the queue can hold
+                    stopped = waitForImageQueue(picture);
+                }
+                if( !stopped ) {
+                    picture.onPictureTaken(createImage(0.0, this_focus_distance));
+                }
+            }
+        }
+
+        synchronized( lock ) {
+            capturing_burst = false;
+            continuous_burst_in_progress = false;
+        }
+        if( stopped ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "capture stopped");
+            return;
+        }
+        test_capture_results++;
+        picture.onCompleted();
+    }
+
+    /** Returns the number of times takePicture() has been called.
+     */
+    public int getNCaptures() {
+        synchronized( lock ) {
+            return n_captures;
+        }
+    }
+
+    /** Returns the number of images that have been produced.
+     */
+    public int getNImages() {
+        synchronized( lock ) {
+            return n_images;
+        }
+    }
+
+    /** Returns the number of captures that failed due to Config.capture_failure_rate.
+     */
+    public int getNCaptureFailures() {
+        synchronized( lock ) {
+            return n_capture_failures;
+        }
+    }
+
+    /** Returns the total time that captures have waited for the image queue to have space.
+     */
+    public long getQueueBlockedTimeMs() {
+        synchronized( lock ) {
+            return queue_blocked_time_ms;
+        }
+    }
+
+    /** Returns the pool that images are allocated from, so soak tests can check that images are
+     *  released and arrays reused.
+     */
+    public ImageBuffer.Pool getImageBufferPool() {
+        return image_buffer_pool;
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        this.display_orientation = degrees;
+    }
+
+    @Override
+    public int getDisplayOrientation() {
+        return display_orientation;
+    }
+
+    @Override
+    public int getCameraOrientation() {
+        return config.camera_orientation;
+    }
+
+    @Override
+    public Facing getFacing() {
+        return config.facing;
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Override
+    public void initVideoRecorderPrePrepare(MediaRecorder video_recorder) {
+    }
+
+    @Override
+    public void initVideoRecorderPostPrepare(MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException {
+        // video not supported
+        throw new CameraControllerException();
+    }
+
+    @Override
+    public String getParametersString() {
+        return "simulated camera " + config.width + "x" + config.height;
+    }
+
+    @Override
+    public boolean captureResultHasIso() {
+        return true;
+    }
+
+    @Override
+    public int captureResultIso() {
+        return manual_iso ? iso : config.iso;
+    }
+
+    @Override
+    public boolean captureResultHasExposureTime() {
+        return true;
+    }
+
+    @Override
+    public long captureResultExposureTime() {
+        return manual_iso ? exposure_time : config.exposure_time;
+    }
+}
@@ -0,0 +1,462 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/** A persistent cache of the CameraFeatures of each camera, so that the application can be set up
+ *  for a camera's capabilities without waiting for the camera to open and its features to be
+ *  queried. The cached features are only a hint: callers should still query the camera, and
+ *  update the cache with put() if the features have changed.
+ *  Entries are keyed by the camera API and camera id (see getKey()). The whole cache is discarded
+ *  if the device's build fingerprint changes (e.g., after an OS update, which may change the
+ *  camera's capabilities), or if the format version changes.
+ *  This class is thread safe: load() and save() do file I/O, so should be called on a background
+ *  thread; get() doesn't block waiting for load() (returning null until it completes), but callers
+ *  can wait for it with waitUntilLoaded().
+ */
+public class CameraFeaturesCache {
+    private static final String TAG = "CameraFeaturesCache";
+
+    private static final int magic_c = 0x4f434643; // "OCFC"
+    // must be incremented whenever the format changes, including adding fields to CameraFeatures
+    private static final int version_c = 1;
+
+    private final File file; // if null, the cache isn't persisted
+    private final String fingerprint;
+    private final Map<String, byte []> entries = new HashMap<>(); // serialized CameraFeatures
+    private boolean loaded;
+    private boolean dirty; // whether entries have changed since loading or saving
+
+    /**
+     * @param file        The file to load from and save to, or null to not persist the cache.
+     * @param fingerprint Identifies the device's software build (e.g., Build.FINGERPRINT); cached
+     *                    entries for a different fingerprint are discarded.
+     */
+    public CameraFeaturesCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint == null ? "" : fingerprint;
+    }
+
+    /** Returns the key for the features of a camera.
+     * @param api A name for the camera API (e.g., "camera2"), as the features differ for each API.
+     */
+    public static String getKey(String api, int cameraId) {
+        return api + "/" + cameraId;
+    }
+
+    /** Loads the cache from the file, if it exists and is valid. Until this is called, get()
+     *  returns null.
+     */
+    public void load() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "load");
+        if( file != null && file.exists() ) {
+            try {
+                InputStream inputStream = new FileInputStream(file);
+                try {
+                    readFrom(inputStream);
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+            catch(IOException e) {
+                // e.g., corrupt file, just ignore the cache
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to load cache: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        synchronized( this ) {
+            loaded = true;
+            notifyAll();
+        }
+    }
+
+    /** Waits until load() has completed, or timeout_ms has passed.
+     * @return Whether the cache has been loaded.
+     */
+    public synchronized boolean waitUntilLoaded(long timeout_ms) {
+        long end_time = System.currentTimeMillis() + timeout_ms;
+        while( !loaded ) {
+            long remaining = end_time - System.currentTimeMillis();
+            if( remaining <= 0 ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "timed out waiting for load");
+                break;
+            }
+            try {
+                wait(remaining);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return loaded;
+    }
+
+    /** Writes the cache to the file, if it has changed since it was loaded or last saved. The file
+     *  is replaced atomically, so a crash whilst saving can't leave a partial file.
+     */
+    public void save() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "save");
+        if( file == null ) {
+            return;
+        }
+        synchronized( this ) {
+            if( !dirty ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "no changes to save");
+                return;
+            }
+            dirty = false;
+        }
+        File temp_file = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream outputStream = new FileOutputStream(temp_file);
+            try {
+                writeTo(outputStream);
+            }
+            finally {
+                outputStream.close();
+            }
+            if( !temp_file.renameTo(file) ) {
+                throw new IOException("failed to rename " + temp_file + " to " + file);
+            }
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to save cache: " + e.getMessage());
+            e.printStackTrace();
+            if( temp_file.exists() && !temp_file.delete() ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to delete " + temp_file);
+            }
+        }
+    }
+
+    /** Returns a copy of the cached features for the key (so the caller may modify them), or null
+     *  if there are none, or the cache hasn't been loaded yet.
+     */
+    public CameraController.CameraFeatures get(String key) {
+        byte [] data;
+        synchronized( this ) {
+            if( !loaded ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "not yet loaded");
+                return null;
+            }
+            data = entries.get(key);
+        }
+        if( data == null ) {
+            return null;
+        }
+        try {
+            return readFeatures(new DataInputStream(new ByteArrayInputStream(data)));
+        }
+        catch(IOException e) {
+            // shouldn't happen, as entries are validated when loaded
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to read cached features: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Stores the features for the key.
+     * @return Whether the cached features changed (in which case save() should be called).
+     */
+    public boolean put(String key, CameraController.CameraFeatures camera_features) {
+        byte [] data;
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            writeFeatures(new DataOutputStream(byteStream), camera_features);
+            data = byteStream.toByteArray();
+        }
+        catch(IOException e) {
+            // shouldn't happen for a ByteArrayOutputStream
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to write features: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+        synchronized( this ) {
+            if( Arrays.equals(data, entries.get(key)) ) {
+                return false;
+            }
+            entries.put(key, data);
+            dirty = true;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "features changed for: " + key);
+        return true;
+    }
+
+    /** Reads the cache from the stream, replacing any existing entries. If the stream is for a
+     *  different version or fingerprint, the cache is left empty.
+     */
+    private void readFrom(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        Map<String, byte []> new_entries = new HashMap<>();
+        if( dataInputStream.readInt() != magic_c ) {
+            throw new IOException("not a camera features cache");
+        }
+        int version = dataInputStream.readInt();
+        String file_fingerprint = dataInputStream.readUTF();
+        if( version != version_c || !file_fingerprint.equals(fingerprint) ) {
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "discard cache for version " + version + ", fingerprint: " + file_fingerprint);
+            }
+        }
+        else {
+            int n_entries = dataInputStream.readInt();
+            for(int i=0;i<n_entries;i++) {
+                String key = dataInputStream.readUTF();
+                byte [] data = new byte[dataInputStream.readInt()];
+                dataInputStream.readFully(data);
+                // check the entry is valid now, rather than when it's used
+                readFeatures(new DataInputStream(new ByteArrayInputStream(data)));
+                new_entries.put(key, data);
+            }
+        }
+        synchronized( this ) {
+            entries.clear();
+            entries.putAll(new_entries);
+            dirty = false;
+        }
+    }
+
+    /** Writes the cache to the stream.
+     */
+    private void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(magic_c);
+        dataOutputStream.writeInt(version_c);
+        dataOutputStream.writeUTF(fingerprint);
+        synchronized( this ) {
+            dataOutputStream.writeInt(entries.size());
+            for(Map.Entry<String, byte []> entry : entries.entrySet()) {
+                dataOutputStream.writeUTF(entry.getKey());
+                dataOutputStream.writeInt(entry.getValue().length);
+                dataOutputStream.write(entry.getValue());
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    private static void writeIntList(DataOutputStream stream, List<Integer> list) throws IOException {
+        stream.writeInt(list == null ? -1 : list.size());
+        if( list != null ) {
+            for(int value : list) {
+                stream.writeInt(value);
+            }
+        }
+    }
+
+    private static List<Integer> readIntList(DataInputStream stream) throws IOException {
+        int size = stream.readInt();
+        if( size < 0 ) {
+            return null;
+        }
+        List<Integer> list = new ArrayList<>();
+        for(int i=0;i<size;i++) {
+            list.add(stream.readInt());
+        }
+        return list;
+    }
+
+    private static void writeStringList(DataOutputStream stream, List<String> list) throws IOException {
+        stream.writeInt(list == null ? -1 : list.size());
+        if( list != null ) {
+            for(String value : list) {
+                stream.writeUTF(value);
+            }
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream stream) throws IOException {
+        int size = stream.readInt();
+        if( size < 0 ) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        for(int i=0;i<size;i++) {
+            list.add(stream.readUTF());
+        }
+        return list;
+    }
+
+    private static void writeSizeList(DataOutputStream stream, List<CameraController.Size> list) throws IOException {
+        stream.writeInt(list == null ? -1 : list.size());
+        if( list != null ) {
+            for(CameraController.Size size : list) {
+                stream.writeInt(size.width);
+                stream.writeInt(size.height);
+                stream.writeBoolean(size.supports_burst);
+                writeIntList(stream, size.supported_extensions);
+                stream.writeInt(size.fps_ranges.size());
+                for(int [] fps_range : size.fps_ranges) {
+                    stream.writeInt(fps_range[0]);
+                    stream.writeInt(fps_range[1]);
+                }
+                stream.writeBoolean(size.high_speed);
+            }
+        }
+    }
+
+    private static List<CameraController.Size> readSizeList(DataInputStream stream) throws IOException {
+        int size = stream.readInt();
+        if( size < 0 ) {
+            return null;
+        }
+        List<CameraController.Size> list = new ArrayList<>();
+        for(int i=0;i<size;i++) {
+            int width = stream.readInt();
+            int height = stream.readInt();
+            boolean supports_burst = stream.readBoolean();
+            List<Integer> supported_extensions = readIntList(stream);
+            int n_fps_ranges = stream.readInt();
+            List<int []> fps_ranges = new ArrayList<>();
+            for(int j=0;j<n_fps_ranges;j++) {
+                fps_ranges.add(new int[]{stream.readInt(), stream.readInt()});
+            }
+            boolean high_speed = stream.readBoolean();
+            CameraController.Size camera_size = new CameraController.Size(width, height, fps_ranges, high_speed);
+            camera_size.supports_burst = supports_burst;
+            camera_size.supported_extensions = supported_extensions;
+            list.add(camera_size);
+        }
+        return list;
+    }
+
+    /** Writes all the fields of camera_features to the stream.
+     */
+    private static void writeFeatures(DataOutputStream stream, CameraController.CameraFeatures camera_features) throws IOException {
+        stream.writeBoolean(camera_features.is_zoom_supported);
+        stream.writeInt(camera_features.max_zoom);
+        writeIntList(stream, camera_features.zoom_ratios);
+        stream.writeBoolean(camera_features.supports_face_detection);
+        writeSizeList(stream, camera_features.picture_sizes);
+        writeSizeList(stream, camera_features.video_sizes);
+        writeSizeList(stream, camera_features.video_sizes_high_speed);
+        writeSizeList(stream, camera_features.preview_sizes);
+        writeIntList(stream, camera_features.supported_extensions);
+        writeIntList(stream, camera_features.supported_extensions_zoom);
+        writeStringList(stream, camera_features.supported_flash_values);
+        writeStringList(stream, camera_features.supported_focus_values);
+        stream.writeInt(camera_features.apertures == null ? -1 : camera_features.apertures.length);
+        if( camera_features.apertures != null ) {
+            for(float aperture : camera_features.apertures) {
+                stream.writeFloat(aperture);
+            }
+        }
+        stream.writeInt(camera_features.max_num_focus_areas);
+        stream.writeFloat(camera_features.minimum_focus_distance);
+        stream.writeBoolean(camera_features.is_exposure_lock_supported);
+        stream.writeBoolean(camera_features.is_white_balance_lock_supported);
+        stream.writeBoolean(camera_features.is_optical_stabilization_supported);
+        stream.writeBoolean(camera_features.is_video_stabilization_supported);
+        stream.writeBoolean(camera_features.is_photo_video_recording_supported);
+        stream.writeBoolean(camera_features.supports_white_balance_temperature);
+        stream.writeInt(camera_features.min_temperature);
+        stream.writeInt(camera_features.max_temperature);
+        stream.writeBoolean(camera_features.supports_iso_range);
+        stream.writeInt(camera_features.min_iso);
+        stream.writeInt(camera_features.max_iso);
+        stream.writeBoolean(camera_features.supports_exposure_time);
+        stream.writeLong(camera_features.min_exposure_time);
+        stream.writeLong(camera_features.max_exposure_time);
+        stream.writeInt(camera_features.min_exposure);
+        stream.writeInt(camera_features.max_exposure);
+        stream.writeFloat(camera_features.exposure_step);
+        stream.writeBoolean(camera_features.can_disable_shutter_sound);
+        stream.writeInt(camera_features.tonemap_max_curve_points);
+        stream.writeBoolean(camera_features.supports_tonemap_curve);
+        stream.writeBoolean(camera_features.supports_expo_bracketing);
+        stream.writeInt(camera_features.max_expo_bracketing_n_images);
+        stream.writeBoolean(camera_features.supports_focus_bracketing);
+        stream.writeBoolean(camera_features.supports_burst);
+        stream.writeBoolean(camera_features.supports_raw);
+        stream.writeBoolean(camera_features.supports_yuv_capture);
+        stream.writeFloat(camera_features.view_angle_x);
+        stream.writeFloat(camera_features.view_angle_y);
+    }
+
+    /** Reads features written by writeFeatures().
+     */
+    private static CameraController.CameraFeatures readFeatures(DataInputStream stream) throws IOException {
+        CameraController.CameraFeatures camera_features = new CameraController.CameraFeatures();
+        camera_features.is_zoom_supported = stream.readBoolean();
+        camera_features.max_zoom = stream.readInt();
+        camera_features.zoom_ratios = readIntList(stream);
+        camera_features.supports_face_detection = stream.readBoolean();
+        camera_features.picture_sizes = readSizeList(stream);
+        camera_features.video_sizes = readSizeList(stream);
+        camera_features.video_sizes_high_speed = readSizeList(stream);
+        camera_features.preview_sizes = readSizeList(stream);
+        camera_features.supported_extensions = readIntList(stream);
+        camera_features.supported_extensions_zoom = readIntList(stream);
+        camera_features.supported_flash_values = readStringList(stream);
+        camera_features.supported_focus_values = readStringList(stream);
+        int n_apertures = stream.readInt();
+        if( n_apertures >= 0 ) {
+            camera_features.apertures = new float[n_apertures];
+            for(int i=0;i<n_apertures;i++) {
+                camera_features.apertures[i] = stream.readFloat();
+            }
+        }
+        camera_features.max_num_focus_areas = stream.readInt();
+        camera_features.minimum_focus_distance = stream.readFloat();
+        camera_features.is_exposure_lock_supported = stream.readBoolean();
+        camera_features.is_white_balance_lock_supported = stream.readBoolean();
+        camera_features.is_optical_stabilization_supported = stream.readBoolean();
+        camera_features.is_video_stabilization_supported = stream.readBoolean();
+        camera_features.is_photo_video_recording_supported = stream.readBoolean();
+        camera_features.supports_white_balance_temperature = stream.readBoolean();
+        camera_features.min_temperature = stream.readInt();
+        camera_features.max_temperature = stream.readInt();
+        camera_features.supports_iso_range = stream.readBoolean();
+        camera_features.min_iso = stream.readInt();
+        camera_features.max_iso = stream.readInt();
+        camera_features.supports_exposure_time = stream.readBoolean();
+        camera_features.min_exposure_time = stream.readLong();
+        camera_features.max_exposure_time = stream.readLong();
+        camera_features.min_exposure = stream.readInt();
+        camera_features.max_exposure = stream.readInt();
+        camera_features.exposure_step = stream.readFloat();
+        camera_features.can_disable_shutter_sound = stream.readBoolean();
+        camera_features.tonemap_max_curve_points = stream.readInt();
+        camera_features.supports_tonemap_curve = stream.readBoolean();
+        camera_features.supports_expo_bracketing = stream.readBoolean();
+        camera_features.max_expo_bracketing_n_images = stream.readInt();
+        camera_features.supports_focus_bracketing = stream.readBoolean();
+        camera_features.supports_burst = stream.readBoolean();
+        camera_features.supports_raw = stream.readBoolean();
+        camera_features.supports_yuv_capture = stream.readBoolean();
+        camera_features.view_angle_x = stream.readFloat();
+        camera_features.view_angle_y = stream.readFloat();
+        if( stream.read() != -1 ) {
+            throw new IOException("unexpected data after camera features");
+        }
+        return camera_features;
+    }
+}
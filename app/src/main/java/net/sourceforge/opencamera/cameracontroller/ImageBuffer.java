@@ -0,0 +1,347 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import net.sourceforge.opencamera.BitmapPool;
+import net.sourceforge.opencamera.MyDebug;
+import net.sourceforge.opencamera.YuvConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/** The data of a captured image (e.g., a JPEG), passed from the camera controller through to the
+ *  application without being copied. The data is the first getLength() bytes of getArray() - the
+ *  array may be longer, so callers must always use getLength() rather than the array's length.
+ *  The data is a JPEG, unless isYuv() returns true, in which case it's an uncompressed image in
+ *  NV21 layout (see YuvConverter).
+ *  Buffers are reference counted: the owner calls release() when done with the buffer (and any
+ *  additional users call retain() and release()). For buffers obtained from a Pool, the array is
+ *  returned to the pool when the count drops to zero, so the data must not be used after calling
+ *  release().
+ */
+public class ImageBuffer {
+    private static final String TAG = "ImageBuffer";
+
+    private final Pool pool; // null if not pooled
+    private final byte [] array;
+    private final int length;
+    private int ref_count = 1;
+    private Pool.Tracker tracker; // only used if the pool tracks leaks
+    // the following are only set for YUV images, see setYuv()
+    private boolean is_yuv;
+    private int width;
+    private int height;
+    private int rotation;
+
+    private ImageBuffer(Pool pool, byte [] array, int length) {
+        this.pool = pool;
+        this.array = array;
+        this.length = length;
+    }
+
+    /** Returns a buffer for the supplied data, without copying. The buffer isn't pooled, so
+     *  calling release() is optional.
+     */
+    public static ImageBuffer wrap(byte [] data) {
+        return new ImageBuffer(null, data, data.length);
+    }
+
+    public byte [] getArray() {
+        return array;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /** Marks the data as an uncompressed image in NV21 layout, rather than a JPEG. As YUV images
+     *  have no Exif tags, the size and orientation are stored with the buffer instead.
+     * @param rotation The clockwise rotation in degrees (0, 90, 180 or 270) required to display
+     *                 the image upright, as for a JPEG's Exif orientation.
+     * @return This buffer.
+     */
+    public ImageBuffer setYuv(int width, int height, int rotation) {
+        if( length < YuvConverter.getNV21Length(width, height) ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("buffer of length " + length + " too short for YUV image of size " + width + " x " + height);
+        }
+        this.is_yuv = true;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        return this;
+    }
+
+    /** Whether the data is an uncompressed image in NV21 layout, rather than a JPEG.
+     */
+    public boolean isYuv() {
+        return is_yuv;
+    }
+
+    /** Returns the width of a YUV image, or 0 for a JPEG.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the height of a YUV image, or 0 for a JPEG.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the clockwise rotation in degrees required to display a YUV image upright, or 0 for
+     *  a JPEG (where this is stored in the Exif tags).
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /** Returns a stream to read the data.
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(array, 0, length);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(array, 0, length);
+    }
+
+    /** Returns a copy of the data, for APIs that require an array of the exact length.
+     */
+    public byte [] toByteArray() {
+        byte [] copy = new byte[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /** Increments the reference count.
+     * @return This buffer.
+     */
+    public ImageBuffer retain() {
+        synchronized( this ) {
+            if( ref_count <= 0 ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("retain called on released buffer");
+            }
+            ref_count++;
+        }
+        return this;
+    }
+
+    /** Decrements the reference count; when it reaches zero, the array is returned to the pool (if
+     *  the buffer is pooled).
+     */
+    public void release() {
+        synchronized( this ) {
+            if( ref_count <= 0 ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("buffer released too many times");
+            }
+            if( --ref_count > 0 ) {
+                return;
+            }
+        }
+        if( pool != null ) {
+            pool.recycle(this);
+        }
+    }
+
+    /** Releases each of the buffers, ignoring nulls.
+     */
+    public static void releaseAll(List<ImageBuffer> buffers) {
+        if( buffers == null ) {
+            return;
+        }
+        for(ImageBuffer buffer : buffers) {
+            if( buffer != null ) {
+                buffer.release();
+            }
+        }
+    }
+
+    /** A pool of arrays for ImageBuffers. Arrays are grouped by size class (see
+     *  BitmapPool.getSizeClass()), so that images of similar size, e.g., successive JPEGs of a
+     *  burst, share arrays.
+     *  If leak tracking is enabled, the pool records where each buffer was obtained from, and
+     *  reports buffers that are garbage collected without having been released (see checkLeaks()).
+     *  This class is thread safe.
+     */
+    public static class Pool {
+        /** Tracks a buffer that is in use, to detect buffers that are garbage collected without
+         *  being released.
+         */
+        private static class Tracker extends WeakReference<ImageBuffer> {
+            final Throwable allocation_site;
+
+            Tracker(ImageBuffer buffer, ReferenceQueue<ImageBuffer> queue) {
+                super(buffer, queue);
+                this.allocation_site = new Throwable("ImageBuffer obtained here");
+            }
+        }
+
+        private final long max_free_bytes;
+        private final boolean track_leaks;
+        private final Map<Integer, List<byte []>> free_by_size_class = new HashMap<>();
+        private long free_bytes;
+        private int n_in_use;
+        private final ReferenceQueue<ImageBuffer> leak_queue = new ReferenceQueue<>();
+        private final Set<Tracker> trackers = new HashSet<>(); // keeps trackers reachable until their buffer is released
+
+        // statistics
+        private long n_hits;
+        private long n_misses;
+        private int n_leaks;
+
+        /**
+         * @param max_free_bytes The maximum total size of free arrays held by the pool.
+         * @param track_leaks    Whether to record where buffers were obtained from, and report
+         *                       buffers that aren't released. This has a cost for each buffer, so
+         *                       should only be enabled for debug builds.
+         */
+        public Pool(long max_free_bytes, boolean track_leaks) {
+            this.max_free_bytes = max_free_bytes;
+            this.track_leaks = track_leaks;
+        }
+
+        /** Returns a buffer of the requested length, reusing an array from the pool if possible. The
+         *  contents are undefined. The buffer has a reference count of 1.
+         */
+        public ImageBuffer obtain(int length) {
+            checkLeaks();
+            int size_class = BitmapPool.getSizeClass(length);
+            byte [] array = null;
+            synchronized( this ) {
+                List<byte []> free = free_by_size_class.get(size_class);
+                if( free != null && !free.isEmpty() ) {
+                    array = free.remove(free.size()-1);
+                    free_bytes -= array.length;
+                    n_hits++;
+                }
+                else {
+                    n_misses++;
+                }
+                n_in_use++;
+            }
+            if( array == null ) {
+                array = new byte[size_class];
+            }
+            ImageBuffer buffer = new ImageBuffer(this, array, length);
+            if( track_leaks ) {
+                Tracker tracker = new Tracker(buffer, leak_queue);
+                buffer.tracker = tracker;
+                synchronized( this ) {
+                    trackers.add(tracker);
+                }
+            }
+            return buffer;
+        }
+
+        /** Returns a buffer holding a copy of the remaining data of the supplied buffer (e.g., the
+         *  plane of an Image, which must be closed promptly to free up the ImageReader).
+         */
+        public ImageBuffer copyFrom(ByteBuffer source) {
+            ImageBuffer buffer = obtain(source.remaining());
+            source.get(buffer.array, 0, buffer.length);
+            return buffer;
+        }
+
+        /** Called when the reference count of a buffer from this pool reaches zero.
+         */
+        private void recycle(ImageBuffer buffer) {
+            synchronized( this ) {
+                n_in_use--;
+                if( buffer.tracker != null ) {
+                    trackers.remove(buffer.tracker);
+                    buffer.tracker.clear();
+                    buffer.tracker = null;
+                }
+                if( free_bytes + buffer.array.length > max_free_bytes ) {
+                    // leave to the garbage collector
+                    return;
+                }
+                List<byte []> free = free_by_size_class.get(buffer.array.length);
+                if( free == null ) {
+                    free = new ArrayList<>();
+                    free_by_size_class.put(buffer.array.length, free);
+                }
+                free.add(buffer.array);
+                free_bytes += buffer.array.length;
+            }
+        }
+
+        /** Reports buffers that have been garbage collected without being released, if leak
+         *  tracking is enabled. This is called by obtain(), but can also be called directly (e.g.,
+         *  after System.gc() in tests).
+         * @return The total number of leaked buffers found so far.
+         */
+        public int checkLeaks() {
+            if( !track_leaks ) {
+                return 0;
+            }
+            Tracker tracker;
+            while( (tracker = (Tracker)leak_queue.poll()) != null ) {
+                boolean leaked;
+                synchronized( this ) {
+                    leaked = trackers.remove(tracker);
+                    if( leaked ) {
+                        n_leaks++;
+                        // the array was garbage collected along with the buffer
+                        n_in_use--;
+                    }
+                }
+                if( leaked && MyDebug.LOG ) {
+                    Log.e(TAG, "ImageBuffer was not released", tracker.allocation_site);
+                }
+            }
+            synchronized( this ) {
+                return n_leaks;
+            }
+        }
+
+        /** Removes all free arrays from the pool.
+         */
+        public synchronized void clear() {
+            if( MyDebug.LOG )
+                Log.d(TAG, "clear: " + getStatsString());
+            free_by_size_class.clear();
+            free_bytes = 0;
+        }
+
+        public synchronized long getNHits() {
+            return n_hits;
+        }
+
+        public synchronized long getNMisses() {
+            return n_misses;
+        }
+
+        /** Returns the number of buffers obtained from the pool that haven't been released (or
+         *  found to have leaked).
+         */
+        public synchronized int getNInUse() {
+            return n_in_use;
+        }
+
+        public synchronized long getFreeBytes() {
+            return free_bytes;
+        }
+
+        /** Returns a summary of the statistics, for logging.
+         */
+        public synchronized String getStatsString() {
+            return "hits: " + n_hits + " misses: " + n_misses + " in use: " + n_in_use + " free: " + free_bytes + " bytes" + (track_leaks ? " leaks: " + n_leaks : "");
+        }
+    }
+}
@@ -24,6 +24,16 @@ public class RawImage {
         this.image = image;
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public int getHeight() {
+        return image.getHeight();
+    }
+
     /** Writes the dng file to the supplied output.
      */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
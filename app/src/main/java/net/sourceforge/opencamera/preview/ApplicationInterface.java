@@ -18,6 +18,7 @@ import androidx.annotation.RequiresApi;
 
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 /** Provides communication between the Preview and the rest of the application
@@ -182,6 +183,7 @@ public interface ApplicationInterface {
     }
     RawPref getRawPref(); // whether to enable RAW photos
     int getMaxRawImages(); // see documentation of CameraController.setRaw(), corresponds to max_raw_images
+    boolean isYuvCapturePref(); // whether to capture photos as YUV rather than JPEG if supported, see CameraController.setYuvCapture() (not used if RAW is enabled)
     boolean useCamera2DummyCaptureHack(); // whether to enable CameraController.setDummyCaptureHack() for Camera2 API
     boolean useCamera2FakeFlash(); // whether to enable CameraController.setUseCamera2FakeFlash() for Camera2 API
     boolean useCamera2FastBurst(); // whether to enable Camera2's captureBurst() for faster taking of expo-bracketing photos (generally should be true, but some devices have problems with captureBurst())
@@ -251,8 +253,10 @@ public interface ApplicationInterface {
 
     // callbacks
     void onDrawPreview(Canvas canvas);
-    boolean onPictureTaken(byte [] data, Date current_date);
-    boolean onBurstPictureTaken(List<byte []> images, Date current_date);
+    // the images passed to onPictureTaken() and onBurstPictureTaken() are owned by the application, which must call
+    // ImageBuffer.release() on each when done with it (including if returning false)
+    boolean onPictureTaken(ImageBuffer data, Date current_date);
+    boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date);
     boolean onRawPictureTaken(RawImage raw_image, Date current_date);
     boolean onRawBurstPictureTaken(List<RawImage> raw_images, Date current_date);
     void onCaptureStarted(); // called immediately before we start capturing the picture
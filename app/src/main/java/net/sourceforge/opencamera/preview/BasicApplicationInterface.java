@@ -14,6 +14,7 @@ import android.view.MotionEvent;
 import androidx.annotation.RequiresApi;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
@@ -379,6 +380,11 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
         return 2;
     }
 
+    @Override
+    public boolean isYuvCapturePref() {
+        return false;
+    }
+
     @Override
     public boolean useCamera2DummyCaptureHack() {
         return false;
@@ -642,7 +648,8 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
     }
 
     @Override
-    public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
+    public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
+        ImageBuffer.releaseAll(images);
         return false;
     }
 
@@ -2,6 +2,7 @@ package net.sourceforge.opencamera.preview;
 
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 //import net.sourceforge.opencamera.MainActivity;
+import net.sourceforge.opencamera.CaptureLatencyTracker;
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.R;
 import net.sourceforge.opencamera.ScriptC_histogram_compute;
@@ -11,9 +12,12 @@ import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController1;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerException;
+import net.sourceforge.opencamera.cameracontroller.CameraFeaturesCache;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager1;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager2;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSim;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
 import net.sourceforge.opencamera.preview.ApplicationInterface.NoFreeStorageException;
 import net.sourceforge.opencamera.preview.camerasurface.CameraSurface;
 import net.sourceforge.opencamera.preview.camerasurface.MySurfaceView;
@@ -35,6 +39,7 @@ import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -59,6 +64,7 @@ import android.hardware.SensorManager;
 import android.hardware.camera2.CameraExtensionCharacteristics;
 import android.location.Location;
 import android.media.CamcorderProfile;
+import android.media.Image;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -147,6 +153,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private Bitmap preview_bitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
     private RefreshPreviewBitmapTask refreshPreviewBitmapTask;
+    private PreviewYuvAnalysisCallback previewYuvAnalysisCallback; // used instead of refreshPreviewBitmapTask when the camera controller supports a preview analysis stream
+    private boolean preview_analysis_running; // whether we've requested a frame from previewYuvAnalysisCallback, and are waiting for the result
+    private long preview_analysis_request_time_ms; // time of the last request to previewYuvAnalysisCallback
 
     private boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
     public enum HistogramType {
@@ -322,9 +331,21 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private boolean supports_focus_bracketing;
     private boolean supports_burst;
     private boolean supports_raw;
+    private boolean supports_yuv_capture;
     private float view_angle_x;
     private float view_angle_y;
 
+    private final CameraFeaturesCache camera_features_cache;
+    // how long openCamera() may wait for camera_features_cache to finish loading
+    private static final long camera_features_cache_timeout_c = 500;
+    // whether the supported values were set up from camera_features_cache, and the camera hasn't yet opened
+    private boolean using_cached_camera_features;
+    // the features of camera_features_controller, so that we only query them once per camera open, rather than on every
+    // setupCamera() call (e.g., when switching between photo and video modes), see initCameraParameters()
+    private CameraController camera_features_controller;
+    private String camera_features_scene_mode;
+    private CameraController.CameraFeatures current_camera_features;
+
     private List<CameraController.Size> supported_preview_sizes;
 
     private List<CameraController.Size> photo_sizes;
@@ -420,6 +441,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     public volatile int count_cameraTakePicture;
     public volatile int count_cameraContinuousFocusMoving;
     public volatile boolean test_fail_open_camera;
+    public volatile CameraControllerSim.Config test_sim_camera_config; // if non-null, open a simulated camera with this config instead of the camera device
     public volatile boolean test_video_failure;
     public volatile boolean test_video_ioexception;
     public volatile boolean test_video_cameracontrollerexception;
@@ -469,6 +491,13 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.cameraSurface = new MySurfaceView(getContext(), this);
             camera_controller_manager = new CameraControllerManager1();
         }
+
+        camera_features_cache = new CameraFeaturesCache(new File(getContext().getCacheDir(), "camera_features"), Build.FINGERPRINT);
+        new Thread(new Runnable() {
+            public void run() {
+                camera_features_cache.load();
+            }
+        }).start();
 		/*{
 			FrameLayout.LayoutParams layoutParams = new FrameLayout.LayoutParams(FrameLayout.LayoutParams.WRAP_CONTENT, FrameLayout.LayoutParams.WRAP_CONTENT);
 			layoutParams.gravity = Gravity.CENTER;
@@ -1627,6 +1656,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         supports_focus_bracketing = false;
         supports_burst = false;
         supports_raw = false;
+        supports_yuv_capture = false;
+        camera_features_controller = null;
+        camera_features_scene_mode = null;
+        current_camera_features = null;
         view_angle_x = 55.0f; // set a sensible default
         view_angle_y = 43.0f; // set a sensible default
         photo_sizes = null;
@@ -1703,6 +1736,25 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             applicationInterface.setCameraIdPref(cameraId);
         }
 
+        {
+            // until the camera has opened, set up for the features the camera had when last opened (if known), so that the
+            // UI reflects the camera's capabilities sooner - these are replaced by the actual features in initCameraParameters(),
+            // or cleared by clearCachedCameraFeatures() if the camera fails to open
+            // the cache is loaded on a background thread when the Preview is created, and is small, so we should only have to
+            // wait (if at all) when opening the camera on a cold start
+            String key = getCameraFeaturesCacheKey(cameraId);
+            CameraController.CameraFeatures cached_features = null;
+            if( key != null && camera_features_cache.waitUntilLoaded(camera_features_cache_timeout_c) ) {
+                cached_features = camera_features_cache.get(key);
+            }
+            if( cached_features != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "use cached camera features");
+                setCameraFeatures(cached_features);
+                using_cached_camera_features = true;
+            }
+        }
+
         //final boolean use_background_thread = false;
         //final boolean use_background_thread = true;
         final boolean use_background_thread = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
@@ -1756,6 +1808,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                         // this is the local camera_controller, not Preview.this.camera_controller!
                         camera_controller.release();
                     }
+                    clearCachedCameraFeatures();
                     camera_open_state = CameraOpenState.CAMERAOPENSTATE_OPENED; // n.b., still set OPENED state - important for test thread to know that this callback is complete
                     open_camera_task = null; // just to be safe
                     if( MyDebug.LOG )
@@ -1813,7 +1866,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     }
                 }
             };
-            if( using_android_l && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            if( test_sim_camera_config != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "open simulated camera");
+                camera_controller_local = new CameraControllerSim(cameraId, test_sim_camera_config, cameraErrorCallback);
+            }
+            else if( using_android_l && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 // n.b., using_android_l should only be set if Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP,
                 // but Android inspection warnings aren't clever enough to figure that out, and would otherwise
                 // complain about use of CameraController2
@@ -1854,6 +1912,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             Log.d(TAG, "cameraOpened()");
             debug_time = System.currentTimeMillis();
         }
+        if( camera_controller == null ) {
+            // failed to open, so we mustn't leave the UI set up for the camera's cached features
+            clearCachedCameraFeatures();
+        }
         if( camera_controller != null ) {
             Activity activity = (Activity)Preview.this.getContext();
             /*if( MyDebug.LOG )
@@ -1896,6 +1958,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 Log.d(TAG, "openCamera: time after setting preview display: " + (System.currentTimeMillis() - debug_time));
             }
 
+            if( want_preview_bitmap ) {
+                // must be set before setupCamera(), so that the analysis stream is part of the first capture session
+                setPreviewAnalysisCallback();
+            }
             setupCamera(take_photo);
             if( this.using_android_l ) {
                 configureTransform();
@@ -2008,6 +2074,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         }
         catch(CameraControllerException e) {
             e.printStackTrace();
+            clearCachedCameraFeatures();
             applicationInterface.onCameraError();
             closeCamera(false, null);
             return;
@@ -2120,12 +2187,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 Log.d(TAG, "set_flash_value_after_autofocus is now: " + set_flash_value_after_autofocus);
         }
 
-        if( this.supports_raw && applicationInterface.getRawPref() != ApplicationInterface.RawPref.RAWPREF_JPEG_ONLY ) {
+        boolean want_raw = this.supports_raw && applicationInterface.getRawPref() != ApplicationInterface.RawPref.RAWPREF_JPEG_ONLY;
+        if( want_raw ) {
             camera_controller.setRaw(true, applicationInterface.getMaxRawImages());
         }
         else {
             camera_controller.setRaw(false, 0);
         }
+        if( this.supports_yuv_capture ) {
+            camera_controller.setYuvCapture(!want_raw && applicationInterface.isYuvCapturePref());
+        }
 
         setupBurstMode();
 
@@ -2311,6 +2382,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private void initCameraParameters() throws CameraControllerException {
         if( MyDebug.LOG )
             Log.d(TAG, "initCameraParameters()");
+        String scene_mode = null;
         {
             // get available scene modes
             // important, from old Camera API docs:
@@ -2328,6 +2400,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             CameraController.SupportedValues supported_values = camera_controller.setSceneMode(value);
             if( supported_values != null ) {
                 scene_modes = supported_values.values;
+                scene_mode = supported_values.selected_value;
                 // now save, so it's available for PreferenceActivity
                 applicationInterface.setSceneModePref(supported_values.selected_value);
             }
@@ -2341,76 +2414,140 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             // grab all read-only info from parameters
             if( MyDebug.LOG )
                 Log.d(TAG, "grab info from parameters");
-            CameraController.CameraFeatures camera_features = camera_controller.getCameraFeatures();
-
-            this.minimum_focus_distance = camera_features.minimum_focus_distance;
-            this.supports_face_detection = camera_features.supports_face_detection;
-            this.photo_sizes = camera_features.picture_sizes;
-            if( test_burst_resolution ) {
-                // this flag means we pretend the largest resolution doesn't support burst
-                CameraController.Size current_size = null;
-                for(int i=0;i<photo_sizes.size();i++) {
-                    CameraController.Size size = photo_sizes.get(i);
-                    if( current_size == null || size.width*size.height > current_size.width*current_size.height ) {
-                        current_size = size;
-                    }
-                }
-                if( current_size != null )
-                    current_size.supports_burst = false;
-            }
-            supported_flash_values = camera_features.supported_flash_values;
-            supported_focus_values = camera_features.supported_focus_values;
-            this.max_num_focus_areas = camera_features.max_num_focus_areas;
-            this.is_exposure_lock_supported = camera_features.is_exposure_lock_supported;
-            this.is_white_balance_lock_supported = camera_features.is_white_balance_lock_supported;
-            this.supports_optical_stabilization = camera_features.is_optical_stabilization_supported;
-            this.supports_video_stabilization = camera_features.is_video_stabilization_supported;
-            this.supports_photo_video_recording = camera_features.is_photo_video_recording_supported;
-            this.can_disable_shutter_sound = camera_features.can_disable_shutter_sound;
-            this.tonemap_max_curve_points = camera_features.tonemap_max_curve_points;
-            this.supports_tonemap_curve = camera_features.supports_tonemap_curve;
-            this.supported_apertures = camera_features.apertures;
-            this.supports_white_balance_temperature = camera_features.supports_white_balance_temperature;
-            this.min_temperature = camera_features.min_temperature;
-            this.max_temperature = camera_features.max_temperature;
-            this.supports_iso_range = camera_features.supports_iso_range;
-            this.min_iso = camera_features.min_iso;
-            this.max_iso = camera_features.max_iso;
-            this.supports_exposure_time = camera_features.supports_exposure_time;
-            this.min_exposure_time = camera_features.min_exposure_time;
-            this.max_exposure_time = camera_features.max_exposure_time;
-            this.min_exposure = camera_features.min_exposure;
-            this.max_exposure = camera_features.max_exposure;
-            this.exposure_step = camera_features.exposure_step;
-            this.supports_expo_bracketing = camera_features.supports_expo_bracketing;
-            this.max_expo_bracketing_n_images = camera_features.max_expo_bracketing_n_images;
-            this.supports_focus_bracketing = camera_features.supports_focus_bracketing;
-            this.supports_burst = camera_features.supports_burst;
-            this.supports_raw = camera_features.supports_raw;
-            this.view_angle_x = camera_features.view_angle_x;
-            this.view_angle_y = camera_features.view_angle_y;
-            this.supports_video_high_speed = camera_features.video_sizes_high_speed != null && camera_features.video_sizes_high_speed.size() > 0;
-            this.video_quality_handler.setVideoSizes(camera_features.video_sizes);
-            this.video_quality_handler.setVideoSizesHighSpeed(camera_features.video_sizes_high_speed);
-            this.supported_preview_sizes = camera_features.preview_sizes;
-            this.supported_extensions = camera_features.supported_extensions;
-            this.supported_extensions_zoom = camera_features.supported_extensions_zoom;
-
-            // need to do zoom last, as applicationInterface.allowZoom() may depend on the supported
-            // camera features (e.g., zoom not necessarily supported with camera extensions, so we need to have first
-            // stored supported_extensions - otherwise starting up in an extension photo mode will still
-            // show zoom controls even if zoom not supported)
-            this.camera_controller_supports_zoom = camera_features.is_zoom_supported;
-            this.has_zoom = camera_features.is_zoom_supported && applicationInterface.allowZoom();
-            if( this.has_zoom ) {
-                this.max_zoom_factor = camera_features.max_zoom;
-                this.zoom_ratios = camera_features.zoom_ratios;
+            CameraController.CameraFeatures camera_features;
+            if( camera_features_controller == camera_controller && current_camera_features != null
+                    && (scene_mode == null ? camera_features_scene_mode == null : scene_mode.equals(camera_features_scene_mode)) ) {
+                // n.b., for old Camera API the features may depend on the scene mode, so we only reuse them for the same scene mode
+                if( MyDebug.LOG )
+                    Log.d(TAG, "reuse camera features");
+                camera_features = current_camera_features;
             }
             else {
-                this.max_zoom_factor = 0;
-                this.zoom_ratios = null;
+                camera_features = camera_controller.getCameraFeatures();
+                camera_features_controller = camera_controller;
+                camera_features_scene_mode = scene_mode;
+                current_camera_features = camera_features;
+                final String key = getCameraFeaturesCacheKey(camera_controller.getCameraId());
+                if( key != null ) {
+                    // refresh the cache in the background, it's only written if the features have changed
+                    final CameraController.CameraFeatures camera_features_f = camera_features;
+                    new Thread(new Runnable() {
+                        public void run() {
+                            if( camera_features_cache.put(key, camera_features_f) ) {
+                                camera_features_cache.save();
+                            }
+                        }
+                    }).start();
+                }
             }
+            setCameraFeatures(camera_features);
+            using_cached_camera_features = false;
+        }
+    }
+
+    /** If the supported values were set up from camera_features_cache whilst opening the camera,
+     *  resets them to what they'd be with no camera. Should be called if the camera fails to open.
+     */
+    private void clearCachedCameraFeatures() {
+        if( using_cached_camera_features ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "clear cached camera features");
+            using_cached_camera_features = false;
+            CameraController.CameraFeatures camera_features = new CameraController.CameraFeatures();
+            camera_features.video_sizes = new ArrayList<>();
+            // the same defaults as set in openCamera()
+            camera_features.view_angle_x = 55.0f;
+            camera_features.view_angle_y = 43.0f;
+            setCameraFeatures(camera_features);
+        }
+    }
+
+    /** Sets up the supported values from the camera's features.
+     */
+    private void setCameraFeatures(CameraController.CameraFeatures camera_features) {
+        this.minimum_focus_distance = camera_features.minimum_focus_distance;
+        this.supports_face_detection = camera_features.supports_face_detection;
+        this.photo_sizes = camera_features.picture_sizes;
+        if( test_burst_resolution && photo_sizes != null ) {
+            // this flag means we pretend the largest resolution doesn't support burst
+            CameraController.Size current_size = null;
+            for(int i=0;i<photo_sizes.size();i++) {
+                CameraController.Size size = photo_sizes.get(i);
+                if( current_size == null || size.width*size.height > current_size.width*current_size.height ) {
+                    current_size = size;
+                }
+            }
+            if( current_size != null )
+                current_size.supports_burst = false;
+        }
+        supported_flash_values = camera_features.supported_flash_values;
+        supported_focus_values = camera_features.supported_focus_values;
+        this.max_num_focus_areas = camera_features.max_num_focus_areas;
+        this.is_exposure_lock_supported = camera_features.is_exposure_lock_supported;
+        this.is_white_balance_lock_supported = camera_features.is_white_balance_lock_supported;
+        this.supports_optical_stabilization = camera_features.is_optical_stabilization_supported;
+        this.supports_video_stabilization = camera_features.is_video_stabilization_supported;
+        this.supports_photo_video_recording = camera_features.is_photo_video_recording_supported;
+        this.can_disable_shutter_sound = camera_features.can_disable_shutter_sound;
+        this.tonemap_max_curve_points = camera_features.tonemap_max_curve_points;
+        this.supports_tonemap_curve = camera_features.supports_tonemap_curve;
+        this.supported_apertures = camera_features.apertures;
+        this.supports_white_balance_temperature = camera_features.supports_white_balance_temperature;
+        this.min_temperature = camera_features.min_temperature;
+        this.max_temperature = camera_features.max_temperature;
+        this.supports_iso_range = camera_features.supports_iso_range;
+        this.min_iso = camera_features.min_iso;
+        this.max_iso = camera_features.max_iso;
+        this.supports_exposure_time = camera_features.supports_exposure_time;
+        this.min_exposure_time = camera_features.min_exposure_time;
+        this.max_exposure_time = camera_features.max_exposure_time;
+        this.min_exposure = camera_features.min_exposure;
+        this.max_exposure = camera_features.max_exposure;
+        this.exposure_step = camera_features.exposure_step;
+        this.supports_expo_bracketing = camera_features.supports_expo_bracketing;
+        this.max_expo_bracketing_n_images = camera_features.max_expo_bracketing_n_images;
+        this.supports_focus_bracketing = camera_features.supports_focus_bracketing;
+        this.supports_burst = camera_features.supports_burst;
+        this.supports_raw = camera_features.supports_raw;
+        this.supports_yuv_capture = camera_features.supports_yuv_capture;
+        this.view_angle_x = camera_features.view_angle_x;
+        this.view_angle_y = camera_features.view_angle_y;
+        this.supports_video_high_speed = camera_features.video_sizes_high_speed != null && camera_features.video_sizes_high_speed.size() > 0;
+        this.video_quality_handler.setVideoSizes(camera_features.video_sizes);
+        this.video_quality_handler.setVideoSizesHighSpeed(camera_features.video_sizes_high_speed);
+        this.supported_preview_sizes = camera_features.preview_sizes;
+        this.supported_extensions = camera_features.supported_extensions;
+        this.supported_extensions_zoom = camera_features.supported_extensions_zoom;
+
+        // need to do zoom last, as applicationInterface.allowZoom() may depend on the supported
+        // camera features (e.g., zoom not necessarily supported with camera extensions, so we need to have first
+        // stored supported_extensions - otherwise starting up in an extension photo mode will still
+        // show zoom controls even if zoom not supported)
+        this.camera_controller_supports_zoom = camera_features.is_zoom_supported;
+        this.has_zoom = camera_features.is_zoom_supported && applicationInterface.allowZoom();
+        if( this.has_zoom ) {
+            this.max_zoom_factor = camera_features.max_zoom;
+            this.zoom_ratios = camera_features.zoom_ratios;
+        }
+        else {
+            this.max_zoom_factor = 0;
+            this.zoom_ratios = null;
+        }
+    }
+
+    /** Returns the key for the features of the camera in camera_features_cache, or null if they
+     *  shouldn't be cached.
+     */
+    private String getCameraFeaturesCacheKey(int cameraId) {
+        if( test_sim_camera_config != null ) {
+            return null;
         }
+        String api = using_android_l ? "camera2" : "camera1";
+        if( using_android_l && applicationInterface.useCamera2FakeFlash() ) {
+            // affects the supported flash values
+            api += "_fakeflash";
+        }
+        return CameraFeaturesCache.getKey(api, cameraId);
     }
 
     private void setupCameraParameters() {
@@ -6186,6 +6323,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             Log.e(TAG, "camera not opened in takePhoto!");
             return;
         }
+        CaptureLatencyTracker.getInstance().startShot();
         applicationInterface.cameraInOperation(true, false);
         String current_ui_focus_value = getCurrentFocusValue();
         if( MyDebug.LOG )
@@ -6386,6 +6524,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     is_preview_started = false; // preview automatically stopped due to taking photo on original Camera API
                 }
                 phase = PHASE_NORMAL; // need to set this even if remaining repeat photos, so we can restart the preview
+                CaptureLatencyTracker.getInstance().recordStage(CaptureLatencyTracker.STAGE_READY);
                 if( remaining_repeat_photos == -1 || remaining_repeat_photos > 0 ) {
                     if( !is_preview_started ) {
                         // we need to restart the preview; and we do this in the callback, as we need to restart after saving the image
@@ -6458,7 +6597,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
-            public void onPictureTaken(byte[] data) {
+            public void onPictureTaken(ImageBuffer data) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onPictureTaken");
                 initDate();
@@ -6482,7 +6621,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
-            public void onBurstPictureTaken(List<byte[]> images) {
+            public void onBurstPictureTaken(List<ImageBuffer> images) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onBurstPictureTaken");
                 initDate();
@@ -8031,6 +8170,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( cameraSurface instanceof TextureView ) {
             want_preview_bitmap = true;
             recreatePreviewBitmap();
+            setPreviewAnalysisCallback();
         }
     }
 
@@ -8040,6 +8180,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         freePreviewBitmap();
         want_preview_bitmap = false;
         histogramScript = null; // to help garbage collection
+        previewYuvAnalysisCallback = null;
+        preview_analysis_running = false;
+        if( camera_controller != null ) {
+            camera_controller.setPreviewAnalysisCallback(null);
+        }
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -8051,6 +8196,25 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         return refreshPreviewBitmapTask != null;
     }
 
+    /** Sets previewYuvAnalysisCallback on the camera controller. If the camera controller supports
+     *  it, the histogram, zebra stripes and focus peaking are computed from a downscaled YUV stream,
+     *  rather than by reading back from the TextureView.
+     */
+    private void setPreviewAnalysisCallback() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewAnalysisCallback");
+        if( camera_controller == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            return;
+        }
+        if( previewYuvAnalysisCallback == null ) {
+            previewYuvAnalysisCallback = new PreviewYuvAnalysisCallback();
+        }
+        // n.b., the camera controller will only use the callback when the next capture session is created; until then we
+        // fall back to refreshPreviewBitmapTask
+        camera_controller.setPreviewAnalysisCallback(previewYuvAnalysisCallback);
+        preview_analysis_running = false;
+    }
+
     /* Recycles the supplied bitmap, but if the refreshPreviewBitmapTask is running, waits until
 	   it isn't running.
 	 */
@@ -8262,6 +8426,126 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         Bitmap new_focus_peaking_bitmap;
     }
 
+    /** Called on the UI thread to replace the current histogram and bitmaps with those of the result.
+     */
+    private void setPreviewBitmapTaskResult(RefreshPreviewBitmapTaskResult result) {
+        if( result.new_histogram != null )
+            histogram = result.new_histogram;
+        /*if( MyDebug.LOG && histogram != null ) {
+            for(int i=0;i<histogram.length;i++)
+                Log.d(TAG, "    histogram[" + i + "]: " + histogram[i]);
+        }*/
+
+        if( zebra_stripes_bitmap != null ) {
+            zebra_stripes_bitmap.recycle();
+        }
+        zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
+
+        if( focus_peaking_bitmap != null ) {
+            focus_peaking_bitmap.recycle();
+        }
+        focus_peaking_bitmap = result.new_focus_peaking_bitmap;
+    }
+
+    /** The settings to use when computing the next results from the preview analysis stream. These are
+     *  taken on the UI thread, so that the background thread doesn't read Preview's fields.
+     */
+    private static class PreviewAnalysisRequest {
+        boolean update_histogram;
+        HistogramType histogram_type;
+        boolean want_zebra_stripes;
+        int zebra_stripes_threshold;
+        int zebra_stripes_color_foreground;
+        int zebra_stripes_color_background;
+        boolean want_focus_peaking;
+        int rotation; // rotation from the sensor orientation to the orientation of the preview
+        boolean mirror;
+    }
+
+    /** Computes the histogram, zebra stripes and focus peaking directly from the planes of the
+     *  camera controller's preview analysis stream. Unlike RefreshPreviewBitmapTask, this doesn't
+     *  need to read back from the TextureView or create an intermediate bitmap.
+     */
+    private class PreviewYuvAnalysisCallback implements CameraController.PreviewAnalysisCallback {
+        private final AtomicReference<PreviewAnalysisRequest> pending_request = new AtomicReference<>();
+        // the following are only accessed on the background thread
+        private int [] zebra_stripes_pixels;
+        private int [] focus_peaking_pixels;
+        private boolean [] focus_peaking_edges;
+
+        void request(PreviewAnalysisRequest request) {
+            pending_request.set(request);
+        }
+
+        @Override
+        public void onPreviewImage(Image image) {
+            final PreviewAnalysisRequest request = pending_request.getAndSet(null);
+            if( request == null ) {
+                // not due to refresh yet
+                return;
+            }
+            long debug_time = 0;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "PreviewYuvAnalysisCallback.onPreviewImage");
+                debug_time = System.currentTimeMillis();
+            }
+            Image.Plane [] planes = image.getPlanes();
+            PreviewYuvAnalyzer.YuvPlanes yuv_planes = new PreviewYuvAnalyzer.YuvPlanes(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[0].getRowStride(), planes[0].getPixelStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    image.getWidth(), image.getHeight());
+            final RefreshPreviewBitmapTaskResult result = new RefreshPreviewBitmapTaskResult();
+            int n_pixels = image.getWidth()*image.getHeight();
+            int out_width = PreviewYuvAnalyzer.getOutputWidth(yuv_planes, request.rotation);
+            int out_height = PreviewYuvAnalyzer.getOutputHeight(yuv_planes, request.rotation);
+
+            if( request.update_histogram ) {
+                result.new_histogram = PreviewYuvAnalyzer.computeHistogram(yuv_planes, request.histogram_type);
+            }
+            if( request.want_zebra_stripes ) {
+                if( zebra_stripes_pixels == null || zebra_stripes_pixels.length != n_pixels ) {
+                    zebra_stripes_pixels = new int[n_pixels];
+                }
+                PreviewYuvAnalyzer.computeZebraStripes(yuv_planes, request.zebra_stripes_threshold, request.zebra_stripes_color_foreground,
+                        request.zebra_stripes_color_background, out_width/20, request.rotation, request.mirror, zebra_stripes_pixels);
+                result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_pixels, out_width, out_height, Bitmap.Config.ARGB_8888);
+            }
+            if( request.want_focus_peaking ) {
+                if( focus_peaking_pixels == null || focus_peaking_pixels.length != n_pixels ) {
+                    focus_peaking_pixels = new int[n_pixels];
+                    focus_peaking_edges = new boolean[n_pixels];
+                }
+                PreviewYuvAnalyzer.computeFocusPeaking(yuv_planes, request.rotation, request.mirror, focus_peaking_pixels, focus_peaking_edges);
+                result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_pixels, out_width, out_height, Bitmap.Config.ARGB_8888);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "preview analysis time taken: " + (System.currentTimeMillis() - debug_time));
+
+            Activity activity = (Activity)Preview.this.getContext();
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    preview_analysis_running = false;
+                    if( !want_preview_bitmap || previewYuvAnalysisCallback != PreviewYuvAnalysisCallback.this ) {
+                        // preview bitmaps were disabled whilst we were processing
+                        if( result.new_zebra_stripes_bitmap != null )
+                            result.new_zebra_stripes_bitmap.recycle();
+                        if( result.new_focus_peaking_bitmap != null )
+                            result.new_focus_peaking_bitmap.recycle();
+                        return;
+                    }
+                    if( result.new_zebra_stripes_bitmap != null && !want_zebra_stripes ) {
+                        result.new_zebra_stripes_bitmap.recycle();
+                        result.new_zebra_stripes_bitmap = null;
+                    }
+                    if( result.new_focus_peaking_bitmap != null && !want_focus_peaking ) {
+                        result.new_focus_peaking_bitmap.recycle();
+                        result.new_focus_peaking_bitmap = null;
+                    }
+                    setPreviewBitmapTaskResult(result);
+                }
+            });
+        }
+    }
+
     // use static class, and WeakReferences, to avoid memory leaks: https://stackoverflow.com/questions/44309241/warning-this-asynctask-class-should-be-static-or-leaks-might-occur/46166223
     private static class RefreshPreviewBitmapTask extends AsyncTask<Void, Void, RefreshPreviewBitmapTaskResult> {
         private static final String TAG = "RefreshPreviewBmTask";
@@ -8591,22 +8875,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 return;
             }
 
-            if( result.new_histogram != null )
-                preview.histogram = result.new_histogram;
-			/*if( MyDebug.LOG && preview.histogram != null ) {
-				for(int i=0;i<preview.histogram.length;i++)
-					Log.d(TAG, "    histogram[" + i + "]: " + preview.histogram[i]);
-			}*/
-
-            if( preview.zebra_stripes_bitmap != null ) {
-                preview.zebra_stripes_bitmap.recycle();
-            }
-            preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
-
-            if( preview.focus_peaking_bitmap != null ) {
-                preview.focus_peaking_bitmap.recycle();
-            }
-            preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
+            preview.setPreviewBitmapTaskResult(result);
 
             preview.refreshPreviewBitmapTask = null;
 
@@ -8630,9 +8899,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         final int refresh_histogram_rate_ms = 200;
         final long refresh_time = (want_zebra_stripes || want_focus_peaking) ? 40 : refresh_histogram_rate_ms;
         long time_now = System.currentTimeMillis();
-        if( want_preview_bitmap && preview_bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+        // use the preview analysis stream if the current capture session has it, otherwise fall back to reading from the TextureView
+        boolean use_preview_analysis = previewYuvAnalysisCallback != null && camera_controller != null && camera_controller.isPreviewAnalysisActive();
+        boolean can_refresh = use_preview_analysis ? !previewAnalysisIsRunning(time_now) : (preview_bitmap != null && !refreshPreviewBitmapTaskIsRunning());
+        if( want_preview_bitmap && can_refresh && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
                 !is_paused && !applicationInterface.isPreviewInBackground() &&
-                !refreshPreviewBitmapTaskIsRunning() && time_now > last_preview_bitmap_time_ms + refresh_time ) {
+                time_now > last_preview_bitmap_time_ms + refresh_time ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "refreshPreviewBitmap");
             // even if we're running the background task at a faster rate (due to zebra stripes etc), we still update the histogram
@@ -8650,9 +8922,47 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             if( update_histogram ) {
                 this.last_histogram_time_ms = time_now;
             }
-            refreshPreviewBitmapTask = new RefreshPreviewBitmapTask(this, update_histogram);
-            refreshPreviewBitmapTask.execute();
+            if( use_preview_analysis ) {
+                requestPreviewAnalysis(update_histogram);
+            }
+            else {
+                refreshPreviewBitmapTask = new RefreshPreviewBitmapTask(this, update_histogram);
+                refreshPreviewBitmapTask.execute();
+            }
+        }
+    }
+
+    /** Whether we're waiting for a result from previewYuvAnalysisCallback. We time out in case the
+     *  analysis stream stops delivering frames (e.g., whilst the capture session is being recreated).
+     */
+    private boolean previewAnalysisIsRunning(long time_now) {
+        final long preview_analysis_timeout_ms = 1000;
+        return preview_analysis_running && time_now < preview_analysis_request_time_ms + preview_analysis_timeout_ms;
+    }
+
+    private void requestPreviewAnalysis(boolean update_histogram) {
+        PreviewAnalysisRequest request = new PreviewAnalysisRequest();
+        request.update_histogram = update_histogram;
+        request.histogram_type = histogram_type;
+        request.want_zebra_stripes = want_zebra_stripes;
+        request.zebra_stripes_threshold = zebra_stripes_threshold;
+        request.zebra_stripes_color_foreground = zebra_stripes_color_foreground;
+        request.zebra_stripes_color_background = zebra_stripes_color_background;
+        request.want_focus_peaking = want_focus_peaking;
+        int camera_orientation = camera_controller.getCameraOrientation();
+        int display_degrees = getDisplayRotationDegrees(false);
+        if( camera_controller.getFacing() == CameraController.Facing.FACING_FRONT ) {
+            // the front camera preview is mirrored
+            request.rotation = (camera_orientation + display_degrees) % 360;
+            request.mirror = true;
+        }
+        else {
+            request.rotation = (camera_orientation - display_degrees + 360) % 360;
+            request.mirror = false;
         }
+        preview_analysis_running = true;
+        preview_analysis_request_time_ms = System.currentTimeMillis();
+        previewYuvAnalysisCallback.request(request);
     }
 
     private void cancelRefreshPreviewBitmap() {
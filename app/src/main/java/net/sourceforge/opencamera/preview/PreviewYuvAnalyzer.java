@@ -0,0 +1,252 @@
+package net.sourceforge.opencamera.preview;
+
+import java.nio.ByteBuffer;
+
+/** Computes the histogram, zebra stripes and focus peaking for the preview directly from the planes
+ *  of a YUV_420_888 image, without creating any intermediate Bitmap. This is the counterpart of
+ *  histogram_compute.rs, which works on a Bitmap read back from the TextureView.
+ *  The plane buffers are only read using absolute gets, so the positions of the buffers are not
+ *  modified.
+ *  Zebra stripes and focus peaking are written in ARGB format to an output array that is rotated
+ *  (and optionally mirrored) from the sensor orientation into the orientation the preview is
+ *  displayed in.
+ */
+public class PreviewYuvAnalyzer {
+    /** Threshold for the focus peaking strength; the Renderscript version uses a threshold of
+     *  256*256 on the squared RGB laplacian, for a grey pixel this equals 3 times the squared
+     *  luminance laplacian.
+     */
+    private static final int focus_peaking_threshold_c = (256*256)/3;
+
+    /** Describes the planes of a YUV_420_888 image.
+     */
+    public static class YuvPlanes {
+        final ByteBuffer y_buffer;
+        final ByteBuffer u_buffer;
+        final ByteBuffer v_buffer;
+        final int y_row_stride;
+        final int y_pixel_stride;
+        final int uv_row_stride;
+        final int uv_pixel_stride;
+        final int width;
+        final int height;
+
+        public YuvPlanes(ByteBuffer y_buffer, ByteBuffer u_buffer, ByteBuffer v_buffer,
+                         int y_row_stride, int y_pixel_stride, int uv_row_stride, int uv_pixel_stride,
+                         int width, int height) {
+            this.y_buffer = y_buffer;
+            this.u_buffer = u_buffer;
+            this.v_buffer = v_buffer;
+            this.y_row_stride = y_row_stride;
+            this.y_pixel_stride = y_pixel_stride;
+            this.uv_row_stride = uv_row_stride;
+            this.uv_pixel_stride = uv_pixel_stride;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** Returns the width of the output of computeZebraStripes() and computeFocusPeaking(), for the
+     *  supplied rotation.
+     */
+    public static int getOutputWidth(YuvPlanes planes, int rotation) {
+        return (rotation == 90 || rotation == 270) ? planes.height : planes.width;
+    }
+
+    /** Returns the height of the output of computeZebraStripes() and computeFocusPeaking(), for the
+     *  supplied rotation.
+     */
+    public static int getOutputHeight(YuvPlanes planes, int rotation) {
+        return (rotation == 90 || rotation == 270) ? planes.width : planes.height;
+    }
+
+    /** Converts from (full range) YUV to RGB, returning the result packed as 0x00RRGGBB.
+     */
+    private static int yuvToRgb(int y_value, int u_value, int v_value) {
+        // fixed point with 10 bits of precision, using the JFIF (full range BT.601) coefficients
+        int u = u_value - 128;
+        int v = v_value - 128;
+        int y = y_value << 10;
+        int r = (y + 1436*v + 512) >> 10;
+        int g = (y - 352*u - 731*v + 512) >> 10;
+        int b = (y + 1815*u + 512) >> 10;
+        r = Math.max(0, Math.min(r, 255));
+        g = Math.max(0, Math.min(g, 255));
+        b = Math.max(0, Math.min(b, 255));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int getY(YuvPlanes planes, int x, int y) {
+        return planes.y_buffer.get(y*planes.y_row_stride + x*planes.y_pixel_stride) & 0xFF;
+    }
+
+    /** Returns the pixel at (x, y) as 0x00RRGGBB.
+     */
+    private static int getRgb(YuvPlanes planes, int x, int y) {
+        int uv_index = (y/2)*planes.uv_row_stride + (x/2)*planes.uv_pixel_stride;
+        int u_value = planes.u_buffer.get(uv_index) & 0xFF;
+        int v_value = planes.v_buffer.get(uv_index) & 0xFF;
+        return yuvToRgb(getY(planes, x, y), u_value, v_value);
+    }
+
+    /** Returns the index into the output array for the source pixel (x, y).
+     */
+    private static int getOutputIndex(int x, int y, int width, int height, int rotation, boolean mirror) {
+        int out_x, out_y, out_width;
+        switch( rotation ) {
+            case 90:
+                out_x = height-1-y;
+                out_y = x;
+                out_width = height;
+                break;
+            case 180:
+                out_x = width-1-x;
+                out_y = height-1-y;
+                out_width = width;
+                break;
+            case 270:
+                out_x = y;
+                out_y = width-1-x;
+                out_width = height;
+                break;
+            default:
+                out_x = x;
+                out_y = y;
+                out_width = width;
+                break;
+        }
+        if( mirror ) {
+            out_x = out_width-1-out_x;
+        }
+        return out_y*out_width + out_x;
+    }
+
+    /** Computes a histogram, in the same format as returned by Preview.getHistogram(): 256 entries, or
+     *  768 entries (red, then green, then blue) for HISTOGRAM_TYPE_RGB.
+     */
+    public static int [] computeHistogram(YuvPlanes planes, Preview.HistogramType histogram_type) {
+        int width = planes.width;
+        int height = planes.height;
+        int [] histogram;
+        if( histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_RGB ) {
+            histogram = new int[256*3];
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    int rgb = getRgb(planes, x, y);
+                    histogram[(rgb >> 16) & 0xFF]++;
+                    histogram[256 + ((rgb >> 8) & 0xFF)]++;
+                    histogram[512 + (rgb & 0xFF)]++;
+                }
+            }
+        }
+        else if( histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE ) {
+            // the luma plane already holds the luminance, so no need to read the chroma planes
+            histogram = new int[256];
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    histogram[getY(planes, x, y)]++;
+                }
+            }
+        }
+        else {
+            histogram = new int[256];
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    int rgb = getRgb(planes, x, y);
+                    int r = (rgb >> 16) & 0xFF;
+                    int g = (rgb >> 8) & 0xFF;
+                    int b = rgb & 0xFF;
+                    int value;
+                    switch( histogram_type ) {
+                        case HISTOGRAM_TYPE_INTENSITY:
+                            value = (2*(r + g + b) + 3)/6; // round to nearest
+                            break;
+                        case HISTOGRAM_TYPE_LIGHTNESS:
+                            value = (Math.max(r, Math.max(g, b)) + Math.min(r, Math.min(g, b)) + 1)/2; // round to nearest
+                            break;
+                        default:
+                            value = Math.max(r, Math.max(g, b));
+                            break;
+                    }
+                    histogram[value]++;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /** Generates zebra stripes for pixels whose maximum RGB value is greater than or equal to
+     *  zebra_stripes_threshold, other pixels are set to transparent.
+     * @param output       Array of size getOutputWidth()*getOutputHeight() to store the result.
+     * @param stripe_width Width of the stripes, measured in the output orientation.
+     */
+    public static void computeZebraStripes(YuvPlanes planes, int zebra_stripes_threshold, int color_foreground, int color_background,
+                                           int stripe_width, int rotation, boolean mirror, int [] output) {
+        int width = planes.width;
+        int height = planes.height;
+        int out_width = getOutputWidth(planes, rotation);
+        stripe_width = Math.max(stripe_width, 1);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int index = getOutputIndex(x, y, width, height, rotation, mirror);
+                int rgb = getRgb(planes, x, y);
+                int value = Math.max((rgb >> 16) & 0xFF, Math.max((rgb >> 8) & 0xFF, rgb & 0xFF));
+                if( value >= zebra_stripes_threshold ) {
+                    // stripes are computed in the output orientation, so they have the same direction as the Renderscript version
+                    int stripe = (index % out_width + index / out_width)/stripe_width;
+                    output[index] = stripe % 2 == 0 ? color_background : color_foreground;
+                }
+                else {
+                    output[index] = 0;
+                }
+            }
+        }
+    }
+
+    /** Generates focus peaking from the luminance plane: an edge is marked for pixels where the
+     *  laplacian is above a threshold, followed by a filter that only keeps pixels where at least 3
+     *  out of 5 of the pixel and its 4 neighbours are edges. Edge pixels are set to opaque white,
+     *  other pixels to transparent.
+     * @param output Array of size getOutputWidth()*getOutputHeight() to store the result.
+     * @param edges  Temporary array of size at least width*height of the planes.
+     */
+    public static void computeFocusPeaking(YuvPlanes planes, int rotation, boolean mirror, int [] output, boolean [] edges) {
+        int width = planes.width;
+        int height = planes.height;
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                boolean edge = false;
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    int value = 8*getY(planes, x, y);
+                    value -= getY(planes, x-1, y-1) + getY(planes, x, y-1) + getY(planes, x+1, y-1);
+                    value -= getY(planes, x-1, y) + getY(planes, x+1, y);
+                    value -= getY(planes, x-1, y+1) + getY(planes, x, y+1) + getY(planes, x+1, y+1);
+                    edge = value*value > focus_peaking_threshold_c;
+                }
+                edges[y*width+x] = edge;
+            }
+        }
+
+        // median filter
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                boolean edge = edges[y*width+x];
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    int count = 0;
+                    if( edges[(y-1)*width+x] )
+                        count++;
+                    if( edges[y*width+x-1] )
+                        count++;
+                    if( edge )
+                        count++;
+                    if( edges[y*width+x+1] )
+                        count++;
+                    if( edges[(y+1)*width+x] )
+                        count++;
+                    edge = count >= 3;
+                }
+                output[getOutputIndex(x, y, width, height, rotation, mirror)] = edge ? 0xFFFFFFFF : 0;
+            }
+        }
+    }
+}
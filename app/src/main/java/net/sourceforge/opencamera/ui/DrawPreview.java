@@ -9,6 +9,7 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 
+import net.sourceforge.opencamera.CaptureLatencyTracker;
 import net.sourceforge.opencamera.GyroSensor;
 import net.sourceforge.opencamera.ImageSaver;
 import net.sourceforge.opencamera.LocationSupplier;
@@ -85,6 +86,7 @@ public class DrawPreview {
     private boolean show_time_pref;
     private boolean show_camera_id_pref;
     private boolean show_free_memory_pref;
+    private boolean show_capture_latency_pref;
     private boolean show_iso_pref;
     private boolean show_video_max_amp_pref;
     private boolean show_zoom_pref;
@@ -150,6 +152,8 @@ public class DrawPreview {
     private float free_memory_gb = -1.0f;
     private String free_memory_gb_string;
     private long last_free_memory_time;
+    private String capture_latency_string;
+    private long last_capture_latency_time;
 
     private String current_time_string;
     private long last_current_time_time;
@@ -596,6 +600,7 @@ public class DrawPreview {
         show_camera_id_pref = main_activity.isMultiCam() && sharedPreferences.getBoolean(PreferenceKeys.ShowCameraIDPreferenceKey, true);
         //show_camera_id_pref = true; // test
         show_free_memory_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowFreeMemoryPreferenceKey, true);
+        show_capture_latency_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowCaptureLatencyPreferenceKey, false);
         show_iso_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowISOPreferenceKey, true);
         show_video_max_amp_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
         show_zoom_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
@@ -1105,6 +1110,18 @@ public class DrawPreview {
         }
     }
 
+    /** Returns the median and 90th percentile of the metric in milliseconds, as "p50/p90", or "-"
+     *  if there are no samples.
+     */
+    private static String getLatencyString(CaptureLatencyTracker tracker, CaptureLatencyTracker.Metric metric) {
+        float p50 = tracker.getPercentileMs(metric, 50.0f);
+        if( p50 < 0.0f ) {
+            return "-";
+        }
+        float p90 = tracker.getPercentileMs(metric, 90.0f);
+        return Math.round(p50) + "/" + Math.round(p90);
+    }
+
     private void onDrawInfoLines(Canvas canvas, final int top_x, final int top_y, final int bottom_y, final int device_ui_rotation, long time_ms) {
         Preview preview = main_activity.getPreview();
         CameraController camera_controller = preview.getCameraController();
@@ -1238,6 +1255,27 @@ public class DrawPreview {
             }
         }
 
+        if( camera_controller != null && show_capture_latency_pref ) {
+            if( capture_latency_string == null || time_ms > last_capture_latency_time + 500 ) {
+                // don't recompute every frame, for UI performance
+                CaptureLatencyTracker tracker = CaptureLatencyTracker.getInstance();
+                capture_latency_string = "lag " + getLatencyString(tracker, CaptureLatencyTracker.Metric.SHUTTER_LAG) +
+                        " s2s " + getLatencyString(tracker, CaptureLatencyTracker.Metric.SHOT_TO_SHOT) +
+                        " q " + getLatencyString(tracker, CaptureLatencyTracker.Metric.QUEUE_WAIT) +
+                        " save " + getLatencyString(tracker, CaptureLatencyTracker.Metric.SAVE_LATENCY);
+                last_capture_latency_time = time_ms;
+            }
+            // n.b., don't cache the text bounds, as the text changes
+            int height = applicationInterface.drawTextWithBackground(canvas, p, capture_latency_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+            height += gap_y;
+            if( device_ui_rotation == 90 ) {
+                location_y -= height;
+            }
+            else {
+                location_y += height;
+            }
+        }
+
         // Now draw additional info on the lower left corner if needed
         int y_offset = (int) (27 * scale + 0.5f);
         p.setTextSize(24 * scale + 0.5f); // convert dps to pixels
@@ -1430,8 +1430,10 @@ public class PopupView extends LinearLayout {
                     if( bm != null )
                         image_button.setImageBitmap(bm);
                     else {
+                        // icons may not have been preloaded yet, as this is deferred until after startup
                         if( MyDebug.LOG )
                             Log.d(TAG, "failed to find bitmap for resource " + resource + "!");
+                        image_button.setImageResource(resource);
                     }
                     if( MyDebug.LOG )
                         Log.d(TAG, "addButtonOptionsToPopup time 2.13: " + (System.nanoTime() - debug_time));
@@ -0,0 +1,93 @@
+package net.sourceforge.opencamera.test;
+
+import net.sourceforge.opencamera.HDRProcessor;
+import net.sourceforge.opencamera.HDRProcessorException;
+import net.sourceforge.opencamera.JavaHDRProcessor;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/** Benchmark for JavaHDRProcessor, measuring the throughput in megapixels per second of 3 and 5
+ *  image HDR merges on synthetic images. This runs on the desktop JVM and isn't run as part of the
+ *  unit tests. It follows the usual JMH structure of warmup iterations followed by measurement
+ *  iterations, reporting the mean and standard deviation of the measurement iterations.
+ *  Run with: java net.sourceforge.opencamera.test.JavaHDRBenchmark [width height [n_threads]]
+ */
+public class JavaHDRBenchmark {
+    private static final int n_warmup_iterations_c = 5;
+    private static final int n_measurement_iterations_c = 10;
+
+    /** Creates a set of n_images synthetic images of a scene with a high dynamic range, from darkest
+     *  to brightest, with exposures evenly spaced from -2EV to +2EV.
+     */
+    public static int [][] createSyntheticImages(int width, int height, int n_images) {
+        int [][] images = new int[n_images][];
+        for(int i=0;i<n_images;i++) {
+            double ev = n_images == 1 ? 0.0 : -2.0 + 4.0*i/(double)(n_images-1);
+            double exposure = Math.pow(2.0, ev);
+            int [] image = new int[width*height];
+            for(int y=0;y<height;y++) {
+                double row_scale = 0.75 + 0.25*Math.sin(y*0.05);
+                for(int x=0;x<width;x++) {
+                    // radiance varies over 8 stops across the image
+                    double radiance = Math.pow(2.0, -6.0 + 8.0*x/(double)width) * row_scale;
+                    int r = toPixelValue(radiance * exposure * 1.1);
+                    int g = toPixelValue(radiance * exposure);
+                    int b = toPixelValue(radiance * exposure * 0.8);
+                    image[y*width+x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+            images[i] = image;
+        }
+        return images;
+    }
+
+    private static int toPixelValue(double value) {
+        int result = (int)(255.0*value + 0.5);
+        return Math.max(0, Math.min(result, 255));
+    }
+
+    private static void benchmark(JavaHDRProcessor processor, int width, int height, int n_images) throws HDRProcessorException {
+        int [][] images = createSyntheticImages(width, height, n_images);
+        int [] output = new int[width*height];
+        double megapixels = width*height/1.0e6;
+        for(int i=0;i<n_warmup_iterations_c;i++) {
+            processor.processHDR(images, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, output);
+        }
+        double [] results = new double[n_measurement_iterations_c];
+        for(int i=0;i<n_measurement_iterations_c;i++) {
+            long time_s = System.nanoTime();
+            processor.processHDR(images, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, output);
+            long time_taken = System.nanoTime() - time_s;
+            results[i] = megapixels / (time_taken/1.0e9);
+        }
+        double mean = 0.0;
+        for(double result : results) {
+            mean += result;
+        }
+        mean /= n_measurement_iterations_c;
+        double variance = 0.0;
+        for(double result : results) {
+            variance += (result - mean)*(result - mean);
+        }
+        variance /= n_measurement_iterations_c;
+        System.out.println(String.format(Locale.US, "%d images, %dx%d: %.2f +/- %.2f MP/s", n_images, width, height, mean, Math.sqrt(variance)));
+    }
+
+    public static void main(String [] args) throws HDRProcessorException {
+        int width = 4000;
+        int height = 3000;
+        int n_threads = Runtime.getRuntime().availableProcessors();
+        if( args.length >= 2 ) {
+            width = Integer.parseInt(args[0]);
+            height = Integer.parseInt(args[1]);
+        }
+        if( args.length >= 3 ) {
+            n_threads = Integer.parseInt(args[2]);
+        }
+        System.out.println("threads: " + n_threads);
+        JavaHDRProcessor processor = new JavaHDRProcessor(new ForkJoinPool(n_threads));
+        benchmark(processor, width, height, 3);
+        benchmark(processor, width, height, 5);
+    }
+}
@@ -0,0 +1,88 @@
+package net.sourceforge.opencamera.test;
+
+import net.sourceforge.opencamera.JavaPyramidBlender;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/** Benchmark for JavaPyramidBlender, measuring the throughput in megapixels per second of blending
+ *  synthetic images, for blend regions 2048 and 4096 pixels wide. This runs on the desktop JVM and isn't run as part of the
+ *  unit tests. It follows the usual JMH structure of warmup iterations followed by measurement
+ *  iterations, reporting the mean and standard deviation of the measurement iterations.
+ *  Run with: java net.sourceforge.opencamera.test.JavaPyramidBlendBenchmark [height [n_threads]]
+ */
+public class JavaPyramidBlendBenchmark {
+    private static final int n_warmup_iterations_c = 5;
+    private static final int n_measurement_iterations_c = 10;
+    private static final int n_levels_c = 4; // should match PanoramaProcessor.blend_n_levels
+    private static final int best_path_n_x_c = 7; // should match PanoramaProcessor
+
+    /** Creates a textured synthetic image, offset horizontally by shift pixels and with brightness
+     *  scaled by gain, so that blending has to hide differences between the images.
+     */
+    private static int [] createSyntheticImage(int width, int height, int shift, float gain) {
+        int [] image = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                double value = 128.0 + 60.0*Math.sin((x+shift)*0.03) + 40.0*Math.cos(y*0.045 + (x+shift)*0.01);
+                int r = toPixelValue(value*gain*1.05);
+                int g = toPixelValue(value*gain);
+                int b = toPixelValue(value*gain*0.9);
+                image[y*width+x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+
+    private static int toPixelValue(double value) {
+        int result = (int)(value + 0.5);
+        return Math.max(0, Math.min(result, 255));
+    }
+
+    private static void benchmark(JavaPyramidBlender blender, int width, int height) {
+        int [] lhs = createSyntheticImage(width, height, 0, 1.0f);
+        int [] rhs = createSyntheticImage(width, height, 3, 1.1f);
+        int [] output = new int[width*height];
+        int [] best_path = new int[]{2, 3, 3, 4, 3, 3, 2, 3};
+        double megapixels = width*height/1.0e6;
+        for(int i=0;i<n_warmup_iterations_c;i++) {
+            blender.blend(lhs, rhs, width, height, best_path, best_path_n_x_c, output);
+        }
+        double [] results = new double[n_measurement_iterations_c];
+        for(int i=0;i<n_measurement_iterations_c;i++) {
+            long time_s = System.nanoTime();
+            blender.blend(lhs, rhs, width, height, best_path, best_path_n_x_c, output);
+            long time_taken = System.nanoTime() - time_s;
+            results[i] = megapixels / (time_taken/1.0e9);
+        }
+        double mean = 0.0;
+        for(double result : results) {
+            mean += result;
+        }
+        mean /= n_measurement_iterations_c;
+        double variance = 0.0;
+        for(double result : results) {
+            variance += (result - mean)*(result - mean);
+        }
+        variance /= n_measurement_iterations_c;
+        System.out.println(String.format(Locale.US, "%dx%d: %.2f +/- %.2f MP/s", width, height, mean, Math.sqrt(variance)));
+    }
+
+    public static void main(String [] args) {
+        int height = 2048;
+        int n_threads = Runtime.getRuntime().availableProcessors();
+        if( args.length >= 1 ) {
+            height = Integer.parseInt(args[0]);
+        }
+        if( args.length >= 2 ) {
+            n_threads = Integer.parseInt(args[1]);
+        }
+        System.out.println("threads: " + n_threads);
+        JavaPyramidBlender blender = new JavaPyramidBlender(n_levels_c, new ForkJoinPool(n_threads));
+        // the blend region is the full width of the images passed to blendPyramids()
+        final int [] widths = new int[]{2048, 4096};
+        for(int width : widths) {
+            benchmark(blender, width, height);
+        }
+    }
+}
@@ -6,25 +6,62 @@ import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyApplicationInterface;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSim;
+import net.sourceforge.opencamera.cameracontroller.CameraFeaturesCache;
+import net.sourceforge.opencamera.cameracontroller.ImageBuffer;
+import net.sourceforge.opencamera.cameracontroller.RawImage;
+import net.sourceforge.opencamera.AudioTriggerDetector;
+import net.sourceforge.opencamera.BitmapPool;
+import net.sourceforge.opencamera.CaptureLatencyTracker;
+import net.sourceforge.opencamera.CompletionSequencer;
+import net.sourceforge.opencamera.FeatureMatcher;
 import net.sourceforge.opencamera.HDRProcessor;
+import net.sourceforge.opencamera.HDRProcessorException;
 import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.JavaHDRProcessor;
+import net.sourceforge.opencamera.JavaPyramidBlender;
+import net.sourceforge.opencamera.JpegExifSplicer;
+import net.sourceforge.opencamera.LatestMediaIndex;
 import net.sourceforge.opencamera.LocationSupplier;
+import net.sourceforge.opencamera.MotionTrace;
+import net.sourceforge.opencamera.OrientationIntegrator;
+import net.sourceforge.opencamera.PostProcessTransform;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.preview.PreviewYuvAnalyzer;
+import net.sourceforge.opencamera.SharpnessScorer;
+import net.sourceforge.opencamera.StartupInitializer;
+import net.sourceforge.opencamera.StreamingAvgProcessor;
+import net.sourceforge.opencamera.SubtitleWriter;
 import net.sourceforge.opencamera.preview.VideoQualityHandler;
 import net.sourceforge.opencamera.TextFormatter;
+import net.sourceforge.opencamera.ThumbnailProvider;
+import net.sourceforge.opencamera.YuvConverter;
 import net.sourceforge.opencamera.ui.DrawPreview;
 import net.sourceforge.opencamera.ui.MainUI;
 import net.sourceforge.opencamera.ui.PopupView;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -537,30 +574,82 @@ public class UnitTest {
     }
 
     @Test
-    public void testImageSaverQueueSize() {
-        Log.d(TAG, "testImageSaverQueueSize");
+    public void testImageSaverQueueBudget() {
+        Log.d(TAG, "testImageSaverQueueBudget");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        // if any of these values change, review the comments in ImageSaver.computeQueueBudget().
 
-        assertTrue(ImageSaver.computeQueueSize(64) >= 6);
+        final int width = 4000, height = 3000; // 12MP
+        long jpeg_cost = ImageSaver.computeRequestCost(false, 1, width, height);
+        long raw_cost = ImageSaver.computeRequestCost(true, 1, width, height);
 
-        assertTrue(ImageSaver.computeQueueSize(128) >= ImageSaver.computeQueueSize(64));
+        // should always allow at least a single RAW+JPEG photo
+        assertTrue(ImageSaver.computeQueueBudget(0) >= raw_cost + jpeg_cost);
+        assertTrue(ImageSaver.computeQueueBudget(64) >= raw_cost + jpeg_cost);
 
-        assertTrue(ImageSaver.computeQueueSize(256) >= ImageSaver.computeQueueSize(128));
-        assertTrue(ImageSaver.computeQueueSize(256) <= 19);
+        assertTrue(ImageSaver.computeQueueBudget(128) >= ImageSaver.computeQueueBudget(64));
+        assertTrue(ImageSaver.computeQueueBudget(128) <= 64L*1024*1024);
 
-        assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
-        assertTrue(ImageSaver.computeQueueSize(512) >= 34);
-        assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+        assertTrue(ImageSaver.computeQueueBudget(256) >= ImageSaver.computeQueueBudget(128));
+        assertTrue(ImageSaver.computeQueueBudget(256) <= 128L*1024*1024);
+
+        assertTrue(ImageSaver.computeQueueBudget(512) >= ImageSaver.computeQueueBudget(256));
+        // burst of 20 JPEGs (subtract 1, as we never block when the queue is empty)
+        assertTrue(ImageSaver.computeQueueBudget(512) >= 19*jpeg_cost);
+        // burst of 5 RAW+JPEG (e.g., in expo mode)
+        assertTrue(ImageSaver.computeQueueBudget(512) >= 4*(raw_cost + jpeg_cost));
+        assertTrue(ImageSaver.computeQueueBudget(512) <= 256L*1024*1024);
     }
 
     @Test
     public void testImageSaverRequestCost() {
         Log.d(TAG, "testImageSaverRequestCost");
 
-        assertTrue( ImageSaver.computeRequestCost(true, 1) > ImageSaver.computeRequestCost(false, 1));
-        assertEquals( ImageSaver.computeRequestCost(false, 3), 3*ImageSaver.computeRequestCost(false, 1));
+        assertTrue( ImageSaver.computeRequestCost(true, 1, 4000, 3000) > ImageSaver.computeRequestCost(false, 1, 4000, 3000));
+        assertEquals( ImageSaver.computeRequestCost(false, 3, 4000, 3000), 3*ImageSaver.computeRequestCost(false, 1, 4000, 3000));
+        assertEquals( ImageSaver.computeRequestCost(true, 3, 4000, 3000), 3*ImageSaver.computeRequestCost(true, 1, 4000, 3000));
+
+        // cost should scale with resolution
+        assertTrue( ImageSaver.computeRequestCost(false, 1, 16320, 12288) > 10*ImageSaver.computeRequestCost(false, 1, 4000, 3000));
+        assertTrue( ImageSaver.computeRequestCost(false, 1, 1600, 1200) < ImageSaver.computeRequestCost(false, 1, 4000, 3000));
+        // check we don't overflow for large sensors
+        assertTrue( ImageSaver.computeRequestCost(true, 20, 16320, 12288) > 0);
+
+        assertEquals( 0, ImageSaver.computeProcessingCost(0, 4000, 3000));
+        assertEquals( 3L*4000*3000*4, ImageSaver.computeProcessingCost(3, 4000, 3000));
 
+        // panorama input images are streamed, so the working set should grow much more slowly
+        // than the number of images
+        assertTrue( ImageSaver.computePanoramaWorkingBitmaps(20) > ImageSaver.computePanoramaWorkingBitmaps(2));
+        assertTrue( ImageSaver.computePanoramaWorkingBitmaps(20) < 20);
+    }
+
+    @Test
+    public void testImageSaverQueueWouldBlock() {
+        Log.d(TAG, "testImageSaverQueueWouldBlock");
+
+        final long mb = 1024*1024;
+        final long budget = 100*mb;
+        final long plenty = 1024*mb;
+
+        // never block if the queue is empty
+        assertFalse( ImageSaver.queueWouldBlock(0, 2*budget, 0, 0, budget, plenty, plenty) );
+        assertFalse( ImageSaver.queueWouldBlock(0, mb, 0, 2*plenty, budget, 0, 0) );
+
+        // budget
+        assertFalse( ImageSaver.queueWouldBlock(50*mb, 50*mb, 0, 0, budget, plenty, plenty) );
+        assertTrue( ImageSaver.queueWouldBlock(50*mb, 51*mb, 0, 0, budget, plenty, plenty) );
+
+        // heap headroom
+        assertFalse( ImageSaver.queueWouldBlock(10*mb, 10*mb, 0, 0, budget, 10*mb, plenty) );
+        assertTrue( ImageSaver.queueWouldBlock(10*mb, 10*mb, 0, 0, budget, 9*mb, plenty) );
+        // data that's already on the heap doesn't need more headroom
+        assertFalse( ImageSaver.queueWouldBlock(10*mb, 10*mb, 10*mb, 0, budget, 0, plenty) );
+        assertTrue( ImageSaver.queueWouldBlock(10*mb, 10*mb, 5*mb, 0, budget, 4*mb, plenty) );
+
+        // system headroom for processing
+        assertFalse( ImageSaver.queueWouldBlock(10*mb, 10*mb, 0, 200*mb, budget, plenty, 200*mb) );
+        assertTrue( ImageSaver.queueWouldBlock(10*mb, 10*mb, 0, 200*mb, budget, plenty, 199*mb) );
     }
 
     private static class float4 {
@@ -1064,4 +1153,2037 @@ public class UnitTest {
         checkCameraController2ZoomRatios(0.7f, 16.0f);
         checkCameraController2ZoomRatios(0.7f, 20.0f);
     }
+
+    @Test
+    public void testJavaHDRProcessor() throws HDRProcessorException {
+        Log.d(TAG, "testJavaHDRProcessor");
+
+        final int width = 200;
+        final int height = 150;
+        for(int n_images=2;n_images<=JavaHDRProcessor.max_images_c;n_images++) {
+            Log.d(TAG, "n_images: " + n_images);
+            int [][] images = JavaHDRBenchmark.createSyntheticImages(width, height, n_images);
+            for(HDRProcessor.TonemappingAlgorithm tonemapping_algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+                int [] output_single = new int[width*height];
+                int [] output_multi = new int[width*height];
+                new JavaHDRProcessor(new ForkJoinPool(1)).processHDR(images, width, height, null, null, tonemapping_algorithm, output_single);
+                new JavaHDRProcessor(new ForkJoinPool(4)).processHDR(images, width, height, null, null, tonemapping_algorithm, output_multi);
+                // splitting into tiles shouldn't affect the result
+                assertArrayEquals(output_single, output_multi);
+
+                // the synthetic scene gets brighter from left to right, so should the result
+                for(int y=0;y<height;y+=10) {
+                    int prev_value = -1;
+                    for(int x=0;x<width;x+=10) {
+                        int color = output_single[y*width+x];
+                        assertEquals(0xFF, (color >>> 24));
+                        int value = (color >> 8) & 0xFF;
+                        assertTrue(value + 1 >= prev_value);
+                        prev_value = value;
+                    }
+                }
+            }
+        }
+
+        // output may be the base image
+        int [][] images = JavaHDRBenchmark.createSyntheticImages(width, height, 3);
+        int [] output = new int[width*height];
+        new JavaHDRProcessor().processHDR(images, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, output);
+        int [] base_image = images[JavaHDRProcessor.getBaseIndex(3)];
+        new JavaHDRProcessor().processHDR(images, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, base_image);
+        assertArrayEquals(output, base_image);
+
+        // pixels that are offset out of bounds should fall back to the base image
+        images = JavaHDRBenchmark.createSyntheticImages(width, height, 3);
+        int [] offsets = new int[]{width/2, 0, -width/2};
+        new JavaHDRProcessor().processHDR(images, width, height, offsets, new int[3], HDRProcessor.default_tonemapping_algorithm_c, output);
+        for(int i=0;i<output.length;i++) {
+            assertEquals(0xFF, (output[i] >>> 24));
+        }
+
+        // as with process_hdr.rs, an out of bounds pixel should be replaced by the base pixel with the
+        // response of the middle image, wherever it is in a tile; use a scene that only varies
+        // vertically, so that the result in each row should only depend on which images are out of
+        // bounds (the top rows are bright, so the darker images are used from the start of the first
+        // tile)
+        final int offset_x = width/4;
+        for(int n_images=3;n_images<=4;n_images++) {
+            Log.d(TAG, "n_images: " + n_images);
+            int base_index = JavaHDRProcessor.getBaseIndex(n_images);
+            int [][] row_images = new int[n_images][];
+            int [] offsets_x = new int[n_images];
+            for(int i=0;i<n_images;i++) {
+                double exposure = Math.pow(2.0, -2.0 + 4.0*i/(double)(n_images-1));
+                row_images[i] = new int[width*height];
+                for(int y=0;y<height;y++) {
+                    int value = (int)Math.min(255.0, 255.0 * exposure * (0.95 - 0.9*y/(double)height) + 0.5);
+                    Arrays.fill(row_images[i], y*width, (y+1)*width, 0xFF000000 | (value << 16) | (value << 8) | value);
+                }
+                offsets_x[i] = i < base_index ? -offset_x : i > base_index ? offset_x : 0;
+            }
+            new JavaHDRProcessor(new ForkJoinPool(4)).processHDR(row_images, width, height, offsets_x, new int[n_images], HDRProcessor.default_tonemapping_algorithm_c, output);
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    int band_x = x < offset_x ? 0 : x < width-offset_x ? offset_x : width-offset_x;
+                    assertEquals("x " + x + " y " + y, output[y*width+band_x], output[y*width+x]);
+                }
+            }
+        }
+
+        try {
+            new JavaHDRProcessor().processHDR(new int[][]{images[0]}, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, output);
+            fail();
+        }
+        catch(HDRProcessorException e) {
+            assertEquals(HDRProcessorException.INVALID_N_IMAGES, e.getCode());
+        }
+        try {
+            new JavaHDRProcessor().processHDR(new int[][]{images[0], images[1], new int[width]}, width, height, null, null, HDRProcessor.default_tonemapping_algorithm_c, output);
+            fail();
+        }
+        catch(HDRProcessorException e) {
+            assertEquals(HDRProcessorException.UNEQUAL_SIZES, e.getCode());
+        }
+    }
+
+    /** Averages the supplied images with StreamingAvgProcessor, and returns the result.
+     */
+    private int [] streamingAvg(int [][] images, int width, int height, int strip_height, int [] offsets_x, int [] offsets_y) {
+        StreamingAvgProcessor streaming_avg = new StreamingAvgProcessor(width, height, strip_height);
+        int [] pixels = new int[width*streaming_avg.getMaxNewRows()];
+        for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+            System.arraycopy(images[0], streaming_avg.getStripY(strip)*width, pixels, 0, width*streaming_avg.getStripRows(strip));
+            streaming_avg.setReferenceStrip(strip, pixels);
+        }
+        for(int i=1;i<images.length;i++) {
+            for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+                int row_start = streaming_avg.getNewRowStart(strip, offsets_y[i]);
+                int row_stop = streaming_avg.getNewRowStop(strip, offsets_y[i]);
+                if( row_stop <= row_start )
+                    continue;
+                assertTrue(row_stop - row_start <= streaming_avg.getMaxNewRows());
+                System.arraycopy(images[i], row_start*width, pixels, 0, width*(row_stop-row_start));
+                streaming_avg.foldStrip(strip, pixels, offsets_x[i], offsets_y[i], i, 1000.0f, 8000.0f);
+            }
+        }
+        int [] result = new int[width*height];
+        for(int strip=0;strip<streaming_avg.getNStrips();strip++) {
+            int [] strip_pixels = new int[width*streaming_avg.getStripRows(strip)];
+            streaming_avg.copyStripToARGB(strip, strip_pixels);
+            System.arraycopy(strip_pixels, 0, result, streaming_avg.getStripY(strip)*width, strip_pixels.length);
+            streaming_avg.releaseStrip(strip);
+        }
+        return result;
+    }
+
+    @Test
+    public void testStreamingAvgProcessor() {
+        Log.d(TAG, "testStreamingAvgProcessor");
+
+        final int width = 60;
+        final int height = 45;
+        final int n_images = 4;
+        int [][] images = JavaHDRBenchmark.createSyntheticImages(width, height, 1);
+        int [][] burst = new int[n_images][];
+        for(int i=0;i<n_images;i++) {
+            burst[i] = images[0].clone();
+        }
+        int [] no_offsets = new int[n_images];
+
+        // averaging identical images should leave them unchanged
+        int [] result = streamingAvg(burst, width, height, 16, no_offsets, no_offsets);
+        assertArrayEquals(images[0], result);
+
+        // add noise to each image, and check that the result is closer to the original than the noisy images
+        Random random = new Random(0);
+        for(int i=0;i<n_images;i++) {
+            for(int j=0;j<width*height;j++) {
+                int color = images[0][j];
+                int g = (color >> 8) & 0xFF;
+                g = Math.max(0, Math.min(g + random.nextInt(9) - 4, 255));
+                burst[i][j] = (color & 0xFFFF00FF) | (g << 8);
+            }
+        }
+        int [] offsets_x = new int[]{0, 3, -2, 0};
+        int [] offsets_y = new int[]{0, -5, 7, 20};
+        result = streamingAvg(burst, width, height, 16, offsets_x, offsets_y);
+        for(int j=0;j<width*height;j++) {
+            assertEquals(0xFF, (result[j] >>> 24));
+        }
+
+        // the result shouldn't depend on the strip height
+        for(int strip_height : new int[]{1, 3, 7, height, 2*height}) {
+            Log.d(TAG, "strip_height: " + strip_height);
+            int [] result2 = streamingAvg(burst, width, height, strip_height, offsets_x, offsets_y);
+            assertArrayEquals(result, result2);
+        }
+
+        // without offsets, averaging should reduce noise
+        result = streamingAvg(burst, width, height, 16, no_offsets, no_offsets);
+        long error_avg = 0, error_single = 0;
+        for(int j=0;j<width*height;j++) {
+            int g_orig = (images[0][j] >> 8) & 0xFF;
+            int g_avg = (result[j] >> 8) & 0xFF;
+            int g_single = (burst[0][j] >> 8) & 0xFF;
+            error_avg += (g_avg - g_orig)*(g_avg - g_orig);
+            error_single += (g_single - g_orig)*(g_single - g_orig);
+        }
+        Log.d(TAG, "error_avg: " + error_avg);
+        Log.d(TAG, "error_single: " + error_single);
+        assertTrue(error_avg < error_single);
+    }
+
+    /** Creates a YUV_420_888 image with padded rows and interleaved chroma (pixel stride of 2), as
+     *  commonly returned by camera devices.
+     */
+    private static PreviewYuvAnalyzer.YuvPlanes createYuvPlanes(int [] y_values, int width, int height, int u_value, int v_value) {
+        final int y_row_stride = width + 8;
+        final int uv_row_stride = width + 8;
+        ByteBuffer y_buffer = ByteBuffer.allocateDirect(y_row_stride*height);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                y_buffer.put(y*y_row_stride + x, (byte)y_values[y*width+x]);
+            }
+        }
+        ByteBuffer uv_buffer = ByteBuffer.allocateDirect(uv_row_stride*height/2);
+        for(int y=0;y<height/2;y++) {
+            for(int x=0;x<width/2;x++) {
+                uv_buffer.put(y*uv_row_stride + 2*x, (byte)u_value);
+                uv_buffer.put(y*uv_row_stride + 2*x + 1, (byte)v_value);
+            }
+        }
+        ByteBuffer u_buffer = uv_buffer.duplicate();
+        uv_buffer.position(1);
+        ByteBuffer v_buffer = uv_buffer.slice();
+        return new PreviewYuvAnalyzer.YuvPlanes(y_buffer, u_buffer, v_buffer, y_row_stride, 1, uv_row_stride, 2, width, height);
+    }
+
+    @Test
+    public void testPreviewYuvAnalyzer() {
+        Log.d(TAG, "testPreviewYuvAnalyzer");
+
+        final int width = 16;
+        final int height = 8;
+        int [] y_values = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            y_values[i] = i % 256;
+        }
+
+        // grey image: luminance and value histograms should match the luma values
+        PreviewYuvAnalyzer.YuvPlanes planes = createYuvPlanes(y_values, width, height, 128, 128);
+        int [] histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE);
+        assertEquals(256, histogram.length);
+        for(int i=0;i<256;i++) {
+            assertEquals(i < width*height ? 1 : 0, histogram[i]);
+        }
+        histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_VALUE);
+        for(int i=0;i<256;i++) {
+            assertEquals(i < width*height ? 1 : 0, histogram[i]);
+        }
+        histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_INTENSITY);
+        for(int i=0;i<256;i++) {
+            assertEquals(i < width*height ? 1 : 0, histogram[i]);
+        }
+        histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_RGB);
+        assertEquals(256*3, histogram.length);
+        for(int i=0;i<256;i++) {
+            assertEquals(histogram[i], histogram[256+i]);
+            assertEquals(histogram[i], histogram[512+i]);
+        }
+
+        // red chroma: red should saturate, blue is unaffected, green is reduced
+        int [] red_y_values = new int[width*height];
+        Arrays.fill(red_y_values, 128);
+        planes = createYuvPlanes(red_y_values, width, height, 128, 255);
+        histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_RGB);
+        assertEquals(width*height, histogram[255]); // red
+        assertEquals(width*height, histogram[512+128]); // blue
+        for(int i=256;i<256+36;i++) {
+            assertEquals(0, histogram[i]); // green
+        }
+        for(int i=256+39;i<512;i++) {
+            assertEquals(0, histogram[i]); // green
+        }
+        histogram = PreviewYuvAnalyzer.computeHistogram(planes, Preview.HistogramType.HISTOGRAM_TYPE_VALUE);
+        assertEquals(width*height, histogram[255]);
+
+        // zebra stripes: only the top-left pixel is bright
+        int [] bright_y_values = new int[width*height];
+        bright_y_values[0] = 255;
+        planes = createYuvPlanes(bright_y_values, width, height, 128, 128);
+        final int foreground = 0xff000000;
+        final int background = 0xffffffff;
+        assertEquals(height, PreviewYuvAnalyzer.getOutputWidth(planes, 90));
+        assertEquals(width, PreviewYuvAnalyzer.getOutputHeight(planes, 90));
+        int [] output = new int[width*height];
+        PreviewYuvAnalyzer.computeZebraStripes(planes, 250, foreground, background, 4, 0, false, output);
+        assertEquals(background, output[0]);
+        for(int i=1;i<width*height;i++) {
+            assertEquals(0, output[i]);
+        }
+        // rotating clockwise by 90 degrees moves the top-left to the top-right (stripes are computed in
+        // the output orientation, so this is now on a foreground stripe)
+        PreviewYuvAnalyzer.computeZebraStripes(planes, 250, foreground, background, 4, 90, false, output);
+        assertEquals(foreground, output[height-1]);
+        // mirroring then moves it back to the top-left
+        PreviewYuvAnalyzer.computeZebraStripes(planes, 250, foreground, background, 4, 90, true, output);
+        assertEquals(background, output[0]);
+        PreviewYuvAnalyzer.computeZebraStripes(planes, 250, foreground, background, 4, 180, false, output);
+        assertEquals(foreground, output[width*height-1]);
+        PreviewYuvAnalyzer.computeZebraStripes(planes, 250, foreground, background, 4, 270, false, output);
+        assertEquals(foreground, output[(width-1)*height]);
+        int count = 0;
+        for(int value : output) {
+            if( value != 0 )
+                count++;
+        }
+        assertEquals(1, count);
+
+        // focus peaking: a vertical edge should be detected, a flat region shouldn't
+        int [] edge_y_values = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=width/2;x<width;x++) {
+                edge_y_values[y*width+x] = 255;
+            }
+        }
+        planes = createYuvPlanes(edge_y_values, width, height, 128, 128);
+        boolean [] edges = new boolean[width*height];
+        PreviewYuvAnalyzer.computeFocusPeaking(planes, 0, false, output, edges);
+        for(int y=1;y<height-1;y++) {
+            assertEquals(0xFFFFFFFF, output[y*width + width/2]);
+            assertEquals(0xFFFFFFFF, output[y*width + width/2 - 1]);
+            assertEquals(0, output[y*width + 2]);
+            assertEquals(0, output[y*width + width - 3]);
+        }
+    }
+
+    @Test
+    public void testLatestMediaIndex() {
+        Log.d(TAG, "testLatestMediaIndex");
+
+        LatestMediaIndex index = new LatestMediaIndex();
+        assertNull(index.get("mediastore:123"));
+        LatestMediaIndex.Entry entry0 = new LatestMediaIndex.Entry("mediastore:123", "content://media/external/images/media/45", true, false, 45);
+        LatestMediaIndex.Entry entry1 = new LatestMediaIndex.Entry("saf:content://com.android.externalstorage.documents/tree/primary%3ADCIM%2FOpenCamera",
+                "content://com.android.externalstorage.documents/tree/primary%3ADCIM%2FOpenCamera/document/primary%3ADCIM%2FOpenCamera%2FVID_1.mp4", false, true, 1600000000000L);
+        index.put(entry0);
+        index.put(entry1);
+        assertEquals(entry0, index.get(entry0.location));
+        assertEquals(entry1, index.get(entry1.location));
+
+        // round trip
+        LatestMediaIndex index2 = LatestMediaIndex.deserialize(index.serialize());
+        assertEquals(2, index2.size());
+        assertEquals(entry0, index2.get(entry0.location));
+        assertEquals(entry1, index2.get(entry1.location));
+        assertEquals(index.getLocations(), index2.getLocations());
+
+        // replacing an entry makes it the most recently used
+        LatestMediaIndex.Entry entry0b = new LatestMediaIndex.Entry("mediastore:123", "content://media/external/images/media/46", true, false, 46);
+        index.put(entry0b);
+        assertEquals(2, index.size());
+        assertEquals(entry0b, index.get(entry0.location));
+        assertEquals(entry0.location, index.getLocations().get(1));
+
+        // entries that can't be serialised are rejected
+        index.put(new LatestMediaIndex.Entry("mediastore:bad\tlocation", "content://media/external/images/media/1", true, false, 1));
+        assertEquals(2, index.size());
+
+        // least recently used entries are discarded
+        for(int i=0;i<10;i++) {
+            index.put(new LatestMediaIndex.Entry("mediastore:" + i, "content://media/external/images/media/" + i, true, false, i));
+        }
+        List<String> locations = index.getLocations();
+        assertEquals(6, locations.size());
+        assertEquals("mediastore:4", locations.get(0));
+        assertEquals("mediastore:9", locations.get(5));
+        assertNull(index.get(entry0.location));
+
+        // malformed input is skipped
+        index2 = LatestMediaIndex.deserialize("mediastore:1\tcontent://media/external/images/media/1\t1\t0\tnotanumber\nbadline\n" + entry0.location + "\t" + entry0.uri + "\t1\t0\t45\n");
+        assertEquals(1, index2.size());
+        assertEquals(entry0, index2.get(entry0.location));
+        assertEquals(0, LatestMediaIndex.deserialize(null).size());
+        assertEquals(0, LatestMediaIndex.deserialize("").size());
+    }
+
+    @Test
+    public void testFeatureMatcher() {
+        Log.d(TAG, "testFeatureMatcher");
+
+        final int feature_descriptor_radius = 3;
+        final int width = 400;
+        final int height = 300;
+        final int max_match_dist2 = width*width + (height/16)*(height/16);
+        Random random = new Random(0);
+        FeatureMatcher matcher = new FeatureMatcher(feature_descriptor_radius, new ForkJoinPool(4));
+        FeatureMatcher single_matcher = new FeatureMatcher(feature_descriptor_radius, new ForkJoinPool(1));
+        final int descriptor_size = matcher.getDescriptorSize();
+        assertEquals(49, descriptor_size);
+
+        // run twice with different sizes, to check that reusing the buffers is okay
+        for(int n_features : new int[]{150, 60}) {
+            int [][] xs = new int[2][n_features];
+            int [][] ys = new int[2][n_features];
+            int [][] patches = new int[2][n_features*descriptor_size];
+            for(int i=0;i<2;i++) {
+                for(int j=0;j<n_features;j++) {
+                    xs[i][j] = random.nextInt(width);
+                    ys[i][j] = random.nextInt(height);
+                }
+                for(int j=0;j<patches[i].length;j++) {
+                    patches[i][j] = 0xFF000000 | random.nextInt(0x1000000);
+                }
+            }
+            // include a flat descriptor
+            Arrays.fill(patches[1], 0, descriptor_size, 0xFF808080);
+
+            // reference: compare all pairs
+            List<int []> expected_pairs = new ArrayList<>();
+            List<Float> expected_distances = new ArrayList<>();
+            for(int i=0;i<n_features;i++) {
+                for(int j=0;j<n_features;j++) {
+                    int dx = xs[1][j] - xs[0][i];
+                    int dy = ys[1][j] - ys[0][i];
+                    if( dx*dx + dy*dy >= max_match_dist2 )
+                        continue;
+                    float fsum = 0, gsum = 0;
+                    float f2sum = 0, g2sum = 0;
+                    float fgsum = 0;
+                    for(int k=0;k<descriptor_size;k++) {
+                        int pixel0 = patches[0][i*descriptor_size+k];
+                        int pixel1 = patches[1][j*descriptor_size+k];
+                        int value0 = (int)(0.3*((pixel0 >> 16) & 0xFF) + 0.59*((pixel0 >> 8) & 0xFF) + 0.11*(pixel0 & 0xFF));
+                        int value1 = (int)(0.3*((pixel1 >> 16) & 0xFF) + 0.59*((pixel1 >> 8) & 0xFF) + 0.11*(pixel1 & 0xFF));
+                        fsum += value0;
+                        f2sum += value0*value0;
+                        gsum += value1;
+                        g2sum += value1*value1;
+                        fgsum += value0*value1;
+                    }
+                    float fden = descriptor_size*f2sum - fsum*fsum;
+                    float f_recip = fden==0 ? 0.0f : 1/ fden;
+                    float gden = descriptor_size*g2sum - gsum*gsum;
+                    float g_recip = gden==0 ? 0.0f : 1/ gden;
+                    float fg_corr = descriptor_size*fgsum-fsum*gsum;
+                    expected_pairs.add(new int[]{i, j});
+                    expected_distances.add(1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip)));
+                }
+            }
+
+            for(FeatureMatcher this_matcher : new FeatureMatcher[]{matcher, single_matcher}) {
+                this_matcher.setDescriptors(0, patches[0], n_features);
+                this_matcher.setDescriptors(1, patches[1], n_features);
+                int n_candidates = this_matcher.findCandidates(xs[0], ys[0], n_features, xs[1], ys[1], n_features, max_match_dist2);
+                assertEquals(expected_pairs.size(), n_candidates);
+                this_matcher.computeDistances();
+                for(int i=0;i<n_candidates;i++) {
+                    assertEquals(expected_pairs.get(i)[0], this_matcher.getCandidateIndex0(i));
+                    assertEquals(expected_pairs.get(i)[1], this_matcher.getCandidateIndex1(i));
+                    assertEquals(expected_distances.get(i), this_matcher.getCandidateDistance(i), 0.0f);
+                    if( this_matcher.getCandidateIndex1(i) == 0 ) {
+                        assertEquals(1.0f, this_matcher.getCandidateDistance(i), 0.0f);
+                    }
+                }
+            }
+
+            // a small match distance only gives nearby candidates
+            int n_candidates = matcher.findCandidates(xs[0], ys[0], n_features, xs[1], ys[1], n_features, 100);
+            for(int i=0;i<n_candidates;i++) {
+                int dx = xs[1][matcher.getCandidateIndex1(i)] - xs[0][matcher.getCandidateIndex0(i)];
+                int dy = ys[1][matcher.getCandidateIndex1(i)] - ys[0][matcher.getCandidateIndex0(i)];
+                assertTrue(dx*dx + dy*dy < 100);
+            }
+        }
+
+        assertEquals(0, matcher.findCandidates(new int[0], new int[0], 0, new int[]{1}, new int[]{1}, 1, 100));
+    }
+
+    @Test
+    public void testCaptureLatencyTracker() {
+        Log.d(TAG, "testCaptureLatencyTracker");
+
+        CaptureLatencyTracker tracker = new CaptureLatencyTracker();
+        assertEquals(0, tracker.getNSamples(CaptureLatencyTracker.Metric.SHUTTER_LAG));
+        assertEquals(-1.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHUTTER_LAG, 50.0f), 1.0e-5);
+        // no shot started yet
+        assertEquals(-1, tracker.recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED, 1000000));
+
+        final long ms = 1000000;
+        // shutter lags of 10, 20, ..., 100ms
+        for(int i=0;i<10;i++) {
+            long start = (i+1)*1000*ms;
+            long shot_id = tracker.startShot(start);
+            assertEquals(i, shot_id);
+            assertEquals(shot_id, tracker.recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED, start + (i+1)*10*ms));
+            // only the first event of a stage is recorded
+            assertEquals(shot_id, tracker.recordStage(CaptureLatencyTracker.STAGE_CAPTURE_STARTED, start + 500*ms));
+        }
+        assertEquals(10, tracker.getNSamples(CaptureLatencyTracker.Metric.SHUTTER_LAG));
+        assertEquals(0, tracker.getNSamples(CaptureLatencyTracker.Metric.SHOT_TO_SHOT));
+        assertEquals(50.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHUTTER_LAG, 50.0f), 1.0e-3);
+        assertEquals(90.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHUTTER_LAG, 90.0f), 1.0e-3);
+        assertEquals(100.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHUTTER_LAG, 100.0f), 1.0e-3);
+        assertEquals(10.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHUTTER_LAG, 0.0f), 1.0e-3);
+
+        // save stages recorded by id, after another shot has started
+        long queued_id = tracker.recordStage(CaptureLatencyTracker.STAGE_QUEUED, 20000*ms);
+        assertEquals(9, queued_id);
+        tracker.startShot(21000*ms);
+        tracker.recordShotStage(queued_id, CaptureLatencyTracker.STAGE_SAVE_STARTED, 20005*ms);
+        tracker.recordShotStage(queued_id, CaptureLatencyTracker.STAGE_SAVED, 20300*ms);
+        tracker.recordShotStage(-1, CaptureLatencyTracker.STAGE_SAVED, 20400*ms); // ignored
+        assertEquals(1, tracker.getNSamples(CaptureLatencyTracker.Metric.QUEUE_WAIT));
+        assertEquals(5.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.QUEUE_WAIT, 50.0f), 1.0e-3);
+        assertEquals(300.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SAVE_LATENCY, 50.0f), 1.0e-3);
+
+        // older shots are evicted from the ring buffer
+        for(int i=0;i<2*CaptureLatencyTracker.max_shots_c;i++) {
+            tracker.startShot(100000*ms + i*1000*ms);
+            tracker.recordStage(CaptureLatencyTracker.STAGE_READY, 100000*ms + i*1000*ms + 200*ms);
+        }
+        assertEquals(0, tracker.getNSamples(CaptureLatencyTracker.Metric.SHUTTER_LAG));
+        assertEquals(CaptureLatencyTracker.max_shots_c, tracker.getNSamples(CaptureLatencyTracker.Metric.SHOT_TO_SHOT));
+        assertEquals(200.0f, tracker.getPercentileMs(CaptureLatencyTracker.Metric.SHOT_TO_SHOT, 90.0f), 1.0e-3);
+        // recording against an evicted shot is ignored
+        tracker.recordShotStage(queued_id, CaptureLatencyTracker.STAGE_SAVE_STARTED, 20005*ms);
+        assertEquals(0, tracker.getNSamples(CaptureLatencyTracker.Metric.QUEUE_WAIT));
+
+        tracker.clear();
+        assertEquals(0, tracker.getNSamples(CaptureLatencyTracker.Metric.SHOT_TO_SHOT));
+        assertEquals(0, tracker.startShot(1));
+    }
+
+    /** Returns the concatenation of the arrays.
+     */
+    private static byte [] concatBytes(byte [] ... arrays) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for(byte [] array : arrays) {
+            stream.write(array, 0, array.length);
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testJpegExifSplicer() throws IOException {
+        Log.d(TAG, "testJpegExifSplicer");
+
+        final byte ff = (byte)0xFF;
+        byte [] soi = new byte[]{ff, (byte)0xD8};
+        byte [] app1 = new byte[]{ff, (byte)0xE1, 0, 6, 'E', 'x', 'i', 'f'};
+        byte [] dqt = new byte[]{ff, ff, (byte)0xDB, 0, 4, 1, 2}; // with a fill byte
+        byte [] sof = new byte[]{ff, (byte)0xC0, 0, 3, 9};
+        byte [] sos = new byte[]{ff, (byte)0xDA, 0, 2};
+        byte [] scan = new byte[]{5, ff, 0, 6, ff, (byte)0xD0, 7}; // with stuffed byte and restart marker
+        byte [] eoi = new byte[]{ff, (byte)0xD9};
+        byte [] trailer = new byte[]{1, 2, 3}; // data after the end of image should be kept
+
+        byte [] jpeg = concatBytes(soi, app1, dqt, sof, sos, scan, eoi, trailer);
+        JpegExifSplicer splicer = new JpegExifSplicer(jpeg);
+        int header_length = soi.length + app1.length + dqt.length + sof.length;
+        assertEquals(header_length, splicer.getScanStart());
+        assertArrayEquals(concatBytes(soi, app1, dqt, sof, eoi), splicer.getHeader());
+
+        // unmodified
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        splicer.writeTo(output);
+        assertArrayEquals(jpeg, output.toByteArray());
+        assertEquals(jpeg.length, splicer.getOutputLength());
+
+        // replace with a larger APP1 segment
+        byte [] new_app1 = new byte[]{ff, (byte)0xE1, 0, 8, 'E', 'x', 'i', 'f', 0, 0};
+        byte [] new_header = concatBytes(soi, new_app1, dqt, sof, eoi, new byte[]{9, 9}); // length excludes the extra bytes
+        splicer.setHeader(new_header, new_header.length-2);
+        output = new ByteArrayOutputStream();
+        splicer.writeTo(output);
+        byte [] expected = concatBytes(soi, new_app1, dqt, sof, sos, scan, eoi, trailer);
+        assertArrayEquals(expected, output.toByteArray());
+        assertEquals(expected.length, splicer.getOutputLength());
+
+        // new header must end with EOI rather than contain image data
+        try {
+            splicer.setHeader(jpeg, jpeg.length);
+            fail();
+        }
+        catch(IOException e) {
+            // expected
+        }
+        // invalid JPEGs
+        byte [][] invalid_jpegs = new byte[][] {
+                new byte[0],
+                concatBytes(new byte[]{ff, (byte)0xD9}, app1, sof, sos, scan), // no SOI
+                concatBytes(soi, app1, sof, eoi), // no image data
+                concatBytes(soi, new byte[]{ff, (byte)0xE1, 0, 100}, sos, scan), // truncated segment
+                concatBytes(soi, new byte[]{ff, (byte)0xE1, 0, 1}, sos, scan), // invalid segment length
+                concatBytes(soi, new byte[]{0, 0}, sos, scan), // missing marker
+        };
+        for(byte [] invalid_jpeg : invalid_jpegs) {
+            try {
+                new JpegExifSplicer(invalid_jpeg);
+                fail();
+            }
+            catch(IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testThumbnailEmbeddedSampleSize() {
+        Log.d(TAG, "testThumbnailEmbeddedSampleSize");
+
+        // 4000x3000 image with 512x384 embedded thumbnail
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4000, 3000, 1)); // too small
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4000, 3000, 4)); // too small
+        assertEquals(1, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4000, 3000, 8)); // target width 500
+        assertEquals(2, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4000, 3000, 16)); // target width 250
+        assertEquals(4, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4000, 3000, 32)); // target width 125
+        assertEquals(1, ThumbnailProvider.getEmbeddedSampleSize(500, 375, 4000, 3000, 8)); // exactly the target width
+
+        // small differences in aspect ratio due to rounding are allowed
+        assertEquals(1, ThumbnailProvider.getEmbeddedSampleSize(512, 288, 4032, 2268, 8));
+        assertEquals(1, ThumbnailProvider.getEmbeddedSampleSize(512, 289, 4032, 2268, 8));
+        // but not a different aspect ratio, e.g., 4:3 thumbnail for 16:9 image
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(512, 384, 4032, 2268, 16));
+        // or portrait thumbnail for landscape image
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(384, 512, 4000, 3000, 16));
+
+        // invalid sizes
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(0, 0, 4000, 3000, 16));
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(-1, -1, 4000, 3000, 16));
+        assertEquals(-1, ThumbnailProvider.getEmbeddedSampleSize(512, 384, -1, -1, 16));
+    }
+
+    @Test
+    public void testSubtitleWriter() {
+        Log.d(TAG, "testSubtitleWriter");
+
+        StringBuilder builder = new StringBuilder();
+        TextFormatter.appendTimeMS(builder, 3723004);
+        assertEquals("01:02:03,004", builder.toString());
+
+        SimpleDateFormat time_format = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+        SubtitleWriter writer = new SubtitleWriter(4, 1000, "preference_stamp_dateformat_none", "preference_stamp_timeformat_24hour",
+                "preference_stamp_gpsformat_none", "preference_units_distance_m", null);
+        assertEquals(1000, writer.getSampleInterval());
+        assertEquals(0, writer.getNSamples());
+        assertEquals("", writer.formatSamples());
+
+        long clock_time = 1600000000000L; // a multiple of 1000
+        // first sample is clamped to start from 0
+        assertFalse(writer.addSample(200, clock_time + 500, null, false, 0.0));
+        assertFalse(writer.addSample(1200, clock_time + 1500, null, false, 0.0));
+        assertEquals(2, writer.getNSamples());
+        String expected = "1\n00:00:00,000 --> 00:00:00,699\n" + time_format.format(new Date(clock_time + 500)) + "\n\n" +
+                "2\n00:00:00,700 --> 00:00:01,699\n" + time_format.format(new Date(clock_time + 1500)) + "\n\n";
+        assertEquals(expected, writer.formatSamples());
+        assertEquals(0, writer.getNSamples());
+
+        // numbering continues from the previous batch; if the buffer fills, the oldest samples are discarded
+        for(int i=0;i<6;i++) {
+            boolean full = writer.addSample(2200 + i*1000, clock_time + 2500 + i*1000, null, false, 0.0);
+            assertEquals(i >= 3, full);
+        }
+        assertEquals(4, writer.getNSamples());
+        String entries = writer.formatSamples();
+        assertTrue(entries.startsWith("3\n00:00:03,700 --> 00:00:04,699\n" + time_format.format(new Date(clock_time + 4500)) + "\n\n"));
+        assertTrue(entries.endsWith("6\n00:00:06,700 --> 00:00:07,699\n" + time_format.format(new Date(clock_time + 7500)) + "\n\n"));
+
+        // samples with no text are skipped
+        SubtitleWriter empty_writer = new SubtitleWriter(4, 1000, "preference_stamp_dateformat_none", "preference_stamp_timeformat_none",
+                "preference_stamp_gpsformat_none", "preference_units_distance_m", null);
+        empty_writer.addSample(0, clock_time, null, false, 0.0);
+        assertEquals("", empty_writer.formatSamples());
+    }
+
+    /** Appends synthesised audio to the fixture.
+     * @param type 0 for white noise, 1 for low frequency noise (like wind), 2 for a harmonic
+     *             tone (like voice).
+     * @param decay_ms If positive, the amplitude decays exponentially with this time constant.
+     */
+    private static void addAudio(List<Short> fixture, Random random, int type, double amplitude, int duration_ms, double decay_ms) {
+        final int sample_rate = 8000;
+        int n_samples = (duration_ms*sample_rate)/1000;
+        double lowpass = 0.0;
+        double lowpass_alpha = 1.0 - Math.exp(-2.0*Math.PI*100.0/sample_rate); // 100Hz cutoff
+        for(int i=0;i<n_samples;i++) {
+            double t = i/(double)sample_rate;
+            double scale = decay_ms > 0.0 ? Math.exp(-1000.0*t/decay_ms) : 1.0;
+            double value;
+            if( type == 0 ) {
+                value = random.nextGaussian();
+            }
+            else if( type == 1 ) {
+                lowpass += lowpass_alpha*(random.nextGaussian() - lowpass);
+                value = lowpass*4.0; // compensate approximately for the reduced level
+            }
+            else {
+                value = 0.0;
+                for(int h=2;h<=20;h++) {
+                    value += Math.sin(2.0*Math.PI*150.0*h*t)/Math.sqrt(19.0/2.0);
+                }
+            }
+            value = Math.max(-32768.0, Math.min(32767.0, amplitude*scale*value));
+            fixture.add((short)value);
+        }
+    }
+
+    private static short [] toShortArray(List<Short> fixture) {
+        short [] result = new short[fixture.size()];
+        for(int i=0;i<result.length;i++)
+            result[i] = fixture.get(i);
+        return result;
+    }
+
+    /** Returns the events detected in the audio, supplied in chunks of chunk_size samples.
+     */
+    private static List<Integer> detectAudioEvents(AudioTriggerDetector detector, short [] audio, int chunk_size) {
+        List<Integer> events = new ArrayList<>();
+        for(int offset=0;offset<audio.length;offset+=chunk_size) {
+            int event = detector.process(audio, offset, Math.min(chunk_size, audio.length-offset));
+            if( event != AudioTriggerDetector.EVENT_NONE )
+                events.add(event);
+        }
+        return events;
+    }
+
+    @Test
+    public void testAudioTriggerDetector() {
+        Log.d(TAG, "testAudioTriggerDetector");
+
+        final double background = 50.0;
+        Random random = new Random(1234);
+
+        // a clap: short burst of broadband noise
+        List<Short> fixture = new ArrayList<>();
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        addAudio(fixture, random, 0, 8000.0, 60, 15.0);
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        short [] clap = toShortArray(fixture);
+
+        AudioTriggerDetector detector = new AudioTriggerDetector(8000, 256);
+        detector.setBand(300.0f, 3400.0f, 0.5f);
+        assertEquals(Collections.singletonList(AudioTriggerDetector.EVENT_CLAP), detectAudioEvents(detector, clap, clap.length));
+        assertFalse(detector.isLoud());
+        assertEquals(background, detector.getNoiseFloor(), 0.2*background);
+        assertTrue(detector.getEventPeak() > 4000.0f);
+        assertTrue(detector.getEventDurationMs() <= 200);
+        // results don't depend on how the audio is split into buffers
+        detector.reset();
+        assertEquals(Collections.singletonList(AudioTriggerDetector.EVENT_CLAP), detectAudioEvents(detector, clap, 100));
+        detector.reset();
+        assertEquals(Collections.singletonList(AudioTriggerDetector.EVENT_CLAP), detectAudioEvents(detector, clap, 1000));
+
+        // a minimum rise above the noise floor larger than the clap
+        detector.reset();
+        detector.setMinRise(10000.0f);
+        assertEquals(0, detectAudioEvents(detector, clap, 640).size());
+        detector.setMinRise(0.0f);
+
+        // voice: longer harmonic sound
+        fixture.clear();
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        addAudio(fixture, random, 2, 2000.0, 600, 0.0);
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        short [] voice = toShortArray(fixture);
+        detector.reset();
+        assertEquals(Collections.singletonList(AudioTriggerDetector.EVENT_VOICE), detectAudioEvents(detector, voice, 640));
+        assertTrue(detector.getBandRatio() > 0.5f);
+        assertEquals(600, detector.getEventDurationMs(), 64);
+
+        // wind: a loud gust of low frequency noise is rejected by the band energy detector
+        fixture.clear();
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        addAudio(fixture, random, 1, 3000.0, 500, 0.0);
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        short [] wind = toShortArray(fixture);
+        detector.reset();
+        assertEquals(0, detectAudioEvents(detector, wind, 640).size());
+        // but without the band energy detector it would trigger
+        detector.reset();
+        detector.clearBand();
+        assertEquals(1, detectAudioEvents(detector, wind, 640).size());
+        assertEquals(1.0f, detector.getBandRatio(), 1.0e-5f);
+        detector.setBand(300.0f, 3400.0f, 0.5f);
+
+        // background noise that gets louder slowly is followed by the noise floor
+        fixture.clear();
+        for(int i=0;i<50;i++) {
+            addAudio(fixture, random, 0, background + i*9.0, 100, 0.0);
+        }
+        short [] rising = toShortArray(fixture);
+        detector.reset();
+        assertEquals(0, detectAudioEvents(detector, rising, 640).size());
+        assertTrue(detector.getNoiseFloor() > 200.0f);
+
+        // a sustained loud sound becomes the new noise floor, rather than triggering
+        fixture.clear();
+        addAudio(fixture, random, 0, background, 1000, 0.0);
+        addAudio(fixture, random, 0, 1000.0, 5000, 0.0);
+        short [] sustained = toShortArray(fixture);
+        detector.reset();
+        assertEquals(0, detectAudioEvents(detector, sustained, 640).size());
+        assertFalse(detector.isLoud());
+        assertEquals(1000.0, detector.getNoiseFloor(), 300.0);
+        // and a clap over this background is still detected
+        fixture.clear();
+        addAudio(fixture, random, 0, 20000.0, 60, 15.0);
+        addAudio(fixture, random, 0, 1000.0, 1000, 0.0);
+        assertEquals(Collections.singletonList(AudioTriggerDetector.EVENT_CLAP), detectAudioEvents(detector, toShortArray(fixture), 640));
+    }
+
+    @Test
+    public void testMotionTrace() throws IOException {
+        Log.d(TAG, "testMotionTrace");
+
+        MotionTrace trace = new MotionTrace(4, 2);
+        trace.addSample(MotionTrace.TYPE_GYRO, 1000L, 0.1f, 0.2f, 0.3f);
+        trace.addSample(MotionTrace.TYPE_ACCEL, 2000L, 1.0f, 2.0f, 9.8f);
+        trace.addFrame(1500L, false);
+        assertEquals(2, trace.getNSamples());
+        assertEquals(1, trace.getNFrames());
+        assertEquals(0, trace.getNLost());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(output);
+        MotionTrace.writeHeader(stream, MotionTrace.FLAG_FRAME_TIMESTAMP_REALTIME);
+        trace.drainTo(stream);
+        assertEquals(0, trace.getNSamples());
+        assertEquals(0, trace.getNFrames());
+
+        // fill beyond capacity, so the oldest samples and frames are lost
+        for(int i=0;i<6;i++) {
+            trace.addSample(MotionTrace.TYPE_GYRO, 3000L + i, i, 0.0f, 0.0f);
+        }
+        for(int i=0;i<3;i++) {
+            trace.addFrame(4000L + i, true);
+        }
+        assertEquals(4, trace.getNSamples());
+        assertEquals(2, trace.getNFrames());
+        assertEquals(3, trace.getNLost());
+        trace.drainTo(stream);
+        stream.flush();
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        byte [] magic = new byte[4];
+        input.readFully(magic);
+        assertEquals("OCMT", new String(magic, "US-ASCII"));
+        assertEquals(MotionTrace.VERSION, input.readInt());
+        assertEquals(MotionTrace.FLAG_FRAME_TIMESTAMP_REALTIME, input.readInt());
+
+        assertEquals(MotionTrace.TYPE_GYRO, input.readByte());
+        assertEquals(1000L, input.readLong());
+        assertEquals(0.1f, input.readFloat(), 0.0f);
+        assertEquals(0.2f, input.readFloat(), 0.0f);
+        assertEquals(0.3f, input.readFloat(), 0.0f);
+        assertEquals(MotionTrace.TYPE_ACCEL, input.readByte());
+        assertEquals(2000L, input.readLong());
+        assertEquals(1.0f, input.readFloat(), 0.0f);
+        assertEquals(2.0f, input.readFloat(), 0.0f);
+        assertEquals(9.8f, input.readFloat(), 0.0f);
+        assertEquals(MotionTrace.TYPE_FRAME, input.readByte());
+        assertEquals(1500L, input.readLong());
+
+        for(int i=2;i<6;i++) {
+            assertEquals(MotionTrace.TYPE_GYRO, input.readByte());
+            assertEquals(3000L + i, input.readLong());
+            assertEquals(i, input.readFloat(), 0.0f);
+            assertEquals(0.0f, input.readFloat(), 0.0f);
+            assertEquals(0.0f, input.readFloat(), 0.0f);
+        }
+        for(int i=1;i<3;i++) {
+            assertEquals(MotionTrace.TYPE_PHOTO_FRAME, input.readByte());
+            assertEquals(4000L + i, input.readLong());
+        }
+        assertEquals(-1, input.read());
+    }
+
+    /** Tests that MotionTrace.pruneTraces() deletes only the oldest motion traces.
+     */
+    @Test
+    public void testMotionTracePrune() throws IOException {
+        Log.d(TAG, "testMotionTracePrune");
+
+        File folder = File.createTempFile("motion", null);
+        assertTrue(folder.delete());
+        assertTrue(folder.mkdir());
+        try {
+            File [] traces = new File[5];
+            for(int i=0;i<traces.length;i++) {
+                traces[i] = new File(folder, "VID_" + i + ".motion");
+                assertTrue(traces[i].createNewFile());
+                // written out of order, so the order depends on the modified time rather than the name
+                assertTrue(traces[i].setLastModified(1000000000000L + 1000L*((i*3) % traces.length)));
+            }
+            File other = new File(folder, "other.txt");
+            assertTrue(other.createNewFile());
+            assertTrue(other.setLastModified(1000L));
+
+            assertEquals(0, MotionTrace.pruneTraces(folder, 5));
+            assertEquals(2, MotionTrace.pruneTraces(folder, 3));
+            // modified times in seconds are 0, 3, 1, 4, 2, so the traces with times 0 and 1 are deleted
+            assertFalse(traces[0].exists());
+            assertTrue(traces[1].exists());
+            assertFalse(traces[2].exists());
+            assertTrue(traces[3].exists());
+            assertTrue(traces[4].exists());
+            assertTrue(other.exists());
+
+            assertEquals(3, MotionTrace.pruneTraces(folder, 0));
+            assertTrue(other.exists());
+        }
+        finally {
+            File [] files = folder.listFiles();
+            if( files != null ) {
+                for(File file : files) {
+                    file.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testOrientationIntegrator() {
+        Log.d(TAG, "testOrientationIntegrator");
+
+        OrientationIntegrator integrator = new OrientationIntegrator();
+        float [] matrix = new float[9];
+        float [] vector = new float[3];
+        float [] result = new float[3];
+
+        integrator.getRotationMatrix(matrix);
+        assertArrayEquals(new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, matrix, 1.0e-6f);
+
+        // rotate at 1 radian/s around the z axis for 1 second, in 1000 steps (so with many renormalisations)
+        for(int i=0;i<1000;i++) {
+            integrator.integrateGyro(0.0f, 0.0f, 1.0f, 0.001f);
+        }
+        float cos = (float)Math.cos(1.0), sin = (float)Math.sin(1.0);
+        integrator.getRotationMatrix(matrix);
+        assertArrayEquals(new float[]{cos, -sin, 0, sin, cos, 0, 0, 0, 1}, matrix, 1.0e-4f);
+        vector[0] = 1.0f;
+        vector[1] = 0.0f;
+        vector[2] = 0.0f;
+        integrator.rotateVector(result, vector);
+        assertArrayEquals(new float[]{cos, sin, 0}, result, 1.0e-4f);
+        integrator.inverseRotateVector(result, vector);
+        assertArrayEquals(new float[]{cos, -sin, 0}, result, 1.0e-4f);
+        integrator.inverseRotateVectorGyroOnly(result, vector);
+        assertArrayEquals(new float[]{cos, -sin, 0}, result, 1.0e-4f);
+
+        // the rotation matrix is orthonormal
+        for(int i=0;i<3;i++) {
+            for(int j=0;j<3;j++) {
+                float dot = matrix[3*i]*matrix[3*j] + matrix[3*i+1]*matrix[3*j+1] + matrix[3*i+2]*matrix[3*j+2];
+                assertEquals(i == j ? 1.0f : 0.0f, dot, 1.0e-5f);
+            }
+        }
+
+        // rotations compose in the device's coordinate system: rotate 90 degrees about z, then about the (new) x axis
+        integrator.reset();
+        integrator.integrateGyro(0.0f, 0.0f, (float)(Math.PI/2.0), 1.0f);
+        integrator.integrateGyro((float)(Math.PI/2.0), 0.0f, 0.0f, 1.0f);
+        vector[0] = 0.0f;
+        vector[1] = 1.0f;
+        vector[2] = 0.0f;
+        integrator.rotateVector(result, vector);
+        assertArrayEquals(new float[]{0, 0, 1}, result, 1.0e-5f);
+
+        // round trip via a rotation matrix
+        integrator.getRotationMatrix(matrix);
+        float [] matrix2 = new float[9];
+        OrientationIntegrator integrator2 = new OrientationIntegrator();
+        integrator2.setRotationMatrix(matrix);
+        integrator2.getRotationMatrix(matrix2);
+        assertArrayEquals(matrix, matrix2, 1.0e-5f);
+
+        // accelerometer correction: starting from an orientation that has drifted 0.2 radians about z, with the
+        // accelerometer showing that the device hasn't moved, the correction should converge to the identity
+        integrator.reset();
+        integrator.integrateGyro(0.0f, 0.0f, 0.2f, 1.0f);
+        float [] accel = new float[]{1.0f, 0.0f, 0.0f};
+        for(int i=0;i<1000;i++) {
+            integrator.correctAccel(accel, accel, 0.02f);
+        }
+        integrator.rotateVector(result, accel);
+        assertArrayEquals(accel, result, 1.0e-3f);
+        // but not the gyro only orientation
+        integrator.inverseRotateVectorGyroOnly(result, accel);
+        assertArrayEquals(new float[]{(float)Math.cos(0.2), -(float)Math.sin(0.2), 0}, result, 1.0e-4f);
+    }
+
+    /** Returns a grey ARGB image of a checkerboard with squares of the given size, optionally
+     *  blurred horizontally by averaging over blur pixels.
+     */
+    private static int [] createCheckerboard(int width, int height, int square_size, int blur) {
+        int [] luma = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                luma[y*width+x] = ((x/square_size + y/square_size) % 2 == 0) ? 32 : 224;
+            }
+        }
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int sum = 0;
+                int count = 0;
+                for(int i=x-blur/2;i<=x+blur/2;i++) {
+                    if( i >= 0 && i < width ) {
+                        sum += luma[y*width+i];
+                        count++;
+                    }
+                }
+                int value = sum/count;
+                pixels[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testSharpnessScorer() {
+        Log.d(TAG, "testSharpnessScorer");
+
+        final int width = 64, height = 48;
+
+        // a flat image has no sharpness
+        int [] flat = new int[width*height];
+        Arrays.fill(flat, 0xff808080);
+        assertEquals(0.0f, SharpnessScorer.computeSharpness(flat, width, height), 1.0e-5f);
+        // as does an image too small for the filter
+        assertEquals(0.0f, SharpnessScorer.computeSharpness(new int[2*2], 2, 2), 1.0e-5f);
+
+        // more blur gives lower sharpness
+        float sharp = SharpnessScorer.computeSharpness(createCheckerboard(width, height, 8, 1), width, height);
+        float blur3 = SharpnessScorer.computeSharpness(createCheckerboard(width, height, 8, 3), width, height);
+        float blur7 = SharpnessScorer.computeSharpness(createCheckerboard(width, height, 8, 7), width, height);
+        Log.d(TAG, "sharp: " + sharp + " blur3: " + blur3 + " blur7: " + blur7);
+        assertTrue(sharp > blur3);
+        assertTrue(blur3 > blur7);
+        assertTrue(blur7 > 0.0f);
+
+        // sharpness only depends on luma, so a colour image with the same luma gives a similar score
+        int [] grey = createCheckerboard(width, height, 8, 1);
+        int [] red = new int[width*height];
+        for(int i=0;i<grey.length;i++) {
+            red[i] = (grey[i] & 0xff) == 32 ? 0xff000000 : 0xffff0000;
+        }
+        assertTrue(SharpnessScorer.computeSharpness(red, width, height) > 0.0f);
+
+        // mismatched size is a programming error
+        try {
+            SharpnessScorer.computeSharpness(flat, width+1, height);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        // selection returns the sharpest images in the order they were taken
+        float [] scores = new float[]{1.0f, 5.0f, 2.0f, 4.0f, 3.0f};
+        assertArrayEquals(new int[]{1}, SharpnessScorer.selectSharpest(scores, 1));
+        assertArrayEquals(new int[]{1, 3}, SharpnessScorer.selectSharpest(scores, 2));
+        assertArrayEquals(new int[]{1, 3, 4}, SharpnessScorer.selectSharpest(scores, 3));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, SharpnessScorer.selectSharpest(scores, 10));
+        assertArrayEquals(new int[]{}, SharpnessScorer.selectSharpest(scores, 0));
+        // ties prefer earlier images, and failed decodes (-1) are chosen last
+        assertArrayEquals(new int[]{0, 2}, SharpnessScorer.selectSharpest(new float[]{2.0f, -1.0f, 2.0f, 2.0f}, 2));
+    }
+
+    private static int [] createFlatImage(int width, int height, int value) {
+        int [] image = new int[width*height];
+        for(int i=0;i<image.length;i++) {
+            image[i] = 0xff000000 | (value << 16) | (value << 8) | value;
+        }
+        return image;
+    }
+
+    @Test
+    public void testJavaPyramidBlender() {
+        Log.d(TAG, "testJavaPyramidBlender");
+
+        final int width = 256;
+        final int height = 64;
+        JavaPyramidBlender blender = new JavaPyramidBlender(4, new ForkJoinPool(4));
+        assertEquals(16, blender.getBlendDimension());
+
+        // interpolated best path: values from 0 to n_x-1 map from a quarter to three quarters of the width
+        int [] path = new int[height];
+        JavaPyramidBlender.computeInterpolatedBestPath(path, new int[]{1}, 3, width, height);
+        for(int y=0;y<height;y++) {
+            assertEquals(width/2, path[y]);
+        }
+        JavaPyramidBlender.computeInterpolatedBestPath(path, new int[]{0, 2}, 3, width, height);
+        assertEquals(width/4, path[0]);
+        assertEquals((3*width)/4, path[height-1]);
+        for(int y=1;y<height;y++) {
+            assertTrue(path[y] >= path[y-1]);
+        }
+
+        // blending an image with itself reproduces the image
+        int [] image = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int r = (x*255)/(width-1);
+                int g = ((x/8 + y/8) % 2 == 0) ? 40 : 220;
+                int b = (y*255)/(height-1);
+                image[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        int [] best_path = new int[]{2, 3, 4, 3};
+        int [] output = new int[width*height];
+        blender.blend(image, image, width, height, best_path, 7, output);
+        for(int i=0;i<image.length;i++) {
+            for(int shift=0;shift<24;shift+=8) {
+                int expected = (image[i] >> shift) & 0xff;
+                int actual = (output[i] >> shift) & 0xff;
+                assertTrue(Math.abs(expected - actual) <= 1);
+            }
+            assertEquals(0xff000000, output[i] & 0xff000000);
+        }
+
+        // blending two flat images goes from lhs on the left to rhs on the right, and the output may alias lhs
+        int [] lhs = createFlatImage(width, height, 50);
+        int [] rhs = createFlatImage(width, height, 200);
+        blender.blend(lhs, rhs, width, height, null, 0, lhs);
+        for(int y=0;y<height;y++) {
+            assertEquals(50, lhs[y*width] & 0xff, 1);
+            assertEquals(200, lhs[y*width+width-1] & 0xff, 1);
+            int mid = lhs[y*width+width/2] & 0xff;
+            assertTrue(mid > 50 && mid < 200);
+            for(int x=1;x<width;x++) {
+                assertTrue((lhs[y*width+x] & 0xff) >= (lhs[y*width+x-1] & 0xff) - 1);
+            }
+        }
+
+        // sizes that aren't a multiple of the blend dimension are a programming error
+        try {
+            blender.blend(new int[(width+8)*height], new int[(width+8)*height], width+8, height, null, 0, new int[(width+8)*height]);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBitmapPool() {
+        Log.d(TAG, "testBitmapPool");
+
+        // size classes
+        assertEquals(1, BitmapPool.getSizeClass(1));
+        assertEquals(64, BitmapPool.getSizeClass(64));
+        assertEquals(72, BitmapPool.getSizeClass(65));
+        assertEquals(1024, BitmapPool.getSizeClass(1000));
+        assertEquals(12582912, BitmapPool.getSizeClass(4000*3000));
+        for(int length=1;length<5000;length++) {
+            int size_class = BitmapPool.getSizeClass(length);
+            assertTrue(size_class >= length);
+            assertTrue(size_class <= length + length/8);
+            assertEquals(size_class, BitmapPool.getSizeClass(size_class));
+        }
+
+        BitmapPool pool = new BitmapPool(1000);
+
+        // buffers are reused once released
+        int [] buffer = pool.obtainIntBuffer(60);
+        assertEquals(60, buffer.length);
+        assertEquals(1, pool.getNInUse());
+        assertEquals(0, pool.getNHits());
+        assertEquals(1, pool.getNMisses());
+        pool.release(buffer);
+        assertEquals(0, pool.getNInUse());
+        assertEquals(1, pool.getNFree());
+        assertEquals(240, pool.getFreeBytes());
+        assertSame(buffer, pool.obtainIntBuffer(59));
+        assertEquals(1, pool.getNHits());
+        assertEquals(0, pool.getNFree());
+        // but not for a different size class
+        int [] other = pool.obtainIntBuffer(64);
+        assertNotSame(buffer, other);
+        assertEquals(2, pool.getNMisses());
+
+        // reference counting
+        pool.retain(buffer);
+        pool.release(buffer);
+        assertEquals(0, pool.getNFree());
+        pool.release(buffer);
+        assertEquals(1, pool.getNFree());
+        pool.release(null); // ignored
+
+        // buffers not obtained from the pool are adopted, if their length is a size class
+        pool.release(new int[56]);
+        assertEquals(2, pool.getNFree());
+        pool.release(new int[57]);
+        assertEquals(2, pool.getNFree());
+        pool.clear();
+        assertEquals(0, pool.getNFree());
+        assertEquals(0, pool.getFreeBytes());
+        assertEquals(2, pool.getNEvictions());
+
+        // the least recently released buffers are evicted to stay within the cap
+        pool.release(other);
+        int [][] buffers = new int[4][];
+        for(int i=0;i<buffers.length;i++) {
+            buffers[i] = pool.obtainIntBuffer(64);
+        }
+        assertSame(other, buffers[0]);
+        for(int [] b : buffers) {
+            pool.release(b);
+        }
+        // 4 * 256 bytes exceeds the cap of 1000 bytes
+        assertEquals(3, pool.getNFree());
+        assertEquals(768, pool.getFreeBytes());
+        assertEquals(768, pool.getPeakFreeBytes());
+        assertEquals(3, pool.getNEvictions());
+        assertSame(buffers[3], pool.obtainIntBuffer(64));
+        assertSame(buffers[2], pool.obtainIntBuffer(64));
+        assertSame(buffers[1], pool.obtainIntBuffer(64));
+        int [] new_buffer = pool.obtainIntBuffer(64);
+        assertNotSame(buffers[0], new_buffer);
+
+        // buffers larger than the cap aren't kept
+        pool.release(pool.obtainIntBuffer(1024));
+        assertEquals(0, pool.getNFree());
+
+        // trimming evicts the least recently released buffers
+        pool.release(buffers[1]);
+        pool.release(buffers[2]);
+        pool.release(buffers[3]);
+        long n_evictions = pool.getNEvictions();
+        pool.trimToSize(600);
+        assertEquals(2, pool.getNFree());
+        assertEquals(512, pool.getFreeBytes());
+        assertEquals(n_evictions+1, pool.getNEvictions());
+        pool.trimToSize(1000);
+        assertEquals(2, pool.getNFree());
+        assertSame(buffers[3], pool.obtainIntBuffer(64));
+        assertSame(buffers[2], pool.obtainIntBuffer(64));
+        assertEquals(0, pool.getNFree());
+        Log.d(TAG, "stats: " + pool.getStatsString());
+
+        try {
+            pool.release("not a buffer");
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    /** Resamples the image with the transform, taking the nearest pixel of the source image to
+     *  each pixel centre of the output image, or 0 if outside the source image.
+     */
+    private int [] resampleNearest(int [] image, int width, int height, PostProcessTransform transform) {
+        float [] values = new float[9];
+        transform.getValues(values);
+        double det = values[0]*values[4] - values[1]*values[3];
+        int [] result = new int[transform.getWidth()*transform.getHeight()];
+        for(int y=0;y<transform.getHeight();y++) {
+            for(int x=0;x<transform.getWidth();x++) {
+                double dx = x + 0.5 - values[2];
+                double dy = y + 0.5 - values[5];
+                double src_x = ( values[4]*dx - values[1]*dy)/det;
+                double src_y = (-values[3]*dx + values[0]*dy)/det;
+                int ix = (int)Math.floor(src_x);
+                int iy = (int)Math.floor(src_y);
+                if( ix >= 0 && ix < width && iy >= 0 && iy < height ) {
+                    result[y*transform.getWidth()+x] = image[iy*width+ix];
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testPostProcessTransform() {
+        Log.d(TAG, "testPostProcessTransform");
+
+        PostProcessTransform transform = new PostProcessTransform(40, 30);
+        assertEquals(40, transform.getWidth());
+        assertEquals(30, transform.getHeight());
+        assertTrue(transform.preservesAxes());
+        transform.rotate(90);
+        assertEquals(30, transform.getWidth());
+        assertEquals(40, transform.getHeight());
+        assertTrue(transform.preservesAxes());
+        transform.rotate(180);
+        assertEquals(30, transform.getWidth());
+        assertEquals(40, transform.getHeight());
+        transform.rotate(270);
+        assertEquals(40, transform.getWidth());
+        assertEquals(30, transform.getHeight());
+        transform.mirror();
+        assertEquals(40, transform.getWidth());
+        assertEquals(30, transform.getHeight());
+        // rotated 90+180+270 = 180 degrees, then mirrored, so flipped vertically
+        double [] point = new double[]{0.0, 0.0};
+        transform.mapPoint(point);
+        assertEquals(0.0, point[0], 1.0e-9);
+        assertEquals(30.0, point[1], 1.0e-9);
+
+        // rotating by multiples of 90 degrees, mirroring and cropping resample exactly, so the
+        // result of a single resample should match resampling after each step
+        final int width = 13, height = 7;
+        int [] image = new int[width*height];
+        for(int i=0;i<image.length;i++) {
+            image[i] = i+1;
+        }
+        for(int rotation : new int[]{0, 90, 180, 270}) {
+            for(int mirror=0;mirror<2;mirror++) {
+                PostProcessTransform composed = new PostProcessTransform(width, height);
+                int [] sequential = image;
+                PostProcessTransform step = new PostProcessTransform(width, height);
+                step.rotate(rotation);
+                composed.rotate(rotation);
+                sequential = resampleNearest(sequential, width, height, step);
+                int step_width = step.getWidth(), step_height = step.getHeight();
+                step = new PostProcessTransform(step_width, step_height);
+                step.crop(1, 2, step_width-3, step_height-4);
+                composed.crop(1, 2, step_width-3, step_height-4);
+                sequential = resampleNearest(sequential, step_width, step_height, step);
+                if( mirror == 1 ) {
+                    step_width = step.getWidth();
+                    step_height = step.getHeight();
+                    step = new PostProcessTransform(step_width, step_height);
+                    step.mirror();
+                    composed.mirror();
+                    sequential = resampleNearest(sequential, step_width, step_height, step);
+                }
+                assertEquals(step.getWidth(), composed.getWidth());
+                assertEquals(step.getHeight(), composed.getHeight());
+                int [] fused = resampleNearest(image, width, height, composed);
+                assertArrayEquals("rotation " + rotation + " mirror " + mirror, sequential, fused);
+                for(int value : fused) {
+                    // every output pixel should come from the image
+                    assertTrue(value > 0);
+                }
+            }
+        }
+
+        // for arbitrary angles, the composed transform should map points as applying each step in turn
+        final int big_width = 4000, big_height = 3000;
+        PostProcessTransform composed = new PostProcessTransform(big_width, big_height);
+        PostProcessTransform [] steps = new PostProcessTransform[4];
+        steps[0] = new PostProcessTransform(big_width, big_height);
+        steps[0].rotate(90);
+        composed.rotate(90);
+        steps[1] = new PostProcessTransform(steps[0].getWidth(), steps[0].getHeight());
+        steps[1].scaleRotate(0.9, -7.5);
+        composed.scaleRotate(0.9, -7.5);
+        assertFalse(composed.preservesAxes());
+        int crop_width = steps[1].getWidth() - 600, crop_height = steps[1].getHeight() - 500;
+        steps[2] = new PostProcessTransform(steps[1].getWidth(), steps[1].getHeight());
+        steps[2].crop(300, 250, crop_width, crop_height);
+        composed.crop(300, 250, crop_width, crop_height);
+        steps[3] = new PostProcessTransform(crop_width, crop_height);
+        steps[3].mirror();
+        composed.mirror();
+        assertEquals(crop_width, composed.getWidth());
+        assertEquals(crop_height, composed.getHeight());
+        double [][] points = new double[][]{{0.0, 0.0}, {big_width, 0.0}, {0.0, big_height}, {big_width, big_height}, {0.5*big_width, 0.5*big_height}, {123.0, 2345.0}};
+        for(double [] source_point : points) {
+            double [] expected = source_point.clone();
+            for(PostProcessTransform step : steps) {
+                step.mapPoint(expected);
+            }
+            double [] actual = source_point.clone();
+            composed.mapPoint(actual);
+            assertEquals(expected[0], actual[0], 1.0e-6);
+            assertEquals(expected[1], actual[1], 1.0e-6);
+        }
+
+        try {
+            composed.crop(1, 0, crop_width, crop_height);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    /** Records the callbacks from CameraControllerSim.takePicture().
+     */
+    private static class SimPictureCallback implements CameraController.PictureCallback {
+        final CountDownLatch done = new CountDownLatch(1); // counted down on completion or error
+        final List<byte []> images = new ArrayList<>();
+        int n_burst_callbacks;
+        boolean completed;
+        boolean error;
+
+        @Override
+        public void onStarted() {
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onPictureTaken(ImageBuffer data) {
+            images.add(data.toByteArray());
+            data.release();
+        }
+
+        @Override
+        public void onRawPictureTaken(RawImage raw_image) {
+            fail();
+        }
+
+        @Override
+        public void onBurstPictureTaken(List<ImageBuffer> images) {
+            n_burst_callbacks++;
+            for(ImageBuffer image : images) {
+                this.images.add(image.toByteArray());
+            }
+            ImageBuffer.releaseAll(images);
+        }
+
+        @Override
+        public void onRawBurstPictureTaken(List<RawImage> raw_images) {
+            fail();
+        }
+
+        @Override
+        public boolean imageQueueWouldBlock(int n_raw, int n_jpegs) {
+            return false;
+        }
+
+        @Override
+        public void onFrontScreenTurnOn() {
+        }
+    }
+
+    private SimPictureCallback takePictureSim(CameraControllerSim camera) throws InterruptedException {
+        final SimPictureCallback picture = new SimPictureCallback();
+        camera.takePicture(picture, new CameraController.ErrorCallback() {
+            @Override
+            public void onError() {
+                picture.error = true;
+                picture.done.countDown();
+            }
+        });
+        assertTrue(picture.done.await(10, TimeUnit.SECONDS));
+        return picture;
+    }
+
+    @Test
+    public void testCameraControllerSim() throws InterruptedException {
+        Log.d(TAG, "testCameraControllerSim");
+
+        List<byte []> recorded = new ArrayList<>();
+        recorded.add(new byte[]{1, 2, 3});
+        recorded.add(new byte[]{4, 5});
+        CameraControllerSim.Config config = new CameraControllerSim.Config();
+        config.frame_source = new CameraControllerSim.RecordedFrameSource(recorded);
+        config.capture_latency_ms = 0;
+        config.frame_interval_ms = 0;
+        final int [] n_camera_errors = new int[1];
+        CameraController.ErrorCallback camera_error_cb = new CameraController.ErrorCallback() {
+            @Override
+            public void onError() {
+                n_camera_errors[0]++;
+            }
+        };
+        CameraControllerSim camera = new CameraControllerSim(0, config, camera_error_cb);
+        assertFalse(camera.getCameraFeatures().supports_raw);
+        assertTrue(camera.getCameraFeatures().supports_expo_bracketing);
+
+        SimPictureCallback picture = takePictureSim(camera);
+        assertTrue(picture.completed);
+        assertEquals(1, picture.images.size());
+        assertEquals(0, picture.n_burst_callbacks);
+        assertArrayEquals(recorded.get(0), picture.images.get(0));
+
+        // expo bracketing returns all images in one callback
+        camera.setBurstType(CameraController.BurstType.BURSTTYPE_EXPO);
+        camera.setExpoBracketingNImages(3);
+        picture = takePictureSim(camera);
+        assertTrue(picture.completed);
+        assertEquals(3, picture.images.size());
+        assertEquals(1, picture.n_burst_callbacks);
+        assertArrayEquals(recorded.get(1), picture.images.get(0));
+        assertArrayEquals(recorded.get(0), picture.images.get(1));
+
+        // noise reduction in a bright scene
+        camera.setBurstType(CameraController.BurstType.BURSTTYPE_NORMAL);
+        camera.setBurstForNoiseReduction(true, false);
+        picture = takePictureSim(camera);
+        assertTrue(picture.completed);
+        assertEquals(4, picture.images.size());
+        assertEquals(0, picture.n_burst_callbacks);
+        assertEquals(4, camera.getBurstTotal());
+
+        // focus bracketing with an extra image at infinity
+        camera.setBurstType(CameraController.BurstType.BURSTTYPE_FOCUS);
+        camera.setFocusBracketingNImages(3);
+        camera.setFocusBracketingAddInfinity(true);
+        picture = takePictureSim(camera);
+        assertTrue(picture.completed);
+        assertEquals(4, picture.images.size());
+        assertEquals(0, picture.n_burst_callbacks);
+
+        assertEquals(4, camera.getNCaptures());
+        assertEquals(1+3+4+4, camera.getNImages());
+        assertEquals(0, camera.getNCaptureFailures());
+        assertEquals(0, n_camera_errors[0]);
+        assertEquals(4, camera.test_capture_results);
+        // all images were released, and later images reused the arrays of earlier ones
+        assertEquals(0, camera.getImageBufferPool().getNInUse());
+        assertTrue(camera.getImageBufferPool().getNHits() > 0);
+        camera.release();
+
+        // failure injection
+        config.capture_failure_rate = 1.0;
+        config.device_error_after_n_captures = 2;
+        camera = new CameraControllerSim(0, config, camera_error_cb);
+        picture = takePictureSim(camera);
+        assertTrue(picture.error);
+        assertFalse(picture.completed);
+        assertEquals(0, picture.images.size());
+        assertEquals(1, camera.getNCaptureFailures());
+        assertEquals(0, n_camera_errors[0]);
+
+        final SimPictureCallback device_error_picture = new SimPictureCallback();
+        camera.takePicture(device_error_picture, null);
+        // the capture already queued still runs, and fails before any delay
+        camera.release();
+        long time_s = System.currentTimeMillis();
+        while( n_camera_errors[0] == 0 ) {
+            assertTrue(System.currentTimeMillis() - time_s < 10000);
+            Thread.sleep(10);
+        }
+        assertEquals(1, n_camera_errors[0]);
+        assertFalse(device_error_picture.completed);
+        assertTrue(device_error_picture.images.isEmpty());
+    }
+
+    /** Obtains a buffer from the pool and drops it without releasing it.
+     */
+    private static void leakImageBuffer(ImageBuffer.Pool pool) {
+        ImageBuffer buffer = pool.obtain(100);
+        assertEquals(100, buffer.getLength());
+    }
+
+    @Test
+    public void testImageBuffer() throws IOException, InterruptedException {
+        Log.d(TAG, "testImageBuffer");
+
+        ImageBuffer.Pool pool = new ImageBuffer.Pool(500, true);
+        byte [] data = new byte[300];
+        for(int i=0;i<data.length;i++) {
+            data[i] = (byte)i;
+        }
+        ByteBuffer source = ByteBuffer.wrap(data);
+        source.position(10);
+        ImageBuffer buffer = pool.copyFrom(source);
+        assertEquals(290, buffer.getLength());
+        assertEquals(BitmapPool.getSizeClass(290), buffer.getArray().length);
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 300), buffer.toByteArray());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        buffer.writeTo(output);
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 300), output.toByteArray());
+        assertEquals(10, buffer.newInputStream().read());
+        assertEquals(1, pool.getNInUse());
+        assertEquals(0, pool.getNHits());
+        assertEquals(1, pool.getNMisses());
+
+        // the array is only returned to the pool when the last reference is released
+        byte [] array = buffer.getArray();
+        assertSame(buffer, buffer.retain());
+        buffer.release();
+        assertEquals(1, pool.getNInUse());
+        assertEquals(0, pool.getFreeBytes());
+        buffer.release();
+        assertEquals(0, pool.getNInUse());
+        assertEquals(array.length, pool.getFreeBytes());
+        try {
+            buffer.release();
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+        try {
+            buffer.retain();
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        // a similar length shares the size class, so reuses the array
+        ImageBuffer buffer2 = pool.obtain(300);
+        assertSame(array, buffer2.getArray());
+        assertEquals(300, buffer2.getLength());
+        assertEquals(1, pool.getNHits());
+        assertEquals(0, pool.getFreeBytes());
+        // a different size class needs a new array
+        ImageBuffer buffer3 = pool.obtain(600);
+        assertNotSame(array, buffer3.getArray());
+        assertEquals(2, pool.getNMisses());
+        List<ImageBuffer> buffers = new ArrayList<>();
+        buffers.add(buffer2);
+        buffers.add(null);
+        buffers.add(buffer3);
+        ImageBuffer.releaseAll(buffers);
+        assertEquals(0, pool.getNInUse());
+        // only the first array fits within the cap of free bytes
+        assertEquals(array.length, pool.getFreeBytes());
+        pool.clear();
+        assertEquals(0, pool.getFreeBytes());
+
+        // wrapped buffers aren't pooled
+        ImageBuffer wrapped = ImageBuffer.wrap(data);
+        assertSame(data, wrapped.getArray());
+        assertEquals(data.length, wrapped.getLength());
+        wrapped.release();
+
+        // buffers that are garbage collected without being released are reported
+        assertEquals(0, pool.checkLeaks());
+        leakImageBuffer(pool);
+        assertEquals(1, pool.getNInUse());
+        long time_s = System.currentTimeMillis();
+        while( pool.checkLeaks() == 0 && System.currentTimeMillis() - time_s < 10000 ) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.checkLeaks());
+        assertEquals(0, pool.getNInUse());
+    }
+
+    @Test
+    public void testYuvConverter() {
+        final int width = 4;
+        final int height = 2;
+        assertEquals(12, YuvConverter.getNV21Length(width, height));
+        assertEquals(3*3 + 2*2*2, YuvConverter.getNV21Length(3, 3));
+
+        // Y plane with padding at the end of each row
+        byte [] y_data = {10, 20, 30, 40, 0, 0, 50, 60, 70, 80};
+        byte [] expected = {10, 20, 30, 40, 50, 60, 70, 80, (byte)128, (byte)128, (byte)255, 85};
+
+        // semi-planar chroma (pixel stride 2), with U, V interleaved
+        byte [] uv_data = {(byte)128, (byte)128, 85, (byte)255};
+        ByteBuffer u_plane = ByteBuffer.wrap(uv_data, 0, 3).slice();
+        ByteBuffer v_plane = ByteBuffer.wrap(uv_data, 1, 3).slice();
+        byte [] nv21 = new byte[YuvConverter.getNV21Length(width, height)];
+        ByteBuffer y_plane = ByteBuffer.wrap(y_data);
+        YuvConverter.packNV21(y_plane, 6, u_plane, v_plane, 4, 2, width, height, nv21);
+        assertArrayEquals(expected, nv21);
+        assertEquals(0, y_plane.position());
+
+        // pixel stride 2, but separate U and V planes whose contents happen to look interleaved at
+        // the start, and with padding at the end of each row
+        nv21 = new byte[YuvConverter.getNV21Length(width, height)];
+        YuvConverter.packNV21(ByteBuffer.wrap(y_data), 6, ByteBuffer.wrap(new byte[]{(byte)128, 0, 85, 0, 0}), ByteBuffer.wrap(new byte[]{(byte)128, (byte)128, (byte)255, 0, 0}), 5, 2, width, height, nv21);
+        assertArrayEquals(expected, nv21);
+
+        // interleaved V, U pairs (as in NV21), which are copied a row at a time; with an odd width
+        // and height, and padding at the end of each row
+        byte [] odd_y_data = {1, 2, 3, 0, 4, 5, 6, 0, 7, 8, 9};
+        byte [] vu_data = {20, 10, 21, 11, 0, 0, 22, 12, 23, 13};
+        byte [] odd_expected = {1, 2, 3, 4, 5, 6, 7, 8, 9, 20, 10, 21, 11, 22, 12, 23, 13};
+        ByteBuffer odd_u_plane = ByteBuffer.wrap(vu_data, 1, 9).slice();
+        ByteBuffer odd_v_plane = ByteBuffer.wrap(vu_data, 0, 9).slice();
+        byte [] odd_nv21 = new byte[YuvConverter.getNV21Length(3, 3)];
+        YuvConverter.packNV21(ByteBuffer.wrap(odd_y_data), 4, odd_u_plane, odd_v_plane, 6, 2, 3, 3, odd_nv21);
+        assertArrayEquals(odd_expected, odd_nv21);
+        assertArrayEquals(new byte[]{20, 10, 21, 11, 0, 0, 22, 12, 23, 13}, vu_data); // unchanged by the interleaving check
+
+        // as above, but with read only buffers
+        odd_nv21 = new byte[YuvConverter.getNV21Length(3, 3)];
+        YuvConverter.packNV21(ByteBuffer.wrap(odd_y_data), 4, odd_u_plane.asReadOnlyBuffer(), odd_v_plane.asReadOnlyBuffer(), 6, 2, 3, 3, odd_nv21);
+        assertArrayEquals(odd_expected, odd_nv21);
+
+        // planar chroma (pixel stride 1)
+        nv21 = new byte[YuvConverter.getNV21Length(width, height)];
+        YuvConverter.packNV21(ByteBuffer.wrap(y_data), 6, ByteBuffer.wrap(new byte[]{(byte)128, 85}), ByteBuffer.wrap(new byte[]{(byte)128, (byte)255}), 2, 1, width, height, nv21);
+        assertArrayEquals(expected, nv21);
+
+        // neutral chroma gives grey; the second chroma sample is a saturated red
+        int [] pixels = new int[width*height];
+        YuvConverter.nv21ToArgb(nv21, width, height, 0, height, 1, pixels);
+        assertEquals(0xff0a0a0a, pixels[0]);
+        assertEquals(0xff141414, pixels[1]);
+        assertEquals(0xff323232, pixels[4]);
+        // Y = 70, U = 85, V = 255
+        assertEquals(0xfff80000, pixels[6]);
+        // a single row
+        Arrays.fill(pixels, 0);
+        YuvConverter.nv21ToArgb(nv21, width, height, 1, 2, 1, pixels);
+        assertEquals(0xff323232, pixels[0]);
+        assertEquals(0, pixels[width]);
+
+        // white and black
+        byte [] white = {(byte)255, (byte)128, (byte)128};
+        YuvConverter.nv21ToArgb(white, 1, 1, 0, 1, 1, pixels);
+        assertEquals(0xffffffff, pixels[0]);
+        byte [] black = {0, (byte)128, (byte)128};
+        YuvConverter.nv21ToArgb(black, 1, 1, 0, 1, 1, pixels);
+        assertEquals(0xff000000, pixels[0]);
+
+        // downscaling averages the Y values of each block, using the chroma at the block's centre
+        YuvConverter.nv21ToArgb(nv21, width, height, 0, 1, 2, pixels);
+        assertEquals(0xff232323, pixels[0]);
+        // Y = 55, U = 85, V = 255
+        assertEquals(0xffe90000, pixels[1]);
+
+        // buffers record the size and rotation of YUV images
+        ImageBuffer.Pool pool = new ImageBuffer.Pool(1024, false);
+        ImageBuffer buffer = pool.obtain(YuvConverter.getNV21Length(width, height));
+        assertFalse(buffer.isYuv());
+        System.arraycopy(nv21, 0, buffer.getArray(), 0, nv21.length);
+        assertSame(buffer, buffer.setYuv(width, height, 90));
+        assertTrue(buffer.isYuv());
+        assertEquals(width, buffer.getWidth());
+        assertEquals(height, buffer.getHeight());
+        assertEquals(90, buffer.getRotation());
+        buffer.release();
+        try {
+            pool.obtain(10).setYuv(width, height, 0);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    /** Tests saving and loading of CameraFeaturesCache, including discarding the cache when the
+     *  fingerprint changes.
+     */
+    @Test
+    public void testCameraFeaturesCache() throws IOException {
+        Log.d(TAG, "testCameraFeaturesCache");
+
+        File file = File.createTempFile("camera_features", null);
+        try {
+            CameraController.CameraFeatures camera_features = new CameraController.CameraFeatures();
+            camera_features.is_zoom_supported = true;
+            camera_features.max_zoom = 2;
+            camera_features.zoom_ratios = Arrays.asList(100, 150, 200);
+            camera_features.picture_sizes = new ArrayList<>();
+            camera_features.picture_sizes.add(new CameraController.Size(4000, 3000));
+            camera_features.picture_sizes.add(new CameraController.Size(1920, 1080));
+            camera_features.picture_sizes.get(0).supports_burst = false;
+            camera_features.picture_sizes.get(1).supported_extensions = Collections.singletonList(1);
+            camera_features.video_sizes = new ArrayList<>();
+            camera_features.video_sizes.add(new CameraController.Size(1920, 1080));
+            camera_features.supported_flash_values = Arrays.asList("flash_off", "flash_auto");
+            camera_features.apertures = new float[]{1.8f, 2.4f};
+            camera_features.min_exposure_time = 1000L;
+            camera_features.max_exposure_time = 1000000000L;
+            camera_features.exposure_step = 0.5f;
+            camera_features.supports_raw = true;
+            camera_features.view_angle_x = 65.5f;
+
+            String key = CameraFeaturesCache.getKey("camera2", 1);
+            CameraFeaturesCache cache = new CameraFeaturesCache(file, "fingerprint1");
+            assertNull(cache.get(key)); // not yet loaded
+            assertFalse(cache.waitUntilLoaded(10));
+            cache.load(); // file is empty, so should be treated as invalid
+            assertTrue(cache.waitUntilLoaded(0));
+            assertNull(cache.get(key));
+            assertTrue(cache.put(key, camera_features));
+            assertFalse(cache.put(key, camera_features)); // unchanged
+            cache.save();
+
+            cache = new CameraFeaturesCache(file, "fingerprint1");
+            cache.load();
+            assertNull(cache.get(CameraFeaturesCache.getKey("camera1", 1)));
+            CameraController.CameraFeatures cached_features = cache.get(key);
+            assertNotNull(cached_features);
+            assertTrue(cached_features.is_zoom_supported);
+            assertEquals(2, cached_features.max_zoom);
+            assertEquals(camera_features.zoom_ratios, cached_features.zoom_ratios);
+            assertEquals(2, cached_features.picture_sizes.size());
+            assertEquals(4000, cached_features.picture_sizes.get(0).width);
+            assertEquals(3000, cached_features.picture_sizes.get(0).height);
+            assertFalse(cached_features.picture_sizes.get(0).supports_burst);
+            assertNull(cached_features.picture_sizes.get(0).supported_extensions);
+            assertTrue(cached_features.picture_sizes.get(1).supports_burst);
+            assertEquals(Collections.singletonList(1), cached_features.picture_sizes.get(1).supported_extensions);
+            assertEquals(1, cached_features.video_sizes.size());
+            assertNull(cached_features.video_sizes_high_speed);
+            assertNull(cached_features.preview_sizes);
+            assertEquals(camera_features.supported_flash_values, cached_features.supported_flash_values);
+            assertNull(cached_features.supported_focus_values);
+            assertArrayEquals(camera_features.apertures, cached_features.apertures, 0.0f);
+            assertEquals(1000L, cached_features.min_exposure_time);
+            assertEquals(1000000000L, cached_features.max_exposure_time);
+            assertEquals(0.5f, cached_features.exposure_step, 0.0f);
+            assertTrue(cached_features.supports_raw);
+            assertFalse(cached_features.supports_yuv_capture);
+            assertEquals(65.5f, cached_features.view_angle_x, 0.0f);
+            assertFalse(cache.put(key, cached_features)); // round trip should be identical
+
+            // get() should return a copy
+            cached_features.max_zoom = 3;
+            assertEquals(2, cache.get(key).max_zoom);
+
+            // should be discarded for a different build
+            cache = new CameraFeaturesCache(file, "fingerprint2");
+            cache.load();
+            assertNull(cache.get(key));
+
+            // should be discarded if corrupt
+            long length = file.length();
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(new byte[(int)(length/2)]);
+            outputStream.close();
+            cache = new CameraFeaturesCache(file, "fingerprint1");
+            cache.load();
+            assertNull(cache.get(key));
+        }
+        finally {
+            if( !file.delete() ) {
+                Log.d(TAG, "failed to delete: " + file);
+            }
+        }
+    }
+
+    /** Tests that StartupInitializer runs tasks after their dependencies, on the requested threads.
+     */
+    @Test
+    public void testStartupInitializer() throws InterruptedException {
+        Log.d(TAG, "testStartupInitializer");
+
+        final Thread calling_thread = Thread.currentThread();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final StartupInitializer initializer = new StartupInitializer();
+        initializer.addTask("a", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                assertNotSame(calling_thread, Thread.currentThread());
+                try {
+                    Thread.sleep(50);
+                }
+                catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                order.add("a");
+            }
+        });
+        initializer.addTask("b", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                // shouldn't wait for a
+                assertSame(calling_thread, Thread.currentThread());
+                order.add("b");
+            }
+        });
+        initializer.addTask("c", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                assertSame(calling_thread, Thread.currentThread());
+                assertTrue(initializer.hasCompleted("a"));
+                order.add("c");
+            }
+        }, "a");
+        initializer.addTask("d", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                assertTrue(initializer.hasCompleted("c"));
+                order.add("d");
+            }
+        }, "c", "b");
+        final CountDownLatch deferred_latch = new CountDownLatch(2);
+        initializer.addTask("e", StartupInitializer.Phase.PHASE_DEFERRED, true, new Runnable() {
+            public void run() {
+                order.add("e");
+                deferred_latch.countDown();
+            }
+        }, "d");
+        initializer.addTask("f", StartupInitializer.Phase.PHASE_DEFERRED, true, new Runnable() {
+            public void run() {
+                assertTrue(initializer.hasCompleted("e"));
+                order.add("f");
+                deferred_latch.countDown();
+            }
+        }, "e");
+        initializer.addTask("g", StartupInitializer.Phase.PHASE_DEFERRED, false, new Runnable() {
+            public void run() {
+                assertSame(calling_thread, Thread.currentThread());
+                order.add("g");
+            }
+        }, "d");
+
+        // a deferred task on the calling thread can't depend on a deferred background task
+        try {
+            initializer.addTask("h", StartupInitializer.Phase.PHASE_DEFERRED, false, new Runnable() {
+                public void run() {
+                }
+            }, "e");
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+        // dependencies must already have been added
+        try {
+            initializer.addTask("h", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+                public void run() {
+                }
+            }, "i");
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        initializer.runStartup();
+        assertEquals(Arrays.asList("b", "a", "c", "d"), order);
+        assertTrue(initializer.hasCompleted("d"));
+        assertFalse(initializer.hasCompleted("e"));
+        assertFalse(initializer.hasStartedDeferred());
+        assertTrue(initializer.getStartTimeMs("c") >= initializer.getEndTimeMs("a"));
+        assertEquals(-1, initializer.getStartTimeMs("e"));
+
+        initializer.mark("first_frame");
+        assertTrue(initializer.getMarkTimeMs("first_frame") >= initializer.getEndTimeMs("d"));
+        assertEquals(-1, initializer.getMarkTimeMs("shutter_ready"));
+        initializer.runDeferred();
+        assertTrue(initializer.hasStartedDeferred());
+        assertTrue(initializer.hasCompleted("g"));
+        assertTrue(deferred_latch.await(5, TimeUnit.SECONDS));
+        initializer.runDeferred(); // should do nothing
+        // g may run before or after e
+        assertEquals(7, order.size());
+        assertEquals(Arrays.asList("b", "a", "c", "d"), order.subList(0, 4));
+        assertTrue(order.contains("g"));
+        assertTrue(order.indexOf("e") < order.indexOf("f"));
+
+        String trace = initializer.getTrace();
+        Log.d(TAG, "trace: " + trace);
+        for(String name : new String[]{"a", "b", "c", "d", "e", "f", "g", "first_frame"}) {
+            assertTrue(trace.contains("\n" + name + ": "));
+        }
+
+        // exceptions from background tasks should be rethrown by runStartup()
+        StartupInitializer failing_initializer = new StartupInitializer();
+        failing_initializer.addTask("fail", StartupInitializer.Phase.PHASE_STARTUP, true, new Runnable() {
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        });
+        failing_initializer.addTask("after", StartupInitializer.Phase.PHASE_STARTUP, false, new Runnable() {
+            public void run() {
+                fail();
+            }
+        }, "fail");
+        try {
+            failing_initializer.runStartup();
+            fail();
+        }
+        catch(RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /** Tests that CompletionSequencer runs callbacks in the order the tasks were registered, when
+     *  the tasks finish out of order.
+     */
+    @Test
+    public void testCompletionSequencer() {
+        Log.d(TAG, "testCompletionSequencer");
+
+        CompletionSequencer sequencer = new CompletionSequencer();
+        final List<String> results = new ArrayList<>();
+        long seq0 = sequencer.register();
+        long seq1 = sequencer.register();
+        long seq2 = sequencer.register();
+        long seq3 = sequencer.register();
+
+        // the first task's callbacks are run immediately
+        sequencer.post(seq0, createAppendRunnable(results, "0a"));
+        assertEquals(Collections.singletonList("0a"), results);
+
+        // later tasks finish first
+        sequencer.post(seq2, createAppendRunnable(results, "2a"));
+        sequencer.post(seq1, createAppendRunnable(results, "1a"));
+        sequencer.post(seq2, createAppendRunnable(results, "2b"));
+        sequencer.finish(seq2);
+        sequencer.post(seq3, createAppendRunnable(results, "3a"));
+        assertEquals(1, results.size());
+        assertEquals(3, sequencer.getNPending());
+
+        // finishing the first task releases the second task's callbacks, but the third task's
+        // callbacks still wait for the second task
+        sequencer.post(seq0, createAppendRunnable(results, "0b"));
+        sequencer.finish(seq0);
+        assertEquals(Arrays.asList("0a", "0b", "1a"), results);
+
+        // the second task is now the first unfinished one, so its callbacks are run immediately
+        sequencer.post(seq1, createAppendRunnable(results, "1b"));
+        assertEquals(Arrays.asList("0a", "0b", "1a", "1b"), results);
+
+        // finishing the second task releases the callbacks of the finished third task, and of
+        // the fourth task
+        sequencer.finish(seq1);
+        assertEquals(Arrays.asList("0a", "0b", "1a", "1b", "2a", "2b", "3a"), results);
+        assertEquals(0, sequencer.getNPending());
+        sequencer.post(seq3, createAppendRunnable(results, "3b"));
+        sequencer.finish(seq3);
+        assertEquals(Arrays.asList("0a", "0b", "1a", "1b", "2a", "2b", "3a", "3b"), results);
+
+        // a task with no callbacks
+        long seq4 = sequencer.register();
+        long seq5 = sequencer.register();
+        sequencer.post(seq5, createAppendRunnable(results, "5a"));
+        assertEquals(8, results.size());
+        sequencer.finish(seq4);
+        assertEquals("5a", results.get(8));
+        sequencer.finish(seq5);
+
+        // callbacks aren't run whilst holding the sequencer's lock, and a callback that throws
+        // doesn't prevent later callbacks from running
+        final CompletionSequencer sequencer_f = sequencer;
+        long seq6 = sequencer.register();
+        long seq7 = sequencer.register();
+        sequencer.post(seq7, new Runnable() {
+            public void run() {
+                assertFalse(Thread.holdsLock(sequencer_f));
+                throw new IllegalStateException();
+            }
+        });
+        sequencer.post(seq7, createAppendRunnable(results, "7b"));
+        try {
+            sequencer.finish(seq6);
+            fail();
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+        assertEquals("7b", results.get(9));
+        sequencer.post(seq7, createAppendRunnable(results, "7c"));
+        assertEquals("7c", results.get(10));
+        sequencer.finish(seq7);
+        long seq8 = sequencer.register();
+        sequencer.post(seq8, createAppendRunnable(results, "8a"));
+        assertEquals("8a", results.get(11));
+        sequencer.finish(seq8);
+
+        // finishing a task twice, or one that wasn't registered, is a programming error
+        try {
+            sequencer.finish(seq8);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+        try {
+            sequencer.post(seq8+1, createAppendRunnable(results, "9a"));
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    private static Runnable createAppendRunnable(final List<String> results, final String value) {
+        return new Runnable() {
+            public void run() {
+                results.add(value);
+            }
+        };
+    }
 }